@@ -0,0 +1,32 @@
+plugins {
+    kotlin("jvm") version "1.7.10"
+    id("me.champeau.jmh") version "0.6.8"
+}
+
+group = "cc.ioctl.telebotconsole"
+version = "1.0"
+
+repositories {
+    mavenCentral()
+    maven("https://packages.jetbrains.team/maven/p/skija/maven")
+}
+
+dependencies {
+    jmh(projects.core)
+}
+
+java {
+    targetCompatibility = JavaVersion.VERSION_11
+    sourceCompatibility = JavaVersion.VERSION_11
+}
+
+tasks.withType<org.jetbrains.kotlin.gradle.tasks.KotlinCompile> {
+    kotlinOptions.jvmTarget = "11"
+}
+
+jmh {
+    jmhVersion.set("1.35")
+    // run a subset with e.g. ./gradlew :benchmarks:jmh -PjmhIncludes=Dispatch
+    (project.findProperty("jmhIncludes") as String?)?.let { includes.set(listOf(it)) }
+    resultFormat.set("JSON")
+}
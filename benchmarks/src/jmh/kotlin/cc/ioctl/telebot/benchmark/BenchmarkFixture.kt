@@ -0,0 +1,89 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.EventHandler
+import cc.ioctl.telebot.tdlib.RobotServer
+import cc.ioctl.telebot.tdlib.obj.Bot
+import cc.ioctl.telebot.tdlib.obj.SessionInfo
+import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.Message
+import cc.ioctl.telebot.tdlib.transport.SimulatedTDLibTransport
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import kotlinx.coroutines.runBlocking
+import java.nio.file.Files
+import kotlin.coroutines.Continuation
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlin.coroutines.startCoroutine
+
+/**
+ * Shared state of the benchmarks: a server backed by [SimulatedTDLibTransport], so nothing touches the native
+ * bridge, and a bot at TDLib client index [CLIENT_INDEX] that is never logged in, for dispatching the corpus.
+ */
+object BenchmarkFixture {
+
+    const val CLIENT_INDEX = 1
+    const val SIMULATED_BOT_TOKEN = "1234567890:AAbenchmarkTokenForTheSimulator_000"
+
+    val transport = SimulatedTDLibTransport()
+
+    val server: RobotServer by lazy {
+        val dir = Files.createTempDirectory("telebot-bench").toFile()
+        Runtime.getRuntime().addShutdownHook(Thread { dir.deleteRecursively() })
+        RobotServer.createInstance(dir.absoluteFile, transport)
+    }
+
+    val bot: Bot by lazy {
+        server.createNewBot("b_bench").also {
+            check(it.clientIndex == CLIENT_INDEX) { "unexpected client index ${it.clientIndex}" }
+            it.registerOnReceiveMessageListener(NoOpMessageListener)
+        }
+    }
+
+    /**
+     * A bot logged in to the simulator, the server is started on first access.
+     */
+    val loggedInBot: Bot by lazy {
+        // the corpus bot must take client index 1
+        bot
+        server.start(1, "00000000000000000000000000000000", false)
+        val bot = server.createNewBot("b_simulated")
+        val uid = runBlocking { bot.loginWithBotTokenSuspended(SIMULATED_BOT_TOKEN) }
+        check(uid > 0) { "failed to login to the simulator" }
+        bot
+    }
+
+    /**
+     * The recorded events, in arrival order.
+     */
+    val corpus: List<String> by lazy {
+        val stream = BenchmarkFixture::class.java.classLoader.getResourceAsStream("corpus/updates.jsonl")
+            ?: error("corpus/updates.jsonl not found")
+        stream.bufferedReader(Charsets.UTF_8).useLines { lines -> lines.filter { it.isNotBlank() }.toList() }
+    }
+
+    fun corpusOfType(vararg types: String): List<String> {
+        val result = corpus.filter { BaseTlRpcJsonObject.getType(JsonParser.parseString(it).asJsonObject) in types }
+        check(result.isNotEmpty()) { "no event of type ${types.joinToString()} in the corpus" }
+        return result
+    }
+
+    fun corpusMessages(): List<JsonObject> {
+        return corpusOfType("updateNewMessage").map { JsonParser.parseString(it).asJsonObject.getAsJsonObject("message") }
+    }
+
+    /**
+     * Run a suspend block that is expected to complete without suspending, without the cost of runBlocking.
+     */
+    fun <T> runNonSuspending(block: suspend () -> T): T {
+        var result: Result<T>? = null
+        block.startCoroutine(Continuation(EmptyCoroutineContext) { result = it })
+        return (result ?: error("the block suspended")).getOrThrow()
+    }
+
+    private object NoOpMessageListener : EventHandler.MessageListenerV1 {
+        override fun onReceiveMessage(bot: Bot, si: SessionInfo, senderId: Long, message: Message): Boolean = false
+        override fun onDeleteMessages(bot: Bot, si: SessionInfo, msgIds: List<Long>): Boolean = false
+        override fun onUpdateMessageContent(bot: Bot, si: SessionInfo, msgId: Long, content: JsonObject): Boolean = false
+        override fun onMessageEdited(bot: Bot, si: SessionInfo, msgId: Long, editDate: Int): Boolean = false
+    }
+}
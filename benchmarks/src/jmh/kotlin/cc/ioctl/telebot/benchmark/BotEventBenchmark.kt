@@ -0,0 +1,61 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * The bot-side event handling, Bot.handleTDLibEvent through [cc.ioctl.telebot.tdlib.obj.Bot.onReceiveTDLibEvent],
+ * on already parsed events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class BotEventBenchmark {
+
+    @Param(
+        "updateNewMessage", "updateMessageSendSucceeded", "updateUser", "updateNewChat",
+        "updateChatMember", "updateDeleteMessages", "updateOption"
+    )
+    lateinit var eventType: String
+
+    private lateinit var mEvents: Array<JsonObject>
+    private var mIndex = 0
+
+    @Setup
+    fun setup() {
+        mEvents = BenchmarkFixture.corpusOfType(eventType).map { JsonParser.parseString(it).asJsonObject }.toTypedArray()
+        // the group must be known for updateChatMember to reach the listeners
+        for (event in BenchmarkFixture.corpusOfType("updateNewChat", "updateSupergroup", "updateBasicGroup")) {
+            val obj = JsonParser.parseString(event).asJsonObject
+            BenchmarkFixture.runNonSuspending {
+                BenchmarkFixture.bot.onReceiveTDLibEvent(obj, BaseTlRpcJsonObject.getType(obj)!!)
+            }
+        }
+    }
+
+    @Benchmark
+    fun handleEvent(): Boolean {
+        val i = mIndex
+        mIndex = if (i + 1 >= mEvents.size) 0 else i + 1
+        val event = mEvents[i]
+        return BenchmarkFixture.runNonSuspending {
+            BenchmarkFixture.bot.onReceiveTDLibEvent(event, eventType)
+        }
+    }
+}
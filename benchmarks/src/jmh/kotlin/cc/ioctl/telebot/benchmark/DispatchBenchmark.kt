@@ -0,0 +1,81 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.TransactionDispatcher
+import cc.ioctl.telebot.tdlib.obj.Bot
+import com.google.gson.JsonObject
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * [TransactionDispatcher.dispatchTDLibEvent] from the raw JSON string, including parsing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class DispatchBenchmark {
+
+    private lateinit var mCorpus: Array<String>
+    private lateinit var mNewMessages: Array<String>
+    private var mIndex = 0
+
+    private val mResponse = """{"@type":"ok","@extra":"bench_response","@client_id":${BenchmarkFixture.CLIENT_INDEX}}"""
+    private val mResponseCallback = object : TransactionDispatcher.TransactionCallbackV1 {
+        override fun onEvent(event: JsonObject, bot: Bot?, type: String): Boolean = true
+    }
+
+    @Setup
+    fun setup() {
+        // make sure the fake bot is registered
+        BenchmarkFixture.bot
+        mCorpus = BenchmarkFixture.corpus.toTypedArray()
+        mNewMessages = BenchmarkFixture.corpusOfType("updateNewMessage").toTypedArray()
+    }
+
+    private fun next(events: Array<String>): String {
+        val i = mIndex
+        mIndex = if (i + 1 >= events.size) 0 else i + 1
+        return events[i % events.size]
+    }
+
+    /**
+     * Replays the whole corpus, in arrival order. The corpus is synthetic, see the README.
+     */
+    @Benchmark
+    fun dispatchCorpus() {
+        val event = next(mCorpus)
+        BenchmarkFixture.runNonSuspending {
+            TransactionDispatcher.dispatchTDLibEvent(BenchmarkFixture.server, event)
+        }
+    }
+
+    @Benchmark
+    fun dispatchNewMessage() {
+        val event = next(mNewMessages)
+        BenchmarkFixture.runNonSuspending {
+            TransactionDispatcher.dispatchTDLibEvent(BenchmarkFixture.server, event)
+        }
+    }
+
+    /**
+     * A response to a request, consumed by a waiting transaction.
+     */
+    @Benchmark
+    fun dispatchResponse() {
+        TransactionDispatcher.waitForSingleEvent("bench_response", mResponseCallback)
+        BenchmarkFixture.runNonSuspending {
+            TransactionDispatcher.dispatchTDLibEvent(BenchmarkFixture.server, mResponse)
+        }
+    }
+}
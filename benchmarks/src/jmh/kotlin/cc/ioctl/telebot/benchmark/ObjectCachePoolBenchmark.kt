@@ -0,0 +1,89 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.tdlib.intern.NonLocalObjectCachePool
+import cc.ioctl.telebot.tdlib.obj.Group
+import cc.ioctl.telebot.tdlib.obj.User
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ObjectCachePoolBenchmark {
+
+    private val mUserIds = LongArray(2048) { 1000000000L + it * 7919L }
+    private lateinit var mPool: NonLocalObjectCachePool
+
+    @State(Scope.Thread)
+    open class ThreadState {
+        var index = 0
+    }
+
+    @Setup
+    fun setup() {
+        mPool = BenchmarkFixture.server.cachedObjectPool
+        // fill the cache the same way TDLib updates do
+        val template = JsonParser.parseString(BenchmarkFixture.corpusOfType("updateUser").last()).asJsonObject
+        for ((i, uid) in mUserIds.withIndex()) {
+            val event = template.deepCopy()
+            event.getAsJsonObject("user").apply {
+                addProperty("id", uid)
+                add("usernames", JsonObject().apply {
+                    addProperty("@type", "usernames")
+                    add("active_usernames", JsonArray().apply { add("user_$i") })
+                })
+            }
+            BenchmarkFixture.runNonSuspending {
+                BenchmarkFixture.bot.onReceiveTDLibEvent(event, "updateUser")
+            }
+        }
+    }
+
+    private fun nextUserId(state: ThreadState): Long {
+        val i = state.index
+        state.index = (i + 1) and (mUserIds.size - 1)
+        return mUserIds[i]
+    }
+
+    @Benchmark
+    fun getOrCreateUserHit(state: ThreadState): User {
+        return mPool.getOrCreateUser(nextUserId(state))
+    }
+
+    @Benchmark
+    fun findCachedUserMiss(): User? {
+        return mPool.findCachedUser(42L)
+    }
+
+    @Benchmark
+    fun getOrCreateGroup(state: ThreadState): Group {
+        return mPool.getOrCreateGroup(nextUserId(state))
+    }
+
+    @Benchmark
+    fun findCachedUserWithUserName(state: ThreadState): User? {
+        return mPool.findCachedUserWithUserName("user_" + (state.index++ and 2047))
+    }
+
+    @Benchmark
+    @Threads(4)
+    fun getOrCreateUserHitContended(state: ThreadState): User {
+        return mPool.getOrCreateUser(nextUserId(state))
+    }
+}
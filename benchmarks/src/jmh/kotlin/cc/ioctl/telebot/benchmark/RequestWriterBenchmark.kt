@@ -0,0 +1,184 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.tdlib.tlrpc.FrozenJson
+import cc.ioctl.telebot.tdlib.tlrpc.TlRequestWriter
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.FormattedText
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.ReplyMarkup
+import cc.ioctl.telebot.util.VirtualThreads
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Serializing a sendMessage request up to the UTF-8 bytes passed to td_send, the old way through a String
+ * parsed again to add "@extra", and with [TlRequestWriter]. The "rebuilt" and "frozen" cases compare a text and
+ * keyboard converted on every send with their frozen variants. "writerOnVirtualThreads" sends each request from a new
+ * virtual thread, like the "virtual" execution mode, so a writer is never reused by the same thread; it uses a new
+ * platform thread per request on a JVM without virtual threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class RequestWriterBenchmark {
+
+    companion object {
+        const val VIRTUAL_THREAD_BATCH = 1000
+    }
+
+    private lateinit var mContent: JsonObject
+    private lateinit var mReplyMarkup: JsonObject
+    private lateinit var mText: FormattedText
+    private lateinit var mKeyboard: ReplyMarkup
+    private lateinit var mFrozenText: FormattedText.Frozen
+    private lateinit var mFrozenKeyboard: ReplyMarkup.Frozen
+    private var mSequence = 0L
+    private lateinit var mExecutor: ExecutorService
+    private lateinit var mTasks: List<Callable<Int>>
+
+    @Setup
+    fun setup() {
+        val text = FormattedText.forPlainText(
+            "Привет! Today's roll: 2d6 = 7 🎲 — see https://example.com/docs for the \"rules\".\n"
+                .repeat(4)
+        )
+        mContent = JsonObject().apply {
+            addProperty("@type", "inputMessageText")
+            add("text", text.toJsonObject())
+            addProperty("disable_web_page_preview", true)
+        }
+        val rows = Array(3) { row ->
+            Array(2) { col ->
+                ReplyMarkup.InlineKeyboard.Button(
+                    "Option ${row * 2 + col + 1}",
+                    ReplyMarkup.InlineKeyboard.Button.Type.Callback("Y2hvaWNlOj${row}${col}")
+                )
+            }
+        }
+        mKeyboard = ReplyMarkup.InlineKeyboard(rows)
+        mReplyMarkup = mKeyboard.toJsonObject()
+        mText = text
+        mFrozenText = text.freeze()
+        mFrozenKeyboard = mKeyboard.freeze()
+        mExecutor = if (VirtualThreads.isSupported()) {
+            VirtualThreads.newVirtualThreadPerTaskExecutor("BenchmarkWriter-")
+        } else {
+            // no keep-alive, an idle thread exits instead of taking the next request
+            ThreadPoolExecutor(0, Int.MAX_VALUE, 0L, TimeUnit.MILLISECONDS, SynchronousQueue())
+        }
+        mTasks = List(VIRTUAL_THREAD_BATCH) { i -> Callable { writeSimple("req_$i") } }
+    }
+
+    @TearDown
+    fun tearDown() {
+        mExecutor.shutdownNow()
+    }
+
+    @Benchmark
+    fun stringAndReparse(): ByteArray {
+        val request = JsonObject().apply {
+            addProperty("@type", "sendMessage")
+            addProperty("chat_id", 1000001L)
+            add("input_message_content", mContent)
+            add("reply_markup", mReplyMarkup)
+            addProperty("message_thread_id", 0L)
+            addProperty("reply_to_message_id", 0L)
+        }.toString()
+        val req = JsonParser.parseString(request).asJsonObject
+        req.addProperty("@extra", "req_" + mSequence++)
+        // what the JNI bridge did with the String
+        return req.toString().toByteArray(Charsets.UTF_8)
+    }
+
+    @Benchmark
+    fun writer(): Int {
+        return writeSimple("req_" + mSequence++)
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VIRTUAL_THREAD_BATCH)
+    fun writerOnVirtualThreads(): Int {
+        var sum = 0
+        for (future in mExecutor.invokeAll(mTasks)) {
+            sum += future.get()
+        }
+        return sum
+    }
+
+    private fun writeSimple(extra: String): Int {
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.beginObject().property("@type", "sendMessage")
+                .property("chat_id", 1000001L)
+                .property("input_message_content", mContent)
+                .property("reply_markup", mReplyMarkup)
+                .property("message_thread_id", 0L)
+                .property("reply_to_message_id", 0L)
+                .property("@extra", extra)
+                .endObject()
+            return writer.buffer().get(0) + writer.length()
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    @Benchmark
+    fun rebuilt(): Int {
+        val content = JsonObject().apply {
+            addProperty("@type", "inputMessageText")
+            add("text", mText.toJsonObject())
+            addProperty("disable_web_page_preview", true)
+        }
+        return writeRequest(content, null, mKeyboard.toJsonObject(), null)
+    }
+
+    @Benchmark
+    fun frozen(): Int {
+        val content = JsonObject().apply {
+            addProperty("@type", "inputMessageText")
+            addProperty("disable_web_page_preview", true)
+        }
+        return writeRequest(content, mFrozenText.json, null, mFrozenKeyboard.json)
+    }
+
+    // like Bot, a frozen text is added to the content without one
+    private fun writeRequest(content: JsonObject, text: FrozenJson?, markup: JsonObject?, frozen: FrozenJson?): Int {
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.beginObject().property("@type", "sendMessage")
+                .property("chat_id", 1000001L)
+                .name("input_message_content").beginObject()
+            for ((name, value) in content.entrySet()) {
+                writer.property(name, value)
+            }
+            writer.property("text", text).endObject()
+                .property("reply_markup", markup)
+                .property("reply_markup", frozen)
+                .property("message_thread_id", 0L)
+                .property("reply_to_message_id", 0L)
+                .property("@extra", "req_" + mSequence++)
+                .endObject()
+            return writer.buffer().get(0) + writer.length()
+        } finally {
+            writer.recycle()
+        }
+    }
+}
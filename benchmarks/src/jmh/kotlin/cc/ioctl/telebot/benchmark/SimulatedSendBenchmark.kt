@@ -0,0 +1,49 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.tdlib.obj.Bot
+import cc.ioctl.telebot.tdlib.obj.SessionInfo
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * End-to-end [Bot.sendMessageForText] against the in-process TDLib simulator, from the request
+ * through the poll thread and the dispatcher until updateMessageSendSucceeded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class SimulatedSendBenchmark {
+
+    private lateinit var mBot: Bot
+    private val mSession = SessionInfo.forUser(1000001L)
+
+    @Setup
+    fun setup() {
+        mBot = BenchmarkFixture.loggedInBot
+    }
+
+    @Benchmark
+    fun sendText() = runBlocking {
+        mBot.sendMessageForText(mSession, "benchmark")
+    }
+
+    @Benchmark
+    @Threads(8)
+    fun sendTextConcurrent() = runBlocking {
+        mBot.sendMessageForText(mSession, "benchmark")
+    }
+}
@@ -0,0 +1,78 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.util.HashedWheelTimer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Schedule and cancel a verification-style timeout while many others are pending,
+ * the timing wheel vs the ScheduledThreadPoolExecutor it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class TimerBenchmark {
+
+    @Param("0", "50000")
+    var pending: Int = 0
+
+    private val mTask = Runnable { }
+    private lateinit var mWheel: HashedWheelTimer
+    private lateinit var mScheduler: ScheduledThreadPoolExecutor
+
+    @Setup
+    fun setup() {
+        mWheel = HashedWheelTimer("BenchmarkTimer", 1, 4096) { it.run() }
+        mScheduler = ScheduledThreadPoolExecutor(4).apply { removeOnCancelPolicy = true }
+        // spread over 10 to 20 minutes so none of them expires during the run
+        for (i in 0 until pending) {
+            val delay = 600_000L + i % 600_000L
+            mWheel.newTimeout(mTask, delay, TimeUnit.MILLISECONDS, i.toLong() and 1023)
+            mScheduler.schedule(mTask, delay, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    @TearDown
+    fun tearDown() {
+        mWheel.stop()
+        mScheduler.shutdownNow()
+    }
+
+    @Benchmark
+    fun wheelScheduleCancel(): Boolean {
+        return mWheel.newTimeout(mTask, 60_000L, TimeUnit.MILLISECONDS).cancel()
+    }
+
+    @Benchmark
+    fun schedulerScheduleCancel(): Boolean {
+        return mScheduler.schedule(mTask, 60_000L, TimeUnit.MILLISECONDS).cancel(false)
+    }
+
+    @Benchmark
+    @Threads(4)
+    fun wheelScheduleCancelContended(): Boolean {
+        return mWheel.newTimeout(mTask, 60_000L, TimeUnit.MILLISECONDS).cancel()
+    }
+
+    @Benchmark
+    @Threads(4)
+    fun schedulerScheduleCancelContended(): Boolean {
+        return mScheduler.schedule(mTask, 60_000L, TimeUnit.MILLISECONDS).cancel(false)
+    }
+}
@@ -0,0 +1,86 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.FormattedText
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.Message
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.ReplyMarkup
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * The reflection based conversion between TDLib JSON and objects in BaseTlRpcJsonObject.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class TlRpcObjectBenchmark {
+
+    private lateinit var mMessages: Array<JsonObject>
+    private lateinit var mMessageStrings: Array<String>
+    private var mIndex = 0
+
+    private lateinit var mText: FormattedText
+    private lateinit var mKeyboard: ReplyMarkup.InlineKeyboard
+
+    @Setup
+    fun setup() {
+        mMessages = BenchmarkFixture.corpusMessages().toTypedArray()
+        mMessageStrings = mMessages.map { it.toString() }.toTypedArray()
+        mText = FormattedText(
+            "/roll 2d6 @example_test_bot see https://example.com/docs for details", arrayOf(
+                FormattedText.TextEntity(0, 5, JsonObject().apply { addProperty("@type", "textEntityTypeBotCommand") }),
+                FormattedText.TextEntity(10, 17, JsonObject().apply { addProperty("@type", "textEntityTypeMention") }),
+                FormattedText.TextEntity(32, 25, JsonObject().apply { addProperty("@type", "textEntityTypeUrl") })
+            )
+        )
+        val rows = Array(3) { row ->
+            Array(2) { col ->
+                ReplyMarkup.InlineKeyboard.Button(
+                    "Option ${row * 2 + col + 1}",
+                    ReplyMarkup.InlineKeyboard.Button.Type.Callback("Y2hvaWNlOj${row}${col}")
+                )
+            }
+        }
+        mKeyboard = ReplyMarkup.InlineKeyboard(rows)
+    }
+
+    private fun nextIndex(size: Int): Int {
+        val i = mIndex
+        mIndex = if (i + 1 >= size) 0 else i + 1
+        return i
+    }
+
+    @Benchmark
+    fun messageFromJsonObject(): Message {
+        return Message.fromJsonObject(mMessages[nextIndex(mMessages.size)])
+    }
+
+    @Benchmark
+    fun messageParseAndFromJsonObject(): Message {
+        val obj = JsonParser.parseString(mMessageStrings[nextIndex(mMessageStrings.size)]).asJsonObject
+        return Message.fromJsonObject(obj)
+    }
+
+    @Benchmark
+    fun formattedTextToJsonObject(): JsonObject {
+        return mText.toJsonObject()
+    }
+
+    @Benchmark
+    fun inlineKeyboardToJsonString(): String {
+        return mKeyboard.toJsonObject().toString()
+    }
+}
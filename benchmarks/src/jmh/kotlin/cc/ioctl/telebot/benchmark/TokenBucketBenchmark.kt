@@ -0,0 +1,50 @@
+package cc.ioctl.telebot.benchmark
+
+import cc.ioctl.telebot.util.TokenBucket
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class TokenBucketBenchmark {
+
+    // refill fast enough that the bucket is rarely empty
+    private val mBucket = TokenBucket<Long>(1000, 1)
+    private val mKeys = LongArray(1024) { 1000000000L + it * 7919L }
+
+    @State(Scope.Thread)
+    open class ThreadState {
+        var index = 0
+    }
+
+    @Benchmark
+    fun consumeSingleKey(): Int {
+        return mBucket.consume(42L)
+    }
+
+    @Benchmark
+    fun consumeManyKeys(state: ThreadState): Int {
+        val i = state.index
+        state.index = (i + 1) and (mKeys.size - 1)
+        return mBucket.consume(mKeys[i])
+    }
+
+    @Benchmark
+    @Threads(4)
+    fun consumeSingleKeyContended(): Int {
+        return mBucket.consume(42L)
+    }
+}
@@ -6,6 +6,10 @@ import org.jetbrains.annotations.Nullable;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 public final class Log {
 
@@ -31,13 +35,126 @@ public final class Log {
 
     public static final int ASSERT = 7;
 
+    private static volatile int sDefaultMinLevel = VERBOSE;
+
+    // tag -> minimum level, overrides sDefaultMinLevel
+    private static final ConcurrentHashMap<String, Integer> sTagMinLevels = new ConcurrentHashMap<>(4);
+
+    /**
+     * Check whether a message with the given level and tag would be delivered to the log handler.
+     * <p>
+     * Use this to guard expensive message construction, or use the {@link Supplier} overloads.
+     *
+     * @param level the log level
+     * @param tag   the log tag
+     * @return true if the message is loggable
+     */
+    public static boolean isLoggable(int level, @NotNull String tag) {
+        if (sLogHandler == null) {
+            return false;
+        }
+        int minLevel = sDefaultMinLevel;
+        if (!sTagMinLevels.isEmpty()) {
+            Integer tagLevel = sTagMinLevels.get(tag);
+            if (tagLevel != null) {
+                minLevel = tagLevel;
+            }
+        }
+        return level >= minLevel;
+    }
+
+    /**
+     * Set the minimum level for tags without a per-tag level.
+     *
+     * @param level the minimum level, e.g. {@link #INFO}
+     */
+    public static void setDefaultMinLevel(int level) {
+        sDefaultMinLevel = level;
+    }
+
+    public static int getDefaultMinLevel() {
+        return sDefaultMinLevel;
+    }
+
+    /**
+     * Set the minimum level for a specific tag, overriding the default minimum level.
+     *
+     * @param tag   the log tag
+     * @param level the minimum level, e.g. {@link #DEBUG}
+     */
+    public static void setTagMinLevel(@NotNull String tag, int level) {
+        sTagMinLevels.put(tag, level);
+    }
+
+    /**
+     * Remove the per-tag minimum level, the tag will use the default minimum level again.
+     *
+     * @param tag the log tag
+     */
+    public static void clearTagMinLevel(@NotNull String tag) {
+        sTagMinLevels.remove(tag);
+    }
+
+    @NotNull
+    public static Map<String, Integer> getTagMinLevels() {
+        return Map.copyOf(sTagMinLevels);
+    }
+
+    /**
+     * Parse a log level name, e.g. "debug", "WARN" or "4".
+     *
+     * @param name the level name or number
+     * @return the log level
+     * @throws IllegalArgumentException if the name is not a valid level
+     */
+    public static int parseLevel(@NotNull String name) {
+        switch (name.trim().toUpperCase(Locale.ROOT)) {
+            case "V":
+            case "VERBOSE":
+                return VERBOSE;
+            case "D":
+            case "DEBUG":
+                return DEBUG;
+            case "I":
+            case "INFO":
+                return INFO;
+            case "W":
+            case "WARN":
+            case "WARNING":
+                return WARN;
+            case "E":
+            case "ERROR":
+                return ERROR;
+            case "A":
+            case "ASSERT":
+            case "FATAL":
+                return ASSERT;
+            default:
+                try {
+                    return Integer.parseInt(name.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid log level: " + name);
+                }
+        }
+    }
+
     public static void log(int level, @NotNull String tag, @NotNull String message, @Nullable Throwable throwable) {
         LogHandler h = sLogHandler;
-        if (h != null) {
+        if (h != null && isLoggable(level, tag)) {
             h.onLogMessage(level, tag, message, throwable);
         }
     }
 
+    /**
+     * Log a message which is only built if the level is loggable for the tag.
+     */
+    public static void log(int level, @NotNull String tag, @NotNull Supplier<String> message, @Nullable Throwable throwable) {
+        LogHandler h = sLogHandler;
+        if (h != null && isLoggable(level, tag)) {
+            h.onLogMessage(level, tag, message.get(), throwable);
+        }
+    }
+
     public static void setLogHandler(@Nullable LogHandler logHandler) {
         sLogHandler = logHandler;
     }
@@ -55,6 +172,14 @@ public final class Log {
         log(VERBOSE, tag, message, throwable);
     }
 
+    public static void v(@NotNull String tag, @NotNull Supplier<String> message) {
+        log(VERBOSE, tag, message, null);
+    }
+
+    public static void v(@NotNull String tag, @NotNull Supplier<String> message, @Nullable Throwable throwable) {
+        log(VERBOSE, tag, message, throwable);
+    }
+
     public static void d(@NotNull String tag, @NotNull String message) {
         log(DEBUG, tag, message, null);
     }
@@ -63,6 +188,14 @@ public final class Log {
         log(DEBUG, tag, message, throwable);
     }
 
+    public static void d(@NotNull String tag, @NotNull Supplier<String> message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    public static void d(@NotNull String tag, @NotNull Supplier<String> message, @Nullable Throwable throwable) {
+        log(DEBUG, tag, message, throwable);
+    }
+
     public static void i(@NotNull String tag, @NotNull String message) {
         log(INFO, tag, message, null);
     }
@@ -71,6 +204,14 @@ public final class Log {
         log(INFO, tag, message, throwable);
     }
 
+    public static void i(@NotNull String tag, @NotNull Supplier<String> message) {
+        log(INFO, tag, message, null);
+    }
+
+    public static void i(@NotNull String tag, @NotNull Supplier<String> message, @Nullable Throwable throwable) {
+        log(INFO, tag, message, throwable);
+    }
+
     public static void w(@NotNull String tag, @NotNull String message) {
         log(WARN, tag, message, null);
     }
@@ -79,6 +220,14 @@ public final class Log {
         log(WARN, tag, message, throwable);
     }
 
+    public static void w(@NotNull String tag, @NotNull Supplier<String> message) {
+        log(WARN, tag, message, null);
+    }
+
+    public static void w(@NotNull String tag, @NotNull Supplier<String> message, @Nullable Throwable throwable) {
+        log(WARN, tag, message, throwable);
+    }
+
     public static void e(@NotNull String tag, @NotNull String message) {
         log(ERROR, tag, message, null);
     }
@@ -87,6 +236,14 @@ public final class Log {
         log(ERROR, tag, message, throwable);
     }
 
+    public static void e(@NotNull String tag, @NotNull Supplier<String> message) {
+        log(ERROR, tag, message, null);
+    }
+
+    public static void e(@NotNull String tag, @NotNull Supplier<String> message, @Nullable Throwable throwable) {
+        log(ERROR, tag, message, throwable);
+    }
+
     /**
      * Handy function to get a loggable stack trace from a Throwable
      *
@@ -10,7 +10,7 @@ plugins {
 group = "cc.ioctl.telebotconsole"
 version = "1.0"
 
-val jarMainClassName = "cc.ioctl.telebot.BotStartupMain"
+val jarMainClassName = "cc.ioctl.telebot.startup.BotStartupMain"
 
 repositories {
     mavenCentral()
@@ -189,3 +189,46 @@ val generateJniHeaders: Task by tasks.creating {
 application {
     mainClass.set(jarMainClassName)
 }
+
+// AppCDS: a dry-run startup against the TDLib simulator dumps the loaded classes to an archive, starts with
+// -XX:SharedArchiveFile map them instead of loading, parsing and verifying them again.
+// The archive only matches the JDK and the jar it was dumped with, regenerate it after every build.
+val cdsArchiveFile = file("build/cds/telebot.jsa")
+// copy your plugins and plugins.toml to the training directory to get them archived too, never the session tokens
+val cdsTrainingDir = file(findProperty("cdsTrainingDir") ?: "build/cds/training")
+
+fun JavaExec.configureDryRun(vararg extraJvmArgs: String) {
+    dependsOn(tasks.shadowJar)
+    classpath(tasks.shadowJar.flatMap { it.archiveFile })
+    mainClass.set(jarMainClassName)
+    jvmArgs("-Dfile.encoding=UTF-8", *extraJvmArgs)
+    args("--dir=${cdsTrainingDir.absolutePath}", "--dry-run")
+    doFirst {
+        cdsTrainingDir.mkdirs()
+    }
+}
+
+val generateCdsArchive by tasks.registering(JavaExec::class) {
+    group = "distribution"
+    description = "Dumps a CDS archive of the classes loaded by a dry-run startup, requires JDK 13+"
+    configureDryRun("-XX:ArchiveClassesAtExit=${cdsArchiveFile.absolutePath}")
+    inputs.file(tasks.shadowJar.flatMap { it.archiveFile })
+    outputs.file(cdsArchiveFile)
+    doFirst {
+        check(JavaVersion.current() >= JavaVersion.VERSION_13) { "dynamic CDS archives require JDK 13+" }
+        cdsArchiveFile.parentFile.mkdirs()
+    }
+}
+
+val dryRun by tasks.registering(JavaExec::class) {
+    group = "verification"
+    description = "Runs a dry-run startup and reports the time to the first event, without the CDS archive"
+    configureDryRun()
+}
+
+val dryRunWithCds by tasks.registering(JavaExec::class) {
+    group = "verification"
+    description = "Runs a dry-run startup and reports the time to the first event, with the CDS archive"
+    dependsOn(generateCdsArchive)
+    configureDryRun("-XX:SharedArchiveFile=${cdsArchiveFile.absolutePath}")
+}
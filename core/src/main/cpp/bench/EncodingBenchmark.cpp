@@ -0,0 +1,113 @@
+//
+// A microbenchmark of the UTF-16 to UTF-8 conversion of the JNI bridge, on TDLib requests of typical sizes.
+//
+// Build with -DTDJNI_BUILD_BENCHMARKS=ON and run ./encoding_benchmark
+//
+
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <memory>
+#include <string>
+#include <vector>
+
+#include "utils/text/EncodingHelper.h"
+
+using swgui::EncodingHelper;
+
+namespace {
+
+// the conversion before the fast path: a copy by GetStringRegion, code points, then UTF-8 by appending
+std::string legacyToString8(const char16_t *chars, size_t length) {
+    std::u16string str16;
+    str16.resize(length);
+    memcpy(str16.data(), chars, length * sizeof(char16_t));
+    std::u32string u32str = EncodingHelper::fromString16(str16);
+    std::string result;
+    for (uint32_t c: u32str) {
+        if (c < 0x80) {
+            result += (char) c;
+        } else if (c < 0x800) {
+            result += (char) (0xC0 | (c >> 6));
+            result += (char) (0x80 | (c & 0x3F));
+        } else if (c < 0x10000) {
+            result += (char) (0xE0 | (c >> 12));
+            result += (char) (0x80 | ((c >> 6) & 0x3F));
+            result += (char) (0x80 | (c & 0x3F));
+        } else {
+            result += (char) (0xF0 | (c >> 18));
+            result += (char) (0x80 | ((c >> 12) & 0x3F));
+            result += (char) (0x80 | ((c >> 6) & 0x3F));
+            result += (char) (0x80 | (c & 0x3F));
+        }
+    }
+    return result;
+}
+
+std::u16string makeRequest(const std::u16string &text, size_t targetLength) {
+    std::u16string request = u"{\"@type\":\"sendMessage\",\"chat_id\":-1001234567890,\"input_message_content\":"
+                             u"{\"@type\":\"inputMessageText\",\"text\":{\"@type\":\"formattedText\",\"text\":\"";
+    while (request.size() + text.size() < targetLength) {
+        request += text;
+    }
+    request += u"\",\"entities\":[]},\"disable_web_page_preview\":true},\"@extra\":\"req_123456\"}";
+    return request;
+}
+
+template<typename F>
+double measureNanosPerOp(F &&op) {
+    using Clock = std::chrono::steady_clock;
+    // warm up, then run for about 200 ms
+    for (int i = 0; i < 1000; i++) {
+        op();
+    }
+    size_t iterations = 0;
+    auto start = Clock::now();
+    auto elapsed = Clock::duration::zero();
+    do {
+        for (int i = 0; i < 256; i++) {
+            op();
+        }
+        iterations += 256;
+        elapsed = Clock::now() - start;
+    } while (elapsed < std::chrono::milliseconds(200));
+    return double(std::chrono::duration_cast<std::chrono::nanoseconds>(elapsed).count()) / double(iterations);
+}
+
+}
+
+int main() {
+    struct Text {
+        const char *name;
+        std::u16string text;
+    };
+    std::vector<Text> texts = {
+            {"ascii",    u"Roll 2d6 and see https://example.com/docs for the rules. "},
+            {"cyrillic", u"Привет! Сегодня бросаем кубики, правила по ссылке. "},
+            {"emoji",    u"Roll 🎲🎲 to win 🏆, good luck 🍀! "},
+    };
+    std::vector<size_t> lengths = {256, 1024, 4096, 16384};
+    std::printf("%-9s %7s %12s %12s %8s\n", "text", "chars", "legacy ns", "fast ns", "speedup");
+    volatile size_t sink = 0;
+    std::unique_ptr<char[]> buffer;
+    for (const Text &text: texts) {
+        for (size_t length: lengths) {
+            std::u16string request = makeRequest(text.text, length);
+            buffer.reset(new char[EncodingHelper::maxUtf8Length(request.size())]);
+            std::string expected = legacyToString8(request.data(), request.size());
+            size_t size = EncodingHelper::utf16ToUtf8(request.data(), request.size(), buffer.get());
+            if (size != expected.size() || memcmp(buffer.get(), expected.data(), size) != 0) {
+                std::fprintf(stderr, "mismatch for %s of %zu chars\n", text.name, request.size());
+                return 1;
+            }
+            double legacy = measureNanosPerOp([&]() {
+                sink = sink + legacyToString8(request.data(), request.size()).size();
+            });
+            double fast = measureNanosPerOp([&]() {
+                sink = sink + EncodingHelper::utf16ToUtf8(request.data(), request.size(), buffer.get());
+            });
+            std::printf("%-9s %7zu %12.0f %12.0f %7.1fx\n", text.name, request.size(), legacy, fast, legacy / fast);
+        }
+    }
+    return 0;
+}
@@ -36,9 +36,17 @@ JNIEXPORT jstring JNICALL Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibE
  * Method:    nativeTDLibExecuteAsync
  * Signature: (ILjava/lang/String;)V
  */
-JNIEXPORT void JNICALL Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteAsync
+JNIEXPORT void JNICALL Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteAsync__ILjava_lang_String_2
   (JNIEnv *, jclass, jint, jstring);
 
+/*
+ * Class:     cc_ioctl_telebot_intern_NativeBridge
+ * Method:    nativeTDLibExecuteAsync
+ * Signature: (ILjava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteAsync__ILjava_nio_ByteBuffer_2I
+  (JNIEnv *, jclass, jint, jobject, jint);
+
 /*
  * Class:     cc_ioctl_telebot_intern_NativeBridge
  * Method:    nativeTDLibCreateClient
@@ -47,6 +55,14 @@ JNIEXPORT void JNICALL Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExec
 JNIEXPORT jint JNICALL Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibCreateClient
   (JNIEnv *, jclass);
 
+/*
+ * Class:     cc_ioctl_telebot_intern_NativeBridge
+ * Method:    nativeEnableBinaryLog
+ * Signature: (Ljava/lang/String;JIZ)V
+ */
+JNIEXPORT void JNICALL Java_cc_ioctl_telebot_intern_NativeBridge_nativeEnableBinaryLog
+  (JNIEnv *, jclass, jstring, jlong, jint, jboolean);
+
 #ifdef __cplusplus
 }
 #endif
@@ -1,13 +1,14 @@
 //
 // Created by kinit on 7/10/22.
 //
-#include <malloc.h>
+#include <cerrno>
 #include <cstring>
-#include <ctime>
-#include <sys/time.h>
+#include <mutex>
+#include <string>
 
 #include "LogImpl.h"
 #include "Console.h"
+#include "utils/log/BinaryLogSink.h"
 
 #define VT100_COLOR_NORMAL "\x1B[0m"
 #define VT100_COLOR_RED "\x1B[31m"
@@ -18,22 +19,25 @@
 
 int LoggerOutputImpl_mEnableVt100 = 1;
 
+static BinaryLogSink *volatile sBinaryLogSink = nullptr;
+static volatile bool sConsoleOutputEnabled = true;
+
 void defaultLogHandler(Log::Level level, const char *tag, const char *msg) {
-    size_t len = strlen(msg) + strlen(tag) + 64;
-    char *buf = (char *) malloc(len);
-    if (buf == nullptr) {
-        return;
+    if (BinaryLogSink *sink = sBinaryLogSink; sink != nullptr) {
+        sink->write(level, tag, msg);
+        // warnings and errors are always printed to the console
+        if (!sConsoleOutputEnabled && level < Log::Level::WARN) {
+            return;
+        }
+    }
+    if (msg == nullptr) {
+        msg = "";
     }
-    timeval tv = {};
-    gettimeofday(&tv, nullptr);
-    time_t timesec = tv.tv_sec;
-    const auto *tm = localtime(&timesec);
-    int month = tm->tm_mon + 1;
-    int day = tm->tm_mday;
-    int hour = tm->tm_hour;
-    int min = tm->tm_min;
-    int sec = tm->tm_sec;
-    int usec = int(tv.tv_usec);
+    if (tag == nullptr) {
+        tag = "";
+    }
+    char timeBuf[32];
+    size_t timeLength = Log::formatCurrentTime(timeBuf, sizeof(timeBuf));
     const char *tagString;
     const char *colorStart;
     const char *colorEnd;
@@ -118,13 +122,38 @@ void defaultLogHandler(Log::Level level, const char *tag, const char *msg) {
     }
     // assemble the log message
     // MM-DD HH:MM:SS LEVEL TAG MSG
-    snprintf(buf, len, "%s%02d-%02d %02d:%02d:%02d.%06d %s %s%s %s\n", colorStart, month, day, hour, min, sec, usec, tagString, tag, colorEnd, msg);
+    static thread_local std::string sLineBuffer;
+    std::string &line = sLineBuffer;
+    line.clear();
+    line.append(colorStart).append(timeBuf, timeLength).append(" ").append(tagString).append(" ")
+            .append(tag).append(colorEnd).append(" ").append(msg).append("\n");
     // write to the fifo
     cli::Console &console = cli::Console::getInstance();
-    console.printLine(buf);
-    free(buf);
+    console.printLine(line);
+    // do not keep a huge buffer for the rest of the thread lifetime
+    if (line.capacity() > 64 * 1024) {
+        line.clear();
+        line.shrink_to_fit();
+    }
 }
 
 Log::LogHandler LogImpl::getLogHandler() {
     return &defaultLogHandler;
 }
+
+int LogImpl::enableBinaryLog(const std::string &dirPath, size_t fileCapacity, int maxFileCount, bool consoleOutput) {
+    static std::mutex sLock;
+    std::scoped_lock<std::mutex> lock(sLock);
+    if (sBinaryLogSink != nullptr) {
+        return EALREADY;
+    }
+    // the sink is never destroyed, log handlers may still be running on other threads
+    auto *sink = new BinaryLogSink();
+    if (int err = sink->open(dirPath, fileCapacity, maxFileCount); err != 0) {
+        delete sink;
+        return err;
+    }
+    sConsoleOutputEnabled = consoleOutput;
+    sBinaryLogSink = sink;
+    return 0;
+}
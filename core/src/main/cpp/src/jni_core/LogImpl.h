@@ -5,6 +5,8 @@
 #ifndef TDJNI_LOGIMPL_H
 #define TDJNI_LOGIMPL_H
 
+#include <string>
+
 #include "../utils/log/Log.h"
 
 class LogImpl {
@@ -14,6 +16,17 @@ private:
 
 public:
     static Log::LogHandler getLogHandler();
+
+    /**
+     * Enable the structured binary log sink, see BinaryLogSink.
+     * @param dirPath the directory of the log files, must exist.
+     * @param fileCapacity the size of a single log file in bytes.
+     * @param maxFileCount the max number of log files to keep.
+     * @param consoleOutput whether to keep printing log messages below WARN to the console.
+     * @return 0 on success, errno on error.
+     */
+    [[nodiscard]] static int enableBinaryLog(const std::string &dirPath, size_t fileCapacity, int maxFileCount,
+                                             bool consoleOutput);
 };
 
 #endif //TDJNI_LOGIMPL_H
@@ -6,6 +6,7 @@
 #include <string>
 #include <cerrno>
 #include <cstring>
+#include <memory>
 
 #include "natives_utils.h"
 
@@ -48,15 +49,83 @@ static void throwIllegalStateException(JNIEnv *env, const char *msg) {
 #define requiresNonNullV(__obj, __msg) if (throwIfNull(env, __obj, __msg)) return; ((void)0)
 #define requiresNonNullZ(__obj, __msg) if (throwIfNull(env, __obj, __msg)) return 0; ((void)0)
 
+using swgui::EncodingHelper;
+
+/**
+ * A buffer of a thread for the UTF-8 copies of jstrings, kept between calls so that a request or a log line
+ * does not allocate.
+ */
+class Utf8Buffer {
+public:
+    char *reserve(size_t size) {
+        if (size > mCapacity) {
+            mData.reset(new char[size]);
+            mCapacity = size;
+        }
+        return mData.get();
+    }
+
+    // drop a large buffer, e.g. of a long message, after use
+    void trim() {
+        if (mCapacity > kMaxRetainedCapacity) {
+            mData.reset();
+            mCapacity = 0;
+        }
+    }
+
+private:
+    static constexpr size_t kMaxRetainedCapacity = 256 * 1024;
+    std::unique_ptr<char[]> mData;
+    size_t mCapacity = 0;
+};
+
+static thread_local Utf8Buffer tRequestBuffer;
+static thread_local Utf8Buffer tLogTagBuffer;
+static thread_local Utf8Buffer tLogMessageBuffer;
+
+/**
+ * Encode a jstring of length len to UTF-8 into dst of at least EncodingHelper::maxUtf8Length(len) bytes.
+ * @return the number of bytes written, or -1 if an exception is pending
+ */
+static ssize_t encodeJstringToUtf8(JNIEnv *env, jstring jstr, jsize len, char *dst) {
+    if (len == 0) {
+        return 0;
+    }
+    // no JNI calls until released, the chars are usually not copied
+    const jchar *chars = env->GetStringCritical(jstr, nullptr);
+    if (chars == nullptr) {
+        return -1;
+    }
+    size_t size = EncodingHelper::utf16ToUtf8(reinterpret_cast<const char16_t *>(chars), size_t(len), dst);
+    env->ReleaseStringCritical(jstr, chars);
+    return ssize_t(size);
+}
+
 static std::string getJstringToUtf8(JNIEnv *env, jstring jstr) {
     if (jstr == nullptr) {
         return "";
     }
-    int len = env->GetStringLength(jstr);
-    std::u16string str16;
-    str16.resize(len);
-    env->GetStringRegion(jstr, 0, len, (jchar *) str16.data());
-    return swgui::EncodingHelper::toString8(str16);
+    jsize len = env->GetStringLength(jstr);
+    std::string result;
+    result.resize(EncodingHelper::maxUtf8Length(len));
+    ssize_t size = encodeJstringToUtf8(env, jstr, len, result.data());
+    result.resize(size < 0 ? 0 : size_t(size));
+    return result;
+}
+
+/**
+ * Get a jstring in UTF-8, NUL terminated, in a buffer of the thread.
+ * @return the string, valid until the next use of the buffer, or nullptr if an exception is pending
+ */
+static const char *getJstringToUtf8(JNIEnv *env, jstring jstr, Utf8Buffer &buffer) {
+    jsize len = jstr == nullptr ? 0 : env->GetStringLength(jstr);
+    char *dst = buffer.reserve(EncodingHelper::maxUtf8Length(len) + 1);
+    ssize_t size = encodeJstringToUtf8(env, jstr, len, dst);
+    if (size < 0) {
+        return nullptr;
+    }
+    dst[size] = '\0';
+    return dst;
 }
 
 EXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -170,8 +239,12 @@ Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteSynchronized
         throwIllegalStateException(env, "nativeInit not called");
         return nullptr;
     }
-    std::string request = getJstringToUtf8(env, jstrRequest);
-    std::string response = td_execute(request.c_str());
+    const char *request = getJstringToUtf8(env, jstrRequest, tRequestBuffer);
+    if (request == nullptr) {
+        return nullptr;
+    }
+    std::string response = td_execute(request);
+    tRequestBuffer.trim();
     return env->NewStringUTF(response.c_str());
 }
 
@@ -181,20 +254,55 @@ Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteSynchronized
  * Signature: (ILjava/lang/String;)V
  */
 JNIEXPORT void JNICALL
-Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteAsync
+Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteAsync__ILjava_lang_String_2
         (JNIEnv *env, jclass, jint clientId, jstring jstrRequest) {
     requiresNonNullV(jstrRequest, "request is null");
     if (gWorkingDir.empty()) {
         throwIllegalStateException(env, "nativeInit not called");
         return;
     }
-    std::string request = getJstringToUtf8(env, jstrRequest);
     int id = clientId;
     if (id < -1) {
         throwIllegalArgumentException(env, "clientId is invalid");
         return;
     }
-    td_send(id, request.c_str());
+    const char *request = getJstringToUtf8(env, jstrRequest, tRequestBuffer);
+    if (request == nullptr) {
+        return;
+    }
+    td_send(id, request);
+    tRequestBuffer.trim();
+}
+
+/*
+ * Class:     cc_ioctl_telebot_intern_NativeBridge
+ * Method:    nativeTDLibExecuteAsync
+ * Signature: (ILjava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL
+Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibExecuteAsync__ILjava_nio_ByteBuffer_2I
+        (JNIEnv *env, jclass, jint clientId, jobject jbufRequest, jint length) {
+    requiresNonNullV(jbufRequest, "request is null");
+    if (gWorkingDir.empty()) {
+        throwIllegalStateException(env, "nativeInit not called");
+        return;
+    }
+    // the request is already UTF-8, td_send copies it before it returns
+    const auto *request = static_cast<const char *>(env->GetDirectBufferAddress(jbufRequest));
+    jlong capacity = env->GetDirectBufferCapacity(jbufRequest);
+    if (request == nullptr || capacity < 0) {
+        throwIllegalArgumentException(env, "request is not a direct buffer");
+        return;
+    }
+    if (length <= 0 || length >= capacity || request[length] != '\0') {
+        throwIllegalArgumentException(env, "request must be followed by a NUL byte");
+        return;
+    }
+    if (clientId < -1) {
+        throwIllegalArgumentException(env, "clientId is invalid");
+        return;
+    }
+    td_send(clientId, request);
 }
 
 /*
@@ -212,6 +320,31 @@ Java_cc_ioctl_telebot_intern_NativeBridge_nativeTDLibCreateClient
     return td_create_client_id();
 }
 
+/*
+ * Class:     cc_ioctl_telebot_intern_NativeBridge
+ * Method:    nativeEnableBinaryLog
+ * Signature: (Ljava/lang/String;JIZ)V
+ */
+JNIEXPORT void JNICALL
+Java_cc_ioctl_telebot_intern_NativeBridge_nativeEnableBinaryLog
+        (JNIEnv *env, jclass, jstring jstrDirPath, jlong fileCapacity, jint maxFileCount, jboolean consoleOutput) {
+    requiresNonNullV(jstrDirPath, "dirPath is null");
+    if (gWorkingDir.empty()) {
+        throwIllegalStateException(env, "nativeInit not called");
+        return;
+    }
+    if (fileCapacity <= 0 || maxFileCount <= 0) {
+        throwIllegalArgumentException(env, "fileCapacity and maxFileCount must be positive");
+        return;
+    }
+    std::string dirPath = getJstringToUtf8(env, jstrDirPath);
+    int err = LogImpl::enableBinaryLog(dirPath, size_t(fileCapacity), maxFileCount, consoleOutput != JNI_FALSE);
+    if (err != 0) {
+        std::string msg = "unable to open binary log in " + dirPath + ": " + strerror(err);
+        env->ThrowNew(env->FindClass("java/io/IOException"), msg.c_str());
+    }
+}
+
 
 /*
  * Class:     cc_ioctl_telebot_cli_Console
@@ -273,16 +406,34 @@ JNIEXPORT void JNICALL Java_cc_ioctl_telebot_cli_Console_nPrintLine
  */
 JNIEXPORT void JNICALL Java_cc_ioctl_telebot_cli_Console_nLogMessage
         (JNIEnv *env, jobject, jint level, jstring jstrTag, jstring jstrMessage, jstring jstrDetails) {
-    std::string tag = getJstringToUtf8(env, jstrTag);
-    std::string message = getJstringToUtf8(env, jstrMessage);
-    std::string details = getJstringToUtf8(env, jstrDetails);
-    if (tag.empty()) {
+    const char *tag = getJstringToUtf8(env, jstrTag, tLogTagBuffer);
+    if (tag == nullptr) {
+        return;
+    }
+    if (*tag == '\0') {
         tag = "NO_TAG";
     }
-    if (!details.empty()) {
-        message += "\n" + details;
+    // the message and the details in one buffer
+    jsize messageLen = jstrMessage == nullptr ? 0 : env->GetStringLength(jstrMessage);
+    jsize detailsLen = jstrDetails == nullptr ? 0 : env->GetStringLength(jstrDetails);
+    char *message = tLogMessageBuffer.reserve(
+            EncodingHelper::maxUtf8Length(messageLen) + 1 + EncodingHelper::maxUtf8Length(detailsLen) + 1);
+    ssize_t size = encodeJstringToUtf8(env, jstrMessage, messageLen, message);
+    if (size < 0) {
+        return;
+    }
+    if (detailsLen != 0) {
+        message[size++] = '\n';
+        ssize_t detailsSize = encodeJstringToUtf8(env, jstrDetails, detailsLen, message + size);
+        if (detailsSize < 0) {
+            return;
+        }
+        size += detailsSize;
     }
-    Log::logBuffer(static_cast<Log::Level>(level), tag.c_str(), message.c_str());
+    message[size] = '\0';
+    Log::logBuffer(static_cast<Log::Level>(level), tag, message);
+    tLogTagBuffer.trim();
+    tLogMessageBuffer.trim();
 }
 
 /*
@@ -0,0 +1,237 @@
+#include "BinaryLogSink.h"
+
+#include <cerrno>
+#include <cstdio>
+#include <cstring>
+#include <ctime>
+#include <vector>
+#include <algorithm>
+#include <unistd.h>
+#include <fcntl.h>
+#include <dirent.h>
+#include <sys/syscall.h>
+
+#include "../auto_close_fd.h"
+
+static constexpr const char *kFilePrefix = "telebot.";
+static constexpr const char *kFileSuffix = ".tblog";
+
+static inline size_t alignUp8(size_t v) noexcept {
+    return (v + 7u) & ~size_t(7u);
+}
+
+static inline uint64_t currentTimeNanos() noexcept {
+    timespec ts = {};
+    clock_gettime(CLOCK_REALTIME, &ts);
+    return uint64_t(ts.tv_sec) * 1000000000ull + uint64_t(ts.tv_nsec);
+}
+
+static inline uint32_t currentThreadId() noexcept {
+    static thread_local uint32_t sTid = 0;
+    if (sTid == 0) {
+        sTid = uint32_t(syscall(SYS_gettid));
+    }
+    return sTid;
+}
+
+// returns the sequence number, or -1 if the file name is not a log file
+static int64_t parseSequenceFromFileName(const char *name) noexcept {
+    size_t prefixLen = strlen(kFilePrefix);
+    size_t suffixLen = strlen(kFileSuffix);
+    size_t len = strlen(name);
+    if (len <= prefixLen + suffixLen || strncmp(name, kFilePrefix, prefixLen) != 0
+        || strcmp(name + len - suffixLen, kFileSuffix) != 0) {
+        return -1;
+    }
+    int64_t seq = 0;
+    for (size_t i = prefixLen; i < len - suffixLen; i++) {
+        char c = name[i];
+        if (c < '0' || c > '9') {
+            return -1;
+        }
+        seq = seq * 10 + (c - '0');
+        if (seq > UINT32_MAX) {
+            return -1;
+        }
+    }
+    return seq;
+}
+
+static std::vector<uint32_t> listLogFileSequences(const std::string &dirPath) {
+    std::vector<uint32_t> result;
+    DIR *dir = opendir(dirPath.c_str());
+    if (dir == nullptr) {
+        return result;
+    }
+    while (dirent *ent = readdir(dir)) {
+        int64_t seq = parseSequenceFromFileName(ent->d_name);
+        if (seq >= 0) {
+            result.push_back(uint32_t(seq));
+        }
+    }
+    closedir(dir);
+    std::sort(result.begin(), result.end());
+    return result;
+}
+
+static std::string getLogFilePath(const std::string &dirPath, uint32_t sequence) {
+    char name[64];
+    snprintf(name, sizeof(name), "%s%08u%s", kFilePrefix, sequence, kFileSuffix);
+    return dirPath + "/" + name;
+}
+
+BinaryLogSink::~BinaryLogSink() noexcept {
+    std::unique_lock lock(mSegmentLock);
+    mSegment.reset();
+}
+
+int BinaryLogSink::open(const std::string &dirPath, size_t fileCapacity, int maxFileCount) {
+    if (dirPath.empty() || maxFileCount < 1 || fileCapacity < 64 * 1024 || fileCapacity > UINT32_MAX) {
+        return EINVAL;
+    }
+    std::unique_lock lock(mSegmentLock);
+    if (mSegment) {
+        return EALREADY;
+    }
+    mDirPath = dirPath;
+    mFileCapacity = fileCapacity;
+    mMaxFileCount = maxFileCount;
+    auto existing = listLogFileSequences(dirPath);
+    mNextSequence = existing.empty() ? 1 : existing.back() + 1;
+    return rotateLocked();
+}
+
+int BinaryLogSink::rotateLocked() {
+    uint32_t sequence = mNextSequence++;
+    std::string path = getLogFilePath(mDirPath, sequence);
+    auto_close_fd fd(::open(path.c_str(), O_RDWR | O_CREAT | O_TRUNC | O_CLOEXEC, 0640));
+    if (!fd.valid()) {
+        return errno;
+    }
+    if (ftruncate(fd.get(), off_t(mFileCapacity)) != 0) {
+        return errno;
+    }
+    auto seg = std::make_unique<Segment>();
+    if (int err = seg->map.mapFileDescriptor(fd.get(), false, mFileCapacity, true); err != 0) {
+        return err;
+    }
+    auto *header = static_cast<FileHeader *>(seg->map.getAddress());
+    header->version = kFileVersion;
+    header->headerSize = sizeof(FileHeader);
+    header->createTimeNanos = currentTimeNanos();
+    header->capacity = mFileCapacity;
+    header->sequence = sequence;
+    header->pid = uint32_t(getpid());
+    // magic is written last, a file without magic is ignored by the decoder
+    __atomic_store_n(&header->magic, kFileMagic, __ATOMIC_RELEASE);
+    seg->offset.store(sizeof(FileHeader), std::memory_order_relaxed);
+    seg->sequence = sequence;
+    seg->path = path;
+    writeAllTagDefs(seg.get());
+    // no writer holds the old segment since we are holding the exclusive lock
+    mSegment = std::move(seg);
+    deleteOldFiles();
+    return 0;
+}
+
+void BinaryLogSink::writeAllTagDefs(Segment *seg) noexcept {
+    std::shared_lock lock(mTagLock);
+    uint64_t now = currentTimeNanos();
+    for (const auto &[tag, id]: mTags) {
+        appendRecord(seg, kRecordTypeTagDef, Log::Level::UNKNOWN, now, 0, id, tag);
+    }
+}
+
+void BinaryLogSink::deleteOldFiles() noexcept {
+    auto sequences = listLogFileSequences(mDirPath);
+    if (sequences.size() <= size_t(mMaxFileCount)) {
+        return;
+    }
+    size_t toDelete = sequences.size() - size_t(mMaxFileCount);
+    for (size_t i = 0; i < toDelete; i++) {
+        unlink(getLogFilePath(mDirPath, sequences[i]).c_str());
+    }
+}
+
+uint32_t BinaryLogSink::internTag(Segment *seg, std::string_view tag) {
+    {
+        std::shared_lock lock(mTagLock);
+        // C++17 unordered_map has no heterogeneous lookup
+        if (auto it = mTags.find(std::string(tag)); it != mTags.end()) {
+            return it->second;
+        }
+    }
+    uint32_t id;
+    {
+        std::unique_lock lock(mTagLock);
+        auto [it, inserted] = mTags.emplace(std::string(tag), uint32_t(mTags.size() + 1));
+        if (!inserted) {
+            return it->second;
+        }
+        id = it->second;
+    }
+    // if the segment is full, the tag will be written to the next segment on rotation
+    appendRecord(seg, kRecordTypeTagDef, Log::Level::UNKNOWN, currentTimeNanos(), 0, id, tag);
+    return id;
+}
+
+bool BinaryLogSink::appendRecord(Segment *seg, uint16_t type, Log::Level level, uint64_t timestamp, uint32_t tid,
+                                 uint32_t tagId, std::string_view payload) noexcept {
+    size_t size = alignUp8(sizeof(RecordHeader) + payload.size());
+    size_t offset = seg->offset.fetch_add(size, std::memory_order_relaxed);
+    // keep 8 bytes at the end so that there is always a zero size terminator
+    if (offset + size + 8 > mFileCapacity) {
+        return false;
+    }
+    auto *base = static_cast<uint8_t *>(seg->map.getAddress()) + offset;
+    auto *header = reinterpret_cast<RecordHeader *>(base);
+    header->type = type;
+    header->level = uint8_t(level);
+    header->flags = 0;
+    header->timestampNanos = timestamp;
+    header->tid = tid;
+    header->tagId = tagId;
+    header->payloadLength = uint32_t(payload.size());
+    header->reserved = 0;
+    memcpy(base + sizeof(RecordHeader), payload.data(), payload.size());
+    // commit the record
+    __atomic_store_n(&header->size, uint32_t(size), __ATOMIC_RELEASE);
+    return true;
+}
+
+void BinaryLogSink::write(Log::Level level, const char *tag, const char *msg) noexcept {
+    uint64_t timestamp = currentTimeNanos();
+    uint32_t tid = currentThreadId();
+    std::string_view payload = msg == nullptr ? std::string_view() : std::string_view(msg);
+    std::string_view tagView = tag == nullptr ? std::string_view() : std::string_view(tag);
+    // a single record must fit in an empty file
+    size_t maxPayload = mFileCapacity - sizeof(FileHeader) - sizeof(RecordHeader) - 4096;
+    if (payload.size() > maxPayload) {
+        payload = payload.substr(0, maxPayload);
+    }
+    for (int attempt = 0; attempt < 2; attempt++) {
+        uint32_t fullSequence;
+        {
+            std::shared_lock lock(mSegmentLock);
+            Segment *seg = mSegment.get();
+            if (seg == nullptr) {
+                return;
+            }
+            uint32_t tagId = internTag(seg, tagView);
+            if (appendRecord(seg, kRecordTypeLog, level, timestamp, tid, tagId, payload)) {
+                return;
+            }
+            fullSequence = seg->sequence;
+        }
+        {
+            std::unique_lock lock(mSegmentLock);
+            // another thread may have rotated the file already
+            if (mSegment && mSegment->sequence == fullSequence) {
+                if (rotateLocked() != 0) {
+                    // keep the full segment, records are dropped until the next successful rotation
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+#ifndef TDJNI_BINARYLOGSINK_H
+#define TDJNI_BINARYLOGSINK_H
+
+#include <cstdint>
+#include <cstddef>
+#include <string>
+#include <string_view>
+#include <atomic>
+#include <memory>
+#include <mutex>
+#include <shared_mutex>
+#include <unordered_map>
+
+#include "Log.h"
+#include "../FileMemMap.h"
+
+/**
+ * A structured binary log sink writing into memory-mapped rotating files.
+ * <p>
+ * File layout (all integers are little-endian):
+ * <pre>
+ * FileHeader (64 bytes), then records aligned to 8 bytes, until a record with size 0.
+ * RecordHeader (32 bytes), then payloadLength bytes of UTF-8 payload, then zero padding.
+ * </pre>
+ * A tag is written once per file as a TAG_DEF record, LOG records refer to it by tag id.
+ * The size field of a record is written last, so a record with size 0 is not committed.
+ */
+class BinaryLogSink {
+public:
+    static constexpr uint64_t kFileMagic = 0x01474f4c42544c54ull; // "TLTBLOG\x01"
+    static constexpr uint32_t kFileVersion = 1;
+    static constexpr uint16_t kRecordTypeLog = 1;
+    static constexpr uint16_t kRecordTypeTagDef = 2;
+
+    struct FileHeader {
+        uint64_t magic;
+        uint32_t version;
+        uint32_t headerSize;
+        uint64_t createTimeNanos;
+        uint64_t capacity;
+        uint32_t sequence;
+        uint32_t pid;
+        uint8_t reserved[24];
+    };
+
+    struct RecordHeader {
+        uint32_t size;
+        uint16_t type;
+        uint8_t level;
+        uint8_t flags;
+        uint64_t timestampNanos;
+        uint32_t tid;
+        uint32_t tagId;
+        uint32_t payloadLength;
+        uint32_t reserved;
+    };
+
+    static_assert(sizeof(FileHeader) == 64, "FileHeader size mismatch");
+    static_assert(sizeof(RecordHeader) == 32, "RecordHeader size mismatch");
+
+    BinaryLogSink() = default;
+
+    ~BinaryLogSink() noexcept;
+
+    BinaryLogSink(const BinaryLogSink &) = delete;
+
+    BinaryLogSink &operator=(const BinaryLogSink &) = delete;
+
+    /**
+     * Open the sink, create the first log file in the directory.
+     * @param dirPath the directory of the log files, must exist.
+     * @param fileCapacity the size of a single log file in bytes.
+     * @param maxFileCount the max number of log files to keep, older files are deleted on rotation.
+     * @return 0 on success, errno on error.
+     */
+    [[nodiscard]] int open(const std::string &dirPath, size_t fileCapacity, int maxFileCount);
+
+    /**
+     * Append a log record, thread-safe.
+     * Messages too long for a single file are truncated.
+     */
+    void write(Log::Level level, const char *tag, const char *msg) noexcept;
+
+    [[nodiscard]] inline bool isOpen() const noexcept {
+        return mSegment != nullptr;
+    }
+
+private:
+    struct Segment {
+        FileMemMap map;
+        std::atomic<size_t> offset = 0;
+        uint32_t sequence = 0;
+        std::string path;
+    };
+
+    [[nodiscard]] int rotateLocked();
+
+    // intern the tag, a TAG_DEF record is written to the segment if the tag is new
+    [[nodiscard]] uint32_t internTag(Segment *seg, std::string_view tag);
+
+    // returns false if the segment is full
+    bool appendRecord(Segment *seg, uint16_t type, Log::Level level, uint64_t timestamp, uint32_t tid,
+                      uint32_t tagId, std::string_view payload) noexcept;
+
+    void writeAllTagDefs(Segment *seg) noexcept;
+
+    void deleteOldFiles() noexcept;
+
+    std::string mDirPath;
+    size_t mFileCapacity = 0;
+    int mMaxFileCount = 0;
+    uint32_t mNextSequence = 0;
+
+    // writers take a shared lock, rotation takes an exclusive lock
+    std::shared_mutex mSegmentLock;
+    std::unique_ptr<Segment> mSegment;
+
+    std::shared_mutex mTagLock;
+    std::unordered_map<std::string, uint32_t> mTags;
+};
+
+#endif //TDJNI_BINARYLOGSINK_H
@@ -7,7 +7,8 @@
 #include <cstdarg>
 #include <cstdio>
 #include <cstring>
-#include <malloc.h>
+#include <ctime>
+#include <string>
 
 #include "../TextUtils.h"
 
@@ -32,27 +33,78 @@ const char *Log::levelToString(Log::Level level) noexcept {
     }
 }
 
+size_t Log::formatCurrentTime(char *buf, size_t size) noexcept {
+    // localtime_r takes the tz lock, only call it when the second changes
+    static thread_local time_t sCachedSecond = -1;
+    static thread_local char sCachedPrefix[24] = {};
+    static thread_local size_t sCachedPrefixLength = 0;
+    if (buf == nullptr || size == 0) {
+        return 0;
+    }
+    timespec ts = {};
+    clock_gettime(CLOCK_REALTIME, &ts);
+    if (ts.tv_sec != sCachedSecond) {
+        tm t = {};
+        localtime_r(&ts.tv_sec, &t);
+        int len = snprintf(sCachedPrefix, sizeof(sCachedPrefix), "%02d-%02d %02d:%02d:%02d",
+                           t.tm_mon + 1, t.tm_mday, t.tm_hour, t.tm_min, t.tm_sec);
+        sCachedPrefixLength = len > 0 ? size_t(len) : 0;
+        sCachedSecond = ts.tv_sec;
+    }
+    size_t total = sCachedPrefixLength + 7;
+    if (size <= total) {
+        buf[0] = '\0';
+        return 0;
+    }
+    memcpy(buf, sCachedPrefix, sCachedPrefixLength);
+    char *p = buf + sCachedPrefixLength;
+    *p = '.';
+    int usec = int(ts.tv_nsec / 1000);
+    for (int i = 6; i >= 1; i--) {
+        p[i] = char('0' + usec % 10);
+        usec /= 10;
+    }
+    buf[total] = '\0';
+    return total;
+}
+
 void Log::format(Log::Level level, const char *tag, const char *fmt, ...) {
-    va_list varg1;
-    va_list varg2;
+    // reused by all log calls on the same thread, a nested call falls back to a temporary buffer
+    static thread_local std::string sBuffer;
+    static thread_local bool sBufferInUse = false;
     LogHandler h = mHandler;
     if (h == nullptr || fmt == nullptr) {
         return;
     }
-    va_start(varg1, fmt);
-    va_copy(varg2, varg1);
-    int size = vsnprintf(nullptr, 0, fmt, varg1) + 4;
-    va_end(varg1);
-    if (size <= 0) {
-        return;
+    std::string tmp;
+    bool useShared = !sBufferInUse;
+    std::string &buffer = useShared ? sBuffer : tmp;
+    if (buffer.size() < 256) {
+        buffer.resize(256);
     }
-    void *buffer = malloc(size);
-    if (buffer == nullptr) {
+    va_list varg;
+    va_start(varg, fmt);
+    int len = vsnprintf(buffer.data(), buffer.size(), fmt, varg);
+    va_end(varg);
+    if (len < 0) {
         return;
     }
-    va_start(varg2, fmt);
-    vsnprintf((char *) buffer, size, fmt, varg2);
-    va_end(varg2);
-    h(level, tag, static_cast<const char *>(buffer));
-    free(buffer);
+    if (size_t(len) >= buffer.size()) {
+        buffer.resize(size_t(len) + 1);
+        va_start(varg, fmt);
+        vsnprintf(buffer.data(), buffer.size(), fmt, varg);
+        va_end(varg);
+    }
+    if (useShared) {
+        sBufferInUse = true;
+    }
+    h(level, tag, buffer.c_str());
+    if (useShared) {
+        sBufferInUse = false;
+        // do not keep a huge buffer for the rest of the thread lifetime
+        if (buffer.size() > 64 * 1024) {
+            buffer.clear();
+            buffer.shrink_to_fit();
+        }
+    }
 }
@@ -6,6 +6,8 @@
 #ifndef RPCPROTOCOL_LOG_H
 #define RPCPROTOCOL_LOG_H
 
+#include <cstddef>
+
 static_assert(sizeof(char) == 1, "char is not 1 byte");
 static_assert(sizeof(char16_t) == 2, "char16_t is not 2 bytes");
 
@@ -43,6 +45,15 @@ public:
     }
 
     static const char *levelToString(Level level) noexcept;
+
+    /**
+     * Format the current local time as "MM-DD HH:MM:SS.uuuuuu", thread-safe.
+     * The date part is cached per thread and refreshed once per second.
+     * @param buf the output buffer, should be at least 32 bytes.
+     * @param size the size of the buffer.
+     * @return the length of the formatted string, excluding the trailing NUL.
+     */
+    static size_t formatCurrentTime(char *buf, size_t size) noexcept;
 };
 
 #define LOGE(...)  Log::format(Log::Level::ERROR, LOG_TAG, __VA_ARGS__)
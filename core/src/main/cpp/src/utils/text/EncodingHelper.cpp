@@ -5,6 +5,11 @@
 #include "EncodingHelper.h"
 
 #include <vector>
+#include <cstring>
+
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#endif
 
 namespace swgui {
 
@@ -65,28 +70,74 @@ std::string EncodingHelper::toString8(std::u16string_view str) {
     if (str.empty()) {
         return {};
     }
-    std::u32string u32str = fromString16(str);
     std::string result;
-    for (uint32_t c: u32str) {
-        if (c < 0x80) {
-            result += (char) c;
-        } else if (c < 0x800) {
-            result += (char) (0xC0 | (c >> 6));
-            result += (char) (0x80 | (c & 0x3F));
-        } else if (c < 0x10000) {
-            result += (char) (0xE0 | (c >> 12));
-            result += (char) (0x80 | ((c >> 6) & 0x3F));
-            result += (char) (0x80 | (c & 0x3F));
-        } else if (c < 0x110000) {
-            result += (char) (0xF0 | (c >> 18));
-            result += (char) (0x80 | ((c >> 12) & 0x3F));
-            result += (char) (0x80 | ((c >> 6) & 0x3F));
-            result += (char) (0x80 | (c & 0x3F));
-        } else {
-            result += (char) 0xFFFD;
+    result.resize(maxUtf8Length(str.size()));
+    result.resize(utf16ToUtf8(str.data(), str.size(), result.data()));
+    return result;
+}
+
+size_t EncodingHelper::utf16ToUtf8(const char16_t *src, size_t length, char *dst) {
+    auto *out = reinterpret_cast<uint8_t *>(dst);
+    size_t i = 0;
+    while (i < length) {
+        // runs of ASCII, most of a TDLib request
+#if defined(__SSE2__)
+        const __m128i nonAscii = _mm_set1_epi16(static_cast<short>(0xFF80));
+        while (i + 8 <= length) {
+            __m128i chars = _mm_loadu_si128(reinterpret_cast<const __m128i *>(src + i));
+            __m128i high = _mm_and_si128(chars, nonAscii);
+            if (_mm_movemask_epi8(_mm_cmpeq_epi16(high, _mm_setzero_si128())) != 0xFFFF) {
+                break;
+            }
+            _mm_storel_epi64(reinterpret_cast<__m128i *>(out), _mm_packus_epi16(chars, chars));
+            i += 8;
+            out += 8;
+        }
+#endif
+        while (i + 4 <= length) {
+            uint64_t chars;
+            memcpy(&chars, src + i, sizeof(chars));
+            if ((chars & 0xFF80FF80FF80FF80ULL) != 0) {
+                break;
+            }
+            out[0] = uint8_t(src[i]);
+            out[1] = uint8_t(src[i + 1]);
+            out[2] = uint8_t(src[i + 2]);
+            out[3] = uint8_t(src[i + 3]);
+            i += 4;
+            out += 4;
+        }
+        // the chars up to the next ASCII one, then back to the runs
+        while (i < length) {
+            uint32_t c = src[i];
+            if (c < 0x80) {
+                *out++ = uint8_t(c);
+                i++;
+                break;
+            }
+            i++;
+            if (c < 0x800) {
+                *out++ = uint8_t(0xC0 | (c >> 6));
+                *out++ = uint8_t(0x80 | (c & 0x3F));
+            } else if (c < 0xD800 || c > 0xDFFF) {
+                *out++ = uint8_t(0xE0 | (c >> 12));
+                *out++ = uint8_t(0x80 | ((c >> 6) & 0x3F));
+                *out++ = uint8_t(0x80 | (c & 0x3F));
+            } else if (c < 0xDC00 && i < length && src[i] >= 0xDC00 && src[i] <= 0xDFFF) {
+                uint32_t cp = 0x10000 + ((c - 0xD800) << 10) + (src[i++] - 0xDC00);
+                *out++ = uint8_t(0xF0 | (cp >> 18));
+                *out++ = uint8_t(0x80 | ((cp >> 12) & 0x3F));
+                *out++ = uint8_t(0x80 | ((cp >> 6) & 0x3F));
+                *out++ = uint8_t(0x80 | (cp & 0x3F));
+            } else {
+                // unpaired surrogate, U+FFFD
+                *out++ = 0xEF;
+                *out++ = 0xBF;
+                *out++ = 0xBD;
+            }
         }
     }
-    return result;
+    return size_t(out - reinterpret_cast<uint8_t *>(dst));
 }
 
 }
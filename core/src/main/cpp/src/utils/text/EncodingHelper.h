@@ -35,6 +35,24 @@ public:
      */
     [[nodiscard]] static std::string toString8(std::u16string_view str);
 
+    /**
+     * The max size of a UTF-16 string in UTF-8, 3 bytes per char, a surrogate pair is 4 bytes
+     * @param length the length of the UTF-16 string in chars
+     * @return the max length in bytes
+     */
+    [[nodiscard]] static constexpr size_t maxUtf8Length(size_t length) {
+        return length * 3;
+    }
+
+    /**
+     * Convert a UTF-16 string to UTF-8 without allocating, an unpaired surrogate becomes U+FFFD
+     * @param src the UTF-16 string
+     * @param length the length of src in chars
+     * @param dst the output, at least maxUtf8Length(length) bytes, not NUL terminated
+     * @return the number of bytes written
+     */
+    static size_t utf16ToUtf8(const char16_t *src, size_t length, char *dst);
+
 };
 
 }
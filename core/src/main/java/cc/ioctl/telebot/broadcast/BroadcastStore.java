@@ -0,0 +1,347 @@
+package cc.ioctl.telebot.broadcast;
+
+import cc.ioctl.telebot.util.Log;
+import cc.ioctl.telebot.util.SqliteUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Broadcasts and the result of each of their targets, stored in a SQLite database so that a broadcast
+ * interrupted by a crash or a restart continues with the targets it has not sent to.
+ */
+public class BroadcastStore {
+
+    private static final String TAG = "BroadcastStore";
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_SENT = 1;
+    public static final int STATE_FAILED = 2;
+
+    public static final class Broadcast {
+        @NotNull
+        public final String id;
+        public final long botUserId;
+        /**
+         * The input message content as JSON.
+         */
+        @NotNull
+        public final String content;
+        /**
+         * The reply markup as JSON, or null.
+         */
+        @Nullable
+        public final String replyMarkup;
+        /**
+         * Epoch millis.
+         */
+        public final long createTime;
+        public final boolean isFinished;
+
+        Broadcast(@NotNull String id, long botUserId, @NotNull String content, @Nullable String replyMarkup,
+                  long createTime, boolean isFinished) {
+            this.id = id;
+            this.botUserId = botUserId;
+            this.content = content;
+            this.replyMarkup = replyMarkup;
+            this.createTime = createTime;
+            this.isFinished = isFinished;
+        }
+    }
+
+    public static final class Counts {
+        public final int pending;
+        public final int sent;
+        public final int failed;
+
+        Counts(int pending, int sent, int failed) {
+            this.pending = pending;
+            this.sent = sent;
+            this.failed = failed;
+        }
+
+        public int getTotal() {
+            return pending + sent + failed;
+        }
+    }
+
+    public static final class FailedTarget {
+        public final long chatId;
+        @NotNull
+        public final String error;
+
+        FailedTarget(long chatId, @NotNull String error) {
+            this.chatId = chatId;
+            this.error = error;
+        }
+    }
+
+    @NotNull
+    private final File mFile;
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private Connection mConnection;
+
+    /**
+     * @param file the database file, created on first use
+     */
+    public BroadcastStore(@NotNull File file) {
+        mFile = Objects.requireNonNull(file, "file == null");
+    }
+
+    /**
+     * Store a new broadcast with its targets, in one transaction. A chat id listed twice gets one message.
+     *
+     * @return false if a broadcast with the id already exists
+     */
+    public boolean create(@NotNull String id, long botUserId, @NotNull String content, @Nullable String replyMarkup,
+                          @NotNull long[] chatIds) throws SQLException {
+        Objects.requireNonNull(id, "id == null");
+        Objects.requireNonNull(content, "content == null");
+        synchronized (mLock) {
+            Connection conn = getConnectionLocked();
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement stmt = conn.prepareStatement("INSERT OR IGNORE INTO broadcasts"
+                        + " (id, bot_uid, content, reply_markup, created, finished) VALUES (?, ?, ?, ?, ?, 0)")) {
+                    stmt.setString(1, id);
+                    stmt.setLong(2, botUserId);
+                    stmt.setString(3, content);
+                    stmt.setString(4, replyMarkup);
+                    stmt.setLong(5, System.currentTimeMillis());
+                    if (stmt.executeUpdate() == 0) {
+                        conn.rollback();
+                        return false;
+                    }
+                }
+                try (PreparedStatement stmt = conn.prepareStatement("INSERT OR IGNORE INTO broadcast_targets"
+                        + " (broadcast_id, chat_id, state) VALUES (?, ?, " + STATE_PENDING + ")")) {
+                    for (long chatId : chatIds) {
+                        stmt.setString(1, id);
+                        stmt.setLong(2, chatId);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                conn.commit();
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Nullable
+    public Broadcast get(@NotNull String id) throws SQLException {
+        synchronized (mLock) {
+            Connection conn = getExistingConnectionLocked();
+            if (conn == null) {
+                return null;
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT id, bot_uid, content, reply_markup, created, finished FROM broadcasts WHERE id = ?")) {
+                stmt.setString(1, id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? readBroadcast(rs) : null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the unfinished broadcasts of a bot, oldest first
+     */
+    @NotNull
+    public List<Broadcast> getUnfinished(long botUserId) throws SQLException {
+        synchronized (mLock) {
+            Connection conn = getExistingConnectionLocked();
+            if (conn == null) {
+                // checked on every start, SQLite is not loaded while no broadcast was ever created
+                return new ArrayList<>();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT id, bot_uid, content, reply_markup, created, finished FROM broadcasts"
+                            + " WHERE bot_uid = ? AND finished = 0 ORDER BY created")) {
+                stmt.setLong(1, botUserId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    ArrayList<Broadcast> result = new ArrayList<>();
+                    while (rs.next()) {
+                        result.add(readBroadcast(rs));
+                    }
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the chat ids not sent to yet, in the order they were added
+     */
+    @NotNull
+    public long[] getPendingTargets(@NotNull String id) throws SQLException {
+        synchronized (mLock) {
+            Connection conn = getExistingConnectionLocked();
+            if (conn == null) {
+                return new long[0];
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT chat_id FROM broadcast_targets WHERE broadcast_id = ? AND state = "
+                            + STATE_PENDING + " ORDER BY rowid")) {
+                stmt.setString(1, id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    long[] result = new long[16];
+                    int count = 0;
+                    while (rs.next()) {
+                        if (count == result.length) {
+                            result = Arrays.copyOf(result, count * 2);
+                        }
+                        result[count++] = rs.getLong(1);
+                    }
+                    return Arrays.copyOf(result, count);
+                }
+            }
+        }
+    }
+
+    @NotNull
+    public Counts getCounts(@NotNull String id) throws SQLException {
+        synchronized (mLock) {
+            Connection conn = getExistingConnectionLocked();
+            if (conn == null) {
+                return new Counts(0, 0, 0);
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT state, COUNT(*) FROM broadcast_targets WHERE broadcast_id = ? GROUP BY state")) {
+                stmt.setString(1, id);
+                int pending = 0;
+                int sent = 0;
+                int failed = 0;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        switch (rs.getInt(1)) {
+                            case STATE_PENDING:
+                                pending = rs.getInt(2);
+                                break;
+                            case STATE_SENT:
+                                sent = rs.getInt(2);
+                                break;
+                            case STATE_FAILED:
+                                failed = rs.getInt(2);
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                }
+                return new Counts(pending, sent, failed);
+            }
+        }
+    }
+
+    @NotNull
+    public List<FailedTarget> getFailedTargets(@NotNull String id) throws SQLException {
+        synchronized (mLock) {
+            Connection conn = getExistingConnectionLocked();
+            if (conn == null) {
+                return new ArrayList<>();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT chat_id, error FROM broadcast_targets WHERE broadcast_id = ? AND state = "
+                            + STATE_FAILED + " ORDER BY rowid")) {
+                stmt.setString(1, id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    ArrayList<FailedTarget> result = new ArrayList<>();
+                    while (rs.next()) {
+                        String error = rs.getString(2);
+                        result.add(new FailedTarget(rs.getLong(1), error == null ? "" : error));
+                    }
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the result of a target. A failure to store it is logged, the target is sent again on resume.
+     *
+     * @param messageId the id of the sent message, 0 if it failed
+     * @param error     the error, null if it was sent
+     */
+    public void setResult(@NotNull String id, long chatId, int state, long messageId, @Nullable String error) {
+        synchronized (mLock) {
+            try {
+                Connection conn = getExistingConnectionLocked();
+                if (conn == null) {
+                    return;
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE broadcast_targets SET state = ?, message_id = ?, error = ?"
+                                + " WHERE broadcast_id = ? AND chat_id = ?")) {
+                    stmt.setInt(1, state);
+                    stmt.setLong(2, messageId);
+                    stmt.setString(3, error);
+                    stmt.setString(4, id);
+                    stmt.setLong(5, chatId);
+                    stmt.executeUpdate();
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to store the result of " + chatId + " in broadcast " + id, e);
+            }
+        }
+    }
+
+    public void setFinished(@NotNull String id) throws SQLException {
+        synchronized (mLock) {
+            Connection conn = getExistingConnectionLocked();
+            if (conn == null) {
+                return;
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "UPDATE broadcasts SET finished = 1 WHERE id = ?")) {
+                stmt.setString(1, id);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    private static Broadcast readBroadcast(ResultSet rs) throws SQLException {
+        return new Broadcast(rs.getString(1), rs.getLong(2), rs.getString(3), rs.getString(4), rs.getLong(5),
+                rs.getInt(6) != 0);
+    }
+
+    /**
+     * @return null if the database does not exist, only {@link #create} creates it
+     */
+    @Nullable
+    private Connection getExistingConnectionLocked() throws SQLException {
+        if (mConnection == null && !mFile.exists()) {
+            return null;
+        }
+        return getConnectionLocked();
+    }
+
+    private Connection getConnectionLocked() throws SQLException {
+        if (mConnection == null) {
+            mConnection = SqliteUtils.openDatabase(mFile,
+                    "CREATE TABLE IF NOT EXISTS broadcasts (id TEXT PRIMARY KEY, bot_uid INTEGER NOT NULL,"
+                            + " content TEXT NOT NULL, reply_markup TEXT, created INTEGER NOT NULL,"
+                            + " finished INTEGER NOT NULL)",
+                    "CREATE TABLE IF NOT EXISTS broadcast_targets (broadcast_id TEXT NOT NULL,"
+                            + " chat_id INTEGER NOT NULL, state INTEGER NOT NULL, message_id INTEGER NOT NULL DEFAULT 0,"
+                            + " error TEXT, PRIMARY KEY (broadcast_id, chat_id))");
+        }
+        return mConnection;
+    }
+}
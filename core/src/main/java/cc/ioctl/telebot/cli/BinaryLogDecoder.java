@@ -0,0 +1,245 @@
+package cc.ioctl.telebot.cli;
+
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Offline decoder for the structured binary log written by the native BinaryLogSink.
+ * <p>
+ * Usage: java -cp &lt;jar file&gt; cc.ioctl.telebot.cli.BinaryLogDecoder [--json] &lt;file or directory&gt;...
+ */
+public class BinaryLogDecoder {
+
+    private static final long FILE_MAGIC = 0x01474f4c42544c54L;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 64;
+    private static final int RECORD_HEADER_SIZE = 32;
+    private static final int RECORD_TYPE_LOG = 1;
+    private static final int RECORD_TYPE_TAG_DEF = 2;
+    private static final String FILE_SUFFIX = ".tblog";
+
+    public static class Record {
+        public long timestampNanos;
+        public int level;
+        public int tid;
+        @NotNull
+        public String tag = "";
+        @NotNull
+        public String message = "";
+    }
+
+    public interface RecordVisitor {
+        void onRecord(@NotNull Record record) throws IOException;
+    }
+
+    private BinaryLogDecoder() {
+        throw new AssertionError("This class is not meant to be instantiated");
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean json = false;
+        ArrayList<File> inputs = new ArrayList<>(1);
+        for (String arg : args) {
+            if ("--json".equals(arg)) {
+                json = true;
+            } else if ("--help".equals(arg)) {
+                printUsage();
+                return;
+            } else if (arg.startsWith("-")) {
+                System.out.println("Invalid option: " + arg);
+                printUsage();
+                System.exit(1);
+                return;
+            } else {
+                inputs.add(new File(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        final boolean asJson = json;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024)) {
+            for (File file : collectLogFiles(inputs)) {
+                decodeFile(file, record -> {
+                    out.write(asJson ? formatJson(record) : formatText(record));
+                    out.write('\n');
+                });
+            }
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java -cp <jar file> " + BinaryLogDecoder.class.getName() + " [--json] <file or directory>...");
+        System.out.println("    Decodes the binary log files written by the [log.binary] sink.");
+        System.out.println("    Files in a directory are decoded in sequence order.");
+        System.out.println("--json");
+        System.out.println("    Print one JSON object per line instead of plain text.");
+    }
+
+    @NotNull
+    public static List<File> collectLogFiles(@NotNull List<File> inputs) {
+        ArrayList<File> result = new ArrayList<>();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                File[] files = input.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+                if (files != null) {
+                    // file names are zero-padded sequence numbers
+                    Arrays.sort(files);
+                    result.addAll(Arrays.asList(files));
+                }
+            } else {
+                result.add(input);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decode all committed log records in a binary log file.
+     *
+     * @param file    the log file
+     * @param visitor the visitor to receive the records in file order
+     * @throws IOException if the file cannot be read or is not a binary log file
+     */
+    public static void decodeFile(@NotNull File file, @NotNull RecordVisitor visitor) throws IOException {
+        Objects.requireNonNull(file, "file == null");
+        Objects.requireNonNull(visitor, "visitor == null");
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < FILE_HEADER_SIZE || buf.getLong(0) != FILE_MAGIC) {
+            throw new IOException("Not a binary log file: " + file.getAbsolutePath());
+        }
+        int version = buf.getInt(8);
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported binary log version " + version + ": " + file.getAbsolutePath());
+        }
+        int headerSize = buf.getInt(12);
+        // tag definitions may be written after the first record using them
+        HashMap<Integer, String> tags = new HashMap<>();
+        int end = scanRecords(buf, headerSize, tags);
+        Record record = new Record();
+        int offset = headerSize;
+        while (offset < end) {
+            int size = buf.getInt(offset);
+            int type = buf.getShort(offset + 4) & 0xFFFF;
+            if (type == RECORD_TYPE_LOG) {
+                record.level = buf.get(offset + 6) & 0xFF;
+                record.timestampNanos = buf.getLong(offset + 8);
+                record.tid = buf.getInt(offset + 16);
+                int tagId = buf.getInt(offset + 20);
+                String tag = tags.get(tagId);
+                record.tag = tag != null ? tag : ("#" + tagId);
+                record.message = readPayload(buf, offset);
+                visitor.onRecord(record);
+            }
+            offset += size;
+        }
+    }
+
+    // returns the end offset of the committed records
+    private static int scanRecords(@NotNull MappedByteBuffer buf, int offset, @NotNull HashMap<Integer, String> tags) {
+        int limit = buf.limit();
+        while (offset + RECORD_HEADER_SIZE <= limit) {
+            int size = buf.getInt(offset);
+            if (size == 0) {
+                break;
+            }
+            if (size < RECORD_HEADER_SIZE || (size & 7) != 0 || offset + size > limit) {
+                // corrupted record, stop here
+                break;
+            }
+            int type = buf.getShort(offset + 4) & 0xFFFF;
+            if (type == RECORD_TYPE_TAG_DEF) {
+                tags.put(buf.getInt(offset + 20), readPayload(buf, offset));
+            }
+            offset += size;
+        }
+        return offset;
+    }
+
+    @NotNull
+    private static String readPayload(@NotNull MappedByteBuffer buf, int recordOffset) {
+        int size = buf.getInt(recordOffset);
+        int length = Math.min(buf.getInt(recordOffset + 24), size - RECORD_HEADER_SIZE);
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = buf.duplicate();
+        slice.position(recordOffset + RECORD_HEADER_SIZE);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    public static String levelToString(int level) {
+        switch (level) {
+            case 2:
+                return "VERBOSE";
+            case 3:
+                return "DEBUG";
+            case 4:
+                return "INFO";
+            case 5:
+                return "WARN";
+            case 6:
+                return "ERROR";
+            case 7:
+                return "FATAL";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    @NotNull
+    public static String formatText(@NotNull Record record) {
+        // same layout as the console: MM-DD HH:MM:SS.uuuuuu [LEVEL] TAG MSG
+        Instant instant = Instant.ofEpochSecond(0, record.timestampNanos);
+        LocalDateTime time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+        return String.format("%02d-%02d %02d:%02d:%02d.%06d [%s] %s %s", time.getMonthValue(), time.getDayOfMonth(),
+                time.getHour(), time.getMinute(), time.getSecond(), time.getNano() / 1000,
+                padLevelName(levelToString(record.level)), record.tag, record.message);
+    }
+
+    @NotNull
+    private static String padLevelName(@NotNull String name) {
+        // center the name in 7 columns, e.g. "[ INFO  ]"
+        int left = (7 - name.length()) / 2;
+        int right = 7 - name.length() - left;
+        return " ".repeat(Math.max(0, left)) + name + " ".repeat(Math.max(0, right));
+    }
+
+    @NotNull
+    public static String formatJson(@NotNull Record record) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("time", Instant.ofEpochSecond(0, record.timestampNanos).toString());
+        obj.addProperty("ts_ns", record.timestampNanos);
+        obj.addProperty("level", levelToString(record.level));
+        obj.addProperty("tag", record.tag);
+        obj.addProperty("tid", record.tid);
+        obj.addProperty("msg", record.message);
+        return obj.toString();
+    }
+}
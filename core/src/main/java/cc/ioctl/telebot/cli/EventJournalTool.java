@@ -0,0 +1,145 @@
+package cc.ioctl.telebot.cli;
+
+import cc.ioctl.telebot.tdlib.journal.EventJournalReader;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inspects the event journals recorded with [journal] record = true.
+ * <p>
+ * Usage: java -cp &lt;jar file&gt; cc.ioctl.telebot.cli.EventJournalTool [--stats] &lt;file&gt;...
+ */
+public class EventJournalTool {
+
+    private EventJournalTool() {
+        throw new AssertionError("This class is not meant to be instantiated");
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean stats = false;
+        ArrayList<File> inputs = new ArrayList<>(1);
+        for (String arg : args) {
+            if ("--stats".equals(arg)) {
+                stats = true;
+            } else if ("--help".equals(arg)) {
+                printUsage();
+                return;
+            } else if (arg.startsWith("-")) {
+                System.out.println("Invalid option: " + arg);
+                printUsage();
+                System.exit(1);
+                return;
+            } else {
+                inputs.add(new File(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024)) {
+            for (File file : inputs) {
+                if (stats) {
+                    printStats(file, out);
+                } else {
+                    dumpEvents(file, out);
+                }
+            }
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java -cp <jar file> " + EventJournalTool.class.getName() + " [--stats] <file>...");
+        System.out.println("    Prints the recorded TDLib events, one JSON object per line.");
+        System.out.println("--stats");
+        System.out.println("    Print the event count, rates and event types instead.");
+    }
+
+    private static void dumpEvents(@NotNull File file, @NotNull Writer out) throws IOException {
+        try (EventJournalReader reader = new EventJournalReader(file)) {
+            EventJournalReader.Record record;
+            while ((record = reader.next()) != null) {
+                out.write(record.event);
+                out.write('\n');
+            }
+        }
+    }
+
+    private static void printStats(@NotNull File file, @NotNull Writer out) throws IOException {
+        long count = 0;
+        long bytes = 0;
+        long firstArrival = -1;
+        long lastArrival = 0;
+        // events per second of the recording, to find the load spikes
+        long currentSecond = -1;
+        long currentSecondCount = 0;
+        long peakCount = 0;
+        long peakSecond = 0;
+        HashMap<String, Long> types = new HashMap<>();
+        long startTimeMillis;
+        try (EventJournalReader reader = new EventJournalReader(file)) {
+            startTimeMillis = reader.getStartTimeMillis();
+            EventJournalReader.Record record;
+            while ((record = reader.next()) != null) {
+                count++;
+                bytes += record.event.length();
+                if (firstArrival < 0) {
+                    firstArrival = record.arrivalNanos;
+                }
+                lastArrival = record.arrivalNanos;
+                long second = record.arrivalNanos / 1000_000_000L;
+                if (second != currentSecond) {
+                    currentSecond = second;
+                    currentSecondCount = 0;
+                }
+                currentSecondCount++;
+                if (currentSecondCount > peakCount) {
+                    peakCount = currentSecondCount;
+                    peakSecond = second;
+                }
+                types.merge(getType(record.event), 1L, Long::sum);
+            }
+        }
+        double duration = count == 0 ? 0 : (lastArrival - firstArrival) / 1e9;
+        out.write(file.getPath() + "\n");
+        out.write("  started: " + Instant.ofEpochMilli(startTimeMillis) + "\n");
+        out.write(String.format("  events: %d, %d chars, %.3fs, %.1f events/s average%n",
+                count, bytes, duration, duration > 0 ? count / duration : 0));
+        out.write(String.format("  peak: %d events in second %d of the recording%n", peakCount, peakSecond));
+        ArrayList<Map.Entry<String, Long>> sorted = new ArrayList<>(types.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (Map.Entry<String, Long> e : sorted) {
+            out.write(String.format("  %10d  %s%n", e.getValue(), e.getKey()));
+        }
+    }
+
+    @NotNull
+    private static String getType(@NotNull String event) {
+        try {
+            JsonObject obj = JsonParser.parseString(event).getAsJsonObject();
+            JsonElement type = obj.get("@type");
+            if (type == null) {
+                return "<no type>";
+            }
+            // responses are counted separately from updates of the same type
+            return obj.has("@extra") ? type.getAsString() + " (response)" : type.getAsString();
+        } catch (JsonParseException | IllegalStateException e) {
+            return "<invalid>";
+        }
+    }
+}
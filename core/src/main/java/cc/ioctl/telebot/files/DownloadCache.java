@@ -0,0 +1,187 @@
+package cc.ioctl.telebot.files;
+
+import cc.ioctl.telebot.util.IoUtils;
+import cc.ioctl.telebot.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Downloaded files on disk, by the unique id of the remote file, with a size cap.
+ * <p>
+ * The least recently used files are deleted when the cap is exceeded. The last access time is kept in the
+ * modification time of the file, so the order survives restarts. Unique ids are the same for every account,
+ * the cache is shared by all bots.
+ */
+public class DownloadCache {
+
+    private static final String TAG = "DownloadCache";
+    private static final Pattern UNIQUE_ID_PATTERN = Pattern.compile("^[A-Za-z0-9_-]{1,128}$");
+    private static final Pattern EXTENSION_PATTERN = Pattern.compile("^\\.[A-Za-z0-9]{1,8}$");
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final class Entry {
+        final File file;
+        final long size;
+
+        Entry(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    @NotNull
+    private final File mDir;
+    private final long mMaxBytes;
+    // access order, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes = 0;
+
+    /**
+     * @param dir      the cache directory, created if it does not exist
+     * @param maxBytes the size cap, the most recently used file is kept even if it is larger
+     */
+    public DownloadCache(@NotNull File dir, long maxBytes) {
+        mDir = Objects.requireNonNull(dir, "dir == null");
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive, got " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+        IoUtils.mkdirsOrThrow(dir);
+        loadEntries();
+    }
+
+    /**
+     * @return the cached file, or null if the file is not cached
+     */
+    @Nullable
+    public File get(@NotNull String uniqueId) {
+        synchronized (this) {
+            Entry entry = mEntries.get(uniqueId);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.file.isFile()) {
+                // deleted behind our back
+                mEntries.remove(uniqueId);
+                mTotalBytes -= entry.size;
+                return null;
+            }
+            entry.file.setLastModified(System.currentTimeMillis());
+            return entry.file;
+        }
+    }
+
+    /**
+     * Move a downloaded file into the cache, replacing the cached file of the unique id.
+     * The file is copied if it is on another file system.
+     *
+     * @param uniqueId the unique id of the remote file
+     * @param source   the downloaded file, moved into the cache
+     * @return the cached file
+     * @throws IOException if the file cannot be moved or copied
+     */
+    @NotNull
+    public File put(@NotNull String uniqueId, @NotNull File source) throws IOException {
+        if (!UNIQUE_ID_PATTERN.matcher(uniqueId).matches()) {
+            throw new IllegalArgumentException("invalid unique id: " + uniqueId);
+        }
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot >= 0 && EXTENSION_PATTERN.matcher(name.substring(dot)).matches() ? name.substring(dot) : "";
+        File target = new File(mDir, uniqueId + extension);
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // unique per call, two bots may put the same file at the same time
+            File temp = Files.createTempFile(mDir.toPath(), uniqueId + ".", TEMP_SUFFIX).toFile();
+            try {
+                Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        }
+        target.setLastModified(System.currentTimeMillis());
+        long size = target.length();
+        synchronized (this) {
+            Entry old = mEntries.put(uniqueId, new Entry(target, size));
+            if (old != null) {
+                mTotalBytes -= old.size;
+                if (!old.file.equals(target)) {
+                    old.file.delete();
+                }
+            }
+            mTotalBytes += size;
+            trimLocked();
+        }
+        return target;
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized int getFileCount() {
+        return mEntries.size();
+    }
+
+    private void loadEntries() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        synchronized (this) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!file.isFile()) {
+                    continue;
+                }
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // an interrupted copy
+                    file.delete();
+                    continue;
+                }
+                int dot = name.indexOf('.');
+                String uniqueId = dot >= 0 ? name.substring(0, dot) : name;
+                long size = file.length();
+                Entry old = mEntries.put(uniqueId, new Entry(file, size));
+                if (old != null) {
+                    mTotalBytes -= old.size;
+                    old.file.delete();
+                }
+                mTotalBytes += size;
+            }
+            trimLocked();
+        }
+        Log.i(TAG, "Download cache " + mDir.getAbsolutePath() + ": " + mEntries.size() + " files, "
+                + mTotalBytes / 1024 + " KB");
+    }
+
+    private void trimLocked() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && mEntries.size() > 1 && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            mTotalBytes -= entry.size;
+            if (!entry.file.delete() && entry.file.exists()) {
+                Log.w(TAG, "failed to delete " + entry.file.getAbsolutePath());
+            }
+        }
+    }
+}
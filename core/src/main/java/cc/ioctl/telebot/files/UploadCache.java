@@ -0,0 +1,222 @@
+package cc.ioctl.telebot.files;
+
+import cc.ioctl.telebot.util.ByteUtils;
+import cc.ioctl.telebot.util.Log;
+import cc.ioctl.telebot.util.SqliteUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the content of uploaded files to the remote file ids Telegram assigned to them, so that a file sent again
+ * is referenced by its remote id instead of being hashed and uploaded by TDLib again.
+ * <p>
+ * Files are identified by the SHA-256 of their content. The hash of a local file is cached with the size and
+ * modification time of the file, and only computed again if one of them changed. Remote file ids are only valid
+ * for the account that uploaded the file, they are stored per bot user id.
+ * <p>
+ * Both mappings are kept in memory and in a SQLite database, so they survive restarts.
+ */
+public class UploadCache {
+
+    private static final String TAG = "UploadCache";
+
+    private static final class LocalFile {
+        final long size;
+        final long lastModified;
+        final String contentHash;
+
+        LocalFile(long size, long lastModified, String contentHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+    }
+
+    @NotNull
+    private final File mFile;
+    // path -> content hash with the size and mtime it was computed for
+    private final ConcurrentHashMap<String, LocalFile> mLocalFiles = new ConcurrentHashMap<>();
+    // "uid:hash" -> remote file id, "" if not in the database
+    private final ConcurrentHashMap<String, String> mRemoteFileIds = new ConcurrentHashMap<>();
+
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private Connection mConnection;
+
+    /**
+     * @param file the database file, created on first use
+     */
+    public UploadCache(@NotNull File file) {
+        mFile = Objects.requireNonNull(file, "file == null");
+    }
+
+    /**
+     * Get the SHA-256 of the content of a file as a hex string, computed only if the file changed since the last call.
+     *
+     * @param file the file
+     * @return the content hash
+     * @throws IOException if the file cannot be read
+     */
+    @NotNull
+    public String getContentHash(@NotNull File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        LocalFile cached = mLocalFiles.get(path);
+        if (cached == null) {
+            cached = queryLocalFile(path);
+        }
+        if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+            return cached.contentHash;
+        }
+        String hash = sha256(file);
+        // the file may have changed while it was hashed
+        if (file.length() != size || file.lastModified() != lastModified) {
+            return hash;
+        }
+        LocalFile entry = new LocalFile(size, lastModified, hash);
+        mLocalFiles.put(path, entry);
+        synchronized (mLock) {
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "INSERT OR REPLACE INTO local_files (path, size, mtime, hash) VALUES (?, ?, ?, ?)")) {
+                stmt.setString(1, path);
+                stmt.setLong(2, size);
+                stmt.setLong(3, lastModified);
+                stmt.setString(4, hash);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to store the hash of " + path, e);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the remote file id of the content uploaded by the bot, or null if it was not uploaded
+     */
+    @Nullable
+    public String getRemoteFileId(long botUserId, @NotNull String contentHash) {
+        String key = botUserId + ":" + contentHash;
+        String fileId = mRemoteFileIds.get(key);
+        if (fileId == null) {
+            fileId = queryRemoteFileId(botUserId, contentHash);
+            mRemoteFileIds.putIfAbsent(key, fileId == null ? "" : fileId);
+        }
+        return fileId == null || fileId.isEmpty() ? null : fileId;
+    }
+
+    public void putRemoteFileId(long botUserId, @NotNull String contentHash, @NotNull String remoteFileId) {
+        Objects.requireNonNull(contentHash, "contentHash == null");
+        Objects.requireNonNull(remoteFileId, "remoteFileId == null");
+        mRemoteFileIds.put(botUserId + ":" + contentHash, remoteFileId);
+        synchronized (mLock) {
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "INSERT OR REPLACE INTO remote_files (uid, hash, file_id) VALUES (?, ?, ?)")) {
+                stmt.setLong(1, botUserId);
+                stmt.setString(2, contentHash);
+                stmt.setString(3, remoteFileId);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to store remote file id for " + contentHash, e);
+            }
+        }
+    }
+
+    /**
+     * Forget a remote file id, e.g. after Telegram rejected it.
+     */
+    public void removeRemoteFileId(long botUserId, @NotNull String contentHash) {
+        mRemoteFileIds.put(botUserId + ":" + contentHash, "");
+        synchronized (mLock) {
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "DELETE FROM remote_files WHERE uid = ? AND hash = ?")) {
+                stmt.setLong(1, botUserId);
+                stmt.setString(2, contentHash);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to remove remote file id for " + contentHash, e);
+            }
+        }
+    }
+
+    @Nullable
+    private LocalFile queryLocalFile(String path) {
+        synchronized (mLock) {
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "SELECT size, mtime, hash FROM local_files WHERE path = ?")) {
+                stmt.setString(1, path);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        LocalFile entry = new LocalFile(rs.getLong(1), rs.getLong(2), rs.getString(3));
+                        mLocalFiles.put(path, entry);
+                        return entry;
+                    }
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to query the hash of " + path, e);
+            }
+            return null;
+        }
+    }
+
+    @Nullable
+    private String queryRemoteFileId(long botUserId, String contentHash) {
+        synchronized (mLock) {
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "SELECT file_id FROM remote_files WHERE uid = ? AND hash = ?")) {
+                stmt.setLong(1, botUserId);
+                stmt.setString(2, contentHash);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to query remote file id for " + contentHash, e);
+                return null;
+            }
+        }
+    }
+
+    @NotNull
+    static String sha256(@NotNull File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buf) != -1) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        return ByteUtils.bytesToHexString(digest.digest());
+    }
+
+    private Connection getConnectionLocked() throws SQLException {
+        if (mConnection == null) {
+            mConnection = SqliteUtils.openDatabase(mFile,
+                    "CREATE TABLE IF NOT EXISTS local_files (path TEXT PRIMARY KEY,"
+                            + " size INTEGER NOT NULL, mtime INTEGER NOT NULL, hash TEXT NOT NULL)",
+                    "CREATE TABLE IF NOT EXISTS remote_files (uid INTEGER NOT NULL, hash TEXT NOT NULL,"
+                            + " file_id TEXT NOT NULL, PRIMARY KEY (uid, hash))");
+        }
+        return mConnection;
+    }
+}
@@ -3,6 +3,8 @@ package cc.ioctl.telebot.intern;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
+
 public class NativeBridge {
 
     private NativeBridge() {
@@ -21,8 +23,28 @@ public class NativeBridge {
 
     public static native void nativeTDLibExecuteAsync(int tdClientIndex, @NotNull String request);
 
+    /**
+     * Send a request in UTF-8 without converting it, TDLib copies it before the call returns.
+     *
+     * @param request a direct buffer with the request from position 0, the byte at length must be 0.
+     * @param length  the length of the request in bytes.
+     */
+    public static native void nativeTDLibExecuteAsync(int tdClientIndex, @NotNull ByteBuffer request, int length);
+
     public static native int nativeTDLibCreateClient();
 
+    /**
+     * Enable the structured binary log sink, see {@link cc.ioctl.telebot.cli.BinaryLogDecoder} for decoding.
+     *
+     * @param dirPath       the directory to store the log files, must exist.
+     * @param fileCapacity  the size of a single log file in bytes.
+     * @param maxFileCount  the max number of log files to keep, older files are deleted.
+     * @param consoleOutput whether to keep printing messages below WARN to the console.
+     * @throws java.io.IOException if the log file cannot be created.
+     */
+    public static native void nativeEnableBinaryLog(@NotNull String dirPath, long fileCapacity, int maxFileCount,
+                                                    boolean consoleOutput) throws java.io.IOException;
+
     /**
      * Poll for an event from the TDLib client.
      *
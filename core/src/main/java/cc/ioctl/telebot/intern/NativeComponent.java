@@ -0,0 +1,123 @@
+package cc.ioctl.telebot.intern;
+
+import cc.ioctl.telebot.util.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Optional native libraries, loaded on first use instead of at startup.
+ * <p>
+ * Call {@link #ensureLoaded()} before using a component. With {@link #preloadAllAsync()} the components are
+ * loaded in parallel on background threads, and {@link #ensureLoaded()} waits for the load of its component.
+ */
+public enum NativeComponent {
+
+    /**
+     * Skija, for images.
+     */
+    SKIJA("skija") {
+        @Override
+        void load() {
+            org.jetbrains.skija.impl.Library.staticLoad();
+        }
+    },
+
+    /**
+     * The SQLite JDBC driver.
+     */
+    SQLITE("sqlite") {
+        @Override
+        void load() throws Exception {
+            Class.forName(org.sqlite.JDBC.class.getName(), true, org.sqlite.JDBC.class.getClassLoader());
+            org.sqlite.core.NativeDB.load();
+        }
+    };
+
+    private static final String TAG = "NativeComponent";
+
+    @NotNull
+    private final String mName;
+    private final AtomicReference<CompletableFuture<Void>> mLoadResult = new AtomicReference<>();
+    private volatile long mLoadTimeNanos = -1;
+
+    NativeComponent(@NotNull String name) {
+        mName = name;
+    }
+
+    abstract void load() throws Exception;
+
+    @NotNull
+    public String getComponentName() {
+        return mName;
+    }
+
+    /**
+     * Load the component on the calling thread, or wait for a running load.
+     *
+     * @throws UnsatisfiedLinkError if the component failed to load
+     */
+    public void ensureLoaded() {
+        CompletableFuture<Void> result = mLoadResult.get();
+        if (result == null) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            if (mLoadResult.compareAndSet(null, f)) {
+                runLoad(f);
+            }
+            result = mLoadResult.get();
+        }
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while loading " + mName, e);
+        } catch (ExecutionException e) {
+            UnsatisfiedLinkError error = new UnsatisfiedLinkError("failed to load native component " + mName);
+            error.initCause(e.getCause());
+            throw error;
+        }
+    }
+
+    public boolean isLoaded() {
+        CompletableFuture<Void> result = mLoadResult.get();
+        return result != null && result.isDone() && !result.isCompletedExceptionally();
+    }
+
+    /**
+     * @return the time the load took, or -1 if not loaded
+     */
+    public long getLoadTimeNanos() {
+        return mLoadTimeNanos;
+    }
+
+    private void runLoad(CompletableFuture<Void> result) {
+        long start = System.nanoTime();
+        try {
+            load();
+            mLoadTimeNanos = System.nanoTime() - start;
+            Log.i(TAG, "Loaded " + mName + " in " + mLoadTimeNanos / 1000000 + "ms on " + Thread.currentThread().getName());
+            result.complete(null);
+        } catch (Exception | LinkageError e) {
+            Log.e(TAG, "Failed to load " + mName, e);
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Load all components not loaded yet, each on its own background thread, in parallel with each other and
+     * with the startup.
+     */
+    public static void preloadAllAsync() {
+        for (NativeComponent component : values()) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            if (!component.mLoadResult.compareAndSet(null, f)) {
+                continue;
+            }
+            Thread thread = new Thread(() -> component.runLoad(f), "NativeComponentLoader-" + component.mName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package cc.ioctl.telebot.intern;
 
+import cc.ioctl.telebot.metrics.Counter;
+import cc.ioctl.telebot.metrics.CoreMetrics;
 import cc.ioctl.telebot.tdlib.RobotServer;
+import cc.ioctl.telebot.tdlib.journal.EventJournalWriter;
+import cc.ioctl.telebot.tdlib.transport.TDLibTransport;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Objects;
@@ -18,10 +22,22 @@ public class TDLibPollThread extends Thread {
 
     @Override
     public void run() {
+        Counter eventsReceived = CoreMetrics.TDLIB_EVENTS_RECEIVED.get();
+        Counter charsReceived = CoreMetrics.TDLIB_EVENT_CHARS_RECEIVED.get();
+        Counter emptyPolls = CoreMetrics.TDLIB_EMPTY_POLLS.get();
+        TDLibTransport transport = mServer.getTransport();
         while (!isInterrupted() && mServer.isRunning()) {
-            String event = NativeBridge.nativeTDLibPollEvent(3000);
+            String event = transport.receive(3000);
             if (event != null) {
+                eventsReceived.inc();
+                charsReceived.inc(event.length());
+                EventJournalWriter journal = mServer.getEventJournal();
+                if (journal != null) {
+                    journal.append(System.nanoTime(), event);
+                }
                 mServer.onReceiveTDLibEvent(event);
+            } else {
+                emptyPolls.inc();
             }
         }
     }
@@ -0,0 +1,386 @@
+package cc.ioctl.telebot.jobs;
+
+import cc.ioctl.telebot.metrics.CoreMetrics;
+import cc.ioctl.telebot.util.HashedWheelTimer;
+import cc.ioctl.telebot.util.Log;
+import cc.ioctl.telebot.util.SqliteUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delayed jobs that survive restarts, stored in a SQLite database.
+ * <p>
+ * A job has a type id, an optional key and a payload, and is passed to the handler registered for its type
+ * when it is due. Only the jobs due within the next {@link #LOAD_AHEAD_MILLIS} are loaded and armed on the timer,
+ * the payload is read when the job fires. Jobs that became due while the server was down are caught up in
+ * batches of {@link #BATCH_SIZE}. A job is deleted after its handler returns or throws, so it fires at least once
+ * and may fire again if the server stops while the handler is running.
+ * <p>
+ * Jobs of a type without a handler stay in the store until a handler is registered.
+ */
+public class PersistentJobStore {
+
+    private static final String TAG = "PersistentJobStore";
+
+    public interface JobHandler {
+        /**
+         * Called on the server executor when a job is due.
+         */
+        void onJob(@NotNull Job job) throws Exception;
+    }
+
+    public static final class Job {
+        public final long id;
+        @NotNull
+        public final String type;
+        @Nullable
+        public final String key;
+        /**
+         * Epoch millis.
+         */
+        public final long dueTime;
+        @NotNull
+        public final byte[] payload;
+
+        Job(long id, @NotNull String type, @Nullable String key, long dueTime, @NotNull byte[] payload) {
+            this.id = id;
+            this.type = type;
+            this.key = key;
+            this.dueTime = dueTime;
+            this.payload = payload;
+        }
+    }
+
+    // identity of a stored job, without the payload
+    private static final class JobRef {
+        final long id;
+        final String type;
+        final long dueTime;
+
+        JobRef(long id, String type, long dueTime) {
+            this.id = id;
+            this.type = type;
+            this.dueTime = dueTime;
+        }
+    }
+
+    static final long LOAD_AHEAD_MILLIS = 60_000L;
+    static final int BATCH_SIZE = 200;
+    private static final long CATCH_UP_INTERVAL_MILLIS = 20L;
+    private static final long LOAD_RETRY_MILLIS = 5_000L;
+
+    @NotNull
+    private final File mFile;
+    @NotNull
+    private final HashedWheelTimer mTimer;
+
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private Connection mConnection;
+    private final HashMap<String, JobHandler> mHandlers = new HashMap<>();
+    private final HashMap<Long, HashedWheelTimer.Timeout> mArmedJobs = new HashMap<>();
+    private final HashMap<String, ArrayList<JobRef>> mJobsWithoutHandler = new HashMap<>();
+    private boolean mStarted = false;
+    // the jobs up to the cursor (dueTime, id) and all jobs due before mLoadedHorizon are armed
+    private long mCursorDueTime = Long.MIN_VALUE;
+    private long mCursorId = Long.MIN_VALUE;
+    private long mLoadedHorizon = Long.MIN_VALUE;
+
+    /**
+     * @param file  the database file, created if it does not exist
+     * @param timer the timer firing the jobs, see {@link cc.ioctl.telebot.tdlib.RobotServer#getTimer()}
+     */
+    public PersistentJobStore(@NotNull File file, @NotNull HashedWheelTimer timer) {
+        mFile = Objects.requireNonNull(file, "file == null");
+        mTimer = Objects.requireNonNull(timer, "timer == null");
+    }
+
+    /**
+     * Register the handler of a job type. Jobs of the type already due are fired.
+     */
+    public void registerHandler(@NotNull String type, @NotNull JobHandler handler) {
+        Objects.requireNonNull(type, "type == null");
+        Objects.requireNonNull(handler, "handler == null");
+        synchronized (mLock) {
+            if (mHandlers.containsKey(type)) {
+                throw new IllegalStateException("handler for job type " + type + " is already registered");
+            }
+            mHandlers.put(type, handler);
+            ArrayList<JobRef> waiting = mJobsWithoutHandler.remove(type);
+            if (waiting != null) {
+                for (JobRef ref : waiting) {
+                    armLocked(ref, System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
+    /**
+     * Store a job.
+     *
+     * @param type        the job type, see {@link #registerHandler(String, JobHandler)}
+     * @param key         an optional key to cancel the job with {@link #cancelByKey(String)}, e.g. "chat:user"
+     * @param payload     the payload passed to the handler
+     * @param delayMillis the delay from now
+     * @return the job id
+     */
+    public long schedule(@NotNull String type, @Nullable String key, @NotNull byte[] payload, long delayMillis) {
+        Objects.requireNonNull(type, "type == null");
+        Objects.requireNonNull(payload, "payload == null");
+        long now = System.currentTimeMillis();
+        long dueTime = now + Math.max(0, delayMillis);
+        synchronized (mLock) {
+            long id;
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "INSERT INTO jobs (type, job_key, due_time, payload) VALUES (?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setString(1, type);
+                stmt.setString(2, key);
+                stmt.setLong(3, dueTime);
+                stmt.setBytes(4, payload);
+                stmt.executeUpdate();
+                try (ResultSet rs = stmt.getGeneratedKeys()) {
+                    rs.next();
+                    id = rs.getLong(1);
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("failed to store job of type " + type, e);
+            }
+            if (mStarted && isLoadedLocked(dueTime, id)) {
+                // the loader has passed this position, arm it here
+                armLocked(new JobRef(id, type, dueTime), now);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return true if the job was pending and is cancelled
+     */
+    public boolean cancel(long jobId) {
+        synchronized (mLock) {
+            int deleted;
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement("DELETE FROM jobs WHERE id = ?")) {
+                stmt.setLong(1, jobId);
+                deleted = stmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException("failed to cancel job " + jobId, e);
+            }
+            disarmLocked(jobId);
+            return deleted > 0;
+        }
+    }
+
+    /**
+     * Cancel all pending jobs with the given key.
+     *
+     * @return the number of cancelled jobs
+     */
+    public int cancelByKey(@NotNull String key) {
+        Objects.requireNonNull(key, "key == null");
+        synchronized (mLock) {
+            ArrayList<Long> ids = new ArrayList<>(1);
+            try {
+                Connection conn = getConnectionLocked();
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM jobs WHERE job_key = ?")) {
+                    stmt.setString(1, key);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                        }
+                    }
+                }
+                if (ids.isEmpty()) {
+                    return 0;
+                }
+                try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM jobs WHERE job_key = ?")) {
+                    stmt.setString(1, key);
+                    stmt.executeUpdate();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("failed to cancel jobs with key " + key, e);
+            }
+            for (long id : ids) {
+                disarmLocked(id);
+            }
+            return ids.size();
+        }
+    }
+
+    /**
+     * @return the number of stored jobs
+     */
+    public long getPendingCount() {
+        synchronized (mLock) {
+            try (Statement stmt = getConnectionLocked().createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM jobs")) {
+                rs.next();
+                return rs.getLong(1);
+            } catch (SQLException e) {
+                throw new IllegalStateException("failed to count jobs", e);
+            }
+        }
+    }
+
+    /**
+     * Start loading and firing the jobs, the jobs already due are caught up first.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            if (mConnection == null && !mFile.exists()) {
+                // no job was ever stored, don't load SQLite before a job is scheduled
+                mLoadedHorizon = Long.MAX_VALUE;
+                return;
+            }
+            getConnectionLocked();
+        }
+        loadNextBatch();
+    }
+
+    private void loadNextBatch() {
+        long nextDelay;
+        try {
+            nextDelay = loadBatch();
+        } catch (SQLException | RuntimeException | UnsatisfiedLinkError e) {
+            // keep the chain of loads, the jobs past the horizon are never armed otherwise
+            Log.e(TAG, "failed to load jobs from " + mFile.getAbsolutePath() + ", retrying in "
+                    + LOAD_RETRY_MILLIS + " ms", e);
+            nextDelay = LOAD_RETRY_MILLIS;
+        }
+        mTimer.newTimeout(this::loadNextBatch, nextDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Arm the next batch of jobs, the horizon is only moved after a successful load.
+     *
+     * @return the delay to the next load
+     */
+    private long loadBatch() throws SQLException {
+        synchronized (mLock) {
+            long now = System.currentTimeMillis();
+            long horizon = now + LOAD_AHEAD_MILLIS;
+            List<JobRef> batch = new ArrayList<>();
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "SELECT id, type, due_time FROM jobs WHERE due_time < ? AND (due_time > ? OR (due_time = ? AND id > ?))"
+                            + " ORDER BY due_time, id LIMIT " + BATCH_SIZE)) {
+                stmt.setLong(1, horizon);
+                stmt.setLong(2, mCursorDueTime);
+                stmt.setLong(3, mCursorDueTime);
+                stmt.setLong(4, mCursorId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        batch.add(new JobRef(rs.getLong(1), rs.getString(2), rs.getLong(3)));
+                    }
+                }
+            }
+            for (JobRef ref : batch) {
+                armLocked(ref, now);
+                mCursorDueTime = ref.dueTime;
+                mCursorId = ref.id;
+            }
+            if (batch.size() == BATCH_SIZE) {
+                // more to load, e.g. catching up after a restart, give the armed batch some time to run
+                return CATCH_UP_INTERVAL_MILLIS;
+            }
+            mLoadedHorizon = horizon;
+            return LOAD_AHEAD_MILLIS / 2;
+        }
+    }
+
+    private boolean isLoadedLocked(long dueTime, long id) {
+        return dueTime < mLoadedHorizon || dueTime < mCursorDueTime || (dueTime == mCursorDueTime && id <= mCursorId);
+    }
+
+    private void armLocked(JobRef ref, long now) {
+        if (!mHandlers.containsKey(ref.type)) {
+            mJobsWithoutHandler.computeIfAbsent(ref.type, k -> new ArrayList<>(1)).add(ref);
+            return;
+        }
+        HashedWheelTimer.Timeout timeout = mTimer.newTimeout(() -> fire(ref),
+                Math.max(0, ref.dueTime - now), TimeUnit.MILLISECONDS);
+        mArmedJobs.put(ref.id, timeout);
+    }
+
+    private void disarmLocked(long jobId) {
+        HashedWheelTimer.Timeout timeout = mArmedJobs.remove(jobId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        for (ArrayList<JobRef> refs : mJobsWithoutHandler.values()) {
+            refs.removeIf(ref -> ref.id == jobId);
+        }
+    }
+
+    private void fire(JobRef ref) {
+        Job job;
+        JobHandler handler;
+        synchronized (mLock) {
+            if (mArmedJobs.remove(ref.id) == null) {
+                // cancelled while the task was waiting for the executor
+                return;
+            }
+            handler = mHandlers.get(ref.type);
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement(
+                    "SELECT job_key, payload FROM jobs WHERE id = ?")) {
+                stmt.setLong(1, ref.id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return;
+                    }
+                    byte[] payload = rs.getBytes(2);
+                    job = new Job(ref.id, ref.type, rs.getString(1), ref.dueTime, payload == null ? new byte[0] : payload);
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to read job " + ref.id, e);
+                return;
+            }
+        }
+        try {
+            handler.onJob(job);
+            CoreMetrics.PERSISTENT_JOBS_FIRED.get().inc();
+        } catch (Exception e) {
+            CoreMetrics.DELAYED_TASK_ERRORS.get().inc();
+            Log.e(TAG, "job " + job.id + " of type " + job.type + " failed", e);
+        }
+        synchronized (mLock) {
+            try (PreparedStatement stmt = getConnectionLocked().prepareStatement("DELETE FROM jobs WHERE id = ?")) {
+                stmt.setLong(1, job.id);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                Log.e(TAG, "failed to delete job " + job.id, e);
+            }
+        }
+    }
+
+    private Connection getConnectionLocked() {
+        if (mConnection != null) {
+            return mConnection;
+        }
+        try {
+            mConnection = SqliteUtils.openDatabase(mFile,
+                    "CREATE TABLE IF NOT EXISTS jobs (id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + " type TEXT NOT NULL, job_key TEXT, due_time INTEGER NOT NULL, payload BLOB)",
+                    "CREATE INDEX IF NOT EXISTS jobs_due_time ON jobs (due_time, id)",
+                    "CREATE INDEX IF NOT EXISTS jobs_job_key ON jobs (job_key)");
+            return mConnection;
+        } catch (SQLException e) {
+            throw new IllegalStateException("failed to open job store " + mFile.getAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cc.ioctl.telebot.metrics;
+
+/**
+ * The metrics of the server core, registered in the default registry.
+ */
+public final class CoreMetrics {
+
+    private CoreMetrics() {
+        throw new AssertionError("This class is not meant to be instantiated");
+    }
+
+    private static final MetricsRegistry sRegistry = MetricsRegistry.getDefault();
+
+    public static final MetricFamily<Counter> TDLIB_EVENTS_RECEIVED = sRegistry.counter(
+            "telebot_tdlib_events_received_total", "Events polled from TDLib.");
+
+    public static final MetricFamily<Counter> TDLIB_EVENT_CHARS_RECEIVED = sRegistry.counter(
+            "telebot_tdlib_event_received_chars_total", "Total length of the JSON events polled from TDLib.");
+
+    public static final MetricFamily<Counter> TDLIB_EMPTY_POLLS = sRegistry.counter(
+            "telebot_tdlib_empty_polls_total", "TDLib polls that timed out without an event.");
+
+    public static final MetricFamily<Counter> JOURNAL_EVENTS_WRITTEN = sRegistry.counter(
+            "telebot_journal_events_written_total", "Events written to the event journal.");
+
+    public static final MetricFamily<Counter> JOURNAL_EVENTS_DROPPED = sRegistry.counter(
+            "telebot_journal_events_dropped_total", "Events not recorded because the journal writer fell behind.");
+
+    public static final MetricFamily<Histogram> EVENT_QUEUE_DELAY = sRegistry.timer(
+            "telebot_event_queue_delay_seconds", "Time from receiving an event to the start of its dispatch.");
+
+    public static final MetricFamily<Histogram> EVENT_PARSE_DURATION = sRegistry.timer(
+            "telebot_event_parse_duration_seconds", "Time spent parsing a TDLib event in the event pipeline.");
+
+    public static final MetricFamily<Gauge> EVENT_PIPELINE_LANES = sRegistry.gauge(
+            "telebot_event_pipeline_lanes", "Event pipeline lanes with events waiting or being dispatched.");
+
+    public static final MetricFamily<Histogram> EVENT_DISPATCH_DURATION = sRegistry.timer(
+            "telebot_event_dispatch_duration_seconds", "Time spent dispatching a TDLib event.", "bot", "type");
+
+    public static final MetricFamily<Counter> EVENTS_UNHANDLED = sRegistry.counter(
+            "telebot_events_unhandled_total", "TDLib events that no one consumed.", "bot", "type");
+
+    public static final MetricFamily<Counter> EVENT_DISPATCH_ERRORS = sRegistry.counter(
+            "telebot_event_dispatch_errors_total", "TDLib events whose dispatch threw an exception.");
+
+    public static final MetricFamily<Histogram> DELAYED_TASK_LAG = sRegistry.timer(
+            "telebot_delayed_task_lag_seconds", "Time from the due time of a delayed task to its start.");
+
+    public static final MetricFamily<Counter> DELAYED_TASK_ERRORS = sRegistry.counter(
+            "telebot_delayed_task_errors_total", "Delayed tasks and server scope coroutines that threw an exception.");
+
+    public static final MetricFamily<Gauge> TIMER_PENDING_TIMEOUTS = sRegistry.gauge(
+            "telebot_timer_pending_timeouts", "Delayed tasks waiting in the timing wheel.");
+
+    public static final MetricFamily<Counter> PERSISTENT_JOBS_FIRED = sRegistry.counter(
+            "telebot_persistent_jobs_fired_total", "Persistent jobs passed to their handler.");
+
+    public static final MetricFamily<Counter> FILE_DOWNLOADS = sRegistry.counter(
+            "telebot_file_downloads_total", "Files requested from the download managers, by result.", "result");
+
+    public static final MetricFamily<Counter> BROADCAST_MESSAGES = sRegistry.counter(
+            "telebot_broadcast_messages_total", "Targets of broadcasts, by result.", "result");
+
+    public static final MetricFamily<Gauge> PENDING_TRANSACTIONS = sRegistry.gauge(
+            "telebot_pending_transactions", "Requests waiting for a response from TDLib.");
+
+    public static final MetricFamily<Histogram> REQUEST_RTT = sRegistry.timer(
+            "telebot_request_rtt_seconds", "Round-trip time of requests sent to TDLib.", "bot", "method");
+
+    public static final MetricFamily<Counter> REQUEST_TIMEOUTS = sRegistry.counter(
+            "telebot_request_timeouts_total", "Requests sent to TDLib that timed out.", "bot", "method");
+
+    public static final MetricFamily<Histogram> SEND_MESSAGE_DURATION = sRegistry.timer(
+            "telebot_send_message_duration_seconds", "Time from sendMessage until the message is sent by the server.", "bot");
+
+    public static final MetricFamily<Counter> MESSAGES_SENT = sRegistry.counter(
+            "telebot_messages_sent_total", "Messages sent with sendMessage, by result.", "bot", "result");
+
+    public static final MetricFamily<Counter> OBJECT_CACHE_REQUESTS = sRegistry.counter(
+            "telebot_object_cache_requests_total", "Lookups in the non-local object cache pool.", "kind", "result");
+
+    public static final MetricFamily<Gauge> OBJECT_CACHE_SIZE = sRegistry.gauge(
+            "telebot_object_cache_size", "Objects in the non-local object cache pool.", "kind");
+}
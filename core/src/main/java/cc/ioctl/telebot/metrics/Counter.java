@@ -0,0 +1,29 @@
+package cc.ioctl.telebot.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing counter, lock-free.
+ */
+public final class Counter {
+
+    private final LongAdder mValue = new LongAdder();
+
+    Counter() {
+    }
+
+    public void inc() {
+        mValue.increment();
+    }
+
+    public void inc(long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("amount must not be negative, got " + amount);
+        }
+        mValue.add(amount);
+    }
+
+    public long get() {
+        return mValue.sum();
+    }
+}
@@ -0,0 +1,46 @@
+package cc.ioctl.telebot.metrics;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A value that can go up and down.
+ * <p>
+ * If a supplier is set, the value is read from the supplier on collection and set/inc/dec are ignored.
+ */
+public final class Gauge {
+
+    private final AtomicLong mValue = new AtomicLong();
+    @Nullable
+    private volatile LongSupplier mSupplier;
+
+    Gauge() {
+    }
+
+    public void set(long value) {
+        mValue.set(value);
+    }
+
+    public void inc() {
+        mValue.incrementAndGet();
+    }
+
+    public void dec() {
+        mValue.decrementAndGet();
+    }
+
+    public void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    public void setSupplier(@Nullable LongSupplier supplier) {
+        mSupplier = supplier;
+    }
+
+    public long get() {
+        LongSupplier supplier = mSupplier;
+        return supplier != null ? supplier.getAsLong() : mValue.get();
+    }
+}
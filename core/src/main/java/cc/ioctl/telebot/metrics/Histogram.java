@@ -0,0 +1,154 @@
+package cc.ioctl.telebot.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram with log-linear buckets, similar to HdrHistogram.
+ * <p>
+ * Each power of two is split into 16 linear sub-buckets, so the relative error of a reported
+ * quantile is below 1/16 for any non-negative long value. Values are usually durations in nanoseconds.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // the highest bit of a non-negative long is bit 62
+    private static final int BUCKET_COUNT = (62 - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mSum = new LongAdder();
+    private final AtomicLong mMax = new AtomicLong();
+
+    Histogram() {
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long top = (index % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+        return top << shift;
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long top = (index % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a value, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(indexOf(value));
+        mCount.increment();
+        mSum.add(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        record(unit.toNanos(duration));
+    }
+
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    public long getSum() {
+        return mSum.sum();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Get an estimate of the value at the given quantile.
+     *
+     * @param quantile the quantile, in [0, 1]
+     * @return the estimated value, or 0 if nothing is recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        return snapshot().getValueAtQuantile(quantile);
+    }
+
+    /**
+     * Take a consistent enough copy of the bucket counts, for reporting several quantiles at once.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = mBuckets.get(i);
+            counts[i] = c;
+            total += c;
+        }
+        return new Snapshot(counts, total, mSum.sum(), mMax.get());
+    }
+
+    public static final class Snapshot {
+
+        private final long[] mCounts;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getValueAtQuantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            if (quantile < 0 || quantile > 1 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException("quantile must be in [0, 1], got " + quantile);
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    // report the middle of the bucket, but never above the recorded max
+                    long lower = lowerBoundOf(i);
+                    long mid = lower + (upperBoundOf(i) - lower) / 2;
+                    return Math.min(mid, max);
+                }
+            }
+            return max;
+        }
+    }
+}
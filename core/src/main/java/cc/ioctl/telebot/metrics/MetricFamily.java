@@ -0,0 +1,161 @@
+package cc.ioctl.telebot.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A named metric with a fixed set of label names, holding one child metric per distinct label values.
+ * <p>
+ * A family without labels has exactly one child, see {@link #get()}.
+ *
+ * @param <T> the child metric type, {@link Counter}, {@link Gauge} or {@link Histogram}
+ */
+public final class MetricFamily<T> {
+
+    public enum Type {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    /**
+     * The label value used when a family has too many children.
+     */
+    public static final String OVERFLOW_LABEL_VALUE = "_other";
+
+    private static final int MAX_CHILDREN = 1000;
+
+    private final String mName;
+    private final String mHelp;
+    private final Type mType;
+    private final String[] mLabelNames;
+    private final double mExportScale;
+    private final Supplier<T> mFactory;
+    private final ConcurrentHashMap<LabelValues, T> mChildren = new ConcurrentHashMap<>();
+    private final T mNoLabelChild;
+
+    MetricFamily(@NotNull String name, @NotNull String help, @NotNull Type type, @NotNull String[] labelNames,
+                 double exportScale, @NotNull Supplier<T> factory) {
+        mName = Objects.requireNonNull(name, "name == null");
+        mHelp = Objects.requireNonNull(help, "help == null");
+        mType = Objects.requireNonNull(type, "type == null");
+        mLabelNames = labelNames.clone();
+        mExportScale = exportScale;
+        mFactory = Objects.requireNonNull(factory, "factory == null");
+        if (mLabelNames.length == 0) {
+            mNoLabelChild = factory.get();
+            mChildren.put(new LabelValues(new String[0]), mNoLabelChild);
+        } else {
+            mNoLabelChild = null;
+        }
+    }
+
+    @NotNull
+    public String getName() {
+        return mName;
+    }
+
+    @NotNull
+    public String getHelp() {
+        return mHelp;
+    }
+
+    @NotNull
+    public Type getType() {
+        return mType;
+    }
+
+    @NotNull
+    public List<String> getLabelNames() {
+        return List.of(mLabelNames);
+    }
+
+    /**
+     * The factor to convert recorded values to exported values, e.g. 1e-9 for nanoseconds to seconds.
+     */
+    public double getExportScale() {
+        return mExportScale;
+    }
+
+    /**
+     * Get the only child of a family without labels.
+     */
+    @NotNull
+    public T get() {
+        if (mNoLabelChild == null) {
+            throw new IllegalStateException("metric " + mName + " requires labels " + Arrays.toString(mLabelNames));
+        }
+        return mNoLabelChild;
+    }
+
+    /**
+     * Get or create the child for the given label values.
+     * <p>
+     * Callers on a hot path with fixed label values should keep the returned child.
+     *
+     * @param labelValues the label values, in the same order as the label names
+     * @return the child metric
+     */
+    @NotNull
+    public T labels(@NotNull String... labelValues) {
+        if (labelValues.length != mLabelNames.length) {
+            throw new IllegalArgumentException("metric " + mName + " expects " + mLabelNames.length
+                    + " label values, got " + labelValues.length);
+        }
+        LabelValues key = new LabelValues(labelValues);
+        T child = mChildren.get(key);
+        if (child != null) {
+            return child;
+        }
+        if (mChildren.size() >= MAX_CHILDREN) {
+            // avoid unbounded memory usage on a label cardinality explosion
+            String[] overflow = new String[mLabelNames.length];
+            Arrays.fill(overflow, OVERFLOW_LABEL_VALUE);
+            key = new LabelValues(overflow);
+        }
+        return mChildren.computeIfAbsent(key, k -> mFactory.get());
+    }
+
+    public void forEachChild(@NotNull BiConsumer<List<String>, T> consumer) {
+        mChildren.forEach((k, v) -> consumer.accept(List.of(k.mValues), v));
+    }
+
+    private static final class LabelValues {
+
+        private final String[] mValues;
+        private final int mHash;
+
+        LabelValues(String[] values) {
+            mValues = values.clone();
+            for (int i = 0; i < mValues.length; i++) {
+                if (mValues[i] == null) {
+                    mValues[i] = "";
+                }
+            }
+            mHash = Arrays.hashCode(mValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof LabelValues)) {
+                return false;
+            }
+            LabelValues that = (LabelValues) obj;
+            return mHash == that.mHash && Arrays.equals(mValues, that.mValues);
+        }
+    }
+}
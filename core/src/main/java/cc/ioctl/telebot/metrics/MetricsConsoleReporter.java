@@ -0,0 +1,124 @@
+package cc.ioctl.telebot.metrics;
+
+import cc.ioctl.telebot.util.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Periodically prints a summary of the metrics changed since the last report to the log.
+ */
+public class MetricsConsoleReporter extends Thread {
+
+    private static final String TAG = "Metrics";
+
+    @NotNull
+    private final MetricsRegistry mRegistry;
+    private final long mIntervalMillis;
+    // previous counter totals and histogram counts, keyed by name and label values
+    private final HashMap<String, Long> mLastValues = new HashMap<>();
+    private long mLastReportNanos = System.nanoTime();
+
+    public MetricsConsoleReporter(@NotNull MetricsRegistry registry, long intervalMillis) {
+        super("MetricsConsoleReporter");
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive, got " + intervalMillis);
+        }
+        mRegistry = Objects.requireNonNull(registry, "registry == null");
+        mIntervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(mIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            report();
+        }
+    }
+
+    public synchronized void report() {
+        long now = System.nanoTime();
+        double elapsedSeconds = Math.max(1e-3, (now - mLastReportNanos) / 1e9);
+        mLastReportNanos = now;
+        StringBuilder sb = new StringBuilder(1024);
+        for (MetricFamily<?> family : mRegistry.getFamilies()) {
+            String name = family.getName();
+            List<String> labelNames = family.getLabelNames();
+            double scale = family.getExportScale();
+            family.forEachChild((labelValues, child) -> {
+                String key = name + labelsToString(labelNames, labelValues);
+                if (child instanceof Counter) {
+                    long value = ((Counter) child).get();
+                    long delta = value - swapLastValue(key, value);
+                    if (delta != 0) {
+                        sb.append('\n').append(key).append(": ").append(value)
+                                .append(String.format(Locale.ROOT, " (%.1f/s)", delta / elapsedSeconds));
+                    }
+                } else if (child instanceof Gauge) {
+                    long value = ((Gauge) child).get();
+                    if (value != swapLastValue(key, value)) {
+                        sb.append('\n').append(key).append(": ").append(value);
+                    }
+                } else if (child instanceof Histogram) {
+                    Histogram.Snapshot snapshot = ((Histogram) child).snapshot();
+                    long delta = snapshot.count - swapLastValue(key, snapshot.count);
+                    if (delta != 0) {
+                        sb.append('\n').append(key).append(String.format(Locale.ROOT,
+                                ": count=%d (%.1f/s) p50=%s p99=%s max=%s", snapshot.count, delta / elapsedSeconds,
+                                formatValue(snapshot.getValueAtQuantile(0.5), scale),
+                                formatValue(snapshot.getValueAtQuantile(0.99), scale),
+                                formatValue(snapshot.max, scale)));
+                    }
+                }
+            });
+        }
+        if (sb.length() != 0) {
+            Log.i(TAG, "metrics in the last " + Math.round(elapsedSeconds) + "s:" + sb);
+        }
+    }
+
+    private long swapLastValue(@NotNull String key, long value) {
+        Long old = mLastValues.put(key, value);
+        return old != null ? old : 0;
+    }
+
+    @NotNull
+    private static String formatValue(long value, double scale) {
+        if (scale == 1e-9) {
+            // durations in nanoseconds
+            if (value < 1000_000) {
+                return String.format(Locale.ROOT, "%.1fus", value / 1e3);
+            } else if (value < 1000_000_000) {
+                return String.format(Locale.ROOT, "%.1fms", value / 1e6);
+            } else {
+                return String.format(Locale.ROOT, "%.2fs", value / 1e9);
+            }
+        }
+        return String.format(Locale.ROOT, "%.6g", value * scale);
+    }
+
+    @NotNull
+    private static String labelsToString(@NotNull List<String> names, @NotNull List<String> values) {
+        if (names.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (int i = 0; i < names.size(); i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(names.get(i)).append('=').append(values.get(i));
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
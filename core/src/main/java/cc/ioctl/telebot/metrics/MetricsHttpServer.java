@@ -0,0 +1,93 @@
+package cc.ioctl.telebot.metrics;
+
+import cc.ioctl.telebot.util.Log;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the metrics of a registry in Prometheus text format at "/metrics".
+ */
+public class MetricsHttpServer {
+
+    private static final String TAG = "MetricsHttpServer";
+
+    @NotNull
+    private final MetricsRegistry mRegistry;
+    @NotNull
+    private final HttpServer mHttpServer;
+    @NotNull
+    private final ExecutorService mExecutor;
+
+    /**
+     * Create and start the server.
+     *
+     * @param registry the registry to export
+     * @param host     the address to bind, e.g. 127.0.0.1
+     * @param port     the port to bind
+     * @throws IOException if the server cannot be bound
+     */
+    public MetricsHttpServer(@NotNull MetricsRegistry registry, @NotNull String host, int port) throws IOException {
+        mRegistry = Objects.requireNonNull(registry, "registry == null");
+        Objects.requireNonNull(host, "host == null");
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("invalid port: " + port);
+        }
+        mHttpServer = HttpServer.create(new InetSocketAddress(host, port), 16);
+        mExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "MetricsHttpServer");
+            t.setDaemon(true);
+            return t;
+        });
+        mHttpServer.setExecutor(mExecutor);
+        mHttpServer.createContext("/metrics", this::handleMetrics);
+        mHttpServer.start();
+    }
+
+    @NotNull
+    public InetSocketAddress getAddress() {
+        return mHttpServer.getAddress();
+    }
+
+    private void handleMetrics(@NotNull HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            // rendered before any header is sent, a failure can still be answered with 500
+            byte[] body;
+            try {
+                body = PrometheusTextFormat.write(mRegistry).getBytes(StandardCharsets.UTF_8);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "failed to export metrics", e);
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", PrometheusTextFormat.CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void stop() {
+        mHttpServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+}
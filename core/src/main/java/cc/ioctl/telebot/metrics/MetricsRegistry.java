@@ -0,0 +1,87 @@
+package cc.ioctl.telebot.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * A collection of metric families, registration is thread-safe.
+ */
+public final class MetricsRegistry {
+
+    private static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    private static final Pattern LABEL_NAME_PATTERN = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final Object mLock = new Object();
+    private final LinkedHashMap<String, MetricFamily<?>> mFamilies = new LinkedHashMap<>();
+
+    @NotNull
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    @NotNull
+    public MetricFamily<Counter> counter(@NotNull String name, @NotNull String help, @NotNull String... labelNames) {
+        return register(name, help, MetricFamily.Type.COUNTER, labelNames, 1.0, Counter::new);
+    }
+
+    @NotNull
+    public MetricFamily<Gauge> gauge(@NotNull String name, @NotNull String help, @NotNull String... labelNames) {
+        return register(name, help, MetricFamily.Type.GAUGE, labelNames, 1.0, Gauge::new);
+    }
+
+    /**
+     * Register a histogram of durations recorded in nanoseconds, exported in seconds.
+     * The name should end with "_seconds".
+     */
+    @NotNull
+    public MetricFamily<Histogram> timer(@NotNull String name, @NotNull String help, @NotNull String... labelNames) {
+        return register(name, help, MetricFamily.Type.HISTOGRAM, labelNames, 1e-9, Histogram::new);
+    }
+
+    @NotNull
+    public MetricFamily<Histogram> histogram(@NotNull String name, @NotNull String help, @NotNull String... labelNames) {
+        return register(name, help, MetricFamily.Type.HISTOGRAM, labelNames, 1.0, Histogram::new);
+    }
+
+    @NotNull
+    public List<MetricFamily<?>> getFamilies() {
+        synchronized (mLock) {
+            return new ArrayList<>(mFamilies.values());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> MetricFamily<T> register(@NotNull String name, @NotNull String help, @NotNull MetricFamily.Type type,
+                                         @NotNull String[] labelNames, double exportScale,
+                                         @NotNull Supplier<T> factory) {
+        Objects.requireNonNull(name, "name == null");
+        if (!NAME_PATTERN.matcher(name).matches()) {
+            throw new IllegalArgumentException("invalid metric name: " + name);
+        }
+        for (String label : labelNames) {
+            if (label == null || !LABEL_NAME_PATTERN.matcher(label).matches() || label.startsWith("__")) {
+                throw new IllegalArgumentException("invalid label name for " + name + ": " + label);
+            }
+        }
+        synchronized (mLock) {
+            MetricFamily<?> old = mFamilies.get(name);
+            if (old != null) {
+                if (old.getType() != type || !old.getLabelNames().equals(List.of(labelNames))) {
+                    throw new IllegalArgumentException("metric " + name + " is already registered with a different type or labels");
+                }
+                return (MetricFamily<T>) old;
+            }
+            MetricFamily<T> family = new MetricFamily<>(name, help, type, labelNames, exportScale, factory);
+            mFamilies.put(name, family);
+            return family;
+        }
+    }
+}
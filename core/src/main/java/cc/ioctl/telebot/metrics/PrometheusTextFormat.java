@@ -0,0 +1,121 @@
+package cc.ioctl.telebot.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Writes metrics in the Prometheus text exposition format, version 0.0.4.
+ * <p>
+ * Histograms are exported as summaries with pre-computed quantiles.
+ */
+public final class PrometheusTextFormat {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private PrometheusTextFormat() {
+        throw new AssertionError("This class is not meant to be instantiated");
+    }
+
+    @NotNull
+    public static String write(@NotNull MetricsRegistry registry) {
+        StringBuilder sb = new StringBuilder(4096);
+        for (MetricFamily<?> family : registry.getFamilies()) {
+            writeFamily(sb, family);
+        }
+        return sb.toString();
+    }
+
+    private static void writeFamily(@NotNull StringBuilder sb, @NotNull MetricFamily<?> family) {
+        String name = family.getName();
+        List<String> labelNames = family.getLabelNames();
+        double scale = family.getExportScale();
+        sb.append("# HELP ").append(name).append(' ');
+        escape(sb, family.getHelp(), false);
+        sb.append('\n');
+        sb.append("# TYPE ").append(name).append(' ');
+        switch (family.getType()) {
+            case COUNTER:
+                sb.append("counter\n");
+                break;
+            case GAUGE:
+                sb.append("gauge\n");
+                break;
+            case HISTOGRAM:
+                sb.append("summary\n");
+                break;
+            default:
+                throw new AssertionError("unknown type " + family.getType());
+        }
+        family.forEachChild((labelValues, child) -> {
+            if (child instanceof Counter) {
+                writeSample(sb, name, labelNames, labelValues, null, null);
+                sb.append(((Counter) child).get()).append('\n');
+            } else if (child instanceof Gauge) {
+                writeSample(sb, name, labelNames, labelValues, null, null);
+                sb.append(((Gauge) child).get()).append('\n');
+            } else if (child instanceof Histogram) {
+                Histogram.Snapshot snapshot = ((Histogram) child).snapshot();
+                for (double q : QUANTILES) {
+                    writeSample(sb, name, labelNames, labelValues, "quantile", Double.toString(q));
+                    appendValue(sb, snapshot.getValueAtQuantile(q) * scale);
+                }
+                writeSample(sb, name + "_sum", labelNames, labelValues, null, null);
+                appendValue(sb, snapshot.sum * scale);
+                writeSample(sb, name + "_count", labelNames, labelValues, null, null);
+                sb.append(snapshot.count).append('\n');
+            }
+        });
+    }
+
+    private static void writeSample(@NotNull StringBuilder sb, @NotNull String name, @NotNull List<String> labelNames,
+                                    @NotNull List<String> labelValues, String extraLabel, String extraValue) {
+        sb.append(name);
+        if (!labelNames.isEmpty() || extraLabel != null) {
+            sb.append('{');
+            boolean first = true;
+            for (int i = 0; i < labelNames.size(); i++) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(labelNames.get(i)).append("=\"");
+                escape(sb, labelValues.get(i), true);
+                sb.append('"');
+            }
+            if (extraLabel != null) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append(extraLabel).append("=\"").append(extraValue).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+    }
+
+    private static void appendValue(@NotNull StringBuilder sb, double value) {
+        sb.append(value).append('\n');
+    }
+
+    private static void escape(@NotNull StringBuilder sb, @NotNull String s, boolean quoted) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '"':
+                    sb.append(quoted ? "\\\"" : "\"");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
@@ -35,6 +35,10 @@ public class BotStartupMain {
         String workingDirPath = options.remove("--dir");
         String proxy = options.remove("--proxy");
         String nativeLibPath = options.remove("--native-lib");
+        boolean preloadNatives = options.containsKey("--preload-natives");
+        options.remove("--preload-natives");
+        boolean dryRun = options.containsKey("--dry-run");
+        options.remove("--dry-run");
         if (!options.isEmpty()) {
             System.out.println("Invalid option: " + options.keySet().iterator().next());
             System.out.println("See --help for usage");
@@ -58,7 +62,7 @@ public class BotStartupMain {
             System.exit(1);
             return;
         }
-        StartupRoutine.startup(workingDir, nativeLibPath, proxy);
+        StartupRoutine.startup(workingDir, nativeLibPath, proxy, preloadNatives, dryRun);
     }
 
     private static void printUsage() {
@@ -69,10 +73,17 @@ public class BotStartupMain {
         System.out.println("    Bot configuration files and SESSION TOKENS will be stored in this directory.");
         System.out.println("    MUST BE A SECURE DIRECTORY, OTHERWISE THE SESSION TOKENS WILL BE ACCESSIBLE TO OTHERS.");
         System.out.println("Supported options:");
+        System.out.println("--dry-run");
+        System.out.println("    Start against the TDLib simulator instead of Telegram, report the time from JVM start to");
+        System.out.println("    the first dispatched event and exit. --native-lib is optional. Used to train a CDS archive,");
+        System.out.println("    use a separate working directory, plugins run as usual.");
         System.out.println("--help");
         System.out.println("    Prints this help message and exits.");
         System.out.println("--native-lib=<path>");
         System.out.println("    Path to the native library to use instead of the default one, for debugging purposes.");
+        System.out.println("--preload-natives");
+        System.out.println("    Load the optional native libraries (Skija, SQLite) in the background at startup,");
+        System.out.println("    instead of on first use.");
         System.out.println("--proxy=socks5://<host>:<port>");
         System.out.println("    Use a proxy to connect to the Telegram DC. The proxy must be a SOCKS5 proxy.");
     }
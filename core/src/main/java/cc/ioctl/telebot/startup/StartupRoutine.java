@@ -2,7 +2,7 @@ package cc.ioctl.telebot.startup;
 
 import cc.ioctl.telebot.cli.Console;
 import cc.ioctl.telebot.intern.NativeBridge;
-import cc.ioctl.telebot.tdlib.RobotServer;
+import cc.ioctl.telebot.intern.NativeComponent;
 import cc.ioctl.telebot.util.*;
 import com.tencent.mmkv.MMKV;
 import com.tencent.mmkv.MMKVLogLevel;
@@ -12,6 +12,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -24,9 +25,16 @@ public class StartupRoutine {
         throw new AssertionError("This class is not meant to be instantiated");
     }
 
+    /**
+     * @param dryRun start against the TDLib simulator and exit once the first event is dispatched,
+     *               the native library is optional, see {@link ServerInit#runServer(File, String, boolean)}
+     */
     static void startup(@NotNull File workingDir,
                         @Nullable String nativeLibPathOverride,
-                        @Nullable String socketProxy) {
+                        @Nullable String socketProxy,
+                        boolean preloadNatives,
+                        boolean dryRun) {
+        long startTime = System.nanoTime();
         // set working directory
         System.out.println("Working directory: " + workingDir.getAbsolutePath());
         // enable kotlin coroutines stacktrace recovery
@@ -55,6 +63,16 @@ public class StartupRoutine {
             System.exit(1);
             return;
         }
+        if (dryRun && TextUtils.isEmpty(nativeLibPathOverride)) {
+            // no TDLib, console or MMKV, only what runs on the JVM
+            System.out.println("Dry run without native library");
+            System.out.println("Process ID: " + ProcessHandle.current().pid());
+            Log.setLogHandler(StartupRoutine::printLogMessage);
+            logClassDataSharing();
+            Log.i(TAG, "Core initialized in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+            runDryRun(workingDir, socketProxy);
+            return;
+        }
         if (!TextUtils.isEmpty(nativeLibPathOverride)) {
             System.out.println("Loading overridden native library: " + nativeLibPathOverride);
             System.load(nativeLibPathOverride);
@@ -110,24 +128,57 @@ public class StartupRoutine {
         if (!mmkvCacheDir.exists() && !mmkvCacheDir.mkdirs()) {
             throw new RuntimeException("Could not create mmkv cache directory: " + mmkvCacheDir.getAbsolutePath());
         }
-        NativeBridge.nativeInit(workingDir.getAbsolutePath());
         MMKV.initialize(false, mmkvDir.getAbsolutePath(), mmkvCacheDir.getAbsolutePath(), MMKVLogLevel.LevelInfo);
         // initialize logger
         Console console = Console.getInstance();
         Log.setLogHandler(console);
         Log.d("StartupRoutine", "StartupRoutine started");
-        // Load native libs
-        org.jetbrains.skija.impl.Library.staticLoad();
-        // We are not likely to be on Android...
-        try {
-            // init SQLite
-            Class.forName(org.sqlite.JDBC.class.getName(), true, org.sqlite.JDBC.class.getClassLoader());
-            org.sqlite.core.NativeDB.load();
-        } catch (Exception e) {
-            IoUtils.unsafeThrow(e);
+        // Skija and SQLite are loaded on first use, see NativeComponent
+        if (preloadNatives) {
+            NativeComponent.preloadAllAsync();
+        }
+        logClassDataSharing();
+        Log.i(TAG, "Core initialized in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+        if (dryRun) {
+            runDryRun(workingDir, socketProxy);
+            return;
         }
         // initialize robot server
-        RobotServer server = RobotServer.createInstance(workingDir);
-        ServerInit.runServer(server, socketProxy);
+        ServerInit.runServer(workingDir, socketProxy);
+    }
+
+    private static void runDryRun(@NotNull File workingDir, @Nullable String socketProxy) {
+        int status = 0;
+        try {
+            ServerInit.runServer(workingDir, socketProxy, true);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Dry run failed", e);
+            status = 1;
+        }
+        // the server threads are not daemons, and -XX:ArchiveClassesAtExit dumps the archive on exit
+        System.exit(status);
+    }
+
+    private static void logClassDataSharing() {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-XX:SharedArchiveFile=")) {
+                Log.i(TAG, "Using CDS archive " + arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("-XX:ArchiveClassesAtExit=")) {
+                Log.i(TAG, "Loaded classes will be archived to " + arg.substring(arg.indexOf('=') + 1) + " at exit");
+            }
+        }
+    }
+
+    private static void printLogMessage(int level, @NotNull String tag, @NotNull String message,
+                                        @Nullable Throwable throwable) {
+        String text = "VDIWEA".charAt(Math.max(0, Math.min(level, Log.ASSERT) - Log.VERBOSE)) + "/" + tag + ": " + message;
+        if (level >= Log.WARN) {
+            System.err.println(text);
+        } else {
+            System.out.println(text);
+        }
+        if (throwable != null) {
+            System.err.println(Log.getStackTraceString(throwable));
+        }
     }
 }
@@ -0,0 +1,22 @@
+package cc.ioctl.telebot.tdlib.journal;
+
+/**
+ * Layout of an event journal file, a GZIP stream of big-endian fields:
+ * <pre>
+ * header: magic (u64), version (u32), start time in epoch millis (u64)
+ * record: arrival time in nanoseconds since the start (u64), length (u32), UTF-8 event JSON
+ * </pre>
+ * A truncated last record, e.g. after a crash, is ignored by the reader.
+ */
+final class EventJournalFormat {
+
+    private EventJournalFormat() {
+        throw new AssertionError("This class is not meant to be instantiated");
+    }
+
+    // "TBJRNL\0\1"
+    static final long MAGIC = 0x54424a524e4c0001L;
+    static final int VERSION = 1;
+    static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    static final String FILE_SUFFIX = ".tbj.gz";
+}
@@ -0,0 +1,102 @@
+package cc.ioctl.telebot.tdlib.journal;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sequential reader of an event journal written by {@link EventJournalWriter}.
+ */
+public class EventJournalReader implements Closeable {
+
+    public static class Record {
+        /**
+         * Arrival time in nanoseconds since the start of the journal.
+         */
+        public long arrivalNanos;
+        @NotNull
+        public String event = "";
+    }
+
+    @NotNull
+    private final File mFile;
+    private final DataInputStream mInput;
+    private final long mStartTimeMillis;
+    private final Record mRecord = new Record();
+    private byte[] mBuffer = new byte[4096];
+
+    public EventJournalReader(@NotNull File file) throws IOException {
+        mFile = Objects.requireNonNull(file, "file == null");
+        mInput = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), 64 * 1024), 64 * 1024));
+        try {
+            long magic = mInput.readLong();
+            int version = mInput.readInt();
+            if (magic != EventJournalFormat.MAGIC) {
+                throw new IOException("Not an event journal: " + file.getAbsolutePath());
+            }
+            if (version != EventJournalFormat.VERSION) {
+                throw new IOException("Unsupported event journal version " + version + ": " + file.getAbsolutePath());
+            }
+            mStartTimeMillis = mInput.readLong();
+        } catch (IOException e) {
+            mInput.close();
+            throw e;
+        }
+    }
+
+    @NotNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the wall clock time when the recording started, in epoch millis
+     */
+    public long getStartTimeMillis() {
+        return mStartTimeMillis;
+    }
+
+    /**
+     * Read the next record. The returned object is reused by the next call.
+     *
+     * @return the record, or null at the end of the journal
+     */
+    @Nullable
+    public Record next() throws IOException {
+        long arrivalNanos;
+        int length;
+        try {
+            arrivalNanos = mInput.readLong();
+            length = mInput.readInt();
+            if (length < 0 || length > EventJournalFormat.MAX_RECORD_LENGTH) {
+                throw new IOException("Corrupted record length " + length + " in " + mFile.getAbsolutePath());
+            }
+            if (mBuffer.length < length) {
+                mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+            }
+            mInput.readFully(mBuffer, 0, length);
+        } catch (EOFException e) {
+            // end of the journal, or a record truncated by a crash
+            return null;
+        }
+        mRecord.arrivalNanos = arrivalNanos;
+        mRecord.event = new String(mBuffer, 0, length, StandardCharsets.UTF_8);
+        return mRecord;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+}
@@ -0,0 +1,140 @@
+package cc.ioctl.telebot.tdlib.journal;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the events of a journal to a sink, e.g. {@code RobotServer::onReceiveTDLibEvent}, in the recorded order,
+ * keeping the recorded inter-arrival times scaled by a speed factor.
+ * <p>
+ * The events keep their recorded "@client_id", so bots should be created in the same order as in the recording.
+ * Responses, the events with an "@extra", are skipped: their request ids were those of the recording process and
+ * would complete requests of the live server with the wrong result.
+ */
+public class EventJournalReplayer {
+
+    public interface EventSink {
+        void onEvent(@NotNull String event);
+    }
+
+    public static class Result {
+        public long events;
+        /**
+         * The recorded responses, not passed to the sink.
+         */
+        public long skippedResponses;
+        /**
+         * Wall time of the replay.
+         */
+        public long durationNanos;
+        /**
+         * Time between the first and the last recorded event.
+         */
+        public long recordedDurationNanos;
+        /**
+         * The max delay of an event behind its scheduled time, 0 at max speed.
+         */
+        public long maxLagNanos;
+
+        public double getEventsPerSecond() {
+            return durationNanos <= 0 ? 0 : events * 1e9 / durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events in %.3fs (recorded %.3fs), %.1f events/s, max lag %.3fms,"
+                            + " %d responses skipped", events, durationNanos / 1e9, recordedDurationNanos / 1e9,
+                    getEventsPerSecond(), maxLagNanos / 1e6, skippedResponses);
+        }
+    }
+
+    @NotNull
+    private final File mFile;
+    private final double mSpeed;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param file  the journal file
+     * @param speed the speed factor, 1 for the recorded speed, 0 or {@link Double#POSITIVE_INFINITY} for max speed
+     */
+    public EventJournalReplayer(@NotNull File file, double speed) {
+        mFile = Objects.requireNonNull(file, "file == null");
+        if (Double.isNaN(speed) || speed < 0) {
+            throw new IllegalArgumentException("speed must not be negative, got " + speed);
+        }
+        mSpeed = speed == 0 ? Double.POSITIVE_INFINITY : speed;
+    }
+
+    public boolean isMaxSpeed() {
+        return Double.isInfinite(mSpeed);
+    }
+
+    /**
+     * Stop a running replay after the current event.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Replay the journal on the calling thread.
+     *
+     * @param sink the sink of the events
+     * @return the statistics of the replay
+     */
+    @NotNull
+    public Result replay(@NotNull EventSink sink) throws IOException {
+        Objects.requireNonNull(sink, "sink == null");
+        Result result = new Result();
+        boolean maxSpeed = isMaxSpeed();
+        try (EventJournalReader reader = new EventJournalReader(mFile)) {
+            long replayStart = System.nanoTime();
+            long firstArrival = -1;
+            EventJournalReader.Record record;
+            while (!mCancelled && (record = reader.next()) != null) {
+                if (firstArrival < 0) {
+                    firstArrival = record.arrivalNanos;
+                }
+                long offset = record.arrivalNanos - firstArrival;
+                result.recordedDurationNanos = offset;
+                if (isResponse(record.event)) {
+                    result.skippedResponses++;
+                    continue;
+                }
+                if (!maxSpeed) {
+                    long scheduled = replayStart + (long) (offset / mSpeed);
+                    long now = System.nanoTime();
+                    while (now < scheduled) {
+                        LockSupport.parkNanos(scheduled - now);
+                        now = System.nanoTime();
+                    }
+                    result.maxLagNanos = Math.max(result.maxLagNanos, now - scheduled);
+                }
+                sink.onEvent(record.event);
+                result.events++;
+            }
+            result.durationNanos = System.nanoTime() - replayStart;
+        }
+        return result;
+    }
+
+    static boolean isResponse(@NotNull String event) {
+        // a text of exactly "@extra" also matches, confirmed with a parse
+        if (!event.contains("\"@extra\"")) {
+            return false;
+        }
+        try {
+            JsonElement element = JsonParser.parseString(event);
+            return element.isJsonObject() && element.getAsJsonObject().has("@extra");
+        } catch (JsonParseException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package cc.ioctl.telebot.tdlib.journal;
+
+import cc.ioctl.telebot.metrics.Counter;
+import cc.ioctl.telebot.metrics.CoreMetrics;
+import cc.ioctl.telebot.util.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records raw TDLib events with their arrival time into a journal file.
+ * <p>
+ * {@link #append(long, String)} never blocks the caller, events are compressed and written on a background thread.
+ * If the writer falls behind, events are dropped and counted in {@link CoreMetrics#JOURNAL_EVENTS_DROPPED}.
+ */
+public class EventJournalWriter implements Closeable {
+
+    private static final String TAG = "EventJournalWriter";
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int DRAIN_BATCH_SIZE = 256;
+
+    private static final class Entry {
+        final long arrivalNanos;
+        final String event;
+
+        Entry(long arrivalNanos, String event) {
+            this.arrivalNanos = arrivalNanos;
+            this.event = event;
+        }
+    }
+
+    @NotNull
+    private final File mFile;
+    private final long mStartNanos;
+    private final DataOutputStream mOutput;
+    private final ArrayBlockingQueue<Entry> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread mWriterThread;
+    private final Counter mWritten = CoreMetrics.JOURNAL_EVENTS_WRITTEN.get();
+    private final Counter mDropped = CoreMetrics.JOURNAL_EVENTS_DROPPED.get();
+    private volatile boolean mClosed = false;
+
+    /**
+     * Create a journal file in the directory, named after the current time.
+     *
+     * @param dir the directory, must exist
+     */
+    @NotNull
+    public static EventJournalWriter createInDirectory(@NotNull File dir) throws IOException {
+        String name = "events-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date());
+        File file = new File(dir, name + EventJournalFormat.FILE_SUFFIX);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, name + "-" + i + EventJournalFormat.FILE_SUFFIX);
+        }
+        return new EventJournalWriter(file);
+    }
+
+    public EventJournalWriter(@NotNull File file) throws IOException {
+        mFile = Objects.requireNonNull(file, "file == null");
+        mStartNanos = System.nanoTime();
+        // sync flush, so that a crash loses at most the events not yet drained
+        mOutput = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file), 64 * 1024, true), 64 * 1024));
+        mOutput.writeLong(EventJournalFormat.MAGIC);
+        mOutput.writeInt(EventJournalFormat.VERSION);
+        mOutput.writeLong(System.currentTimeMillis());
+        mWriterThread = new Thread(this::runWriter, "EventJournalWriter");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    @NotNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Queue an event for writing.
+     *
+     * @param arrivalNanos the {@link System#nanoTime()} when the event was received
+     * @param event        the raw event JSON
+     */
+    public void append(long arrivalNanos, @NotNull String event) {
+        if (mClosed || !mQueue.offer(new Entry(arrivalNanos, event))) {
+            mDropped.inc();
+        }
+    }
+
+    private void runWriter() {
+        ArrayList<Entry> batch = new ArrayList<>(DRAIN_BATCH_SIZE);
+        try {
+            while (true) {
+                Entry first = mQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (mClosed) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                mQueue.drainTo(batch, DRAIN_BATCH_SIZE - 1);
+                for (Entry entry : batch) {
+                    writeRecord(entry);
+                }
+                mWritten.inc(batch.size());
+                batch.clear();
+                if (mQueue.isEmpty()) {
+                    mOutput.flush();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write event journal " + mFile.getAbsolutePath() + ", recording stopped", e);
+            mClosed = true;
+            mQueue.clear();
+        } catch (InterruptedException e) {
+            // close() is waiting for us
+        } finally {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.e(TAG, "failed to close event journal " + mFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private void writeRecord(@NotNull Entry entry) throws IOException {
+        byte[] bytes = entry.event.getBytes(StandardCharsets.UTF_8);
+        mOutput.writeLong(Math.max(0, entry.arrivalNanos - mStartNanos));
+        mOutput.writeInt(bytes.length);
+        mOutput.write(bytes);
+    }
+
+    /**
+     * Write the queued events and close the file.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        try {
+            mWriterThread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package cc.ioctl.telebot.tdlib.tlrpc;
+
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * An immutable JSON object serialized once as UTF-8, e.g. a keyboard sent with every reply.
+ * {@link TlRequestWriter#value(FrozenJson)} copies the bytes into a request without walking the tree again.
+ */
+public final class FrozenJson {
+
+    @NotNull
+    private final JsonObject mTree;
+    @NotNull
+    private final byte[] mBytes;
+
+    private FrozenJson(@NotNull JsonObject tree, @NotNull byte[] bytes) {
+        mTree = tree;
+        mBytes = bytes;
+    }
+
+    /**
+     * Serialize a copy of the object, later changes to it are not seen.
+     */
+    @NotNull
+    public static FrozenJson of(@NotNull JsonObject obj) {
+        Objects.requireNonNull(obj, "obj == null");
+        JsonObject tree = obj.deepCopy();
+        TlRequestWriter writer = new TlRequestWriter();
+        writer.value(tree);
+        return new FrozenJson(tree, writer.toByteArray());
+    }
+
+    /**
+     * A copy of the object, which the caller may change.
+     */
+    @NotNull
+    public JsonObject toJsonObject() {
+        return mTree.deepCopy();
+    }
+
+    /**
+     * The size of the UTF-8 bytes.
+     */
+    public int size() {
+        return mBytes.length;
+    }
+
+    @NotNull
+    byte[] bytes() {
+        return mBytes;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBytes, StandardCharsets.UTF_8);
+    }
+}
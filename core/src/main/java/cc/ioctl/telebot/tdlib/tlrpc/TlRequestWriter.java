@@ -0,0 +1,443 @@
+package cc.ioctl.telebot.tdlib.tlrpc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes a TDLib JSON request as UTF-8 into a direct buffer, ready for td_send without building a String.
+ * <p>
+ * Writers are shared by all threads through a small pool, see {@link #obtain()}, so that a virtual thread per
+ * request does not allocate a direct buffer for each one. The request must be sent before the writer is recycled.
+ * The bytes are followed by a NUL byte, outside {@link #length()}.
+ * <p>
+ * The writer does not check the structure, a name must be followed by a value and objects must be closed.
+ */
+public final class TlRequestWriter {
+
+    private static final int INITIAL_CAPACITY = 4096;
+    // a larger buffer, e.g. of a long message, is not kept after the request
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // writers beyond this many are dropped on recycle, they only exist while more threads send at the same time
+    private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final ArrayBlockingQueue<TlRequestWriter> sPool = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    // written as a byte array, an absolute put on a direct buffer is much slower, and copied in buffer()
+    private byte[] mBytes = new byte[INITIAL_CAPACITY];
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY + 1);
+    private int mLength = 0;
+    // whether the next name or value in the current object or array needs a comma
+    private boolean mNeedComma = false;
+    private boolean mInUse = false;
+
+    // also used alone by FrozenJson, outside the pool
+    TlRequestWriter() {
+    }
+
+    /**
+     * Get an empty writer from the pool, or a new one if all are in use. Must be released with {@link #recycle()}.
+     */
+    @NotNull
+    public static TlRequestWriter obtain() {
+        TlRequestWriter writer = sPool.poll();
+        if (writer == null) {
+            writer = new TlRequestWriter();
+        }
+        writer.mInUse = true;
+        writer.mLength = 0;
+        writer.mNeedComma = false;
+        return writer;
+    }
+
+    /**
+     * Release the writer after the request is sent, the buffer is invalid afterwards.
+     *
+     * @throws IllegalStateException if the writer was already recycled
+     */
+    public void recycle() {
+        if (!mInUse) {
+            throw new IllegalStateException("the request writer is recycled twice");
+        }
+        if (mBytes.length > MAX_RETAINED_CAPACITY) {
+            mBytes = new byte[INITIAL_CAPACITY];
+        }
+        if (mBuffer.capacity() > MAX_RETAINED_CAPACITY) {
+            mBuffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY + 1);
+        }
+        mInUse = false;
+        sPool.offer(this);
+    }
+
+    /**
+     * The direct buffer holding the request from position 0 to {@link #length()}, followed by a NUL byte.
+     */
+    @NotNull
+    public ByteBuffer buffer() {
+        if (mBuffer.capacity() <= mLength) {
+            mBuffer = ByteBuffer.allocateDirect(Math.max(mLength + 1, mBuffer.capacity() * 2));
+        }
+        mBuffer.clear();
+        mBuffer.put(mBytes, 0, mLength).put((byte) 0);
+        mBuffer.clear();
+        return mBuffer;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    @NotNull
+    public TlRequestWriter beginObject() {
+        beforeValue();
+        putByte('{');
+        mNeedComma = false;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter endObject() {
+        putByte('}');
+        mNeedComma = true;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter beginArray() {
+        beforeValue();
+        putByte('[');
+        mNeedComma = false;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter endArray() {
+        putByte(']');
+        mNeedComma = true;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter name(@NotNull String name) {
+        if (mNeedComma) {
+            putByte(',');
+        }
+        putString(name);
+        putByte(':');
+        mNeedComma = false;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter value(@Nullable String value) {
+        beforeValue();
+        if (value == null) {
+            putAscii("null");
+        } else {
+            putString(value);
+        }
+        mNeedComma = true;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter value(long value) {
+        beforeValue();
+        putLong(value);
+        mNeedComma = true;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter value(boolean value) {
+        beforeValue();
+        putAscii(value ? "true" : "false");
+        mNeedComma = true;
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON does not allow " + value);
+        }
+        beforeValue();
+        putAscii(Double.toString(value));
+        mNeedComma = true;
+        return this;
+    }
+
+    /**
+     * Write a Gson tree, e.g. an input message content built as a JsonObject, null writes a JSON null.
+     */
+    @NotNull
+    public TlRequestWriter value(@Nullable JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            beforeValue();
+            putAscii("null");
+            mNeedComma = true;
+        } else if (value.isJsonObject()) {
+            beginObject();
+            for (Map.Entry<String, JsonElement> entry : ((JsonObject) value).entrySet()) {
+                name(entry.getKey());
+                value(entry.getValue());
+            }
+            endObject();
+        } else if (value.isJsonArray()) {
+            beginArray();
+            for (JsonElement element : (JsonArray) value) {
+                value(element);
+            }
+            endArray();
+        } else {
+            JsonPrimitive primitive = (JsonPrimitive) value;
+            beforeValue();
+            if (primitive.isString()) {
+                putString(primitive.getAsString());
+            } else if (primitive.isBoolean()) {
+                putAscii(primitive.getAsBoolean() ? "true" : "false");
+            } else {
+                Number number = primitive.getAsNumber();
+                if (number instanceof Long || number instanceof Integer || number instanceof Short
+                        || number instanceof Byte) {
+                    putLong(number.longValue());
+                } else {
+                    putAscii(number.toString());
+                }
+            }
+            mNeedComma = true;
+        }
+        return this;
+    }
+
+    /**
+     * Write the serialized bytes of a frozen object as they are.
+     */
+    @NotNull
+    public TlRequestWriter value(@NotNull FrozenJson value) {
+        byte[] bytes = value.bytes();
+        beforeValue();
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+        mLength += bytes.length;
+        mNeedComma = true;
+        return this;
+    }
+
+    /**
+     * Write a name and a value, nothing if the value is null, like a null member of a JsonObject.
+     */
+    @NotNull
+    public TlRequestWriter property(@NotNull String name, @Nullable JsonElement value) {
+        if (value != null) {
+            name(name);
+            value(value);
+        }
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter property(@NotNull String name, @Nullable String value) {
+        if (value != null) {
+            name(name);
+            value(value);
+        }
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter property(@NotNull String name, @Nullable FrozenJson value) {
+        if (value != null) {
+            name(name);
+            value(value);
+        }
+        return this;
+    }
+
+    @NotNull
+    public TlRequestWriter property(@NotNull String name, long value) {
+        return name(name).value(value);
+    }
+
+    @NotNull
+    public TlRequestWriter property(@NotNull String name, boolean value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * The request as a String, e.g. for a transport without a byte interface or a log.
+     */
+    @Override
+    public String toString() {
+        return new String(mBytes, 0, mLength, StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    byte[] toByteArray() {
+        return Arrays.copyOf(mBytes, mLength);
+    }
+
+    private void beforeValue() {
+        if (mNeedComma) {
+            putByte(',');
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = mLength + extra;
+        if (required <= mBytes.length) {
+            return;
+        }
+        int capacity = mBytes.length;
+        while (capacity < required) {
+            capacity = Math.multiplyExact(capacity, 2);
+        }
+        mBytes = Arrays.copyOf(mBytes, capacity);
+    }
+
+    private void putByte(int b) {
+        ensureCapacity(1);
+        mBytes[mLength++] = (byte) b;
+    }
+
+    private void putAscii(@NotNull String s) {
+        int len = s.length();
+        ensureCapacity(len);
+        byte[] buffer = mBytes;
+        int pos = mLength;
+        for (int i = 0; i < len; i++) {
+            buffer[pos++] = (byte) s.charAt(i);
+        }
+        mLength = pos;
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            putAscii("-9223372036854775808");
+            return;
+        }
+        ensureCapacity(20);
+        byte[] buffer = mBytes;
+        if (value < 0) {
+            buffer[mLength++] = (byte) '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        int pos = mLength + digits;
+        mLength = pos;
+        do {
+            buffer[--pos] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+    }
+
+    /**
+     * Write a quoted JSON string in UTF-8 with the escapes of Gson, an unpaired surrogate is written as U+FFFD.
+     */
+    private void putString(@NotNull String s) {
+        int len = s.length();
+        // 3 bytes for each char is enough for UTF-8, 6 for an escape
+        ensureCapacity(len * 3 + 2);
+        byte[] buffer = mBytes;
+        int pos = mLength;
+        buffer[pos++] = (byte) '"';
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buffer[pos++] = (byte) c;
+                    continue;
+                }
+                mLength = pos;
+                // an escape may be longer than the 3 bytes reserved for the char
+                ensureCapacity(6 + (len - i) * 3 + 1);
+                buffer = mBytes;
+                pos = putEscape(buffer, pos, c);
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xc0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                int cp = -1;
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    cp = Character.toCodePoint(c, s.charAt(++i));
+                }
+                if (cp < 0) {
+                    // U+FFFD
+                    buffer[pos++] = (byte) 0xef;
+                    buffer[pos++] = (byte) 0xbf;
+                    buffer[pos++] = (byte) 0xbd;
+                } else {
+                    // 4 bytes for the 2 chars
+                    buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+                }
+            } else if (c == 0x2028 || c == 0x2029) {
+                // escaped like Gson, a JavaScript string can't hold the line and paragraph separators
+                mLength = pos;
+                ensureCapacity(6 + (len - i) * 3 + 1);
+                buffer = mBytes;
+                buffer[pos++] = (byte) '\\';
+                buffer[pos++] = (byte) 'u';
+                buffer[pos++] = (byte) '2';
+                buffer[pos++] = (byte) '0';
+                buffer[pos++] = (byte) '2';
+                buffer[pos++] = HEX[c & 0xf];
+            } else {
+                buffer[pos++] = (byte) (0xe0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buffer[pos++] = (byte) '"';
+        mLength = pos;
+    }
+
+    private static int putEscape(@NotNull byte[] buffer, int pos, char c) {
+        buffer[pos++] = (byte) '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buffer[pos++] = (byte) c;
+                break;
+            case '\n':
+                buffer[pos++] = (byte) 'n';
+                break;
+            case '\r':
+                buffer[pos++] = (byte) 'r';
+                break;
+            case '\t':
+                buffer[pos++] = (byte) 't';
+                break;
+            case '\b':
+                buffer[pos++] = (byte) 'b';
+                break;
+            case '\f':
+                buffer[pos++] = (byte) 'f';
+                break;
+            default:
+                buffer[pos++] = (byte) 'u';
+                buffer[pos++] = (byte) '0';
+                buffer[pos++] = (byte) '0';
+                buffer[pos++] = HEX[c >> 4];
+                buffer[pos++] = HEX[c & 0xf];
+                break;
+        }
+        return pos;
+    }
+}
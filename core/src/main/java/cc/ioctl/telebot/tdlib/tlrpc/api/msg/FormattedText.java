@@ -1,5 +1,6 @@
 package cc.ioctl.telebot.tdlib.tlrpc.api.msg;
 
+import cc.ioctl.telebot.tdlib.tlrpc.FrozenJson;
 import cc.ioctl.telebot.tdlib.tlrpc.TlRpcField;
 import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject;
 import com.google.gson.JsonObject;
@@ -49,4 +50,43 @@ public class FormattedText extends BaseTlRpcJsonObject {
     public static FormattedText forPlainText(@NotNull String text) {
         return new FormattedText(text, EMPTY_TEXT_ENTITY_ARRAY);
     }
+
+    /**
+     * Serialize the text once, for a canned response sent many times. Later changes to this text are not seen.
+     */
+    @NotNull
+    public Frozen freeze() {
+        return new Frozen(this);
+    }
+
+    /**
+     * A text serialized once, written into requests by its bytes, see {@link #freeze()}.
+     * The fields are kept for reading, changing them does not change what is sent.
+     */
+    public static final class Frozen extends FormattedText {
+        @NotNull
+        private final FrozenJson mJson;
+
+        private Frozen(@NotNull FormattedText source) {
+            super(source.text, source.entities == null ? EMPTY_TEXT_ENTITY_ARRAY : source.entities.clone());
+            mJson = FrozenJson.of(source.toJsonObject());
+        }
+
+        @NotNull
+        public FrozenJson getJson() {
+            return mJson;
+        }
+
+        @NotNull
+        @Override
+        public JsonObject toJsonObject() {
+            return mJson.toJsonObject();
+        }
+
+        @NotNull
+        @Override
+        public Frozen freeze() {
+            return this;
+        }
+    }
 }
@@ -1,7 +1,9 @@
 package cc.ioctl.telebot.tdlib.tlrpc.api.msg;
 
+import cc.ioctl.telebot.tdlib.tlrpc.FrozenJson;
 import cc.ioctl.telebot.tdlib.tlrpc.TlRpcField;
 import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject;
+import com.google.gson.JsonObject;
 import org.jetbrains.annotations.NotNull;
 
 public abstract class ReplyMarkup extends BaseTlRpcJsonObject {
@@ -9,6 +11,14 @@ public abstract class ReplyMarkup extends BaseTlRpcJsonObject {
     private ReplyMarkup() {
     }
 
+    /**
+     * Serialize the markup once, for a keyboard sent many times. Later changes to this markup are not seen.
+     */
+    @NotNull
+    public Frozen freeze() {
+        return new Frozen(FrozenJson.of(toJsonObject()));
+    }
+
     public static class ForceReply extends ReplyMarkup {
         @TlRpcField("@type")
         public static final String TYPE = "replyMarkupForceReply";
@@ -154,4 +164,46 @@ public abstract class ReplyMarkup extends BaseTlRpcJsonObject {
         }
     }
 
+    /**
+     * A markup serialized once, written into requests by its bytes, see {@link #freeze()}.
+     */
+    public static final class Frozen extends ReplyMarkup {
+        @NotNull
+        private final FrozenJson mJson;
+
+        private Frozen(@NotNull FrozenJson json) {
+            mJson = json;
+        }
+
+        /**
+         * Freeze a markup given as JSON, e.g. one stored as text.
+         *
+         * @throws IllegalArgumentException if it is not a reply markup
+         */
+        @NotNull
+        public static Frozen fromJsonObject(@NotNull JsonObject obj) {
+            String type = getType(obj);
+            if (type == null || !type.startsWith("replyMarkup")) {
+                throw new IllegalArgumentException("not a reply markup: " + type);
+            }
+            return new Frozen(FrozenJson.of(obj));
+        }
+
+        @NotNull
+        public FrozenJson getJson() {
+            return mJson;
+        }
+
+        @NotNull
+        @Override
+        public JsonObject toJsonObject() {
+            return mJson.toJsonObject();
+        }
+
+        @NotNull
+        @Override
+        public Frozen freeze() {
+            return this;
+        }
+    }
 }
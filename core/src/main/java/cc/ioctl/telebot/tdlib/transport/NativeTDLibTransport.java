@@ -0,0 +1,54 @@
+package cc.ioctl.telebot.tdlib.transport;
+
+import cc.ioctl.telebot.intern.NativeBridge;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The transport to the real TDLib through the JNI bridge.
+ */
+public class NativeTDLibTransport implements TDLibTransport {
+
+    private static final NativeTDLibTransport sInstance = new NativeTDLibTransport();
+
+    private NativeTDLibTransport() {
+    }
+
+    @NotNull
+    public static NativeTDLibTransport getInstance() {
+        return sInstance;
+    }
+
+    @Override
+    public int createClient() {
+        return NativeBridge.nativeTDLibCreateClient();
+    }
+
+    @Override
+    public void send(int clientIndex, @NotNull String request) {
+        NativeBridge.nativeTDLibExecuteAsync(clientIndex, request);
+    }
+
+    @Override
+    public void send(int clientIndex, @NotNull ByteBuffer request, int length) {
+        if (!request.isDirect()) {
+            TDLibTransport.super.send(clientIndex, request, length);
+            return;
+        }
+        NativeBridge.nativeTDLibExecuteAsync(clientIndex, request, length);
+    }
+
+    @Nullable
+    @Override
+    public String receive(int timeout) {
+        return NativeBridge.nativeTDLibPollEvent(timeout);
+    }
+
+    @NotNull
+    @Override
+    public String execute(@NotNull String request) {
+        return NativeBridge.nativeTDLibExecuteSynchronized(request);
+    }
+}
@@ -0,0 +1,1042 @@
+package cc.ioctl.telebot.tdlib.transport;
+
+import cc.ioctl.telebot.util.Log;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process TDLib simulator for load tests and benchmarks, no network or native library is involved.
+ * <p>
+ * It walks through the bot authorization flow, answers the common requests of {@link cc.ioctl.telebot.tdlib.obj.Bot}
+ * (sendMessage, getUser, getChat, getChatMember, getMessage, editMessageText...), and confirms sent messages
+ * with updateMessageSendSucceeded after a configurable latency. Downloads write a file of filler bytes to a
+ * temporary directory and report their progress with updateFile. A photo from an inputFileGenerated is generated with
+ * updateFileGenerationStart and writeGeneratedFilePart before it is sent. Incoming messages can be generated at a fixed rate
+ * with {@link #startIncomingMessageLoad(double, int)}, and the flood errors of a bot sending too fast are simulated with
+ * {@link #setSendRateLimit(double, int)}.
+ */
+public class SimulatedTDLibTransport implements TDLibTransport {
+
+    private static final String TAG = "SimulatedTDLib";
+
+    private static final String TDLIB_VERSION = "1.8.7";
+    private static final long CHAT_ID_NEGATIVE_NOTATION = -1000000000000L;
+    private static final Pattern BOT_TOKEN_PATTERN = Pattern.compile("^([0-9]+):[a-zA-Z0-9_-]+$");
+    private static final int MAX_STORED_MESSAGES_PER_CLIENT = 10000;
+    private static final AtomicInteger sNextFileIndex = new AtomicInteger(1);
+    private static final AtomicInteger sNextUploadId = new AtomicInteger(1);
+    private static final AtomicLong sNextGenerationId = new AtomicLong(1);
+
+    private static final String[] INCOMING_TEXTS = {
+            "/start", "/help", "/ping", "hi", "thanks!", "/stats", "how do I use this bot?", "ok", "/roll 2d6", "\uD83D\uDC4D"
+    };
+
+    private final long mResponseLatencyMillis;
+    private final long mSendLatencyMillis;
+    private final long mJitterMillis;
+    private final LinkedBlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService mScheduler;
+    private final ConcurrentHashMap<Integer, SimulatedClient> mClients = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextClientIndex = new AtomicInteger(1);
+    private final Object mLoadLock = new Object();
+    @Nullable
+    private Thread mLoadThread;
+    @Nullable
+    private File mDownloadDir;
+    private volatile double mSendRateLimit = 0;
+    private volatile int mFloodWaitSeconds = 0;
+    private final AtomicLong mFloodErrorCount = new AtomicLong();
+
+    private static class SimulatedClient {
+        final int index;
+        boolean isStarted = false;
+        String authState = "authorizationStateWaitTdlibParameters";
+        long myId = 0;
+        long lastServerMessageId = 1000;
+        int lastTemporaryMessageId = 0;
+        // a bucket of one second of sends, see setSendRateLimit
+        double sendTokens = 0;
+        long lastSendTime = 0;
+        long floodWaitUntil = 0;
+        // key is "chatId_messageId"
+        final LinkedHashMap<String, JsonObject> messages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+                return size() > MAX_STORED_MESSAGES_PER_CLIENT;
+            }
+        };
+
+        int lastFileIndex = 0;
+        final HashMap<Integer, SimulatedFile> files = new HashMap<>();
+        final HashMap<String, SimulatedFile> filesByRemoteId = new HashMap<>();
+        final HashMap<Long, SimulatedGeneration> generations = new HashMap<>();
+
+        SimulatedClient(int index) {
+            this.index = index;
+        }
+
+        boolean isAuthorized() {
+            return "authorizationStateReady".equals(authState);
+        }
+    }
+
+    private static class SimulatedFile {
+        final int index;
+        final String remoteId;
+        final long size;
+        boolean isDownloading = false;
+        @Nullable
+        String localPath = null;
+
+        SimulatedFile(int index, String remoteId, long size) {
+            this.index = index;
+            this.remoteId = remoteId;
+            this.size = size;
+        }
+    }
+
+    private static class SimulatedGeneration {
+        // updateMessageSendSucceeded, posted when the generation is finished
+        final JsonObject succeeded;
+        long writtenSize = 0;
+
+        SimulatedGeneration(JsonObject succeeded) {
+            this.succeeded = succeeded;
+        }
+    }
+
+    /**
+     * Create a simulator that answers immediately.
+     */
+    public SimulatedTDLibTransport() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * @param responseLatencyMillis the latency of a response to a request
+     * @param sendLatencyMillis     the time from the response of sendMessage to updateMessageSendSucceeded
+     * @param jitterMillis          the max random latency added to each of the above
+     */
+    public SimulatedTDLibTransport(long responseLatencyMillis, long sendLatencyMillis, long jitterMillis) {
+        if (responseLatencyMillis < 0 || sendLatencyMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException("latency must not be negative");
+        }
+        mResponseLatencyMillis = responseLatencyMillis;
+        mSendLatencyMillis = sendLatencyMillis;
+        mJitterMillis = jitterMillis;
+        mScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "TDLibSimulator");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public int createClient() {
+        int index = mNextClientIndex.getAndIncrement();
+        mClients.put(index, new SimulatedClient(index));
+        return index;
+    }
+
+    @Override
+    public void send(int clientIndex, @NotNull String request) {
+        Objects.requireNonNull(request, "request == null");
+        JsonObject req;
+        try {
+            req = JsonParser.parseString(request).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            postEvent(error(400, "Failed to parse JSON object as TDLib request: " + e.getMessage()), 0);
+            return;
+        }
+        SimulatedClient client = mClients.get(clientIndex);
+        if (client == null) {
+            JsonObject err = error(400, "Invalid TDLib instance specified");
+            copyExtra(req, err);
+            err.addProperty("@client_id", clientIndex);
+            postEvent(err, 0);
+            return;
+        }
+        synchronized (client) {
+            if (!client.isStarted) {
+                client.isStarted = true;
+                postUpdate(client, option("version", stringOption(TDLIB_VERSION)), 0);
+                postUpdate(client, authorizationState(client.authState), 0);
+            }
+            JsonObject response;
+            try {
+                response = handleRequest(client, req);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "failed to handle request " + request, e);
+                response = error(500, "Simulator error: " + e);
+            }
+            copyExtra(req, response);
+            response.addProperty("@client_id", client.index);
+            postEvent(response, responseDelay());
+        }
+    }
+
+    @Nullable
+    @Override
+    public String receive(int timeout) {
+        try {
+            return timeout <= 0 ? mEvents.poll() : mEvents.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String execute(@NotNull String request) {
+        JsonObject req = JsonParser.parseString(request).getAsJsonObject();
+        String type = getType(req);
+        JsonObject result;
+        if ("setLogVerbosityLevel".equals(type) || "setLogStream".equals(type)) {
+            result = ok();
+        } else {
+            result = error(400, "The method can't be executed synchronously");
+        }
+        copyExtra(req, result);
+        return result.toString();
+    }
+
+    /**
+     * Deliver an event to the server as if it came from TDLib, e.g. an incoming message.
+     *
+     * @param clientIndex the client index
+     * @param event       the event, "@client_id" is added
+     * @param delayMillis the delay before the event is received
+     */
+    public void injectEvent(int clientIndex, @NotNull JsonObject event, long delayMillis) {
+        Objects.requireNonNull(event, "event == null");
+        JsonObject copy = event.deepCopy();
+        copy.addProperty("@client_id", clientIndex);
+        postEvent(copy, delayMillis);
+    }
+
+    /**
+     * Start generating incoming text messages for all authorized clients, replacing any previous load.
+     *
+     * @param messagesPerSecond the total message rate of all clients
+     * @param chatCount         the number of distinct chats the messages come from, half of them are groups
+     */
+    public void startIncomingMessageLoad(double messagesPerSecond, int chatCount) {
+        if (messagesPerSecond <= 0 || Double.isNaN(messagesPerSecond)) {
+            throw new IllegalArgumentException("messagesPerSecond must be positive, got " + messagesPerSecond);
+        }
+        if (chatCount <= 0) {
+            throw new IllegalArgumentException("chatCount must be positive, got " + chatCount);
+        }
+        synchronized (mLoadLock) {
+            stopIncomingMessageLoad();
+            Thread t = new Thread(() -> runIncomingMessageLoad(messagesPerSecond, chatCount), "TDLibSimulatorLoad");
+            t.setDaemon(true);
+            mLoadThread = t;
+            t.start();
+        }
+    }
+
+    /**
+     * Fail the sends of each client beyond a rate, like Telegram does when a bot sends too fast. The message is
+     * reported with updateMessageSendFailed, error 429 "Too Many Requests: retry after N", and every send fails
+     * the same way until the flood wait is over.
+     *
+     * @param messagesPerSecond the rate, with a burst of one second of sends, 0 for no limit
+     * @param floodWaitSeconds  the wait after the rate is exceeded
+     */
+    public void setSendRateLimit(double messagesPerSecond, int floodWaitSeconds) {
+        if (messagesPerSecond < 0 || Double.isNaN(messagesPerSecond)) {
+            throw new IllegalArgumentException("messagesPerSecond must not be negative, got " + messagesPerSecond);
+        }
+        if (floodWaitSeconds <= 0) {
+            throw new IllegalArgumentException("floodWaitSeconds must be positive, got " + floodWaitSeconds);
+        }
+        mFloodWaitSeconds = floodWaitSeconds;
+        mSendRateLimit = messagesPerSecond;
+    }
+
+    /**
+     * @return the number of sends failed with a flood error, see {@link #setSendRateLimit(double, int)}
+     */
+    public long getFloodErrorCount() {
+        return mFloodErrorCount.get();
+    }
+
+    public void stopIncomingMessageLoad() {
+        synchronized (mLoadLock) {
+            if (mLoadThread != null) {
+                mLoadThread.interrupt();
+                mLoadThread = null;
+            }
+        }
+    }
+
+    private void runIncomingMessageLoad(double messagesPerSecond, int chatCount) {
+        long intervalNanos = Math.max(1, (long) (1e9 / messagesPerSecond));
+        long next = System.nanoTime();
+        int round = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.nanoTime();
+            if (now < next) {
+                long waitNanos = next - now;
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            // catch up without sleeping if we are behind
+            next += intervalNanos;
+            ArrayList<SimulatedClient> clients = new ArrayList<>(mClients.size());
+            for (SimulatedClient c : mClients.values()) {
+                synchronized (c) {
+                    if (c.isAuthorized()) {
+                        clients.add(c);
+                    }
+                }
+            }
+            if (clients.isEmpty()) {
+                continue;
+            }
+            SimulatedClient client = clients.get(round++ % clients.size());
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int chat = random.nextInt(chatCount);
+            long userId = 1000000000L + random.nextInt(100000);
+            // even chats are supergroups, odd chats are private chats
+            long chatId = (chat % 2 == 0) ? CHAT_ID_NEGATIVE_NOTATION - (1700000000L + chat) : userId;
+            String text = INCOMING_TEXTS[random.nextInt(INCOMING_TEXTS.length)];
+            synchronized (client) {
+                long messageId = (++client.lastServerMessageId) << 20;
+                JsonObject msg = message(messageId, chatId, userId, false, textContent(text), false);
+                JsonObject update = new JsonObject();
+                update.addProperty("@type", "updateNewMessage");
+                update.add("message", msg);
+                postUpdate(client, update, 0);
+            }
+        }
+    }
+
+    @NotNull
+    private JsonObject handleRequest(@NotNull SimulatedClient client, @NotNull JsonObject req) {
+        String type = getType(req);
+        if (type == null) {
+            return error(400, "Request must have @type");
+        }
+        switch (type) {
+            case "setTdlibParameters": {
+                if (!"authorizationStateWaitTdlibParameters".equals(client.authState)) {
+                    return error(400, "Unexpected setTdlibParameters");
+                }
+                setAuthorizationState(client, "authorizationStateWaitEncryptionKey");
+                return ok();
+            }
+            case "checkDatabaseEncryptionKey": {
+                if (!"authorizationStateWaitEncryptionKey".equals(client.authState)) {
+                    return error(400, "Unexpected checkDatabaseEncryptionKey");
+                }
+                setAuthorizationState(client, "authorizationStateWaitPhoneNumber");
+                postUpdate(client, connectionState("connectionStateReady"), 0);
+                return ok();
+            }
+            case "checkAuthenticationBotToken": {
+                if (!"authorizationStateWaitPhoneNumber".equals(client.authState)) {
+                    return error(400, "Call to checkAuthenticationBotToken unexpected");
+                }
+                Matcher m = BOT_TOKEN_PATTERN.matcher(getString(req, "token"));
+                if (!m.matches()) {
+                    return error(400, "ACCESS_TOKEN_INVALID");
+                }
+                client.myId = Long.parseLong(m.group(1));
+                // TDLib sends these updates before the response
+                postUpdate(client, option("my_id", integerOption(client.myId)), responseDelay());
+                JsonObject updateUser = new JsonObject();
+                updateUser.addProperty("@type", "updateUser");
+                updateUser.add("user", user(client, client.myId));
+                postUpdate(client, updateUser, responseDelay());
+                client.authState = "authorizationStateReady";
+                postUpdate(client, authorizationState(client.authState), responseDelay());
+                return ok();
+            }
+            case "getOption": {
+                String name = getString(req, "name");
+                if ("my_id".equals(name) && client.myId != 0) {
+                    return integerOption(client.myId);
+                } else if ("version".equals(name)) {
+                    return stringOption(TDLIB_VERSION);
+                } else {
+                    JsonObject empty = new JsonObject();
+                    empty.addProperty("@type", "optionValueEmpty");
+                    return empty;
+                }
+            }
+            case "setLogVerbosityLevel":
+            case "answerCallbackQuery":
+            case "processChatJoinRequest":
+            case "setChatMemberStatus":
+            case "close": {
+                return ok();
+            }
+        }
+        if (!client.isAuthorized()) {
+            return error(401, "Unauthorized");
+        }
+        switch (type) {
+            case "getUser": {
+                long userId = getLong(req, "user_id");
+                return userId > 0 ? user(client, userId) : error(400, "Invalid user identifier");
+            }
+            case "getChat": {
+                return chat(getLong(req, "chat_id"));
+            }
+            case "getChatMember": {
+                JsonObject memberId = req.getAsJsonObject("member_id");
+                if (memberId == null) {
+                    return error(400, "Member identifier is not specified");
+                }
+                return chatMember(client, memberId);
+            }
+            case "sendMessage": {
+                return sendMessage(client, req);
+            }
+            case "getMessage": {
+                JsonObject msg = client.messages.get(getLong(req, "chat_id") + "_" + getLong(req, "message_id"));
+                return msg != null ? msg.deepCopy() : error(404, "Not Found");
+            }
+            case "editMessageText":
+            case "editMessageCaption": {
+                String key = getLong(req, "chat_id") + "_" + getLong(req, "message_id");
+                JsonObject msg = client.messages.get(key);
+                if (msg == null) {
+                    return error(400, "Message not found");
+                }
+                if ("editMessageText".equals(type)) {
+                    msg.add("content", convertInputContent(req.getAsJsonObject("input_message_content")));
+                } else {
+                    JsonObject content = msg.getAsJsonObject("content");
+                    if (content != null && req.has("caption")) {
+                        content.add("caption", req.get("caption"));
+                    }
+                }
+                msg.addProperty("edit_date", System.currentTimeMillis() / 1000);
+                return msg.deepCopy();
+            }
+            case "deleteMessages": {
+                long chatId = getLong(req, "chat_id");
+                JsonArray ids = req.getAsJsonArray("message_ids");
+                if (ids != null) {
+                    for (JsonElement id : ids) {
+                        client.messages.remove(chatId + "_" + id.getAsLong());
+                    }
+                }
+                return ok();
+            }
+            case "getRemoteFile": {
+                String remoteId = getString(req, "remote_file_id");
+                if (remoteId.isEmpty()) {
+                    return error(400, "Wrong remote file identifier specified");
+                }
+                SimulatedFile file = client.filesByRemoteId.get(remoteId);
+                if (file == null) {
+                    // 16 to 80 KB, the same for a remote id in every run
+                    file = new SimulatedFile(++client.lastFileIndex, remoteId, 16 * 1024 + (remoteId.hashCode() & 0xFFFF));
+                    client.files.put(file.index, file);
+                    client.filesByRemoteId.put(remoteId, file);
+                }
+                return fileObject(file, file.localPath != null ? file.size : 0);
+            }
+            case "downloadFile": {
+                SimulatedFile file = client.files.get((int) getLong(req, "file_id"));
+                if (file == null) {
+                    return error(400, "Invalid file identifier");
+                }
+                if (file.localPath == null && !file.isDownloading) {
+                    startDownload(client, file);
+                }
+                return fileObject(file, file.localPath != null ? file.size : 0);
+            }
+            case "cancelDownloadFile": {
+                return ok();
+            }
+            case "writeGeneratedFilePart": {
+                SimulatedGeneration generation = client.generations.get(getLong(req, "generation_id"));
+                if (generation == null) {
+                    return error(400, "Invalid generation identifier");
+                }
+                if (getLong(req, "offset") != generation.writtenSize) {
+                    return error(400, "Wrong offset specified");
+                }
+                generation.writtenSize += Base64.getDecoder().decode(getString(req, "data")).length;
+                return ok();
+            }
+            case "finishFileGeneration": {
+                SimulatedGeneration generation = client.generations.remove(getLong(req, "generation_id"));
+                if (generation == null) {
+                    return error(400, "Invalid generation identifier");
+                }
+                JsonElement error = req.get("error");
+                if (error != null && error.isJsonObject()) {
+                    JsonObject failed = new JsonObject();
+                    failed.addProperty("@type", "updateMessageSendFailed");
+                    failed.add("message", generation.succeeded.get("message"));
+                    failed.add("old_message_id", generation.succeeded.get("old_message_id"));
+                    failed.addProperty("error_code", 400);
+                    failed.addProperty("error_message", getString(error.getAsJsonObject(), "message"));
+                    postUpdate(client, failed, sendDelay());
+                } else if (generation.writtenSize == 0) {
+                    return error(400, "Generated file is empty");
+                } else {
+                    postUpdate(client, generation.succeeded, sendDelay());
+                }
+                return ok();
+            }
+            case "deleteFile": {
+                SimulatedFile file = client.files.get((int) getLong(req, "file_id"));
+                if (file == null) {
+                    return error(400, "Invalid file identifier");
+                }
+                if (file.localPath != null) {
+                    // may have been moved away already
+                    new File(file.localPath).delete();
+                    file.localPath = null;
+                }
+                return ok();
+            }
+            default: {
+                return error(400, "Method " + type + " is not supported by the simulator");
+            }
+        }
+    }
+
+    /**
+     * Write the file, report half of it after the send latency and the completion after twice the send latency.
+     */
+    private void startDownload(@NotNull SimulatedClient client, @NotNull SimulatedFile file) {
+        File local;
+        try {
+            local = new File(getDownloadDir(), client.index + "_" + file.index);
+            byte[] data = new byte[(int) file.size];
+            byte[] pattern = file.remoteId.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = pattern[i % pattern.length];
+            }
+            Files.write(local.toPath(), data);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write simulated download " + file.remoteId, e);
+            postUpdate(client, updateFile(file, 0), 0);
+            return;
+        }
+        file.isDownloading = true;
+        long delay = responseDelay() + sendDelay();
+        postUpdate(client, updateFile(file, file.size / 2), delay);
+        mScheduler.schedule(() -> {
+            synchronized (client) {
+                file.isDownloading = false;
+                file.localPath = local.getAbsolutePath();
+                postUpdate(client, updateFile(file, file.size), 0);
+            }
+        }, delay + sendDelay() + 1, TimeUnit.MILLISECONDS);
+    }
+
+    @NotNull
+    private synchronized File getDownloadDir() throws IOException {
+        if (mDownloadDir == null) {
+            mDownloadDir = Files.createTempDirectory("telebot-simulator").toFile();
+        }
+        return mDownloadDir;
+    }
+
+    @NotNull
+    private static JsonObject updateFile(@NotNull SimulatedFile file, long downloadedSize) {
+        JsonObject update = new JsonObject();
+        update.addProperty("@type", "updateFile");
+        update.add("file", fileObject(file, downloadedSize));
+        return update;
+    }
+
+    @NotNull
+    private static JsonObject fileObject(@NotNull SimulatedFile file, long downloadedSize) {
+        JsonObject local = new JsonObject();
+        local.addProperty("@type", "localFile");
+        local.addProperty("path", file.localPath != null ? file.localPath : "");
+        local.addProperty("can_be_downloaded", true);
+        local.addProperty("can_be_deleted", file.localPath != null);
+        local.addProperty("is_downloading_active", file.isDownloading);
+        local.addProperty("is_downloading_completed", file.localPath != null);
+        local.addProperty("download_offset", 0);
+        local.addProperty("downloaded_prefix_size", downloadedSize);
+        local.addProperty("downloaded_size", downloadedSize);
+        JsonObject remote = new JsonObject();
+        remote.addProperty("@type", "remoteFile");
+        remote.addProperty("id", file.remoteId);
+        remote.addProperty("unique_id", file.remoteId);
+        remote.addProperty("is_uploading_active", false);
+        remote.addProperty("is_uploading_completed", true);
+        remote.addProperty("uploaded_size", file.size);
+        JsonObject obj = new JsonObject();
+        obj.addProperty("@type", "file");
+        obj.addProperty("id", file.index);
+        obj.addProperty("size", file.size);
+        obj.addProperty("expected_size", file.size);
+        obj.add("local", local);
+        obj.add("remote", remote);
+        return obj;
+    }
+
+    @NotNull
+    private JsonObject sendMessage(@NotNull SimulatedClient client, @NotNull JsonObject req) {
+        long chatId = getLong(req, "chat_id");
+        if (chatId == 0) {
+            return error(400, "Chat not found");
+        }
+        JsonObject inputContent = req.getAsJsonObject("input_message_content");
+        if (inputContent == null) {
+            return error(400, "Message content must be non-empty");
+        }
+        JsonObject content = convertInputContent(inputContent);
+        long replyTo = getLong(req, "reply_to_message_id");
+        // temporary ids are not a multiple of 2^20, like in TDLib
+        long temporaryId = (client.lastServerMessageId << 20) + (++client.lastTemporaryMessageId % 0xFFFFF) + 1;
+        JsonObject pending = message(temporaryId, chatId, client.myId, true, content, true);
+        pending.addProperty("reply_to_message_id", replyTo);
+        if (req.has("reply_markup") && req.get("reply_markup").isJsonObject()) {
+            pending.add("reply_markup", req.get("reply_markup"));
+        }
+        JsonObject updateNew = new JsonObject();
+        updateNew.addProperty("@type", "updateNewMessage");
+        updateNew.add("message", pending.deepCopy());
+        postUpdate(client, updateNew, 0);
+        long floodWait = getFloodWaitSeconds(client);
+        if (floodWait > 0) {
+            mFloodErrorCount.incrementAndGet();
+            JsonObject failed = new JsonObject();
+            failed.addProperty("@type", "updateMessageSendFailed");
+            failed.add("message", pending.deepCopy());
+            failed.addProperty("old_message_id", temporaryId);
+            failed.addProperty("error_code", 429);
+            failed.addProperty("error_message", "Too Many Requests: retry after " + floodWait);
+            postUpdate(client, failed, mResponseLatencyMillis + mJitterMillis + sendDelay());
+            return pending;
+        }
+        long serverId = (++client.lastServerMessageId) << 20;
+        JsonObject sent = pending.deepCopy();
+        sent.remove("sending_state");
+        sent.addProperty("id", serverId);
+        client.messages.put(chatId + "_" + serverId, sent);
+        JsonObject succeeded = new JsonObject();
+        succeeded.addProperty("@type", "updateMessageSendSucceeded");
+        succeeded.add("message", sent.deepCopy());
+        succeeded.addProperty("old_message_id", temporaryId);
+        JsonObject inputFile = "inputMessagePhoto".equals(getType(inputContent))
+                ? inputContent.getAsJsonObject("photo") : null;
+        if (inputFile != null && "inputFileGenerated".equals(getType(inputFile))) {
+            // the file is uploaded after it is generated, the message is sent on finishFileGeneration
+            long generationId = sNextGenerationId.getAndIncrement();
+            client.generations.put(generationId, new SimulatedGeneration(succeeded));
+            JsonObject start = new JsonObject();
+            start.addProperty("@type", "updateFileGenerationStart");
+            start.addProperty("generation_id", Long.toString(generationId));
+            start.addProperty("original_path", getString(inputFile, "original_path"));
+            start.addProperty("destination_path", "");
+            start.addProperty("conversion", getString(inputFile, "conversion"));
+            postUpdate(client, start, mResponseLatencyMillis + mJitterMillis);
+            return pending;
+        }
+        // the response is delivered with the response delay, the confirmation must come after it
+        postUpdate(client, succeeded, mResponseLatencyMillis + mJitterMillis + sendDelay());
+        return pending;
+    }
+
+    /**
+     * Take a send from the bucket of the client.
+     *
+     * @return the seconds to wait, or 0 if the send is allowed
+     */
+    private long getFloodWaitSeconds(@NotNull SimulatedClient client) {
+        double limit = mSendRateLimit;
+        if (limit <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now < client.floodWaitUntil) {
+            return (client.floodWaitUntil - now + 999) / 1000;
+        }
+        client.sendTokens = Math.min(limit, client.sendTokens + (now - client.lastSendTime) * limit / 1000);
+        client.lastSendTime = now;
+        if (client.sendTokens >= 1) {
+            client.sendTokens -= 1;
+            return 0;
+        }
+        int wait = mFloodWaitSeconds;
+        client.floodWaitUntil = now + wait * 1000L;
+        return wait;
+    }
+
+    @NotNull
+    private static JsonObject convertInputContent(@Nullable JsonObject input) {
+        JsonObject content = new JsonObject();
+        String type = input == null ? null : getType(input);
+        if ("inputMessageText".equals(type)) {
+            content.addProperty("@type", "messageText");
+            content.add("text", input.get("text"));
+        } else if ("inputMessagePhoto".equals(type)) {
+            content.addProperty("@type", "messagePhoto");
+            JsonObject photo = new JsonObject();
+            photo.addProperty("@type", "photo");
+            photo.addProperty("has_stickers", false);
+            JsonArray sizes = new JsonArray();
+            JsonObject size = new JsonObject();
+            size.addProperty("@type", "photoSize");
+            size.addProperty("type", "y");
+            size.add("photo", simulatedFile(input.getAsJsonObject("photo")));
+            size.addProperty("width", getLong(input, "width"));
+            size.addProperty("height", getLong(input, "height"));
+            sizes.add(size);
+            photo.add("sizes", sizes);
+            content.add("photo", photo);
+            if (input.has("caption")) {
+                content.add("caption", input.get("caption"));
+            }
+            content.addProperty("is_secret", false);
+        } else {
+            content.addProperty("@type", "messageUnsupported");
+        }
+        return content;
+    }
+
+    @NotNull
+    private static JsonObject message(long id, long chatId, long senderUserId, boolean isOutgoing,
+                                      @NotNull JsonObject content, boolean isPending) {
+        JsonObject msg = new JsonObject();
+        msg.addProperty("@type", "message");
+        msg.addProperty("id", id);
+        JsonObject sender = new JsonObject();
+        sender.addProperty("@type", "messageSenderUser");
+        sender.addProperty("user_id", senderUserId);
+        msg.add("sender_id", sender);
+        msg.addProperty("chat_id", chatId);
+        if (isPending) {
+            JsonObject state = new JsonObject();
+            state.addProperty("@type", "messageSendingStatePending");
+            msg.add("sending_state", state);
+        }
+        msg.addProperty("is_outgoing", isOutgoing);
+        msg.addProperty("is_pinned", false);
+        msg.addProperty("can_be_edited", isOutgoing);
+        msg.addProperty("can_be_forwarded", true);
+        msg.addProperty("can_be_saved", true);
+        msg.addProperty("can_be_deleted_only_for_self", false);
+        msg.addProperty("can_be_deleted_for_all_users", isOutgoing);
+        msg.addProperty("can_get_statistics", false);
+        msg.addProperty("can_get_message_thread", false);
+        msg.addProperty("can_get_viewers", false);
+        msg.addProperty("can_get_media_timestamp_links", false);
+        msg.addProperty("has_timestamped_media", true);
+        msg.addProperty("is_channel_post", false);
+        msg.addProperty("contains_unread_mention", false);
+        msg.addProperty("date", System.currentTimeMillis() / 1000);
+        msg.addProperty("edit_date", 0);
+        msg.addProperty("reply_in_chat_id", 0);
+        msg.addProperty("reply_to_message_id", 0);
+        msg.addProperty("message_thread_id", 0);
+        msg.addProperty("via_bot_user_id", 0);
+        msg.addProperty("author_signature", "");
+        msg.addProperty("media_album_id", "0");
+        msg.addProperty("restriction_reason", "");
+        msg.add("content", content);
+        return msg;
+    }
+
+    /**
+     * A remote file for an input file, a local file gets a new remote id as if it was uploaded.
+     */
+    @NotNull
+    private static JsonObject simulatedFile(@Nullable JsonObject inputFile) {
+        String remoteId;
+        if (inputFile != null && "inputFileRemote".equals(getType(inputFile))) {
+            remoteId = inputFile.get("id").getAsString();
+        } else {
+            remoteId = "SIMULATED_FILE_" + sNextUploadId.getAndIncrement();
+        }
+        JsonObject remote = new JsonObject();
+        remote.addProperty("@type", "remoteFile");
+        remote.addProperty("id", remoteId);
+        remote.addProperty("unique_id", remoteId);
+        remote.addProperty("is_uploading_active", false);
+        remote.addProperty("is_uploading_completed", true);
+        JsonObject file = new JsonObject();
+        file.addProperty("@type", "file");
+        file.addProperty("id", sNextFileIndex.getAndIncrement());
+        file.add("remote", remote);
+        return file;
+    }
+
+    @NotNull
+    private static JsonObject textContent(@NotNull String text) {
+        JsonObject formattedText = new JsonObject();
+        formattedText.addProperty("@type", "formattedText");
+        formattedText.addProperty("text", text);
+        formattedText.add("entities", new JsonArray());
+        JsonObject input = new JsonObject();
+        input.addProperty("@type", "inputMessageText");
+        input.add("text", formattedText);
+        return convertInputContent(input);
+    }
+
+    @NotNull
+    private static JsonObject user(@NotNull SimulatedClient client, long userId) {
+        boolean isSelf = userId == client.myId;
+        JsonObject user = new JsonObject();
+        user.addProperty("@type", "user");
+        user.addProperty("id", userId);
+        user.addProperty("first_name", isSelf ? "Simulated Bot" : "User");
+        user.addProperty("last_name", isSelf ? "" : Long.toString(userId));
+        JsonObject usernames = new JsonObject();
+        usernames.addProperty("@type", "usernames");
+        JsonArray active = new JsonArray();
+        active.add(isSelf ? "sim_" + userId + "_bot" : "user" + userId);
+        usernames.add("active_usernames", active);
+        usernames.add("disabled_usernames", new JsonArray());
+        usernames.addProperty("editable_username", active.get(0).getAsString());
+        user.add("usernames", usernames);
+        user.addProperty("phone_number", "");
+        JsonObject status = new JsonObject();
+        status.addProperty("@type", "userStatusRecently");
+        user.add("status", status);
+        user.addProperty("is_contact", false);
+        user.addProperty("is_mutual_contact", false);
+        user.addProperty("is_verified", false);
+        user.addProperty("is_premium", false);
+        user.addProperty("is_support", false);
+        user.addProperty("restriction_reason", "");
+        user.addProperty("is_scam", false);
+        user.addProperty("is_fake", false);
+        user.addProperty("have_access", true);
+        JsonObject userType = new JsonObject();
+        userType.addProperty("@type", isSelf ? "userTypeBot" : "userTypeRegular");
+        user.add("type", userType);
+        user.addProperty("language_code", isSelf ? "" : "en");
+        user.addProperty("added_to_attachment_menu", false);
+        return user;
+    }
+
+    @NotNull
+    private static JsonObject chat(long chatId) {
+        if (chatId == 0) {
+            return error(400, "Chat not found");
+        }
+        JsonObject type = new JsonObject();
+        String title;
+        if (chatId > 0) {
+            type.addProperty("@type", "chatTypePrivate");
+            type.addProperty("user_id", chatId);
+            title = "User " + chatId;
+        } else if (chatId < CHAT_ID_NEGATIVE_NOTATION) {
+            type.addProperty("@type", "chatTypeSupergroup");
+            type.addProperty("supergroup_id", -chatId + CHAT_ID_NEGATIVE_NOTATION);
+            type.addProperty("is_channel", false);
+            title = "Group " + (-chatId + CHAT_ID_NEGATIVE_NOTATION);
+        } else {
+            type.addProperty("@type", "chatTypeBasicGroup");
+            type.addProperty("basic_group_id", -chatId);
+            title = "Group " + (-chatId);
+        }
+        JsonObject chat = new JsonObject();
+        chat.addProperty("@type", "chat");
+        chat.addProperty("id", chatId);
+        chat.add("type", type);
+        chat.addProperty("title", title);
+        JsonObject permissions = new JsonObject();
+        permissions.addProperty("@type", "chatPermissions");
+        for (String p : new String[]{"can_send_messages", "can_send_media_messages", "can_send_polls",
+                "can_send_other_messages", "can_add_web_page_previews", "can_invite_users"}) {
+            permissions.addProperty(p, true);
+        }
+        permissions.addProperty("can_change_info", false);
+        permissions.addProperty("can_pin_messages", false);
+        chat.add("permissions", permissions);
+        chat.add("positions", new JsonArray());
+        chat.addProperty("has_protected_content", false);
+        chat.addProperty("unread_count", 0);
+        chat.addProperty("last_read_inbox_message_id", 0);
+        chat.addProperty("last_read_outbox_message_id", 0);
+        chat.addProperty("message_ttl", 0);
+        chat.addProperty("reply_markup_message_id", 0);
+        chat.addProperty("client_data", "");
+        return chat;
+    }
+
+    @NotNull
+    private static JsonObject chatMember(@NotNull SimulatedClient client, @NotNull JsonObject memberId) {
+        JsonObject member = new JsonObject();
+        member.addProperty("@type", "chatMember");
+        member.add("member_id", memberId.deepCopy());
+        member.addProperty("inviter_user_id", 0);
+        member.addProperty("joined_chat_date", 1650000000);
+        JsonObject status = new JsonObject();
+        long userId = memberId.has("user_id") ? memberId.get("user_id").getAsLong() : 0;
+        if (userId != 0 && userId == client.myId) {
+            status.addProperty("@type", "chatMemberStatusAdministrator");
+            status.addProperty("custom_title", "");
+            status.addProperty("can_be_edited", false);
+            JsonObject rights = new JsonObject();
+            rights.addProperty("@type", "chatAdministratorRights");
+            for (String r : new String[]{"can_manage_chat", "can_change_info", "can_delete_messages",
+                    "can_invite_users", "can_restrict_members", "can_pin_messages"}) {
+                rights.addProperty(r, true);
+            }
+            status.add("rights", rights);
+        } else {
+            status.addProperty("@type", "chatMemberStatusMember");
+        }
+        member.add("status", status);
+        return member;
+    }
+
+    private long responseDelay() {
+        return mResponseLatencyMillis + jitter();
+    }
+
+    private long sendDelay() {
+        return mSendLatencyMillis + jitter();
+    }
+
+    private long jitter() {
+        return mJitterMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(mJitterMillis + 1);
+    }
+
+    private void setAuthorizationState(@NotNull SimulatedClient client, @NotNull String state) {
+        client.authState = state;
+        postUpdate(client, authorizationState(state), responseDelay());
+    }
+
+    private void postUpdate(@NotNull SimulatedClient client, @NotNull JsonObject update, long delayMillis) {
+        update.addProperty("@client_id", client.index);
+        postEvent(update, delayMillis);
+    }
+
+    private void postEvent(@NotNull JsonObject event, long delayMillis) {
+        String json = event.toString();
+        if (delayMillis <= 0) {
+            mEvents.add(json);
+        } else {
+            mScheduler.schedule(() -> mEvents.add(json), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @NotNull
+    private static JsonObject authorizationState(@NotNull String state) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("@type", state);
+        if ("authorizationStateWaitEncryptionKey".equals(state)) {
+            obj.addProperty("is_encrypted", false);
+        }
+        JsonObject update = new JsonObject();
+        update.addProperty("@type", "updateAuthorizationState");
+        update.add("authorization_state", obj);
+        return update;
+    }
+
+    @NotNull
+    private static JsonObject connectionState(@NotNull String state) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("@type", state);
+        JsonObject update = new JsonObject();
+        update.addProperty("@type", "updateConnectionState");
+        update.add("state", obj);
+        return update;
+    }
+
+    @NotNull
+    private static JsonObject option(@NotNull String name, @NotNull JsonObject value) {
+        JsonObject update = new JsonObject();
+        update.addProperty("@type", "updateOption");
+        update.addProperty("name", name);
+        update.add("value", value);
+        return update;
+    }
+
+    @NotNull
+    private static JsonObject integerOption(long value) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("@type", "optionValueInteger");
+        // TDLib encodes int64 as string
+        obj.addProperty("value", Long.toString(value));
+        return obj;
+    }
+
+    @NotNull
+    private static JsonObject stringOption(@NotNull String value) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("@type", "optionValueString");
+        obj.addProperty("value", value);
+        return obj;
+    }
+
+    @NotNull
+    private static JsonObject ok() {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("@type", "ok");
+        return obj;
+    }
+
+    @NotNull
+    private static JsonObject error(int code, @NotNull String message) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("@type", "error");
+        obj.addProperty("code", code);
+        obj.addProperty("message", message);
+        return obj;
+    }
+
+    private static void copyExtra(@NotNull JsonObject request, @NotNull JsonObject response) {
+        JsonElement extra = request.get("@extra");
+        if (extra != null) {
+            response.add("@extra", extra);
+        }
+    }
+
+    @Nullable
+    private static String getType(@NotNull JsonObject obj) {
+        JsonElement type = obj.get("@type");
+        return type != null && type.isJsonPrimitive() ? type.getAsString() : null;
+    }
+
+    @NotNull
+    private static String getString(@NotNull JsonObject obj, @NotNull String name) {
+        JsonElement e = obj.get(name);
+        return e != null && e.isJsonPrimitive() ? e.getAsString() : "";
+    }
+
+    private static long getLong(@NotNull JsonObject obj, @NotNull String name) {
+        JsonElement e = obj.get(name);
+        return e != null && e.isJsonPrimitive() ? e.getAsLong() : 0;
+    }
+}
@@ -0,0 +1,63 @@
+package cc.ioctl.telebot.tdlib.transport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The connection between the server and TDLib, in terms of the TDLib JSON interface.
+ * <p>
+ * Requests and events are JSON strings. Events of a client carry its index in the "@client_id" field,
+ * and responses carry the "@extra" field of the request.
+ */
+public interface TDLibTransport {
+
+    /**
+     * Create a new TDLib client. The client is started when the first request is sent to it.
+     *
+     * @return the index of the new client, or a negative value on failure
+     */
+    int createClient();
+
+    /**
+     * Send a request to a client asynchronously, the response is received with {@link #receive(int)}.
+     *
+     * @param clientIndex the client index returned by {@link #createClient()}
+     * @param request     the request in JSON
+     */
+    void send(int clientIndex, @NotNull String request);
+
+    /**
+     * Send a request in UTF-8 to a client asynchronously, e.g. written by a
+     * {@link cc.ioctl.telebot.tdlib.tlrpc.TlRequestWriter}. The buffer may be reused after the call.
+     *
+     * @param clientIndex the client index returned by {@link #createClient()}
+     * @param request     the request in UTF-8 from position 0, followed by a NUL byte if the buffer is direct
+     * @param length      the length of the request in bytes
+     */
+    default void send(int clientIndex, @NotNull ByteBuffer request, int length) {
+        ByteBuffer bytes = request.duplicate();
+        bytes.position(0).limit(length);
+        send(clientIndex, StandardCharsets.UTF_8.decode(bytes).toString());
+    }
+
+    /**
+     * Receive the next event or response of any client, only a single thread may call this method at a time.
+     *
+     * @param timeout the timeout in milliseconds, 0 for no wait
+     * @return the event in JSON, or null if no event is available before the timeout
+     */
+    @Nullable
+    String receive(int timeout);
+
+    /**
+     * Execute a request synchronously, only for requests that TDLib can execute synchronously.
+     *
+     * @param request the request in JSON
+     * @return the result in JSON
+     */
+    @NotNull
+    String execute(@NotNull String request);
+}
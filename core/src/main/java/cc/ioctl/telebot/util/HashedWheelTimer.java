@@ -0,0 +1,357 @@
+package cc.ioctl.telebot.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel for large numbers of timeouts that are mostly cancelled before they expire,
+ * e.g. a verification timeout for every member joining a group.
+ * <p>
+ * Scheduling and cancelling are O(1). Timeouts may expire up to one tick late, never early.
+ * The expired tasks run on the given executor, never on the timer thread.
+ * A timeout may have a tag, e.g. a chat id, to cancel all timeouts of the tag at once.
+ * <p>
+ * The timer thread is started with the first timeout and parks while there are no timeouts.
+ */
+public class HashedWheelTimer {
+
+    private static final String TAG = "HashedWheelTimer";
+
+    public static final class Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "mState");
+
+        private final HashedWheelTimer mTimer;
+        private final Runnable mTask;
+        private final long mDeadline;
+        @Nullable
+        private final Object mTag;
+        private volatile int mState = ST_INIT;
+
+        // accessed by the timer thread only
+        private long mRemainingRounds;
+        private Bucket mBucket;
+        private Timeout mNext;
+        private Timeout mPrev;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline, @Nullable Object tag) {
+            mTimer = timer;
+            mTask = task;
+            mDeadline = deadline;
+            mTag = tag;
+        }
+
+        @Nullable
+        public Object getTag() {
+            return mTag;
+        }
+
+        /**
+         * Cancel the timeout.
+         *
+         * @return true if cancelled, false if it has already expired or been cancelled
+         */
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            mTimer.onCancelled(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mState == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return mState == ST_EXPIRED;
+        }
+
+        private boolean expire() {
+            return STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED);
+        }
+    }
+
+    // a doubly linked list of timeouts, accessed by the timer thread only
+    private static final class Bucket {
+        private Timeout mHead;
+        private Timeout mTail;
+
+        void add(Timeout timeout) {
+            timeout.mBucket = this;
+            if (mHead == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.mNext;
+            if (timeout.mPrev != null) {
+                timeout.mPrev.mNext = next;
+            }
+            if (next != null) {
+                next.mPrev = timeout.mPrev;
+            }
+            if (timeout == mHead) {
+                mHead = next;
+            }
+            if (timeout == mTail) {
+                mTail = timeout.mPrev;
+            }
+            timeout.mPrev = null;
+            timeout.mNext = null;
+            timeout.mBucket = null;
+            return next;
+        }
+    }
+
+    @NotNull
+    private final String mName;
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+    @NotNull
+    private final Executor mTaskExecutor;
+
+    private final Queue<Timeout> mNewTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> mCancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Object, Set<Timeout>> mTimeoutsByTag = new ConcurrentHashMap<>();
+    private final AtomicLong mPendingCount = new AtomicLong();
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    private final Thread mWorker;
+    private volatile boolean mWorkerIdle = false;
+    private volatile boolean mStopped = false;
+
+    /**
+     * @param name       the name of the timer thread
+     * @param tickMillis the tick duration, the precision of the timer
+     * @param wheelSize  the number of buckets, rounded up to a power of 2; timeouts longer than
+     *                   wheelSize ticks stay in their bucket for several rounds of the wheel
+     * @param executor   the executor running the expired tasks
+     */
+    public HashedWheelTimer(@NotNull String name, long tickMillis, int wheelSize, @NotNull Executor executor) {
+        mName = Objects.requireNonNull(name, "name == null");
+        mTaskExecutor = Objects.requireNonNull(executor, "executor == null");
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive, got " + tickMillis);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 20)) {
+            throw new IllegalArgumentException("wheelSize must be in (0, 2^20], got " + wheelSize);
+        }
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+        mMask = size - 1;
+        mWorker = new Thread(this::runWorker, name);
+        mWorker.setDaemon(true);
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task  the task, run on the executor of the timer
+     * @param delay the delay, 0 or negative to run at the next tick
+     * @param unit  the unit of the delay
+     * @param tag   an optional tag for {@link #cancelByTag(Object)}
+     * @return the timeout, to cancel the task
+     */
+    @NotNull
+    public Timeout newTimeout(@NotNull Runnable task, long delay, @NotNull TimeUnit unit, @Nullable Object tag) {
+        Objects.requireNonNull(task, "task == null");
+        Objects.requireNonNull(unit, "unit == null");
+        if (mStopped) {
+            throw new IllegalStateException("timer " + mName + " is stopped");
+        }
+        if (!mStarted.get() && mStarted.compareAndSet(false, true)) {
+            mWorker.start();
+        }
+        long now = System.nanoTime();
+        long delayNanos = Math.max(0, unit.toNanos(delay));
+        // a huge delay, e.g. Long.MAX_VALUE ms, must not overflow into the past
+        long deadline = delayNanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delayNanos;
+        Timeout timeout = new Timeout(this, task, deadline, tag);
+        if (tag != null) {
+            mTimeoutsByTag.compute(tag, (k, set) -> {
+                if (set == null) {
+                    set = new HashSet<>(4);
+                }
+                set.add(timeout);
+                return set;
+            });
+        }
+        mPendingCount.incrementAndGet();
+        mNewTimeouts.add(timeout);
+        if (mWorkerIdle) {
+            LockSupport.unpark(mWorker);
+        }
+        return timeout;
+    }
+
+    @NotNull
+    public Timeout newTimeout(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+        return newTimeout(task, delay, unit, null);
+    }
+
+    /**
+     * Cancel all pending timeouts with the given tag.
+     *
+     * @return the number of cancelled timeouts
+     */
+    public int cancelByTag(@NotNull Object tag) {
+        Objects.requireNonNull(tag, "tag == null");
+        Set<Timeout> timeouts = mTimeoutsByTag.remove(tag);
+        if (timeouts == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Timeout timeout : timeouts) {
+            if (timeout.cancel()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of timeouts neither expired nor cancelled
+     */
+    public long getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * Stop the timer thread, the pending timeouts will never expire.
+     */
+    public void stop() {
+        mStopped = true;
+        LockSupport.unpark(mWorker);
+    }
+
+    private void onCancelled(Timeout timeout) {
+        mPendingCount.decrementAndGet();
+        removeFromTag(timeout);
+        // unlinked from its bucket by the timer thread
+        mCancelledTimeouts.add(timeout);
+    }
+
+    private void removeFromTag(Timeout timeout) {
+        Object tag = timeout.mTag;
+        if (tag != null) {
+            mTimeoutsByTag.computeIfPresent(tag, (k, set) -> {
+                set.remove(timeout);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    private void runWorker() {
+        final long startTime = System.nanoTime();
+        long tick = 0;
+        while (!mStopped) {
+            if (mPendingCount.get() == 0) {
+                // nothing to expire, sleep until a timeout is added
+                processCancelled();
+                mWorkerIdle = true;
+                while (mPendingCount.get() == 0 && !mStopped) {
+                    LockSupport.park(this);
+                }
+                mWorkerIdle = false;
+                // the buckets are empty, skip the ticks passed while idle
+                tick = Math.max(tick, (System.nanoTime() - startTime) / mTickNanos);
+                continue;
+            }
+            long deadline = startTime + (tick + 1) * mTickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline && !mStopped) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+            processCancelled();
+            transferNewTimeouts(startTime, tick);
+            expireBucket(mWheel[(int) (tick & mMask)]);
+            tick++;
+        }
+    }
+
+    private void processCancelled() {
+        Timeout timeout;
+        while ((timeout = mCancelledTimeouts.poll()) != null) {
+            Bucket bucket = timeout.mBucket;
+            if (bucket != null) {
+                bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferNewTimeouts(long startTime, long currentTick) {
+        // bound the work per tick if a flood of timeouts is being added
+        for (int i = 0; i < 100_000; i++) {
+            Timeout timeout = mNewTimeouts.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.mState != Timeout.ST_INIT) {
+                continue;
+            }
+            long elapsed = timeout.mDeadline - startTime;
+            if (elapsed < 0 && timeout.mDeadline > startTime) {
+                // a saturated deadline after a negative start time
+                elapsed = Long.MAX_VALUE;
+            }
+            long deadlineTick = elapsed / mTickNanos;
+            timeout.mRemainingRounds = Math.max(0, (deadlineTick - currentTick) / mWheel.length);
+            // overdue timeouts expire at the current tick
+            long ticks = Math.max(deadlineTick, currentTick);
+            mWheel[(int) (ticks & mMask)].add(timeout);
+        }
+    }
+
+    private void expireBucket(Bucket bucket) {
+        Timeout timeout = bucket.mHead;
+        while (timeout != null) {
+            if (timeout.mRemainingRounds > 0) {
+                timeout.mRemainingRounds--;
+                timeout = timeout.mNext;
+                continue;
+            }
+            Timeout next = bucket.remove(timeout);
+            if (timeout.expire()) {
+                mPendingCount.decrementAndGet();
+                removeFromTag(timeout);
+                try {
+                    mTaskExecutor.execute(timeout.mTask);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "timer " + mName + " failed to execute an expired task", e);
+                }
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package cc.ioctl.telebot.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Reads the dimensions of JPEG, PNG, WebP and GIF images from their headers, without decoding them.
+ * <p>
+ * Only the first few KB of the file are read, JPEG segments before the frame header are skipped
+ * without reading them. The dimensions of a JPEG are swapped if its EXIF orientation rotates it by 90 degrees,
+ * like a decoder applying the orientation would report them.
+ */
+public class ImageHeaderParser {
+
+    private ImageHeaderParser() {
+        throw new AssertionError("This class is not meant to be instantiated");
+    }
+
+    public enum Format {
+        JPEG, PNG, WEBP, GIF
+    }
+
+    public static final class ImageInfo {
+
+        @NotNull
+        public final Format format;
+        public final int width;
+        public final int height;
+
+        public ImageInfo(@NotNull Format format, int width, int height) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return "ImageInfo{" + format + ", " + width + "x" + height + "}";
+        }
+    }
+
+    private static final int HEADER_SIZE = 4096;
+    // the EXIF orientation is in the first IFD, near the start of the APP1 segment
+    private static final int MAX_EXIF_READ = 4096;
+    private static final int MAX_JPEG_SEGMENTS = 256;
+
+    /**
+     * Read the dimensions of an image file.
+     *
+     * @param file the image file
+     * @return the format and dimensions, or null if the format is not supported or the header is malformed
+     * @throws IOException if the file cannot be read
+     */
+    @Nullable
+    public static ImageInfo probe(@NotNull File file) throws IOException {
+        Objects.requireNonNull(file, "file == null");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readAt(channel, header, 0);
+            header.flip();
+            if (isJpeg(header)) {
+                return probeJpeg(channel, header);
+            }
+            return probeHeader(header);
+        }
+    }
+
+    /**
+     * Read the dimensions of a PNG, WebP or GIF image from the first bytes of the file.
+     * JPEG needs the whole file, see {@link #probe(File)}.
+     *
+     * @param header the start of the file, from its position to its limit
+     * @return the format and dimensions, or null if the format is not supported or the header is malformed
+     */
+    @Nullable
+    public static ImageInfo probeHeader(@NotNull ByteBuffer header) {
+        ByteBuffer buf = header.slice();
+        if (startsWith(buf, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return probePng(buf);
+        }
+        if (startsWith(buf, 0, 'G', 'I', 'F', '8') && (startsWith(buf, 4, '7', 'a') || startsWith(buf, 4, '9', 'a'))) {
+            return probeGif(buf);
+        }
+        if (startsWith(buf, 0, 'R', 'I', 'F', 'F') && startsWith(buf, 8, 'W', 'E', 'B', 'P')) {
+            return probeWebp(buf);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static ImageInfo probePng(ByteBuffer buf) {
+        // signature, then the IHDR chunk: length, type, width, height
+        if (buf.remaining() < 24 || !startsWith(buf, 12, 'I', 'H', 'D', 'R')) {
+            return null;
+        }
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return checked(Format.PNG, buf.getInt(16), buf.getInt(20));
+    }
+
+    @Nullable
+    private static ImageInfo probeGif(ByteBuffer buf) {
+        // the logical screen size
+        if (buf.remaining() < 10) {
+            return null;
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return checked(Format.GIF, buf.getShort(6) & 0xFFFF, buf.getShort(8) & 0xFFFF);
+    }
+
+    @Nullable
+    private static ImageInfo probeWebp(ByteBuffer buf) {
+        if (buf.remaining() < 30) {
+            return null;
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (startsWith(buf, 12, 'V', 'P', '8', ' ')) {
+            // lossy: the key frame start code, then 14-bit dimensions with 2-bit scaling
+            if (!startsWith(buf, 23, 0x9D, 0x01, 0x2A)) {
+                return null;
+            }
+            return checked(Format.WEBP, buf.getShort(26) & 0x3FFF, buf.getShort(28) & 0x3FFF);
+        }
+        if (startsWith(buf, 12, 'V', 'P', '8', 'L')) {
+            // lossless: the signature, then 14-bit width - 1 and height - 1
+            if ((buf.get(20) & 0xFF) != 0x2F) {
+                return null;
+            }
+            int bits = buf.getInt(21);
+            return checked(Format.WEBP, (bits & 0x3FFF) + 1, ((bits >>> 14) & 0x3FFF) + 1);
+        }
+        if (startsWith(buf, 12, 'V', 'P', '8', 'X')) {
+            // extended: flags, reserved, then 24-bit canvas width - 1 and height - 1
+            return checked(Format.WEBP, readUInt24LE(buf, 24) + 1, readUInt24LE(buf, 27) + 1);
+        }
+        return null;
+    }
+
+    private static boolean isJpeg(ByteBuffer buf) {
+        return startsWith(buf, 0, 0xFF, 0xD8, 0xFF);
+    }
+
+    @Nullable
+    private static ImageInfo probeJpeg(FileChannel channel, ByteBuffer header) throws IOException {
+        long size = channel.size();
+        ByteBuffer marker = ByteBuffer.allocate(9).order(ByteOrder.BIG_ENDIAN);
+        long pos = 2;
+        int orientation = 1;
+        for (int i = 0; i < MAX_JPEG_SEGMENTS && pos + 4 <= size; i++) {
+            marker.clear();
+            readAt(channel, marker, pos);
+            marker.flip();
+            if (marker.remaining() < 4 || (marker.get(0) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int type = marker.get(1) & 0xFF;
+            if (type == 0xFF) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if (type == 0xD8 || type == 0x01 || (type >= 0xD0 && type <= 0xD7)) {
+                // no payload
+                pos += 2;
+                continue;
+            }
+            if (type == 0xD9 || type == 0xDA) {
+                // end of image or start of scan before a frame header
+                return null;
+            }
+            int length = marker.getShort(2) & 0xFFFF;
+            if (length < 2) {
+                return null;
+            }
+            if (isStartOfFrame(type)) {
+                if (marker.remaining() < 9) {
+                    return null;
+                }
+                int height = marker.getShort(5) & 0xFFFF;
+                int width = marker.getShort(7) & 0xFFFF;
+                boolean swap = orientation >= 5 && orientation <= 8;
+                return checked(Format.JPEG, swap ? height : width, swap ? width : height);
+            }
+            if (type == 0xE1) {
+                int exifOrientation = readExifOrientation(channel, header, pos + 4, length - 2);
+                if (exifOrientation > 0) {
+                    orientation = exifOrientation;
+                }
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    private static boolean isStartOfFrame(int type) {
+        // SOF0-SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+        return type >= 0xC0 && type <= 0xCF && type != 0xC4 && type != 0xC8 && type != 0xCC;
+    }
+
+    /**
+     * @return the orientation, or 0 if the segment is not EXIF or has no orientation
+     */
+    private static int readExifOrientation(FileChannel channel, ByteBuffer header, long start, int length)
+            throws IOException {
+        int len = Math.min(length, MAX_EXIF_READ);
+        ByteBuffer buf;
+        if (start + len <= header.limit()) {
+            buf = header.duplicate();
+            buf.position((int) start).limit((int) start + len);
+            buf = buf.slice();
+        } else {
+            buf = ByteBuffer.allocate(len);
+            readAt(channel, buf, start);
+            buf.flip();
+        }
+        if (buf.remaining() < 14 || !startsWith(buf, 0, 'E', 'x', 'i', 'f', 0, 0)) {
+            return 0;
+        }
+        // the TIFF header follows, offsets are relative to it
+        ByteBuffer tiff = buf.duplicate();
+        tiff.position(6);
+        tiff = tiff.slice();
+        if (startsWith(tiff, 0, 'I', 'I')) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (startsWith(tiff, 0, 'M', 'M')) {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return 0;
+        }
+        if ((tiff.getShort(2) & 0xFFFF) != 42) {
+            return 0;
+        }
+        long ifd = tiff.getInt(4) & 0xFFFFFFFFL;
+        if (ifd + 2 > tiff.remaining()) {
+            return 0;
+        }
+        int entries = tiff.getShort((int) ifd) & 0xFFFF;
+        for (int i = 0; i < entries; i++) {
+            int entry = (int) ifd + 2 + i * 12;
+            if (entry + 12 > tiff.remaining()) {
+                return 0;
+            }
+            // tag 0x0112 of type SHORT, the value is inline
+            if ((tiff.getShort(entry) & 0xFFFF) == 0x0112) {
+                if ((tiff.getShort(entry + 2) & 0xFFFF) != 3) {
+                    return 0;
+                }
+                return tiff.getShort(entry + 8) & 0xFFFF;
+            }
+        }
+        return 0;
+    }
+
+    @Nullable
+    private static ImageInfo checked(Format format, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new ImageInfo(format, width, height);
+    }
+
+    private static int readUInt24LE(ByteBuffer buf, int offset) {
+        return (buf.get(offset) & 0xFF) | (buf.get(offset + 1) & 0xFF) << 8 | (buf.get(offset + 2) & 0xFF) << 16;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int offset, int... bytes) {
+        if (buf.limit() - buf.position() < offset + bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if ((buf.get(buf.position() + offset + i) & 0xFF) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readAt(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package cc.ioctl.telebot.util;
+
+import cc.ioctl.telebot.intern.NativeComponent;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Objects;
+
+public class SqliteUtils {
+
+    private SqliteUtils() {
+        throw new AssertionError("No instances");
+    }
+
+    /**
+     * Open a SQLite database of the server, loading SQLite on first use. The database is in WAL mode with
+     * synchronous = NORMAL, and the schema statements, e.g. CREATE TABLE IF NOT EXISTS, are run on it.
+     *
+     * @param file   the database file, created if it does not exist
+     * @param schema the statements creating the tables and indexes
+     * @return the connection, closed by the caller
+     * @throws SQLException if SQLite is not available or the database cannot be opened
+     */
+    @NotNull
+    public static Connection openDatabase(@NotNull File file, @NotNull String... schema) throws SQLException {
+        Objects.requireNonNull(file, "file == null");
+        try {
+            NativeComponent.SQLITE.ensureLoaded();
+        } catch (UnsatisfiedLinkError e) {
+            throw new SQLException("SQLite is not available", e);
+        }
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            for (String sql : schema) {
+                stmt.execute(sql);
+            }
+        } catch (SQLException e) {
+            try {
+                conn.close();
+            } catch (SQLException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        return conn;
+    }
+}
@@ -0,0 +1,81 @@
+package cc.ioctl.telebot.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads via reflection, since we are compiled against Java 11.
+ * <p>
+ * Virtual threads are available on Java 21, or on Java 19/20 with --enable-preview.
+ */
+public class VirtualThreads {
+
+    private VirtualThreads() {
+        throw new AssertionError("This class is not meant to be instantiated");
+    }
+
+    private static volatile Boolean sSupported = null;
+
+    /**
+     * @return true if the running JVM can create virtual threads
+     */
+    public static boolean isSupported() {
+        Boolean supported = sSupported;
+        if (supported == null) {
+            ThreadFactory factory = createFactory("VirtualThreadProbe-");
+            try {
+                // the preview API throws on use if --enable-preview is missing
+                supported = factory != null && factory.newThread(() -> {
+                }) != null;
+            } catch (UnsupportedOperationException e) {
+                supported = false;
+            }
+            sSupported = supported;
+        }
+        return supported;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     *
+     * @param namePrefix the prefix of the thread names, followed by a counter
+     * @return the executor
+     * @throws UnsupportedOperationException if virtual threads are not supported
+     */
+    @NotNull
+    public static ExecutorService newVirtualThreadPerTaskExecutor(@NotNull String namePrefix) {
+        ThreadFactory factory = isSupported() ? createFactory(namePrefix) : null;
+        if (factory == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by Java "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, factory);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException(e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException(e.getCause());
+        }
+    }
+
+    @Nullable
+    private static ThreadFactory createFactory(@NotNull String namePrefix) {
+        try {
+            // Thread.ofVirtual().name(namePrefix, 1).factory()
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+                 | InvocationTargetException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
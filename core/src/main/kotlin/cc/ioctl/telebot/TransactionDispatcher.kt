@@ -1,9 +1,12 @@
 package cc.ioctl.telebot
 
+import cc.ioctl.telebot.metrics.CoreMetrics
 import cc.ioctl.telebot.tdlib.RobotServer
 import cc.ioctl.telebot.tdlib.obj.Bot
 import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject
 import cc.ioctl.telebot.util.Log
+import cc.ioctl.telebot.util.logE
+import cc.ioctl.telebot.util.logW
 import com.google.gson.JsonObject
 import com.google.gson.JsonParser
 import java.util.concurrent.ConcurrentHashMap
@@ -12,7 +15,9 @@ object TransactionDispatcher {
 
     private const val TAG = "TransactionDispatcher"
 
-    private val mEventConsumerMap = ConcurrentHashMap<String, TransactionCallbackV1>(10)
+    private val mEventConsumerMap = ConcurrentHashMap<String, TransactionCallbackV1>(10).also { map ->
+        CoreMetrics.PENDING_TRANSACTIONS.get().setSupplier { map.size.toLong() }
+    }
 
     interface TransactionCallbackV1 {
         fun onEvent(event: JsonObject, bot: Bot?, type: String): Boolean
@@ -20,31 +25,52 @@ object TransactionDispatcher {
 
     @JvmStatic
     suspend fun dispatchTDLibEvent(server: RobotServer, eventJsonString: String) {
+        val startTime = System.nanoTime()
         val event = JsonParser.parseString(eventJsonString).asJsonObject
         val type = BaseTlRpcJsonObject.getType(event)
         if (type == null) {
-            Log.e(TAG, "handleTDLibEvent: type is null, event: $event")
+            logE(TAG) { "handleTDLibEvent: type is null, event: $event" }
             return
         }
+        dispatchTDLibEvent(server, event, type, startTime)
+    }
+
+    /**
+     * Dispatch an event that is already parsed.
+     *
+     * @param startTime the [System.nanoTime] when the dispatch started, for the duration metrics
+     */
+    @JvmStatic
+    suspend fun dispatchTDLibEvent(server: RobotServer, event: JsonObject, type: String, startTime: Long) {
         val clientIndex = BaseTlRpcJsonObject.getClientId(event)
-        val extra = BaseTlRpcJsonObject.getExtra(event)
         val bot: Bot? = server.getBotWithTDLibClientIndex(clientIndex)
+        val botLabel = bot?.designator ?: "unknown"
+        val handled = dispatchTDLibEvent(event, type, bot)
+        CoreMetrics.EVENT_DISPATCH_DURATION.labels(botLabel, type).recordSince(startTime)
+        if (!handled) {
+            CoreMetrics.EVENTS_UNHANDLED.labels(botLabel, type).inc()
+        }
+    }
+
+    private suspend fun dispatchTDLibEvent(event: JsonObject, type: String, bot: Bot?): Boolean {
+        val extra = BaseTlRpcJsonObject.getExtra(event)
         if (extra != null) {
             val consumed = mEventConsumerMap.remove(extra)?.onEvent(event, bot, type) ?: false
             if (consumed) {
-                return
+                return true
             }
         }
         if (bot != null) {
             if (bot.onReceiveTDLibEvent(event, type)) {
-                return
+                return true
             } else {
-                Log.w(TAG, "handleTDLibEvent: bot.onReceiveTDLibEvent return false, event: $event")
+                logW(TAG) { "handleTDLibEvent: bot.onReceiveTDLibEvent return false, event: $event" }
             }
         } else {
-            Log.e(TAG, "handleTDLibEvent: bot is null, event: $event")
+            logE(TAG) { "handleTDLibEvent: bot is null, event: $event" }
         }
-        Log.w(TAG, "handleTDLibEvent: event not handled, event: $event")
+        logW(TAG) { "handleTDLibEvent: event not handled, event: $event" }
+        return false
     }
 
     @JvmStatic
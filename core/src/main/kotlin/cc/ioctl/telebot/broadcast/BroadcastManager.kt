@@ -0,0 +1,379 @@
+package cc.ioctl.telebot.broadcast
+
+import cc.ioctl.telebot.metrics.CoreMetrics
+import cc.ioctl.telebot.tdlib.obj.Bot
+import cc.ioctl.telebot.tdlib.obj.SessionInfo
+import cc.ioctl.telebot.tdlib.tlrpc.RemoteApiException
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.ReplyMarkup
+import cc.ioctl.telebot.util.Log
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withContext
+import java.io.IOException
+import java.sql.SQLException
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Sends a message to many chats, e.g. an announcement, as fast as Telegram allows.
+ *
+ * The sends are pipelined with [Bot.sendMessageRawDeferred], at most [maxInFlight] at a time, and paced at a rate
+ * that grows by about one message per second every second up to [maxRate]. A flood error halves the rate and
+ * pauses the broadcast for the time Telegram asks. The result of each target is stored in the [BroadcastStore],
+ * a broadcast interrupted by a restart continues with [resumeAll], targets that were in flight are sent again.
+ */
+class BroadcastManager internal constructor(
+    private val bot: Bot,
+    private val store: BroadcastStore,
+    val maxRate: Double = DEFAULT_MAX_RATE,
+    val maxInFlight: Int = DEFAULT_MAX_IN_FLIGHT
+) {
+
+    companion object {
+        private const val TAG = "BroadcastManager"
+
+        // Telegram allows a bot about 30 messages per second to different chats
+        const val DEFAULT_MAX_RATE = 25.0
+        const val DEFAULT_MAX_IN_FLIGHT = 64
+        private const val MIN_RATE = 1.0
+        private const val MAX_ATTEMPTS = 3
+        private const val DEFAULT_RETRY_AFTER_SECONDS = 5L
+        private const val PROGRESS_LOG_INTERVAL_MILLIS = 10_000L
+        private val RETRY_AFTER_PATTERN = Regex("retry after (\\d+)")
+    }
+
+    class Progress(
+        val total: Int,
+        val sent: Int,
+        val failed: Int,
+        /**
+         * The send rate over the last progress interval.
+         */
+        val messagesPerSecond: Double,
+        /**
+         * The estimated time to finish, -1 if unknown.
+         */
+        val etaSeconds: Long
+    ) {
+        val remaining: Int get() = total - sent - failed
+
+        override fun toString(): String {
+            val eta = if (etaSeconds >= 0) "${etaSeconds / 60}m${etaSeconds % 60}s" else "?"
+            return "$sent sent, $failed failed, $remaining remaining of $total, " +
+                    "${"%.1f".format(messagesPerSecond)} msg/s, ETA $eta"
+        }
+    }
+
+    inner class Broadcast internal constructor(
+        val id: String,
+        private val content: JsonObject,
+        private val replyMarkup: ReplyMarkup.Frozen?,
+        counts: BroadcastStore.Counts
+    ) {
+        private val mTotal = counts.total
+        private val mSent = AtomicInteger(counts.sent)
+        private val mFailed = AtomicInteger(counts.failed)
+        private val mFinished = CompletableDeferred<Unit>()
+        private val mStartTime = System.nanoTime()
+        private val mStartDone = counts.sent + counts.failed
+
+        @Volatile
+        private var mStopRequested = false
+
+        @Volatile
+        private var mMessagesPerSecond = 0.0
+
+        // the pacing state, changed by the completions of the sends
+        private val mRateLock = Any()
+        private var mRate = maxRate / 2
+        private var mPausedUntil = 0L
+
+        // the failed attempts of the targets with a transient error
+        private val mAttempts = HashMap<Long, Int>()
+
+        val progress: Progress
+            get() {
+                val sent = mSent.get()
+                val failed = mFailed.get()
+                // the average since the start until the first interval is over
+                val rate = mMessagesPerSecond.takeIf { it > 0 }
+                    ?: ((sent + failed - mStartDone) * 1e9 / max(1L, System.nanoTime() - mStartTime))
+                val remaining = mTotal - sent - failed
+                val eta = if (rate > 0) (remaining / rate).toLong() else if (remaining == 0) 0 else -1
+                return Progress(mTotal, sent, failed, rate, eta)
+            }
+
+        /**
+         * The current target rate, lower than [maxRate] after a flood error.
+         */
+        val rate: Double get() = synchronized(mRateLock) { mRate }
+
+        val isFinished: Boolean get() = mFinished.isCompleted
+
+        /**
+         * Stop sending after the sends in flight, the broadcast continues on the next [resumeAll].
+         */
+        fun stop() {
+            mStopRequested = true
+        }
+
+        /**
+         * Wait until every target is sent or failed, or the broadcast is stopped.
+         */
+        suspend fun await() {
+            mFinished.await()
+        }
+
+        internal suspend fun run() {
+            try {
+                val targets = withContext(Dispatchers.IO) { store.getPendingTargets(id) }
+                Log.i(TAG, "Broadcast $id of $bot: ${targets.size} of $mTotal targets to send")
+                coroutineScope {
+                    val reporter = launch { reportProgress() }
+                    var batch = targets.toList()
+                    while (batch.isNotEmpty() && !mStopRequested) {
+                        batch = sendBatch(batch)
+                    }
+                    reporter.cancel()
+                }
+                if (!mStopRequested) {
+                    withContext(Dispatchers.IO) { store.setFinished(id) }
+                    Log.i(TAG, "Broadcast $id of $bot finished: $progress")
+                } else {
+                    Log.i(TAG, "Broadcast $id of $bot stopped: $progress")
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Broadcast $id of $bot failed", e)
+            } finally {
+                synchronized(mLock) {
+                    mRunning.remove(id)
+                }
+                mFinished.complete(Unit)
+            }
+        }
+
+        /**
+         * @return the targets to try again
+         */
+        private suspend fun sendBatch(batch: List<Long>): List<Long> {
+            val retries = ArrayList<Long>()
+            val permits = Semaphore(maxInFlight)
+            coroutineScope {
+                var nextSendTime = System.nanoTime()
+                for (chatId in batch) {
+                    if (mStopRequested) {
+                        break
+                    }
+                    val (rate, pausedUntil) = synchronized(mRateLock) { mRate to mPausedUntil }
+                    val now = System.currentTimeMillis()
+                    if (pausedUntil > now) {
+                        delay(pausedUntil - now)
+                        nextSendTime = System.nanoTime()
+                    }
+                    val wait = nextSendTime - System.nanoTime()
+                    if (wait > 0) {
+                        delay(wait / 1_000_000)
+                    }
+                    nextSendTime = max(nextSendTime, System.nanoTime() - (1e9 / rate).toLong()) + (1e9 / rate).toLong()
+                    permits.acquire()
+                    val pending = try {
+                        bot.sendMessageRawDeferred(SessionInfo.forTDLibChatId(chatId), content, replyMarkup)
+                    } catch (e: IOException) {
+                        permits.release()
+                        if (shouldRetry(chatId)) {
+                            synchronized(retries) { retries.add(chatId) }
+                        } else {
+                            onFailed(chatId, e.message ?: e.toString())
+                        }
+                        continue
+                    }
+                    launch {
+                        try {
+                            val msg = pending.await()
+                            onSent(chatId, msg.id)
+                        } catch (e: RemoteApiException) {
+                            if (e.code == 429) {
+                                onFlood(e)
+                                synchronized(retries) { retries.add(chatId) }
+                            } else if (e.code >= 500 && shouldRetry(chatId)) {
+                                synchronized(retries) { retries.add(chatId) }
+                            } else {
+                                onFailed(chatId, "${e.code} ${e.message}")
+                            }
+                        } catch (e: IOException) {
+                            if (shouldRetry(chatId)) {
+                                synchronized(retries) { retries.add(chatId) }
+                            } else {
+                                onFailed(chatId, e.message ?: e.toString())
+                            }
+                        } finally {
+                            permits.release()
+                        }
+                    }
+                }
+            }
+            return retries
+        }
+
+        private fun shouldRetry(chatId: Long): Boolean {
+            return synchronized(mAttempts) {
+                val count = (mAttempts[chatId] ?: 0) + 1
+                mAttempts[chatId] = count
+                count < MAX_ATTEMPTS
+            }
+        }
+
+        private suspend fun onSent(chatId: Long, messageId: Long) {
+            withContext(Dispatchers.IO) {
+                store.setResult(id, chatId, BroadcastStore.STATE_SENT, messageId, null)
+            }
+            mSent.incrementAndGet()
+            CoreMetrics.BROADCAST_MESSAGES.labels("sent").inc()
+            synchronized(mRateLock) {
+                // additive increase, about one message per second every second
+                mRate = min(maxRate, mRate + 1.0 / mRate)
+            }
+        }
+
+        private suspend fun onFailed(chatId: Long, error: String) {
+            withContext(Dispatchers.IO) {
+                store.setResult(id, chatId, BroadcastStore.STATE_FAILED, 0, error)
+            }
+            mFailed.incrementAndGet()
+            CoreMetrics.BROADCAST_MESSAGES.labels("failed").inc()
+        }
+
+        private fun onFlood(e: RemoteApiException) {
+            val seconds = e.message?.let { RETRY_AFTER_PATTERN.find(it) }?.groupValues?.get(1)?.toLongOrNull()
+                ?: DEFAULT_RETRY_AFTER_SECONDS
+            CoreMetrics.BROADCAST_MESSAGES.labels("flood").inc()
+            synchronized(mRateLock) {
+                val now = System.currentTimeMillis()
+                // one halving per flood wait, the sends in flight fail with the same error
+                if (now >= mPausedUntil) {
+                    mRate = max(MIN_RATE, mRate / 2)
+                    Log.w(TAG, "Broadcast $id of $bot: flood wait ${seconds}s, rate ${"%.1f".format(mRate)} msg/s")
+                }
+                mPausedUntil = max(mPausedUntil, now + seconds * 1000)
+            }
+        }
+
+        private suspend fun reportProgress() {
+            var lastDone = mSent.get() + mFailed.get()
+            var lastTime = System.nanoTime()
+            while (true) {
+                delay(PROGRESS_LOG_INTERVAL_MILLIS)
+                val done = mSent.get() + mFailed.get()
+                val now = System.nanoTime()
+                mMessagesPerSecond = (done - lastDone) * 1e9 / (now - lastTime)
+                lastDone = done
+                lastTime = now
+                Log.i(TAG, "Broadcast $id of $bot: $progress")
+            }
+        }
+    }
+
+    private val mLock = Any()
+    // guarded by mLock
+    private val mRunning = HashMap<String, Broadcast>()
+
+    init {
+        require(maxRate >= MIN_RATE) { "maxRate must be at least $MIN_RATE, got $maxRate" }
+        require(maxInFlight > 0) { "maxInFlight must be positive, got $maxInFlight" }
+    }
+
+    /**
+     * Store a broadcast and start sending it.
+     *
+     * @param id a unique id, e.g. a name and a date
+     * @param targets the chats to send to, a chat listed twice gets one message
+     * @param content the input message content, the same for every target
+     * @throws IllegalStateException if a broadcast with the id already exists
+     * @throws SQLException if the broadcast cannot be stored
+     */
+    @Throws(SQLException::class)
+    suspend fun start(
+        id: String,
+        targets: Collection<SessionInfo>,
+        content: JsonObject,
+        replyMarkup: ReplyMarkup? = null
+    ): Broadcast {
+        require(id.isNotEmpty()) { "id is empty" }
+        val chatIds = targets.map { it.toTDLibChatId() }.toLongArray()
+        // serialized once for all the targets
+        val markup = replyMarkup?.freeze()
+        val counts = withContext(Dispatchers.IO) {
+            check(store.create(id, bot.userId, content.toString(), markup?.json?.toString(), chatIds)) {
+                "broadcast $id already exists"
+            }
+            store.getCounts(id)
+        }
+        return launch(Broadcast(id, content, markup, counts))
+    }
+
+    /**
+     * Continue the unfinished broadcasts of the bot, e.g. after a restart.
+     */
+    @Throws(SQLException::class)
+    suspend fun resumeAll(): List<Broadcast> {
+        val unfinished = withContext(Dispatchers.IO) { store.getUnfinished(bot.userId) }
+        val result = ArrayList<Broadcast>()
+        for (info in unfinished) {
+            if (get(info.id) != null) {
+                continue
+            }
+            val counts = withContext(Dispatchers.IO) { store.getCounts(info.id) }
+            val content = JsonParser.parseString(info.content).asJsonObject
+            val markup = info.replyMarkup?.let {
+                ReplyMarkup.Frozen.fromJsonObject(JsonParser.parseString(it).asJsonObject)
+            }
+            result.add(launch(Broadcast(info.id, content, markup, counts)))
+        }
+        return result
+    }
+
+    /**
+     * @return the running broadcast, or null
+     */
+    fun get(id: String): Broadcast? {
+        return synchronized(mLock) { mRunning[id] }
+    }
+
+    /**
+     * @return the progress of a stored broadcast, running or not, or null if there is no such broadcast
+     */
+    @Throws(SQLException::class)
+    suspend fun getProgress(id: String): Progress? {
+        get(id)?.let { return it.progress }
+        return withContext(Dispatchers.IO) {
+            store.get(id)?.let {
+                val counts = store.getCounts(id)
+                Progress(counts.total, counts.sent, counts.failed, 0.0, if (counts.pending == 0) 0 else -1)
+            }
+        }
+    }
+
+    /**
+     * @return the targets that failed, with their errors
+     */
+    @Throws(SQLException::class)
+    suspend fun getFailedTargets(id: String): List<BroadcastStore.FailedTarget> {
+        return withContext(Dispatchers.IO) { store.getFailedTargets(id) }
+    }
+
+    private fun launch(broadcast: Broadcast): Broadcast {
+        synchronized(mLock) {
+            check(!mRunning.containsKey(broadcast.id)) { "broadcast ${broadcast.id} is running" }
+            mRunning[broadcast.id] = broadcast
+        }
+        bot.server.coroutineScope.launch { broadcast.run() }
+        return broadcast
+    }
+}
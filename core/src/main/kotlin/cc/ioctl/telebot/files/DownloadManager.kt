@@ -0,0 +1,231 @@
+package cc.ioctl.telebot.files
+
+import cc.ioctl.telebot.metrics.CoreMetrics
+import cc.ioctl.telebot.tdlib.obj.Bot
+import cc.ioctl.telebot.tdlib.obj.RemoteFile
+import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject
+import cc.ioctl.telebot.tdlib.tlrpc.RemoteApiException
+import cc.ioctl.telebot.util.Log
+import com.google.gson.JsonObject
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeout
+import java.io.File
+import java.io.IOException
+import java.util.PriorityQueue
+
+/**
+ * Downloads the files of a bot with TDLib, at most [maxConcurrent] at a time, higher priority first.
+ *
+ * The progress is tracked with updateFile. A finished download is moved to the [DownloadCache] shared by all bots,
+ * and a file already in the cache is not downloaded again. Concurrent downloads of the same file are merged.
+ * A download keeps running if the caller stops waiting for it, the file ends up in the cache.
+ */
+class DownloadManager internal constructor(
+    private val bot: Bot,
+    private val cache: DownloadCache,
+    val maxConcurrent: Int
+) {
+
+    companion object {
+        private const val TAG = "DownloadManager"
+        private const val REQUEST_TIMEOUT_MILLIS = 30_000
+        private const val DOWNLOAD_TIMEOUT_MILLIS = 10 * 60_000L
+        const val MIN_PRIORITY = 1
+        const val MAX_PRIORITY = 32
+    }
+
+    fun interface ProgressListener {
+        /**
+         * Called on the TDLib event thread, must not block.
+         *
+         * @param totalSize the size of the file, 0 if unknown
+         */
+        fun onProgress(downloadedSize: Long, totalSize: Long)
+    }
+
+    private class Download(val uniqueId: String, val remoteFileId: String, var priority: Int, val sequence: Long) {
+        val result = CompletableDeferred<File>()
+        val finished = CompletableDeferred<JsonObject>()
+        val listeners = ArrayList<ProgressListener>(1)
+        var fileIndex = 0
+        // an inactive download in an update before the response of downloadFile may be the state before the request
+        @Volatile
+        var isRequested = false
+    }
+
+    init {
+        require(maxConcurrent > 0) { "maxConcurrent must be positive, got $maxConcurrent" }
+    }
+
+    private val mLock = Any()
+    // guarded by mLock
+    private val mQueue = PriorityQueue(compareByDescending<Download> { it.priority }.thenBy { it.sequence })
+    private val mDownloads = HashMap<String, Download>()
+    private val mActiveByFileIndex = HashMap<Int, Download>()
+    private var mRunningCount = 0
+    private var mSequence = 0L
+
+    /**
+     * The number of queued and running downloads.
+     */
+    val pendingCount: Int get() = synchronized(mLock) { mDownloads.size }
+
+    /**
+     * Download a file, or get it from the cache.
+     *
+     * @param file the file
+     * @param priority from [MIN_PRIORITY] to [MAX_PRIORITY], higher first, also passed to TDLib
+     * @param listener the progress of the download, not called for a cached file
+     * @return the downloaded file in the cache, may be deleted when the cache is trimmed
+     */
+    @Throws(RemoteApiException::class, IOException::class)
+    suspend fun download(file: RemoteFile, priority: Int = MIN_PRIORITY, listener: ProgressListener? = null): File {
+        require(priority in MIN_PRIORITY..MAX_PRIORITY) { "priority must be in [1, 32], got $priority" }
+        cache.get(file.uniqueId)?.let {
+            CoreMetrics.FILE_DOWNLOADS.labels("cached").inc()
+            return it
+        }
+        val download = synchronized(mLock) {
+            val existing = mDownloads[file.uniqueId]
+            if (existing != null) {
+                // raise the priority of a queued download
+                if (priority > existing.priority && mQueue.remove(existing)) {
+                    existing.priority = priority
+                    mQueue.add(existing)
+                }
+                listener?.let { existing.listeners.add(it) }
+                existing
+            } else {
+                Download(file.uniqueId, file.fileId, priority, mSequence++).also {
+                    listener?.let { l -> it.listeners.add(l) }
+                    mDownloads[file.uniqueId] = it
+                    mQueue.add(it)
+                }
+            }
+        }
+        startQueued()
+        return download.result.await()
+    }
+
+    internal fun onUpdateFile(file: JsonObject) {
+        val download = synchronized(mLock) { mActiveByFileIndex[file.get("id").asInt] } ?: return
+        // also before the response of downloadFile, which may be dispatched after an update of a finished download
+        onFileState(download, file)
+    }
+
+    private fun startQueued() {
+        while (true) {
+            val next = synchronized(mLock) {
+                if (mRunningCount >= maxConcurrent) {
+                    return
+                }
+                mQueue.poll()?.also { mRunningCount++ } ?: return
+            }
+            bot.server.coroutineScope.launch { runDownload(next) }
+        }
+    }
+
+    private suspend fun runDownload(download: Download) {
+        try {
+            download.result.complete(fetch(download))
+            CoreMetrics.FILE_DOWNLOADS.labels("downloaded").inc()
+        } catch (e: Exception) {
+            Log.e(TAG, "failed to download ${download.uniqueId} with $bot", e)
+            CoreMetrics.FILE_DOWNLOADS.labels("failed").inc()
+            download.result.completeExceptionally(e)
+        } finally {
+            synchronized(mLock) {
+                mRunningCount--
+                mDownloads.remove(download.uniqueId)
+                mActiveByFileIndex.remove(download.fileIndex)
+            }
+            startQueued()
+        }
+    }
+
+    private suspend fun fetch(download: Download): File {
+        // another bot may have downloaded it while this one was queued
+        cache.get(download.uniqueId)?.let { return it }
+        val remote = request(JsonObject().apply {
+            addProperty("@type", "getRemoteFile")
+            addProperty("remote_file_id", download.remoteFileId)
+        })
+        val fileIndex = remote.get("id").asInt
+        download.fileIndex = fileIndex
+        synchronized(mLock) {
+            mActiveByFileIndex[fileIndex] = download
+        }
+        val state = request(JsonObject().apply {
+            addProperty("@type", "downloadFile")
+            addProperty("file_id", fileIndex)
+            addProperty("priority", download.priority)
+            addProperty("offset", 0)
+            addProperty("limit", 0)
+            addProperty("synchronous", false)
+        })
+        download.isRequested = true
+        onFileState(download, state)
+        val finished = try {
+            withTimeout(DOWNLOAD_TIMEOUT_MILLIS) { download.finished.await() }
+        } catch (e: TimeoutCancellationException) {
+            cancelDownload(fileIndex)
+            throw IOException("download of ${download.uniqueId} timed out")
+        }
+        val local = finished.getAsJsonObject("local")
+        if (!local.get("is_downloading_completed").asBoolean) {
+            throw IOException("download of ${download.uniqueId} stopped at ${local.get("downloaded_size").asLong} bytes")
+        }
+        val cached = cache.put(download.uniqueId, File(local.get("path").asString))
+        // the file of TDLib is gone, let TDLib forget it
+        try {
+            request(JsonObject().apply {
+                addProperty("@type", "deleteFile")
+                addProperty("file_id", fileIndex)
+            })
+        } catch (e: Exception) {
+            Log.w(TAG, "deleteFile $fileIndex failed: $e")
+        }
+        return cached
+    }
+
+    private fun onFileState(download: Download, file: JsonObject) {
+        val local = file.getAsJsonObject("local")
+        val downloadedSize = local.get("downloaded_size").asLong
+        val totalSize = file.get("size").asLong.takeIf { it > 0 } ?: file.get("expected_size").asLong
+        val listeners = synchronized(mLock) { download.listeners.toTypedArray() }
+        for (listener in listeners) {
+            try {
+                listener.onProgress(downloadedSize, totalSize)
+            } catch (e: RuntimeException) {
+                Log.e(TAG, "progress listener failed", e)
+            }
+        }
+        if (local.get("is_downloading_completed").asBoolean) {
+            download.finished.complete(file)
+        } else if (download.isRequested && !local.get("is_downloading_active").asBoolean) {
+            // stopped, e.g. cancelled or failed
+            download.finished.complete(file)
+        }
+    }
+
+    private suspend fun cancelDownload(fileIndex: Int) {
+        try {
+            request(JsonObject().apply {
+                addProperty("@type", "cancelDownloadFile")
+                addProperty("file_id", fileIndex)
+                addProperty("only_if_pending", false)
+            })
+        } catch (e: Exception) {
+            Log.w(TAG, "cancelDownloadFile $fileIndex failed: $e")
+        }
+    }
+
+    private suspend fun request(obj: JsonObject): JsonObject {
+        val result = bot.server.executeRequestSuspended(obj.toString(), bot, REQUEST_TIMEOUT_MILLIS)
+            ?: throw IOException("Timeout executing ${obj.get("@type").asString}")
+        BaseTlRpcJsonObject.throwRemoteApiExceptionIfError(result)
+        return result
+    }
+}
@@ -0,0 +1,30 @@
+package cc.ioctl.telebot.image
+
+import java.io.File
+
+/**
+ * An encoded image in memory, e.g. the result of [ImagePipeline], sent by
+ * [cc.ioctl.telebot.tdlib.obj.Bot.sendMessageForPhoto] without writing it to a file.
+ */
+class EncodedImage(
+    val bytes: ByteArray,
+    val width: Int,
+    val height: Int,
+    val format: ImagePipeline.Format
+) {
+
+    init {
+        require(bytes.isNotEmpty()) { "bytes is empty" }
+        require(width > 0 && height > 0) { "invalid size ${width}x$height" }
+    }
+
+    val size: Int get() = bytes.size
+
+    fun writeTo(file: File) {
+        file.writeBytes(bytes)
+    }
+
+    override fun toString(): String {
+        return "EncodedImage{$format, ${width}x$height, $size bytes}"
+    }
+}
@@ -0,0 +1,256 @@
+package cc.ioctl.telebot.image
+
+import cc.ioctl.telebot.intern.NativeComponent
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.withContext
+import org.jetbrains.skija.Canvas
+import org.jetbrains.skija.EncodedImageFormat
+import org.jetbrains.skija.FilterMipmap
+import org.jetbrains.skija.FilterMode
+import org.jetbrains.skija.Font
+import org.jetbrains.skija.IRect
+import org.jetbrains.skija.Image
+import org.jetbrains.skija.MipmapMode
+import org.jetbrains.skija.Paint
+import org.jetbrains.skija.Rect
+import org.jetbrains.skija.SamplingMode
+import org.jetbrains.skija.Surface
+import org.jetbrains.skija.Typeface
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Decodes, crops, resizes, draws on and encodes images with Skija, e.g. for thumbnails or captcha images.
+ *
+ * The work runs on [dispatcher], one thread per CPU, so image work cannot take the threads of the server.
+ * Each thread keeps its surfaces, paints and fonts: an image of a size seen recently is drawn into the pixels
+ * of the previous one instead of allocating new ones. Skija copies the encoded input and output, the pixels
+ * are the only large buffer worth keeping.
+ */
+object ImagePipeline {
+
+    const val DEFAULT_QUALITY = 85
+
+    // larger surfaces are closed after use, 2048x2048 is 16 MB of pixels
+    private const val MAX_POOLED_PIXELS = 2048 * 2048
+    private const val MAX_POOLED_SURFACES = 2
+    private const val MAX_POOLED_FONTS = 4
+    private const val BACKGROUND_WHITE = -0x1
+
+    enum class Format(internal val encoding: EncodedImageFormat, internal val isOpaque: Boolean) {
+        JPEG(EncodedImageFormat.JPEG, true),
+        WEBP(EncodedImageFormat.WEBP, false),
+        PNG(EncodedImageFormat.PNG, false)
+    }
+
+    fun interface Painter {
+        /**
+         * Called on a thread of [dispatcher], the canvas is only valid during the call.
+         */
+        fun paint(canvas: Canvas, width: Int, height: Int)
+    }
+
+    private class ThreadResources {
+        // by width << 32 | height, the eldest is the least recently used
+        val surfaces = object : LinkedHashMap<Long, Surface>(4, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Surface>): Boolean {
+                if (size > MAX_POOLED_SURFACES) {
+                    eldest.value.close()
+                    return true
+                }
+                return false
+            }
+        }
+        val imagePaint: Paint = Paint().setAntiAlias(true)
+        val textPaint: Paint = Paint().setAntiAlias(true)
+        val fonts = object : LinkedHashMap<Float, Font>(4, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Float, Font>): Boolean {
+                if (size > MAX_POOLED_FONTS) {
+                    eldest.value.close()
+                    return true
+                }
+                return false
+            }
+        }
+        val typeface: Typeface by lazy { Typeface.makeDefault() }
+
+        inline fun <T> withSurface(width: Int, height: Int, block: (Surface) -> T): T {
+            if (width.toLong() * height > MAX_POOLED_PIXELS) {
+                return Surface.makeRasterN32Premul(width, height).use(block)
+            }
+            val key = width.toLong() shl 32 or height.toLong()
+            val surface = surfaces.remove(key) ?: Surface.makeRasterN32Premul(width, height)
+            try {
+                return block(surface)
+            } finally {
+                // not in the pool while it is used
+                surfaces[key] = surface
+            }
+        }
+
+        fun font(size: Float): Font {
+            return fonts.getOrPut(size) { Font(typeface, size) }
+        }
+    }
+
+    private val mThreadResources = ThreadLocal.withInitial { ThreadResources() }
+
+    val threadCount: Int = Runtime.getRuntime().availableProcessors()
+
+    val dispatcher: CoroutineDispatcher = run {
+        val threadId = AtomicInteger(1)
+        Executors.newFixedThreadPool(threadCount) { r ->
+            Thread(r, "ImagePipeline-" + threadId.getAndIncrement()).apply { isDaemon = true }
+        }.asCoroutineDispatcher()
+    }
+
+    /**
+     * Decode an image, crop and shrink it, draw on it and encode it.
+     *
+     * @param source the encoded image, any format Skija decodes
+     * @param maxWidth the max width of the result, 0 for no limit, the image is never enlarged
+     * @param maxHeight the max height of the result, 0 for no limit
+     * @param crop the part of the source to keep, in source pixels, null for the whole image
+     * @param format the format of the result, a transparent image gets a white background in JPEG
+     * @param quality the quality of JPEG and WebP, from 0 to 100
+     * @param overlay drawn over the result, e.g. a watermark
+     * @throws IOException if the source cannot be decoded or the result cannot be encoded
+     */
+    @Throws(IOException::class)
+    suspend fun transform(
+        source: ByteArray,
+        maxWidth: Int = 0,
+        maxHeight: Int = 0,
+        crop: IRect? = null,
+        format: Format = Format.JPEG,
+        quality: Int = DEFAULT_QUALITY,
+        overlay: Painter? = null
+    ): EncodedImage {
+        require(maxWidth >= 0 && maxHeight >= 0) { "invalid max size ${maxWidth}x$maxHeight" }
+        require(quality in 0..100) { "quality must be in [0, 100], got $quality" }
+        return withContext(dispatcher) {
+            NativeComponent.SKIJA.ensureLoaded()
+            val image = try {
+                Image.makeFromEncoded(source)
+            } catch (e: IllegalArgumentException) {
+                throw IOException("failed to decode image of ${source.size} bytes", e)
+            }
+            image.use {
+                val src = crop ?: IRect.makeXYWH(0, 0, image.width, image.height)
+                require(src.left >= 0 && src.top >= 0 && src.width > 0 && src.height > 0
+                        && src.right <= image.width && src.bottom <= image.height) {
+                    "crop $src is out of the image ${image.width}x${image.height}"
+                }
+                var scale = 1.0f
+                if (maxWidth > 0) {
+                    scale = min(scale, maxWidth.toFloat() / src.width)
+                }
+                if (maxHeight > 0) {
+                    scale = min(scale, maxHeight.toFloat() / src.height)
+                }
+                val width = max(1, (src.width * scale).roundToInt())
+                val height = max(1, (src.height * scale).roundToInt())
+                // a cubic filter aliases when shrinking a lot, mipmaps do not
+                val sampling = if (scale >= 0.5f) SamplingMode.MITCHELL
+                else FilterMipmap(FilterMode.LINEAR, MipmapMode.LINEAR)
+                draw(width, height, format, quality) { res, canvas ->
+                    canvas.drawImageRect(
+                        image, src.toRect(), Rect.makeWH(width.toFloat(), height.toFloat()), sampling,
+                        res.imagePaint, true
+                    )
+                    overlay?.paint(canvas, width, height)
+                }
+            }
+        }
+    }
+
+    /**
+     * Like [transform], the file is read on the IO dispatcher.
+     */
+    @Throws(IOException::class)
+    suspend fun transform(
+        source: File,
+        maxWidth: Int = 0,
+        maxHeight: Int = 0,
+        crop: IRect? = null,
+        format: Format = Format.JPEG,
+        quality: Int = DEFAULT_QUALITY,
+        overlay: Painter? = null
+    ): EncodedImage {
+        val bytes = withContext(Dispatchers.IO) { source.readBytes() }
+        return transform(bytes, maxWidth, maxHeight, crop, format, quality, overlay)
+    }
+
+    /**
+     * Draw a new image, e.g. a captcha.
+     *
+     * @param background the color the image is cleared with, ARGB
+     * @throws IOException if the result cannot be encoded
+     */
+    @Throws(IOException::class)
+    suspend fun render(
+        width: Int,
+        height: Int,
+        format: Format = Format.JPEG,
+        quality: Int = DEFAULT_QUALITY,
+        background: Int = BACKGROUND_WHITE,
+        painter: Painter
+    ): EncodedImage {
+        require(width > 0 && height > 0) { "invalid size ${width}x$height" }
+        require(quality in 0..100) { "quality must be in [0, 100], got $quality" }
+        return withContext(dispatcher) {
+            NativeComponent.SKIJA.ensureLoaded()
+            draw(width, height, format, quality, background) { _, canvas ->
+                painter.paint(canvas, width, height)
+            }
+        }
+    }
+
+    /**
+     * Draw a line of text with the default typeface, for a [Painter].
+     *
+     * @param x the left of the text
+     * @param y the baseline of the text
+     * @param color ARGB
+     * @return the width of the text
+     */
+    fun drawText(canvas: Canvas, text: String, x: Float, y: Float, size: Float, color: Int): Float {
+        val res = mThreadResources.get()
+        val font = res.font(size)
+        canvas.drawString(text, x, y, font, res.textPaint.setColor(color))
+        return font.measureText(text).width
+    }
+
+    private inline fun draw(
+        width: Int,
+        height: Int,
+        format: Format,
+        quality: Int,
+        background: Int = if (format.isOpaque) BACKGROUND_WHITE else 0,
+        block: (ThreadResources, Canvas) -> Unit
+    ): EncodedImage {
+        val res = mThreadResources.get()
+        return res.withSurface(width, height) { surface ->
+            val canvas = surface.canvas
+            val saveCount = canvas.save()
+            try {
+                canvas.clear(background)
+                block(res, canvas)
+            } finally {
+                // a pooled surface must not keep the state of the painter
+                canvas.restoreToCount(saveCount)
+            }
+            val bytes = surface.makeImageSnapshot().use { snapshot ->
+                snapshot.encodeToData(format.encoding, quality)?.use { it.bytes }
+            } ?: throw IOException("failed to encode ${width}x$height image as $format")
+            EncodedImage(bytes, width, height, format)
+        }
+    }
+}
@@ -26,6 +26,13 @@ interface IPlugin {
      */
     fun onServerStart()
 
+    /**
+     * Called when a bot in config file is logged in and initialized, before the other bots may be ready.
+     * Bots log in concurrently, so this may be called from several threads at the same time.
+     */
+    fun onBotReady(bot: Bot) {
+    }
+
     /**
      * Called after the bots in config file are logged in.
      */
@@ -2,6 +2,8 @@ package cc.ioctl.telebot.plugin
 
 import cc.ioctl.telebot.tdlib.RobotServer
 import cc.ioctl.telebot.tdlib.obj.Bot
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
 
 abstract class PluginBase : IPlugin {
 
@@ -9,6 +11,20 @@ abstract class PluginBase : IPlugin {
 
     override var isEnabled: Boolean = false
 
+    /**
+     * The coroutine scope of this plugin, cancelled when the plugin is disabled.
+     */
+    val pluginScope: CoroutineScope get() = PluginManager.getPluginScope(this)
+
+    /**
+     * Run a suspend task in [pluginScope] after a delay, cancelled when the plugin is disabled.
+     *
+     * @return the job of the task, cancel it to cancel the task
+     */
+    fun scheduleTaskDelayed(milliseconds: Long, task: suspend CoroutineScope.() -> Unit): Job {
+        return server.scheduleTaskDelayedInScope(pluginScope, milliseconds, task)
+    }
+
     override fun onLoad() {
         // no-op
     }
@@ -21,6 +37,10 @@ abstract class PluginBase : IPlugin {
         // no-op
     }
 
+    override fun onBotReady(bot: Bot) {
+        // no-op
+    }
+
     override fun onLoginFinish(bots: Map<Long, Bot>) {
         // no-op
     }
@@ -4,6 +4,11 @@ import cc.ioctl.telebot.tdlib.RobotServer
 import cc.ioctl.telebot.tdlib.obj.Bot
 import cc.ioctl.telebot.util.Log
 import com.moandjiezana.toml.Toml
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
 import java.io.File
 import java.io.IOError
 
@@ -20,6 +25,7 @@ object PluginManager {
     private val mLock = Any()
     private val mRegisteredPlugins = HashMap<String, PluginInfo>()
     private val mLoadedPlugins = HashMap<String, IPlugin>()
+    private val mPluginScopes = HashMap<IPlugin, CoroutineScope>()
 
     @JvmStatic
     fun registerBundledPlugin(name: String, mainClass: String) {
@@ -95,6 +101,7 @@ object PluginManager {
                     if (e is Exception || e is LinkageError || e is IOError || e.javaClass.name.startsWith("kotlin.")) {
                         Log.e(TAG, "Failed to enable plugin ${it.key}", e)
                         plugin.isEnabled = false
+                        mPluginScopes.remove(plugin)?.cancel()
                     } else {
                         throw e
                     }
@@ -103,6 +110,51 @@ object PluginManager {
         }
     }
 
+    /**
+     * Disable a plugin, call its [IPlugin.onDisable] and cancel its coroutine scope.
+     *
+     * @return false if the plugin is not loaded or not enabled
+     */
+    @JvmStatic
+    fun disablePlugin(name: String): Boolean {
+        synchronized(mLock) {
+            val plugin = mLoadedPlugins[name] ?: return false
+            if (!plugin.isEnabled) {
+                return false
+            }
+            Log.i(TAG, "Disabling plugin $name")
+            try {
+                plugin.onDisable()
+            } catch (e: Throwable) {
+                if (e is Exception || e is LinkageError || e is IOError || e.javaClass.name.startsWith("kotlin.")) {
+                    Log.e(TAG, "Failed to call plugin onDisable $name", e)
+                } else {
+                    throw e
+                }
+            } finally {
+                plugin.isEnabled = false
+                mPluginScopes.remove(plugin)?.cancel()
+            }
+            return true
+        }
+    }
+
+    /**
+     * Get the coroutine scope of an enabled plugin. It is a child of [RobotServer.coroutineScope]
+     * and is cancelled when the plugin is disabled, together with the tasks launched in it, see
+     * [cc.ioctl.telebot.tdlib.RobotServer.scheduleTaskDelayedInScope].
+     */
+    @JvmStatic
+    fun getPluginScope(plugin: IPlugin): CoroutineScope {
+        synchronized(mLock) {
+            check(plugin.isEnabled) { "plugin ${plugin.javaClass.name} is not enabled" }
+            return mPluginScopes.getOrPut(plugin) {
+                val parent = plugin.server.coroutineScope.coroutineContext
+                CoroutineScope(parent + SupervisorJob(parent[Job]) + CoroutineName(plugin.javaClass.simpleName))
+            }
+        }
+    }
+
     internal fun callPluginsServerStarted() {
         synchronized(mLock) {
             mLoadedPlugins.forEach {
@@ -121,6 +173,22 @@ object PluginManager {
         }
     }
 
+    internal fun callPluginsBotReady(bot: Bot) {
+        // don't hold mLock while calling the plugins, other bots may become ready at the same time
+        val plugins = synchronized(mLock) { mLoadedPlugins.filter { it.value.isEnabled } }
+        plugins.forEach {
+            try {
+                it.value.onBotReady(bot)
+            } catch (e: Throwable) {
+                if (e is Exception || e is LinkageError || e is IOError || e.javaClass.name.startsWith("kotlin.")) {
+                    Log.e(TAG, "Failed to call plugin onBotReady ${it.key}", e)
+                } else {
+                    throw e
+                }
+            }
+        }
+    }
+
     internal fun callPluginsLoginFinished() {
         val bots = HashMap<Long, Bot>(5)
         RobotServer.instance.allAuthenticatedBots.forEach {
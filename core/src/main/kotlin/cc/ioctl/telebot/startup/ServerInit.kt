@@ -1,25 +1,66 @@
 package cc.ioctl.telebot.startup
 
+import cc.ioctl.telebot.EventHandler
+import cc.ioctl.telebot.files.UploadCache
+import cc.ioctl.telebot.intern.NativeBridge
+import cc.ioctl.telebot.metrics.MetricsConsoleReporter
+import cc.ioctl.telebot.metrics.MetricsHttpServer
+import cc.ioctl.telebot.metrics.MetricsRegistry
+import cc.ioctl.telebot.tdlib.EventPipeline
 import cc.ioctl.telebot.tdlib.RobotServer
 import cc.ioctl.telebot.plugin.PluginManager
+import cc.ioctl.telebot.tdlib.journal.EventJournalReplayer
+import cc.ioctl.telebot.tdlib.journal.EventJournalWriter
 import cc.ioctl.telebot.tdlib.obj.Bot
+import cc.ioctl.telebot.tdlib.obj.SessionInfo
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.Message
+import cc.ioctl.telebot.tdlib.transport.NativeTDLibTransport
+import cc.ioctl.telebot.tdlib.transport.SimulatedTDLibTransport
+import cc.ioctl.telebot.tdlib.transport.TDLibTransport
 import cc.ioctl.telebot.util.IoUtils
 import cc.ioctl.telebot.util.Log
+import cc.ioctl.telebot.util.VirtualThreads
+import com.google.gson.JsonObject
 import com.moandjiezana.toml.Toml
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import java.io.File
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.sql.SQLException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.system.exitProcess
 
 object ServerInit {
 
     private const val TAG = "ServerInit"
+    private const val SIMULATOR_API_ID = 1
+    private const val SIMULATOR_API_HASH = "00000000000000000000000000000000"
+    private const val DRY_RUN_BOT_TOKEN = "1000000000:AAdryRunTokenForTheSimulator"
+    private const val DRY_RUN_MESSAGES_PER_SEC = 500.0
+    private const val DRY_RUN_LOAD_MILLIS = 2000L
 
     @JvmStatic
-    fun runServer(server: RobotServer, socketProxy: String?) {
-        Log.i(TAG, "proxy: $socketProxy")
-        server.proxy = socketProxy
+    fun runServer(workingDir: File, socketProxy: String?) {
+        runServer(workingDir, socketProxy, false)
+    }
+
+    /**
+     * @param dryRun start against the TDLib simulator whatever the configured transport, report the time from JVM
+     *               start to the first dispatched event and return, e.g. to train a CDS archive
+     */
+    @JvmStatic
+    fun runServer(workingDir: File, socketProxy: String?, dryRun: Boolean) {
         // read config
-        val configDir = File(server.baseDir, "config")
+        val configDir = File(workingDir, "config")
         IoUtils.mkdirsOrThrow(configDir)
         val serverConfigFile = File(configDir, "server.toml")
         val botsConfigFile = File(configDir, "bots.toml")
@@ -30,32 +71,54 @@ object ServerInit {
         val serverConfig = Toml().read(serverConfigFile.readText())
         val botsConfig = Toml().read(botsConfigFile.readText())
         val pluginsConfig = Toml().read(pluginsConfigFile.readText())
-        // configure TDLib
-        val apiId: Int = serverConfig.getLong("server.api_id").toInt()
-            .verifyConfigOrFatal("server.api_id", botsConfigFile, "api_id must be positive") { it > 0 }
-        val apiHash: String = serverConfig.getString("server.api_hash")
+        val transport = if (dryRun) createSimulator(serverConfig, false) else createTransport(serverConfig, serverConfigFile)
+        val isSimulated = transport is SimulatedTDLibTransport
+        val server = RobotServer.createInstance(workingDir, transport)
+        Log.i(TAG, "proxy: $socketProxy")
+        server.proxy = socketProxy
+        applyLogConfig(server, serverConfig, dryRun)
+        if (!dryRun) {
+            // a dry run must not take the port or write to the journal of a running instance
+            applyMetricsConfig(serverConfig)
+            applyJournalConfig(server, serverConfig)
+        }
+        applyExecutionConfig(server, serverConfig, serverConfigFile)
+        if (serverConfig.getBoolean("server.upload_cache", true)) {
+            server.uploadCache = UploadCache(File(server.baseDir, "uploads.db"))
+        }
+        applyDownloadConfig(server, serverConfig, serverConfigFile)
+        applyPipelineConfig(server, serverConfig, serverConfigFile)
+        // configure TDLib, the simulator does not care about the api credentials
+        val apiId: Int = if (isSimulated) SIMULATOR_API_ID else serverConfig.getLong("server.api_id").toInt()
+            .verifyConfigOrFatal("server.api_id", serverConfigFile, "api_id must be positive") { it > 0 }
+        val apiHash: String = if (isSimulated) SIMULATOR_API_HASH else serverConfig.getString("server.api_hash")
             .verifyConfigOrFatal(
-                "server.api_hash", botsConfigFile,
+                "server.api_hash", serverConfigFile,
                 "api_hash must be 32 hexadecimal characters"
             ) { it.matches(Regex("^[0-9a-f]{32}$")) }
         val useTestDC: Boolean = serverConfig.getBoolean("server.use_test_dc")
         val standBotTokens = ArrayList<String>(2)
         val userBotPhones = ArrayList<String>(1)
-        botsConfig.getTables("accounts.bot")?.forEach { cfg ->
-            val token = (cfg.getString("bot_token"))
-                .verifyConfigOrFatal(
-                    "accounts.bot.bot_token", botsConfigFile,
-                    "bot_token is invalid or missing, requires '^[0-9]+:[a-zA-Z0-9_]+$'"
-                ) { it?.matches(Regex("^[0-9]+:[a-zA-Z0-9_]+$")) ?: false }
-            standBotTokens.add(token!!)
-        }
-        botsConfig.getTables("accounts.user")?.forEach { cfg ->
-            val phone = (cfg.getString("phone"))
-                .verifyConfigOrFatal(
-                    "accounts.user_phone", botsConfigFile,
-                    "phone is invalid or missing, requires '^\\+[0-9]{1,3} [0-9]+\$'"
-                ) { it?.matches(Regex("^\\+[0-9]{1,3} [0-9]+$")) ?: false }
-            userBotPhones.add(phone!!)
+        if (dryRun) {
+            // user bots need an interactive login
+            standBotTokens.addAll(readDryRunBotTokens(botsConfig))
+        } else {
+            botsConfig.getTables("accounts.bot")?.forEach { cfg ->
+                val token = (cfg.getString("bot_token"))
+                    .verifyConfigOrFatal(
+                        "accounts.bot.bot_token", botsConfigFile,
+                        "bot_token is invalid or missing, requires '^[0-9]+:[a-zA-Z0-9_]+$'"
+                    ) { it?.matches(Regex("^[0-9]+:[a-zA-Z0-9_]+$")) ?: false }
+                standBotTokens.add(token!!)
+            }
+            botsConfig.getTables("accounts.user")?.forEach { cfg ->
+                val phone = (cfg.getString("phone"))
+                    .verifyConfigOrFatal(
+                        "accounts.user_phone", botsConfigFile,
+                        "phone is invalid or missing, requires '^\\+[0-9]{1,3} [0-9]+\$'"
+                    ) { it?.matches(Regex("^\\+[0-9]{1,3} [0-9]+$")) ?: false }
+                userBotPhones.add(phone!!)
+            }
         }
         if (standBotTokens.isEmpty() && userBotPhones.isEmpty()) {
             Log.e(TAG, "No bots configured, there is nothing to do")
@@ -77,36 +140,270 @@ object ServerInit {
             throw java.lang.UnsupportedOperationException("User bot phone NOT IMPLEMENTED")
             // TODO: 2022-07-17 implement user bot interactive login
         }
-        // login bots
-        runBlocking {
-            val loginBots = ArrayList<Bot>(standBotTokens.size)
-            for (botToken in standBotTokens) {
-                val uid = botToken.split(":")[0].toLong()
-                if (uid < 0) {
-                    throw IllegalArgumentException("bot_token is invalid: $botToken")
+        // login bots, create them in the config order so that they get the same client index every time
+        val loginParallelism = botsConfig.getLong("accounts.login_parallelism", 4L).toInt()
+            .verifyConfigOrFatal(
+                "accounts.login_parallelism", botsConfigFile,
+                "login_parallelism must be positive"
+            ) { it > 0 }
+        val botsToLogin = standBotTokens.map { botToken ->
+            val uid = botToken.split(":")[0].toLong()
+            if (uid < 0) {
+                throw IllegalArgumentException("bot_token is invalid: $botToken")
+            }
+            Triple(server.createNewBot("b_$uid"), uid, botToken)
+        }
+        val loginStartTime = System.nanoTime()
+        val loginBotCount = runBlocking {
+            val permits = Semaphore(loginParallelism)
+            botsToLogin.map { (bot, uid, botToken) ->
+                server.coroutineScope.async {
+                    permits.withPermit { loginBot(bot, uid, botToken) }
                 }
-                val bot = server.createNewBot("b_$uid")
-                Log.i(TAG, "Logging in bot $uid with token.")
-                if (bot.loginWithBotTokenSuspended(botToken) > 0) {
-                    loginBots.add(bot)
-                } else {
-                    Log.e(TAG, "Failed to login bot $uid with token.")
+            }.awaitAll().count { it }
+        }
+        Log.i(
+            TAG, "Logged in $loginBotCount of ${botsToLogin.size} bots in " +
+                    "${(System.nanoTime() - loginStartTime) / 1000000}ms, parallelism $loginParallelism"
+        )
+        // call plugins login finished
+        PluginManager.callPluginsLoginFinished()
+        if (dryRun) {
+            // the jobs are not fired, they would be removed from the store of the real server
+            runDryRunLoad(transport as SimulatedTDLibTransport, botsToLogin.map { it.first })
+            return
+        }
+        // fire the persistent jobs, the plugins have registered their handlers by now
+        server.jobStore.start()
+        // continue the broadcasts interrupted by the last shutdown
+        botsToLogin.map { it.first }.filter { it.isAuthenticated }.forEach { bot ->
+            server.coroutineScope.launch {
+                try {
+                    bot.broadcasts.resumeAll().forEach { Log.i(TAG, "Resumed broadcast ${it.id} of $bot") }
+                } catch (e: SQLException) {
+                    Log.e(TAG, "Failed to resume the broadcasts of $bot", e)
                 }
             }
-            Log.i(TAG, "Login success")
+        }
+        serverConfig.getString("journal.replay_file", "").takeIf { it.isNotEmpty() }?.let { path ->
+            val file = File(path).let { if (it.isAbsolute) it else File(server.baseDir, path) }
+            startJournalReplay(server, file, serverConfig.getNumber("journal.replay_speed", 1.0))
+        }
+        handleConsoleCommand()
+    }
+
+
+    private suspend fun loginBot(bot: Bot, uid: Long, botToken: String): Boolean {
+        Log.i(TAG, "Logging in bot $uid with token.")
+        try {
+            if (bot.loginWithBotTokenSuspended(botToken) <= 0) {
+                Log.e(TAG, "Failed to login bot $uid with token.")
+                return false
+            }
             // update bot info
-            loginBots.forEach { bot ->
-                bot.getUser(bot.userId)
-                if (bot.username.isNullOrEmpty()) {
-                    Log.e(TAG, "Bot $bot has no username")
+            bot.getUser(bot.userId)
+            if (bot.username.isNullOrEmpty()) {
+                Log.e(TAG, "Bot $bot has no username")
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to login bot $uid with token.", e)
+            return false
+        }
+        PluginManager.callPluginsBotReady(bot)
+        return true
+    }
+
+    /**
+     * Valid tokens of bots.toml, or a token for the simulator if there is none, e.g. in a fresh directory.
+     */
+    private fun readDryRunBotTokens(botsConfig: Toml): List<String> {
+        val tokens = botsConfig.getTables("accounts.bot").orEmpty().mapNotNull { cfg ->
+            cfg.getString("bot_token")?.takeIf { it.matches(Regex("^[0-9]+:[a-zA-Z0-9_]+$")) }
+        }
+        return tokens.ifEmpty { listOf(DRY_RUN_BOT_TOKEN) }
+    }
+
+    /**
+     * Feed incoming messages to the bots, wait for the first one to be dispatched and keep the load running for a
+     * while so that the dispatch path is trained too.
+     */
+    private fun runDryRunLoad(simulator: SimulatedTDLibTransport, bots: List<Bot>) {
+        val runtime = ManagementFactory.getRuntimeMXBean()
+        val readyUptime = runtime.uptime
+        val firstEventUptime = AtomicLong(-1L)
+        val eventCount = AtomicInteger(0)
+        val firstEvent = CountDownLatch(1)
+        val listener = object : EventHandler.MessageListenerV1 {
+            override fun onReceiveMessage(bot: Bot, si: SessionInfo, senderId: Long, message: Message): Boolean {
+                if (eventCount.getAndIncrement() == 0) {
+                    firstEventUptime.set(runtime.uptime)
+                    firstEvent.countDown()
                 }
+                return false
             }
+
+            override fun onDeleteMessages(bot: Bot, si: SessionInfo, msgIds: List<Long>) = false
+            override fun onUpdateMessageContent(bot: Bot, si: SessionInfo, msgId: Long, content: JsonObject) = false
+            override fun onMessageEdited(bot: Bot, si: SessionInfo, msgId: Long, editDate: Int) = false
         }
-        // call plugins login finished
-        PluginManager.callPluginsLoginFinished()
-        handleConsoleCommand()
+        bots.forEach { it.registerOnReceiveMessageListener(listener) }
+        simulator.startIncomingMessageLoad(DRY_RUN_MESSAGES_PER_SEC, 100)
+        try {
+            check(firstEvent.await(30, TimeUnit.SECONDS)) { "dry run: no event dispatched within 30s" }
+            Thread.sleep(DRY_RUN_LOAD_MILLIS)
+        } finally {
+            simulator.stopIncomingMessageLoad()
+        }
+        Log.i(
+            TAG, "Dry run: bots ready ${readyUptime}ms, first event dispatched ${firstEventUptime.get()}ms " +
+                    "after JVM start, ${eventCount.get()} events"
+        )
     }
 
+    private fun createTransport(serverConfig: Toml, configFile: File): TDLibTransport {
+        val name = serverConfig.getString("server.transport", "native")
+            .verifyConfigOrFatal(
+                "server.transport", configFile,
+                "transport must be 'native' or 'simulator'"
+            ) { it == "native" || it == "simulator" }
+        if (name == "native") {
+            return NativeTDLibTransport.getInstance()
+        }
+        return createSimulator(serverConfig, true)
+    }
+
+    private fun createSimulator(serverConfig: Toml, startIncomingLoad: Boolean): SimulatedTDLibTransport {
+        val responseLatency = serverConfig.getLong("simulator.response_latency_ms", 0L)
+        val sendLatency = serverConfig.getLong("simulator.send_latency_ms", 0L)
+        val jitter = serverConfig.getLong("simulator.jitter_ms", 0L)
+        val simulator = SimulatedTDLibTransport(responseLatency, sendLatency, jitter)
+        val incomingRate = serverConfig.getLong("simulator.incoming_messages_per_sec", 0L)
+        if (startIncomingLoad && incomingRate > 0) {
+            val chatCount = serverConfig.getLong("simulator.chat_count", 100L).toInt()
+            simulator.startIncomingMessageLoad(incomingRate.toDouble(), chatCount)
+        }
+        Log.w(TAG, "Using simulated TDLib transport, nothing is sent to Telegram")
+        return simulator
+    }
+
+    private fun applyLogConfig(server: RobotServer, serverConfig: Toml, dryRun: Boolean) {
+        serverConfig.getString("log.level")?.let {
+            Log.setDefaultMinLevel(Log.parseLevel(it))
+        }
+        serverConfig.getTable("log.tags")?.toMap()?.forEach { (tag, level) ->
+            Log.setTagMinLevel(tag, Log.parseLevel(level.toString()))
+        }
+        // the binary log is written by the native library, which a dry run may not have loaded
+        if (!dryRun && serverConfig.getBoolean("log.binary.enabled", false)) {
+            val dir = File(server.baseDir, serverConfig.getString("log.binary.dir", "logs"))
+            IoUtils.mkdirsOrThrow(dir)
+            val fileSizeMb = serverConfig.getLong("log.binary.file_size_mb", 64L)
+            val maxFiles = serverConfig.getLong("log.binary.max_files", 16L).toInt()
+            val consoleOutput = serverConfig.getBoolean("log.binary.console_output", true)
+            NativeBridge.nativeEnableBinaryLog(dir.absolutePath, fileSizeMb * 1024 * 1024, maxFiles, consoleOutput)
+            Log.i(TAG, "Binary log enabled: ${dir.absolutePath}")
+        }
+    }
+
+    private fun applyMetricsConfig(serverConfig: Toml) {
+        val registry = MetricsRegistry.getDefault()
+        val httpPort = serverConfig.getLong("metrics.http_port", 0L).toInt()
+        if (httpPort > 0) {
+            val bind = serverConfig.getString("metrics.bind", "127.0.0.1")
+            val httpServer = MetricsHttpServer(registry, bind, httpPort)
+            Log.i(TAG, "Metrics available at http://${bind}:${httpServer.address.port}/metrics")
+        }
+        val consoleInterval = serverConfig.getLong("metrics.console_interval_sec", 0L)
+        if (consoleInterval > 0) {
+            MetricsConsoleReporter(registry, consoleInterval * 1000L).start()
+        }
+    }
+
+    private fun applyExecutionConfig(server: RobotServer, serverConfig: Toml, configFile: File) {
+        val mode = serverConfig.getString("server.execution_mode", "platform")
+            .verifyConfigOrFatal(
+                "server.execution_mode", configFile,
+                "execution_mode must be 'platform', 'virtual' or 'auto'"
+            ) { it == "platform" || it == "virtual" || it == "auto" }
+        if (mode == "platform") {
+            return
+        }
+        if (VirtualThreads.isSupported()) {
+            server.setExecutionMode(RobotServer.ExecutionMode.VIRTUAL)
+            Log.i(TAG, "Event handlers and delayed tasks run on virtual threads")
+        } else if (mode == "virtual") {
+            Log.w(TAG, "Virtual threads are not supported by Java ${System.getProperty("java.version")}, " +
+                    "using platform threads")
+        }
+    }
+
+    private fun applyDownloadConfig(server: RobotServer, serverConfig: Toml, configFile: File) {
+        server.maxConcurrentDownloadsPerBot = serverConfig.getLong("download.max_concurrent_per_bot", 4L).toInt()
+            .verifyConfigOrFatal(
+                "download.max_concurrent_per_bot", configFile, "max_concurrent_per_bot must be positive"
+            ) { it > 0 }
+        server.downloadCacheMaxBytes = serverConfig.getLong("download.cache_size_mb", 1024L)
+            .verifyConfigOrFatal("download.cache_size_mb", configFile, "cache_size_mb must be positive") { it > 0 }
+            .let { it * 1024 * 1024 }
+    }
+
+    private fun applyPipelineConfig(server: RobotServer, serverConfig: Toml, configFile: File) {
+        if (!serverConfig.getBoolean("pipeline.enabled", true)) {
+            Log.i(TAG, "Event pipeline disabled, events are dispatched without ordering")
+            return
+        }
+        val parseWorkers = serverConfig.getLong("pipeline.parse_workers", 0L).toInt()
+            .verifyConfigOrFatal("pipeline.parse_workers", configFile, "parse_workers must not be negative") { it >= 0 }
+            .let { if (it == 0) Runtime.getRuntime().availableProcessors() else it }
+        val ordering = serverConfig.getString("pipeline.ordering", "client")
+            .verifyConfigOrFatal(
+                "pipeline.ordering", configFile,
+                "ordering must be 'chat' or 'client'"
+            ) { it == "chat" || it == "client" }
+        server.enableEventPipeline(
+            parseWorkers,
+            if (ordering == "chat") EventPipeline.Ordering.CHAT else EventPipeline.Ordering.CLIENT
+        )
+        Log.i(TAG, "Event pipeline enabled, $parseWorkers parse workers, ordered by $ordering")
+    }
+
+    private fun applyJournalConfig(server: RobotServer, serverConfig: Toml) {
+        if (!serverConfig.getBoolean("journal.record", false)) {
+            return
+        }
+        val dir = File(server.baseDir, serverConfig.getString("journal.dir", "journal"))
+        IoUtils.mkdirsOrThrow(dir)
+        val journal = EventJournalWriter.createInDirectory(dir)
+        server.eventJournal = journal
+        Runtime.getRuntime().addShutdownHook(Thread({ journal.close() }, "EventJournalShutdown"))
+        Log.i(TAG, "Recording TDLib events to ${journal.file.absolutePath}")
+    }
+
+    private fun startJournalReplay(server: RobotServer, file: File, speed: Double) {
+        require(file.isFile) { "journal.replay_file not found: ${file.absolutePath}" }
+        val replayer = EventJournalReplayer(file, speed)
+        val speedName = if (replayer.isMaxSpeed) "max speed" else "${speed}x"
+        Thread({
+            Log.i(TAG, "Replaying event journal ${file.absolutePath} at $speedName")
+            try {
+                val result = replayer.replay(server::onReceiveTDLibEvent)
+                Log.i(TAG, "Event journal replay finished: $result")
+            } catch (e: IOException) {
+                Log.e(TAG, "Event journal replay failed: ${file.absolutePath}", e)
+            }
+        }, "EventJournalReplayer").start()
+    }
+
+    // toml4j returns Long for integer literals and Double for float literals
+    private fun Toml.getNumber(key: String, defaultValue: Double): Double {
+        return try {
+            getDouble(key, defaultValue)
+        } catch (e: ClassCastException) {
+            getLong(key).toDouble()
+        }
+    }
 
     private fun handleConsoleCommand() {
         Log.e(TAG, "TODO")
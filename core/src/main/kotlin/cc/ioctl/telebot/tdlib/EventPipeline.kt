@@ -0,0 +1,230 @@
+package cc.ioctl.telebot.tdlib
+
+import cc.ioctl.telebot.TransactionDispatcher
+import cc.ioctl.telebot.metrics.CoreMetrics
+import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject
+import cc.ioctl.telebot.util.Log
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import kotlinx.coroutines.runBlocking
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Parses TDLib events on worker threads and dispatches them in arrival order per lane.
+ *
+ * A lane is a TDLib client, or a chat of a client with [Ordering.CHAT]. Events of a lane are dispatched one at a
+ * time, different lanes run in parallel on [RobotServer.executor]. With [Ordering.CHAT], an event without a chat,
+ * e.g. updateNewChat or updateUser, is a barrier: it waits until the chat lanes of its client are done, and the later
+ * events of the client wait for it, so a handler never sees a message before the chat or user it depends on.
+ * Responses and the updates completing a pending operation bypass the lanes, since a handler on a lane may be
+ * waiting for them.
+ */
+class EventPipeline(
+    private val server: RobotServer,
+    parseWorkers: Int,
+    private val ordering: Ordering
+) {
+
+    enum class Ordering {
+        CLIENT,
+        CHAT
+    }
+
+    // chat id 0 is the lane of the events without a chat
+    private data class LaneKey(val clientIndex: Int, val chatId: Long) {
+        val isBarrier: Boolean get() = chatId == 0L
+    }
+
+    // the lanes of a client, either chat lanes or its barrier lane run at a time
+    private class ClientGate {
+        var activeLanes = 0
+        var isBarrierActive = false
+
+        // events behind a barrier, in arrival order
+        val held = ArrayDeque<Item>()
+    }
+
+    private class Item(val sequence: Long, val raw: String, val receiveTime: Long) {
+        var event: JsonObject? = null
+        var type: String? = null
+
+        // null if the event bypasses the lanes or can't be parsed
+        var lane: LaneKey? = null
+    }
+
+    private inner class Lane(val key: LaneKey) : Runnable {
+        // guarded by mLock
+        val queue = ArrayDeque<Item>(4)
+        var isScheduled = false
+
+        override fun run() {
+            var count = 0
+            while (true) {
+                val item = synchronized(mLock) {
+                    if (queue.isEmpty()) {
+                        isScheduled = false
+                        mLanes.remove(key)
+                        onLaneFinishedLocked(key)
+                        return
+                    }
+                    if (count >= MAX_EVENTS_PER_RUN) {
+                        // give other lanes a chance
+                        server.executor.execute(this)
+                        return
+                    }
+                    queue.removeFirst()
+                }
+                dispatch(item)
+                count++
+            }
+        }
+    }
+
+    private val mParseExecutor: ExecutorService
+    private val mLock = Any()
+
+    // guarded by mLock
+    private var mNextSequence = 0L
+    private var mNextRelease = 0L
+    private val mParsed = HashMap<Long, Item>()
+    private val mLanes = HashMap<LaneKey, Lane>()
+    private val mGates = HashMap<Int, ClientGate>()
+
+    init {
+        require(parseWorkers > 0) { "parseWorkers must be positive, got $parseWorkers" }
+        val threadId = AtomicInteger(1)
+        mParseExecutor = Executors.newFixedThreadPool(parseWorkers) { r ->
+            Thread(r, "EventParser-" + threadId.getAndIncrement()).apply { isDaemon = true }
+        }
+        CoreMetrics.EVENT_PIPELINE_LANES.get().setSupplier { synchronized(mLock) { mLanes.size.toLong() } }
+    }
+
+    /**
+     * Submit a raw event, the events are ordered by the time they are submitted.
+     */
+    fun submit(raw: String, receiveTime: Long) {
+        val item = synchronized(mLock) {
+            Item(mNextSequence++, raw, receiveTime)
+        }
+        mParseExecutor.execute { parse(item) }
+    }
+
+    private fun parse(item: Item) {
+        val startTime = System.nanoTime()
+        try {
+            val event = JsonParser.parseString(item.raw).asJsonObject
+            val type = BaseTlRpcJsonObject.getType(event)
+            if (type == null) {
+                Log.e(TAG, "type is null, event: ${item.raw}")
+            } else {
+                item.event = event
+                item.type = type
+                if (!isBypassEvent(event, type)) {
+                    item.lane = getLaneKey(event)
+                }
+            }
+        } catch (e: RuntimeException) {
+            CoreMetrics.EVENT_DISPATCH_ERRORS.get().inc()
+            Log.e(TAG, "failed to parse event: ${item.raw}", e)
+        }
+        CoreMetrics.EVENT_PARSE_DURATION.get().recordSince(startTime)
+        if (item.event != null && item.lane == null) {
+            server.executor.execute { dispatch(item) }
+        }
+        release(item)
+    }
+
+    // hand the parsed events to their lanes in sequence order
+    private fun release(item: Item) {
+        synchronized(mLock) {
+            mParsed[item.sequence] = item
+            while (true) {
+                val next = mParsed.remove(mNextRelease) ?: break
+                mNextRelease++
+                val key = next.lane ?: continue
+                val gate = mGates.getOrPut(key.clientIndex) { ClientGate() }
+                if (gate.held.isNotEmpty() || !offerLocked(gate, next)) {
+                    gate.held.addLast(next)
+                }
+            }
+        }
+    }
+
+    // add the event to its lane if the barrier state of the client allows it
+    private fun offerLocked(gate: ClientGate, item: Item): Boolean {
+        val key = item.lane!!
+        if (key.isBarrier) {
+            if (gate.activeLanes != 0 && !gate.isBarrierActive) {
+                return false
+            }
+            gate.isBarrierActive = true
+        } else if (gate.isBarrierActive) {
+            return false
+        }
+        val lane = mLanes.getOrPut(key) {
+            gate.activeLanes++
+            Lane(key)
+        }
+        lane.queue.addLast(item)
+        if (!lane.isScheduled) {
+            lane.isScheduled = true
+            server.executor.execute(lane)
+        }
+        return true
+    }
+
+    private fun onLaneFinishedLocked(key: LaneKey) {
+        val gate = mGates[key.clientIndex]!!
+        gate.activeLanes--
+        if (key.isBarrier) {
+            gate.isBarrierActive = false
+        }
+        while (gate.held.isNotEmpty() && offerLocked(gate, gate.held.first())) {
+            gate.held.removeFirst()
+        }
+    }
+
+    private fun dispatch(item: Item) {
+        val startTime = System.nanoTime()
+        CoreMetrics.EVENT_QUEUE_DELAY.get().recordSince(item.receiveTime)
+        runBlocking {
+            try {
+                TransactionDispatcher.dispatchTDLibEvent(server, item.event!!, item.type!!, startTime)
+            } catch (e: Exception) {
+                CoreMetrics.EVENT_DISPATCH_ERRORS.get().inc()
+                server.exceptionHandler?.onException(e, Thread.currentThread())
+                Log.e(TAG, "dispatch error for ${item.raw}", e)
+            }
+        }
+    }
+
+    private fun getLaneKey(event: JsonObject): LaneKey {
+        val clientIndex = BaseTlRpcJsonObject.getClientId(event)
+        if (ordering == Ordering.CLIENT) {
+            return LaneKey(clientIndex, 0)
+        }
+        val chatId = event.get("chat_id") ?: event.getAsJsonObject("message")?.get("chat_id")
+        return LaneKey(clientIndex, if (chatId != null && chatId.isJsonPrimitive) chatId.asLong else 0L)
+    }
+
+    private fun isBypassEvent(event: JsonObject, type: String): Boolean {
+        return event.has("@extra") || type in BYPASS_UPDATE_TYPES
+    }
+
+    companion object {
+        private const val TAG = "EventPipeline"
+        private const val MAX_EVENTS_PER_RUN = 64
+
+        // updates that complete an operation someone may be waiting for
+        private val BYPASS_UPDATE_TYPES = setOf(
+            "updateMessageSendSucceeded",
+            "updateMessageSendFailed",
+            "updateDeleteMessages",
+            "updateFile",
+            "updateFileGenerationStart",
+            "updateFileGenerationStop"
+        )
+    }
+}
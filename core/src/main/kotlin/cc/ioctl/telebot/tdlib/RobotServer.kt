@@ -1,34 +1,60 @@
 package cc.ioctl.telebot.tdlib
 
 import cc.ioctl.telebot.TransactionDispatcher
-import cc.ioctl.telebot.intern.NativeBridge
+import cc.ioctl.telebot.broadcast.BroadcastStore
+import cc.ioctl.telebot.files.DownloadCache
+import cc.ioctl.telebot.files.UploadCache
 import cc.ioctl.telebot.intern.TDLibPollThread
+import cc.ioctl.telebot.jobs.PersistentJobStore
+import cc.ioctl.telebot.metrics.CoreMetrics
 import cc.ioctl.telebot.tdlib.intern.NonLocalObjectCachePool
+import cc.ioctl.telebot.tdlib.journal.EventJournalWriter
 import cc.ioctl.telebot.tdlib.obj.Bot
 import cc.ioctl.telebot.tdlib.obj.Channel
 import cc.ioctl.telebot.tdlib.obj.Group
 import cc.ioctl.telebot.tdlib.obj.PrivateChatSession
 import cc.ioctl.telebot.tdlib.obj.User
 import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject
+import cc.ioctl.telebot.tdlib.tlrpc.TlRequestWriter
 import cc.ioctl.telebot.tdlib.tlrpc.api.auth.SetTdlibParameters
+import cc.ioctl.telebot.tdlib.transport.NativeTDLibTransport
+import cc.ioctl.telebot.tdlib.transport.TDLibTransport
+import cc.ioctl.telebot.util.HashedWheelTimer
 import cc.ioctl.telebot.util.IoUtils
 import cc.ioctl.telebot.util.Log
+import cc.ioctl.telebot.util.VirtualThreads
 import com.google.gson.JsonObject
 import com.google.gson.JsonParser
+import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.withContext
-import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
 import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.ContinuationInterceptor
 import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlin.coroutines.resume
 
-class RobotServer private constructor(val baseDir: File) {
+class RobotServer private constructor(
+    val baseDir: File,
+    val transport: TDLibTransport
+) {
 
     var proxy: String? = null
     val isRunning: Boolean get() = !mShuttingDown
@@ -37,8 +63,66 @@ class RobotServer private constructor(val baseDir: File) {
     val tdlibDir = File(baseDir, "tdlib")
     var defaultTimeout: Int = 30 * 1000
     val cachedObjectPool: NonLocalObjectCachePool = NonLocalObjectCachePool(this)
-    val executor: ExecutorService = Executors.newCachedThreadPool()
-    val mDelayedTaskExecutor = Executors.newScheduledThreadPool(4)
+    /**
+     * Runs the event handlers and the delayed tasks, see [setExecutionMode].
+     */
+    var executor: ExecutorService = Executors.newCachedThreadPool()
+        private set
+    var executionMode: ExecutionMode = ExecutionMode.PLATFORM
+        private set
+
+    /**
+     * The timer of the delayed tasks, its tasks run on [executor].
+     */
+    val timer: HashedWheelTimer = HashedWheelTimer("TimerWheel", 1, 4096) { executor.execute(it) }
+
+    /**
+     * Delayed jobs that survive restarts, started after the bots are logged in.
+     */
+    val jobStore: PersistentJobStore by lazy { PersistentJobStore(File(baseDir, "jobs.db"), timer) }
+
+    @Deprecated("Delayed tasks run on the timer, use scheduleTimeout or scheduleTaskDelayed")
+    val mDelayedTaskExecutor: ScheduledExecutorService by lazy { Executors.newScheduledThreadPool(4) }
+
+    /**
+     * Remote file ids of the files uploaded by the bots, to send the same content again without uploading it.
+     * Null to always upload.
+     */
+    var uploadCache: UploadCache? = null
+
+    /**
+     * The cap of [downloadCache] and the downloads per bot, set them before the first download.
+     */
+    var downloadCacheMaxBytes: Long = 1024L * 1024 * 1024
+    var maxConcurrentDownloadsPerBot: Int = 4
+
+    /**
+     * The files downloaded by the bots, see [Bot.downloadManager].
+     */
+    val downloadCache: DownloadCache by lazy { DownloadCache(File(tdlibDir, "download_cache"), downloadCacheMaxBytes) }
+
+    /**
+     * The broadcasts of all bots, see [Bot.broadcasts].
+     */
+    val broadcastStore: BroadcastStore by lazy { BroadcastStore(File(baseDir, "broadcasts.db")) }
+
+    init {
+        CoreMetrics.TIMER_PENDING_TIMEOUTS.get().setSupplier { timer.pendingCount }
+    }
+
+    /**
+     * The scope of the server, its coroutines run on [executor].
+     * A failed child does not cancel the scope, the exception is passed to [exceptionHandler].
+     */
+    val coroutineScope: CoroutineScope = CoroutineScope(
+        SupervisorJob() + CoroutineName("RobotServer")
+                + Executor { executor.execute(it) }.asCoroutineDispatcher()
+                + CoroutineExceptionHandler { _, e ->
+            CoreMetrics.DELAYED_TASK_ERRORS.get().inc()
+            exceptionHandler?.onException(e, Thread.currentThread())
+            Log.e(TAG, "uncaught exception in server scope", e)
+        }
+    )
 
     private val mLock = Any()
     private lateinit var mPollThread: Thread
@@ -51,6 +135,15 @@ class RobotServer private constructor(val baseDir: File) {
     private val mLocalBotUidMaps: HashMap<Long, Int> = HashMap(1)
     var exceptionHandler: ExceptionHandler? = null
 
+    @Volatile
+    private var mEventPipeline: EventPipeline? = null
+
+    /**
+     * If set, every event polled from TDLib is recorded to the journal.
+     */
+    @Volatile
+    var eventJournal: EventJournalWriter? = null
+
     fun start(apiId: Int, apiHash: String, useTestDC: Boolean) {
         require(apiId > 0) { "apiId must be greater than 0" }
         require(apiHash.matches(Regex("[a-f0-9]{32}"))) { "apiHash must be a 40-character lowercase hex string" }
@@ -61,7 +154,7 @@ class RobotServer private constructor(val baseDir: File) {
                 error("RobotServer is already started")
             }
             // set TDLib log verbosity level to WARN
-            NativeBridge.nativeTDLibExecuteSynchronized(JsonObject().apply {
+            transport.execute(JsonObject().apply {
                 addProperty("@type", "setLogVerbosityLevel")
                 addProperty("new_verbosity_level", 2)
             }.toString()).also { result ->
@@ -85,16 +178,59 @@ class RobotServer private constructor(val baseDir: File) {
         }
     }
 
+    /**
+     * Parse events on [parseWorkers] threads and dispatch them in arrival order per lane, see [EventPipeline].
+     * Without the pipeline, every event is parsed and dispatched on its own thread without ordering.
+     * Must be called before [start].
+     */
+    fun enableEventPipeline(parseWorkers: Int, ordering: EventPipeline.Ordering) {
+        synchronized(mLock) {
+            check(!::mPollThread.isInitialized) { "RobotServer is already started" }
+            check(mEventPipeline == null) { "event pipeline is already enabled" }
+            mEventPipeline = EventPipeline(this, parseWorkers, ordering)
+        }
+    }
+
+    /**
+     * Run the event handlers and the delayed tasks on virtual threads or on a cached platform thread pool.
+     * Must be called before [start].
+     *
+     * @throws UnsupportedOperationException if [ExecutionMode.VIRTUAL] is not supported by the JVM
+     */
+    fun setExecutionMode(mode: ExecutionMode) {
+        synchronized(mLock) {
+            check(!::mPollThread.isInitialized) { "RobotServer is already started" }
+            if (mode == executionMode) {
+                return
+            }
+            val old = executor
+            executor = when (mode) {
+                ExecutionMode.PLATFORM -> Executors.newCachedThreadPool()
+                ExecutionMode.VIRTUAL -> VirtualThreads.newVirtualThreadPerTaskExecutor("EventHandler-")
+            }
+            executionMode = mode
+            old.shutdown()
+        }
+    }
+
     fun onReceiveTDLibEvent(resp: String) {
         if (resp.isEmpty()) {
             return
         }
+        val receiveTime = System.nanoTime()
+        val pipeline = mEventPipeline
+        if (pipeline != null) {
+            pipeline.submit(resp, receiveTime)
+            return
+        }
         // FIXME: 2022-07-18 there maybe something wrong with the ExecutorService and coroutine
         executor.execute {
+            CoreMetrics.EVENT_QUEUE_DELAY.get().recordSince(receiveTime)
             runBlocking {
                 try {
                     TransactionDispatcher.dispatchTDLibEvent(this@RobotServer, resp)
                 } catch (e: Exception) {
+                    CoreMetrics.EVENT_DISPATCH_ERRORS.get().inc()
                     exceptionHandler?.onException(e, Thread.currentThread())
                     Log.e(TAG, "onReceiveTDLibEvent error for $resp", e)
                 }
@@ -203,7 +339,7 @@ class RobotServer private constructor(val baseDir: File) {
         require(designator.isNotEmpty()) { "designator must not be empty" }
         require(designator.matches(Regex("[a-zA-Z0-9_]+"))) { "designator must be a-zA-Z0-9_" }
         synchronized(mLock) {
-            val index = NativeBridge.nativeTDLibCreateClient()
+            val index = transport.createClient()
             if (index < 0) {
                 error("Failed to create new bot: returned index $index")
             }
@@ -222,45 +358,31 @@ class RobotServer private constructor(val baseDir: File) {
         bot: Bot,
         callback: TransactionDispatcher.TransactionCallbackV1
     ): String {
-        val extra: String
-        val requestToSend: String
         val req = JsonParser.parseString(request).asJsonObject
         require(req.has("@type")) { "request must have @type" }
-        if (!req.has("@extra")) {
-            extra = "req_" + nextSequence()
-            req.addProperty("@extra", extra)
-            requestToSend = req.toString()
-        } else {
-            extra = req.get("@extra").asString
-            requestToSend = request
-        }
-        TransactionDispatcher.waitForSingleEvent(extra, callback)
-        NativeBridge.nativeTDLibExecuteAsync(bot.clientIndex, requestToSend)
+        val extra = getOrAddExtra(req)
+        val rtt = CoreMetrics.REQUEST_RTT.labels(bot.designator, req.get("@type").asString)
+        val startTime = System.nanoTime()
+        TransactionDispatcher.waitForSingleEvent(extra, object : TransactionDispatcher.TransactionCallbackV1 {
+            override fun onEvent(event: JsonObject, bot: Bot?, type: String): Boolean {
+                rtt.recordSince(startTime)
+                return callback.onEvent(event, bot, type)
+            }
+        })
+        sendJson(bot, req)
         return extra
     }
 
     fun executeRequestBlocking(request: String, bot: Bot, timeout: Int): JsonObject? {
-        val extra: String
         val req = JsonParser.parseString(request).asJsonObject
         require(req.has("@type")) { "request must have @type" }
-        val requestToSend: String
-        if (!req.has("@extra")) {
-            extra = "req_" + nextSequence()
-            req.addProperty("@extra", extra)
-            requestToSend = req.toString()
-        } else {
-            extra = req.get("@extra").asString
-            requestToSend = request
-        }
-        val result: Array<JsonObject?> = arrayOfNulls(1)
-        val owner = Object()
+        val extra = getOrAddExtra(req)
+        // a future instead of wait/notify, a virtual thread waiting in a monitor would pin its carrier thread
+        val future = CompletableFuture<JsonObject>()
         TransactionDispatcher.waitForSingleEvent(extra, object : TransactionDispatcher.TransactionCallbackV1 {
             override fun onEvent(event: JsonObject, bot: Bot?, type: String): Boolean {
                 return if (BaseTlRpcJsonObject.getExtra(event) == extra) {
-                    synchronized(owner) {
-                        result[0] = event
-                        owner.notifyAll()
-                    }
+                    future.complete(event)
                     true
                 } else {
                     Log.e(TAG, "unexpected event: $event")
@@ -268,43 +390,78 @@ class RobotServer private constructor(val baseDir: File) {
                 }
             }
         })
-        synchronized(owner) {
-            NativeBridge.nativeTDLibExecuteAsync(bot.clientIndex, requestToSend)
-            val start: Long = System.currentTimeMillis()
-            val end = start + timeout
-            while (result[0] == null) {
-                val now = System.currentTimeMillis()
-                val remain = end - now
-                if (remain <= 0) {
-                    break
-                } else {
-                    owner.wait(remain)
+        val method = req.get("@type").asString
+        val startTime = System.nanoTime()
+        sendJson(bot, req)
+        val result: JsonObject? = try {
+            future.get(timeout.toLong(), TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            null
+        }
+        recordRequestResult(bot, method, startTime, result != null)
+        return result
+    }
+
+    /**
+     * A request passed to TDLib, see [sendRequest].
+     */
+    inner class PendingRequest internal constructor(val bot: Bot, val method: String) {
+
+        private val mStartTime = System.nanoTime()
+        internal val response = CompletableFuture<JsonObject>()
+
+        /**
+         * @return the response, or null on timeout
+         */
+        suspend fun await(timeout: Int): JsonObject? {
+            val result = withTimeoutOrNull(timeout.toLong()) {
+                suspendCancellableCoroutine<JsonObject> { cont -> response.thenAccept { cont.resume(it) } }
+            }
+            recordRequestResult(bot, method, mStartTime, result != null)
+            return result
+        }
+
+        /**
+         * Call [callback] with the response, or with null after a timeout, without a waiting coroutine,
+         * e.g. for a request nobody waits for. The request is recorded in the metrics like [await].
+         */
+        fun onResponse(timeout: Int, callback: (JsonObject?) -> Unit) {
+            val done = AtomicBoolean(false)
+            val timeoutTask = timer.newTimeout({
+                if (done.compareAndSet(false, true)) {
+                    recordRequestResult(bot, method, mStartTime, false)
+                    callback(null)
+                }
+            }, timeout.toLong(), TimeUnit.MILLISECONDS)
+            response.thenAccept {
+                if (done.compareAndSet(false, true)) {
+                    timeoutTask.cancel()
+                    recordRequestResult(bot, method, mStartTime, true)
+                    callback(it)
                 }
             }
         }
-        return result[0]
     }
 
-    suspend fun executeRequestSuspended(request: String, bot: Bot, timeout: Int): JsonObject? {
-        val extra: String
+    /**
+     * Pass a request to TDLib and return without waiting for the response.
+     * Requests sent one after another by a caller reach TDLib in the same order.
+     */
+    fun sendRequest(request: String, bot: Bot): PendingRequest {
         val req = JsonParser.parseString(request).asJsonObject
         require(req.has("@type")) { "request must have @type" }
-        val requestToSend: String
-        if (!req.has("@extra")) {
-            extra = "req_" + nextSequence()
-            req.addProperty("@extra", extra)
-            requestToSend = req.toString()
-        } else {
-            extra = req.get("@extra").asString
-            requestToSend = request
-        }
-        val mutex = Mutex(true)
-        val result: Array<JsonObject?> = arrayOfNulls(1)
+        val extra = getOrAddExtra(req)
+        val pending = PendingRequest(bot, req.get("@type").asString)
+        waitForResponse(extra, pending)
+        sendJson(bot, req)
+        return pending
+    }
+
+    private fun waitForResponse(extra: String, pending: PendingRequest) {
         TransactionDispatcher.waitForSingleEvent(extra, object : TransactionDispatcher.TransactionCallbackV1 {
             override fun onEvent(event: JsonObject, bot: Bot?, type: String): Boolean {
                 return if (BaseTlRpcJsonObject.getExtra(event) == extra) {
-                    result[0] = event
-                    mutex.unlock()
+                    pending.response.complete(event)
                     true
                 } else {
                     Log.e(TAG, "unexpected event: $event")
@@ -312,25 +469,55 @@ class RobotServer private constructor(val baseDir: File) {
                 }
             }
         })
-        NativeBridge.nativeTDLibExecuteAsync(bot.clientIndex, requestToSend)
-        val start: Long = System.currentTimeMillis()
-        val end = start + timeout
-        while (result[0] == null) {
-            val now = System.currentTimeMillis()
-            val remain = end - now
-            if (remain <= 0) {
-                break
-            } else {
-                try {
-                    withTimeout(remain) {
-                        mutex.lock()
-                    }
-                } catch (e: TimeoutCancellationException) {
-                    break
-                }
-            }
+    }
+
+    /**
+     * Like [sendRequest], the request is written as UTF-8 by [body] after its "@type", without a String or a
+     * JsonObject of the whole request. The body runs on the calling thread.
+     */
+    fun sendRequest(bot: Bot, type: String, body: (TlRequestWriter) -> Unit): PendingRequest {
+        val extra = "req_" + nextSequence()
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.beginObject().property("@type", type)
+            body(writer)
+            writer.property("@extra", extra).endObject()
+            val pending = PendingRequest(bot, type)
+            waitForResponse(extra, pending)
+            transport.send(bot.clientIndex, writer.buffer(), writer.length())
+            return pending
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    private fun getOrAddExtra(req: JsonObject): String {
+        req.get("@extra")?.let { return it.asString }
+        val extra = "req_" + nextSequence()
+        req.addProperty("@extra", extra)
+        return extra
+    }
+
+    private fun sendJson(bot: Bot, req: JsonObject) {
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.value(req)
+            transport.send(bot.clientIndex, writer.buffer(), writer.length())
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    suspend fun executeRequestSuspended(request: String, bot: Bot, timeout: Int): JsonObject? {
+        return sendRequest(request, bot).await(timeout)
+    }
+
+    private fun recordRequestResult(bot: Bot, method: String, startTime: Long, isSuccess: Boolean) {
+        if (isSuccess) {
+            CoreMetrics.REQUEST_RTT.labels(bot.designator, method).recordSince(startTime)
+        } else {
+            CoreMetrics.REQUEST_TIMEOUTS.labels(bot.designator, method).inc()
         }
-        return result[0]
     }
 
     companion object {
@@ -342,9 +529,18 @@ class RobotServer private constructor(val baseDir: File) {
         @JvmStatic
         @Synchronized
         fun createInstance(workingDir: File): RobotServer {
+            return createInstance(workingDir, NativeTDLibTransport.getInstance())
+        }
+
+        /**
+         * Create the server with the given TDLib transport, e.g. a simulator for load tests.
+         */
+        @JvmStatic
+        @Synchronized
+        fun createInstance(workingDir: File, transport: TDLibTransport): RobotServer {
             check(workingDir.isAbsolute) { "workingDir must be an absolute path" }
             return if (sInstance == null) {
-                val server = RobotServer(workingDir)
+                val server = RobotServer(workingDir, transport)
                 sInstance = server
                 server
             } else {
@@ -356,26 +552,134 @@ class RobotServer private constructor(val baseDir: File) {
             get() = sInstance ?: error("RobotServer is not initialized")
     }
 
+    enum class ExecutionMode {
+        /**
+         * A cached pool of platform threads.
+         */
+        PLATFORM,
+
+        /**
+         * A new virtual thread per task, requires Java 21 or Java 19+ with --enable-preview.
+         */
+        VIRTUAL
+    }
+
     interface ExceptionHandler {
         fun onException(e: Throwable, t: Thread)
     }
 
     fun scheduleTaskDelayed(milliseconds: Long, task: Runnable) {
-        mDelayedTaskExecutor.schedule(task, milliseconds, TimeUnit.MILLISECONDS)
+        scheduleTimeout(milliseconds, null, task)
+    }
+
+    /**
+     * Run a task on [executor] after a delay, with a 1 ms precision.
+     *
+     * @param tag an optional tag, e.g. a chat id, to cancel the task with [cancelTimeouts]
+     * @return the timeout, cancel it to cancel the task
+     */
+    fun scheduleTimeout(milliseconds: Long, tag: Any?, task: Runnable): HashedWheelTimer.Timeout {
+        val dueTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(milliseconds)
+        return timer.newTimeout(wrapDelayedTask(task, dueTime), milliseconds, TimeUnit.MILLISECONDS, tag)
+    }
+
+    /**
+     * Cancel all pending tasks scheduled with [scheduleTimeout] and the given tag.
+     *
+     * @return the number of cancelled tasks
+     */
+    fun cancelTimeouts(tag: Any): Int {
+        return timer.cancelByTag(tag)
     }
 
+    /**
+     * Run a suspend task in [coroutineScope] after a delay. No thread is held while waiting or suspended.
+     *
+     * The task is cancelled when the [Job] of [context] is cancelled, but it is not a child of it: a caller blocked
+     * in runBlocking does not wait for it, and it still runs after the caller completed normally.
+     *
+     * This returned Unit before, the Unit variant is kept for compiled callers.
+     *
+     * @param context additional elements of the task, e.g. a [kotlinx.coroutines.CoroutineName], and the job
+     * cancelling it; its dispatcher is ignored, the task runs on [executor]
+     * @return the job of the task, cancel it to cancel the task
+     */
     fun scheduleTaskDelayedWithContext(
         context: CoroutineContext,
         milliseconds: Long,
         task: suspend CoroutineScope.() -> Unit
-    ) {
-        mDelayedTaskExecutor.schedule({
-            runBlocking {
-                withContext(context) {
-                    task()
+    ): Job {
+        val elements = context.minusKey(Job).minusKey(ContinuationInterceptor)
+        val job = launchDelayed(coroutineScope, elements, milliseconds, task)
+        val callerJob = context[Job]
+        if (callerJob != null) {
+            val handle = callerJob.invokeOnCompletion { cause ->
+                if (cause != null) {
+                    job.cancel(CancellationException("the caller is cancelled", cause))
                 }
             }
-        }, milliseconds, TimeUnit.MILLISECONDS)
+            job.invokeOnCompletion { handle.dispose() }
+        }
+        return job
+    }
+
+    @Deprecated("Returns the job of the task", level = DeprecationLevel.HIDDEN)
+    @JvmName("scheduleTaskDelayedWithContext")
+    fun scheduleTaskDelayedWithContextCompat(
+        context: CoroutineContext,
+        milliseconds: Long,
+        task: suspend CoroutineScope.() -> Unit
+    ) {
+        scheduleTaskDelayedWithContext(context, milliseconds, task)
+    }
+
+    /**
+     * Run a suspend task as a child of [scope] after a delay, cancelled together with the scope,
+     * e.g. [cc.ioctl.telebot.plugin.PluginBase.pluginScope].
+     *
+     * @return the job of the task, cancel it to cancel the task
+     */
+    fun scheduleTaskDelayedInScope(
+        scope: CoroutineScope,
+        milliseconds: Long,
+        task: suspend CoroutineScope.() -> Unit
+    ): Job {
+        return launchDelayed(scope, EmptyCoroutineContext, milliseconds, task)
+    }
+
+    private fun launchDelayed(
+        scope: CoroutineScope,
+        context: CoroutineContext,
+        milliseconds: Long,
+        task: suspend CoroutineScope.() -> Unit
+    ): Job {
+        val dueTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(milliseconds)
+        return scope.launch(context) {
+            delayOnTimer(milliseconds)
+            CoreMetrics.DELAYED_TASK_LAG.get().recordSince(dueTime)
+            task()
+        }
+    }
+
+    // like delay(), but on the timing wheel, which is cheaper to cancel than the heap of the default delay
+    private suspend fun delayOnTimer(milliseconds: Long) {
+        suspendCancellableCoroutine<Unit> { cont ->
+            val timeout = timer.newTimeout({ cont.resume(Unit) }, milliseconds, TimeUnit.MILLISECONDS)
+            cont.invokeOnCancellation { timeout.cancel() }
+        }
+    }
+
+    private fun wrapDelayedTask(task: Runnable, dueTime: Long): Runnable {
+        return Runnable {
+            CoreMetrics.DELAYED_TASK_LAG.get().recordSince(dueTime)
+            try {
+                task.run()
+            } catch (e: Exception) {
+                CoreMetrics.DELAYED_TASK_ERRORS.get().inc()
+                exceptionHandler?.onException(e, Thread.currentThread())
+                Log.e(TAG, "delayed task error", e)
+            }
+        }
     }
 
 }
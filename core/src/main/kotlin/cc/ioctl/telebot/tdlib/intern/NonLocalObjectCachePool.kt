@@ -1,5 +1,7 @@
 package cc.ioctl.telebot.tdlib.intern
 
+import cc.ioctl.telebot.metrics.Counter
+import cc.ioctl.telebot.metrics.CoreMetrics
 import cc.ioctl.telebot.tdlib.RobotServer
 import cc.ioctl.telebot.tdlib.obj.Channel
 import cc.ioctl.telebot.tdlib.obj.Group
@@ -23,9 +25,29 @@ class NonLocalObjectCachePool internal constructor(
     private val mLruChannelCache = LinkedHashMap<Long, Channel>(16)
     private val mLruPrivateChatCache = LinkedHashMap<Long, PrivateChatSession>(16)
 
+    private class CacheStats(kind: String, sizeSupplier: () -> Int) {
+        val hit: Counter = CoreMetrics.OBJECT_CACHE_REQUESTS.labels(kind, "hit")
+        val miss: Counter = CoreMetrics.OBJECT_CACHE_REQUESTS.labels(kind, "miss")
+
+        init {
+            CoreMetrics.OBJECT_CACHE_SIZE.labels(kind).setSupplier { sizeSupplier().toLong() }
+        }
+
+        fun <T> record(value: T?): T? {
+            if (value != null) hit.inc() else miss.inc()
+            return value
+        }
+    }
+
+    // the sizes are read without the lock, a stale value is fine for metrics
+    private val mUserStats = CacheStats("user") { mLruUserCache.size }
+    private val mGroupStats = CacheStats("group") { mLruGroupCache.size }
+    private val mChannelStats = CacheStats("channel") { mLruChannelCache.size }
+    private val mPrivateChatStats = CacheStats("private_chat") { mLruPrivateChatCache.size }
+
     fun getOrCreateUser(userId: Long): User {
         synchronized(mLock) {
-            return mLruUserCache[userId] ?: User(server, userId).also {
+            return mUserStats.record(mLruUserCache[userId]) ?: User(server, userId).also {
                 mLruUserCache[userId] = it
             }
         }
@@ -36,14 +58,14 @@ class NonLocalObjectCachePool internal constructor(
             return null
         }
         synchronized(mLock) {
-            return mLruUserCache[uid]
+            return mUserStats.record(mLruUserCache[uid])
         }
     }
 
 
     fun getOrCreateGroup(groupId: Long): Group {
         synchronized(mLock) {
-            return mLruGroupCache[groupId] ?: Group(server, groupId).also {
+            return mGroupStats.record(mLruGroupCache[groupId]) ?: Group(server, groupId).also {
                 mLruGroupCache[groupId] = it
             }
         }
@@ -51,7 +73,7 @@ class NonLocalObjectCachePool internal constructor(
 
     fun getOrCreateChannel(channelId: Long): Channel {
         synchronized(mLock) {
-            return mLruChannelCache[channelId] ?: Channel(server, channelId).also {
+            return mChannelStats.record(mLruChannelCache[channelId]) ?: Channel(server, channelId).also {
                 mLruChannelCache[channelId] = it
             }
         }
@@ -59,7 +81,7 @@ class NonLocalObjectCachePool internal constructor(
 
     fun getOrCreatePrivateChat(chatId: Long, userId: Long): PrivateChatSession {
         synchronized(mLock) {
-            return mLruPrivateChatCache[chatId] ?: PrivateChatSession(server, userId).also {
+            return mPrivateChatStats.record(mLruPrivateChatCache[chatId]) ?: PrivateChatSession(server, userId).also {
                 mLruPrivateChatCache[chatId] = it
             }
         }
@@ -67,7 +89,7 @@ class NonLocalObjectCachePool internal constructor(
 
     fun getCachedPrivateChat(chatId: Long): PrivateChatSession? {
         synchronized(mLock) {
-            return mLruPrivateChatCache[chatId]
+            return mPrivateChatStats.record(mLruPrivateChatCache[chatId])
         }
     }
 
@@ -76,7 +98,7 @@ class NonLocalObjectCachePool internal constructor(
             return null
         }
         synchronized(mLock) {
-            return mLruGroupCache[uid]
+            return mGroupStats.record(mLruGroupCache[uid])
         }
     }
 
@@ -85,7 +107,7 @@ class NonLocalObjectCachePool internal constructor(
             return null
         }
         synchronized(mLock) {
-            return mLruChannelCache[uid]
+            return mChannelStats.record(mLruChannelCache[uid])
         }
     }
 
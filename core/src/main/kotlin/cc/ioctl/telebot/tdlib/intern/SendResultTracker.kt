@@ -0,0 +1,108 @@
+package cc.ioctl.telebot.tdlib.intern
+
+import cc.ioctl.telebot.tdlib.tlrpc.api.msg.Message
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Hands the result of a sent message, from updateMessageSendSucceeded, updateMessageSendFailed or
+ * updateDeleteMessages, to the sender waiting for it, by chat id and temporary message id.
+ *
+ * The result may be dispatched before the sender gets the temporary id in the response of sendMessage,
+ * it is kept until the sender asks for it. Results nobody asked for, e.g. of a sender that timed out,
+ * are evicted after [unclaimedTtlMillis].
+ */
+internal class SendResultTracker(private val unclaimedTtlMillis: Long) {
+
+    class Result(val message: Message?, val errorCode: Int, val errorMsg: String?)
+
+    private class Key(val chatId: Long, val msgId: Long) {
+
+        override fun equals(other: Any?): Boolean {
+            return other is Key && other.chatId == chatId && other.msgId == msgId
+        }
+
+        override fun hashCode(): Int {
+            return (chatId * 31 + msgId).hashCode()
+        }
+    }
+
+    private class Slot(val createTime: Long) {
+        val result = CompletableDeferred<Result>()
+
+        @Volatile
+        var hasWaiter = false
+
+        // nobody will ask for the result
+        @Volatile
+        var isDiscarded = false
+    }
+
+    init {
+        require(unclaimedTtlMillis > 0) { "unclaimedTtlMillis must be positive, got $unclaimedTtlMillis" }
+    }
+
+    private val mSlots = ConcurrentHashMap<Key, Slot>()
+    private val mLastSweepTime = AtomicLong(System.currentTimeMillis())
+
+    val size: Int get() = mSlots.size
+
+    /**
+     * Complete the send, the result is kept if the sender is not waiting yet.
+     *
+     * @return true if the sender was waiting
+     */
+    fun complete(chatId: Long, msgId: Long, result: Result): Boolean {
+        val now = System.currentTimeMillis()
+        val key = Key(chatId, msgId)
+        val slot = mSlots.computeIfAbsent(key) { Slot(now) }
+        slot.result.complete(result)
+        if (slot.isDiscarded) {
+            mSlots.remove(key, slot)
+        }
+        sweepIfNeeded(now)
+        return slot.hasWaiter
+    }
+
+    /**
+     * @return the result, or null on timeout
+     */
+    suspend fun await(chatId: Long, msgId: Long, timeoutMillis: Long): Result? {
+        val key = Key(chatId, msgId)
+        val now = System.currentTimeMillis()
+        val slot = mSlots.computeIfAbsent(key) { Slot(now) }
+        slot.hasWaiter = true
+        sweepIfNeeded(now)
+        try {
+            return withTimeoutOrNull(timeoutMillis) { slot.result.await() }
+        } finally {
+            mSlots.remove(key, slot)
+        }
+    }
+
+    /**
+     * Drop the result of a send nobody waits for, now or when it arrives.
+     */
+    fun discard(chatId: Long, msgId: Long) {
+        val key = Key(chatId, msgId)
+        val now = System.currentTimeMillis()
+        val slot = mSlots.computeIfAbsent(key) { Slot(now) }
+        slot.isDiscarded = true
+        // the result may have been stored before the flag was seen
+        if (slot.result.isCompleted) {
+            mSlots.remove(key, slot)
+        }
+        sweepIfNeeded(now)
+    }
+
+    private fun sweepIfNeeded(now: Long) {
+        val last = mLastSweepTime.get()
+        if (now - last < unclaimedTtlMillis || !mLastSweepTime.compareAndSet(last, now)) {
+            return
+        }
+        val expired = now - unclaimedTtlMillis
+        mSlots.values.removeIf { !it.hasWaiter && it.createTime < expired }
+    }
+}
@@ -2,12 +2,20 @@ package cc.ioctl.telebot.tdlib.obj
 
 import cc.ioctl.telebot.EventHandler
 import cc.ioctl.telebot.TransactionDispatcher
+import cc.ioctl.telebot.broadcast.BroadcastManager
+import cc.ioctl.telebot.files.DownloadManager
+import cc.ioctl.telebot.files.UploadCache
+import cc.ioctl.telebot.image.EncodedImage
+import cc.ioctl.telebot.intern.NativeComponent
+import cc.ioctl.telebot.metrics.CoreMetrics
 import cc.ioctl.telebot.tdlib.RobotServer
+import cc.ioctl.telebot.tdlib.intern.SendResultTracker
 import cc.ioctl.telebot.tdlib.obj.SessionInfo.Companion.CHAT_ID_NEGATIVE_NOTATION
 import cc.ioctl.telebot.tdlib.obj.SessionInfo.Companion.chatIdToGroupId
 import cc.ioctl.telebot.tdlib.obj.SessionInfo.Companion.groupIdToChatId
 import cc.ioctl.telebot.tdlib.tlrpc.BaseTlRpcJsonObject
 import cc.ioctl.telebot.tdlib.tlrpc.RemoteApiException
+import cc.ioctl.telebot.tdlib.tlrpc.TlRequestWriter
 import cc.ioctl.telebot.tdlib.tlrpc.api.InputFile
 import cc.ioctl.telebot.tdlib.tlrpc.api.auth.SetTdlibParameters
 import cc.ioctl.telebot.tdlib.tlrpc.api.channel.ChannelMemberStatusEvent
@@ -17,32 +25,113 @@ import cc.ioctl.telebot.tdlib.tlrpc.api.msg.FormattedText
 import cc.ioctl.telebot.tdlib.tlrpc.api.msg.Message
 import cc.ioctl.telebot.tdlib.tlrpc.api.msg.ReplyMarkup
 import cc.ioctl.telebot.tdlib.tlrpc.api.query.CallbackQuery
-import cc.ioctl.telebot.util.Condition
+import cc.ioctl.telebot.util.Base64
+import cc.ioctl.telebot.util.ImageHeaderParser
 import cc.ioctl.telebot.util.IoUtils
 import cc.ioctl.telebot.util.Log
+import cc.ioctl.telebot.util.logD
+import cc.ioctl.telebot.util.logI
 import com.google.gson.JsonArray
+import com.google.gson.JsonElement
 import com.google.gson.JsonObject
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.withContext
-import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
 import org.jetbrains.skija.Image
 import java.io.File
 import java.io.IOException
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.coroutines.CoroutineContext
-import kotlin.time.Duration.Companion.milliseconds
+import kotlin.math.min
 
 class Bot internal constructor(
-    val server: RobotServer, val clientIndex: Int, designator: String
+    val server: RobotServer, val clientIndex: Int, val designator: String
 ) : Account() {
 
     companion object {
         private const val TAG = "Bot"
+        // results that arrive after the sender gave up are dropped after this
+        private const val UNCLAIMED_SEND_RESULT_TTL_MILLIS = 60_000L
+        private const val GENERATED_FILE_PREFIX = "telebot-image://"
+        private const val GENERATED_FILE_CONVERSION = "telebot_image"
+        private const val GENERATED_FILE_CHUNK_SIZE = 512 * 1024
+
+        // input message content type -> the field of the file to upload
+        private val UPLOAD_FILE_FIELDS = mapOf(
+            "inputMessagePhoto" to "photo",
+            "inputMessageDocument" to "document",
+            "inputMessageVideo" to "video",
+            "inputMessageAnimation" to "animation",
+            "inputMessageAudio" to "audio",
+            "inputMessageSticker" to "sticker",
+            "inputMessageVoiceNote" to "voice_note",
+            "inputMessageVideoNote" to "video_note",
+        )
+
+        // message content type -> the path of the uploaded file, photos take their largest size
+        private val MESSAGE_FILE_FIELDS = mapOf(
+            "messageDocument" to ("document" to "document"),
+            "messageVideo" to ("video" to "video"),
+            "messageAnimation" to ("animation" to "animation"),
+            "messageAudio" to ("audio" to "audio"),
+            "messageSticker" to ("sticker" to "sticker"),
+            "messageVoiceNote" to ("voice_note" to "voice"),
+            "messageVideoNote" to ("video_note" to "video"),
+        )
+
+        // errors of a remote file id which is no longer valid, any other 400 is not caused by the cached file
+        private val REMOTE_FILE_ERRORS = arrayOf(
+            "FILE_REFERENCE_",
+            "FILE_ID_INVALID",
+            "MEDIA_EMPTY",
+            "Wrong file identifier",
+            "Wrong remote file identifier",
+        )
+
+        private fun isRemoteFileRejected(e: RemoteApiException): Boolean {
+            val message = e.message ?: return false
+            return e.code == 400 && REMOTE_FILE_ERRORS.any { message.contains(it) }
+        }
+
+        /**
+         * Write an input message content, a frozen text is added by its bytes to a content without one.
+         */
+        private fun TlRequestWriter.inputMessageContent(content: JsonObject, frozenText: FormattedText.Frozen?) {
+            if (frozenText == null) {
+                property("input_message_content", content)
+                return
+            }
+            name("input_message_content").beginObject()
+            for ((name, value) in content.entrySet()) {
+                property(name, value)
+            }
+            property("text", frozenText.json).endObject()
+        }
+
+        /**
+         * Write a frozen markup by its bytes, any other one as [json], its conversion.
+         */
+        private fun TlRequestWriter.replyMarkup(markup: ReplyMarkup?, json: JsonObject?) {
+            if (markup is ReplyMarkup.Frozen) {
+                property("reply_markup", markup.json)
+            } else {
+                property("reply_markup", json)
+            }
+        }
     }
 
+    private class CachedUpload(val contentHash: String, val remoteContent: JsonObject?)
+
     override var userId: Long = 0L
 
     override var username: String? = null
@@ -67,6 +156,29 @@ class Bot internal constructor(
 
     private val mDataBaseDir = File(server.tdlibDir, designator)
 
+    @Volatile
+    private var mDownloadManager: DownloadManager? = null
+
+    /**
+     * The downloads of this bot, created on first use.
+     */
+    val downloadManager: DownloadManager
+        get() = mDownloadManager ?: synchronized(mListenerLock) {
+            mDownloadManager ?: DownloadManager(this, server.downloadCache, server.maxConcurrentDownloadsPerBot)
+                .also { mDownloadManager = it }
+        }
+
+    @Volatile
+    private var mBroadcastManager: BroadcastManager? = null
+
+    /**
+     * The broadcasts of this bot, created on first use.
+     */
+    val broadcasts: BroadcastManager
+        get() = mBroadcastManager ?: synchronized(mListenerLock) {
+            mBroadcastManager ?: BroadcastManager(this, server.broadcastStore).also { mBroadcastManager = it }
+        }
+
     private val mOnRecvMsgListeners = HashSet<EventHandler.MessageListenerV1>(1)
     private val mOnGroupEventListeners = HashSet<EventHandler.GroupPermissionListenerV2>(1)
     private val mGroupMemberJoinRequestListenerV1 = HashSet<EventHandler.GroupMemberJoinRequestListenerV2>(1)
@@ -76,21 +188,11 @@ class Bot internal constructor(
         IoUtils.mkdirsOrThrow(mDataBaseDir)
     }
 
-    internal data class TransientMessageHolder(
-        val chatId: Long,
-        val oldMsgId: Long,
-        val oldMessage: Message,
-        val time: Long,
-        val lock: Mutex,
-        @Volatile var newMessage: Message? = null,
-        @Volatile var errorCode: Int = 0,
-        @Volatile var errorMsg: String? = null
-    )
-
-    private val mTransientMessageLock = Any()
+    // the results of pending messages by chat id and old message id
+    private val mSendResults = SendResultTracker(UNCLAIMED_SEND_RESULT_TTL_MILLIS)
 
-    // key is "chatId_oldMsgId", guarded by mTransientMessageLock
-    private val mTransientMessages = HashMap<String, TransientMessageHolder>(1)
+    // original path of an inputFileGenerated -> the content, until the message is sent
+    private val mGeneratedFiles = ConcurrentHashMap<String, ByteArray>()
 
     private var mDefaultLogOnlyErrorHandler = object : TransactionDispatcher.TransactionCallbackV1 {
         override fun onEvent(event: JsonObject, bot: Bot?, type: String): Boolean {
@@ -118,10 +220,12 @@ class Bot internal constructor(
     val isAuthenticated: Boolean
         get() = userId != 0L && mAuthState == AuthState.AUTHORIZED
 
+    @Volatile
     private var mAuthState: AuthState = AuthState.UNINITIALIZED
     private var mAuthBotToken: String? = null
     private var mAuthUserPhone: String? = null
-    private val mAuthStateCondition = Condition(Mutex(true))
+    // counts the notified results, so that one notified before the wait is not lost
+    private val mAuthResultCount = MutableStateFlow(0)
     private val mAuthStateLastErrorMsg: String? = null
 
     private enum class AuthState {
@@ -163,6 +267,9 @@ class Bot internal constructor(
             "updateFile" -> {
                 handleUpdateFile(event)
             }
+            "updateFileGenerationStart" -> {
+                handleUpdateFileGenerationStart(event)
+            }
             "updateMessageEdited" -> {
                 handleUpdateMessageEdited(event)
             }
@@ -208,7 +315,7 @@ class Bot internal constructor(
             "updateChatPhoto" -> {
                 handleUpdateChatPhoto(event)
             }
-            "updateSelectedBackground", "updateFileDownloads",
+            "updateSelectedBackground", "updateFileDownloads", "updateFileGenerationStop",
             "updateChatThemes", "updateDiceEmojis", "updateDefaultReactionType",
             "updateAnimationSearchParameters", "updateRecentStickers", "updateReactions", "updateChatPosition" -> {
                 // ignore
@@ -235,7 +342,7 @@ class Bot internal constructor(
             "updateBasicGroup" -> {
                 val basicGroup = event.getAsJsonObject("basic_group")
                 val uid = basicGroup.get("id").asLong
-                Log.d(TAG, "handleUpdateTypedGroup: basicGroup: $basicGroup")
+                logD(TAG) { "handleUpdateTypedGroup: basicGroup: $basicGroup" }
                 return true
             }
             else -> {
@@ -271,7 +378,7 @@ class Bot internal constructor(
         check(chatId < 0) { "handleUpdateChatMember: chatId=$chatId is not a group" }
         val gid = if (chatId < CHAT_ID_NEGATIVE_NOTATION) chatIdToGroupId(chatId) else -chatId
         val perm = ChatPermissions.fromJsonObject(ChatPermissions::class.java, permissions)
-        Log.d(TAG, "handleUpdateChatPermissions: gid: $gid, permissions: $permissions")
+        logD(TAG) { "handleUpdateChatPermissions: gid: $gid, permissions: $permissions" }
         for (listener in synchronized(mListenerLock) { mOnGroupEventListeners.toList() }) {
             listener.onGroupDefaultPermissionsChanged(this, gid, perm)
         }
@@ -336,17 +443,10 @@ class Bot internal constructor(
         }
         // TDLib docs say that some messages being sent can be irrecoverably deleted,
         // in which case updateDeleteMessages will be received instead of updateMessageSendFailed.
-        synchronized(mTransientMessageLock) {
-            for (msgId in messageIds) {
-                val key = "${chatId}_${msgId}"
-                val holder = mTransientMessages[key]
-                if (holder != null && holder.lock.isLocked) {
-                    holder.newMessage = holder.oldMessage
-                    holder.errorCode = 500
-                    holder.errorMsg = "message has been deleted"
-                    holder.lock.unlock()
-                }
-            }
+        // It may arrive before the sender waits, so it is kept like the other results, most are never claimed.
+        val deleted = SendResultTracker.Result(null, 500, "message has been deleted")
+        for (msgId in messageIds) {
+            mSendResults.complete(chatId, msgId, deleted)
         }
         val si = SessionInfo.forTDLibChatId(chatId)
         for (listener in synchronized(mListenerLock) { mOnRecvMsgListeners.toList() }) {
@@ -382,21 +482,7 @@ class Bot internal constructor(
         val senderId = msg.senderId
         val si = msg.sessionInfo
         val oldMsgId = update.get("old_message_id").asLong
-        var hasOwner = false
-        synchronized(mTransientMessageLock) {
-            val key = "${si.toTDLibChatId()}_${oldMsgId}"
-            val holder = mTransientMessages[key]
-            if (holder != null) {
-                holder.newMessage = msg
-                val lock = holder.lock
-                hasOwner = true
-                if (lock.isLocked) {
-                    lock.unlock()
-                } else {
-                    Log.e(TAG, "handleUpdateMessageSendSucceeded: mutex is not locked")
-                }
-            }
-        }
+        val hasOwner = mSendResults.complete(si.toTDLibChatId(), oldMsgId, SendResultTracker.Result(msg, 0, null))
         if (!hasOwner) {
             val logMsg =
                 "handleUpdateMessageSendSucceeded but no owner: " + "$si, msgId=$msgId, oldMsgId=$oldMsgId, senderId=$senderId"
@@ -414,21 +500,7 @@ class Bot internal constructor(
         val oldMsgId = update.get("old_message_id").asLong
         val errorMsg = update.get("error_message").asString
         val errorCode = update.get("error_code").asInt
-        synchronized(mTransientMessageLock) {
-            val key = "${si.toTDLibChatId()}_${oldMsgId}"
-            val holder = mTransientMessages[key]
-            if (holder != null) {
-                holder.newMessage = msg
-                holder.errorCode = errorCode
-                holder.errorMsg = errorMsg
-                val lock = holder.lock
-                if (lock.isLocked) {
-                    lock.unlock()
-                } else {
-                    Log.e(TAG, "handleUpdateMessageSendFailed: mutex is not locked")
-                }
-            }
-        }
+        mSendResults.complete(si.toTDLibChatId(), oldMsgId, SendResultTracker.Result(msg, errorCode, errorMsg))
         val logMsg = "handleUpdateMessageSendFailed: " + "$si, msgId=$msgId, oldMsgId=$oldMsgId, senderId=$senderId"
         Log.w(TAG, logMsg)
         return true
@@ -464,10 +536,62 @@ class Bot internal constructor(
     }
 
     private fun handleUpdateFile(event: JsonObject): Boolean {
-        // Log.v(TAG, "handleUpdateFile: $event")
+        mDownloadManager?.onUpdateFile(event.getAsJsonObject("file"))
+        return true
+    }
+
+    private fun handleUpdateFileGenerationStart(event: JsonObject): Boolean {
+        // int64 as a string, passed back as is
+        val generationId = event.get("generation_id")
+        val path = event.get("original_path").asString
+        val data = if (event.get("conversion").asString == GENERATED_FILE_CONVERSION) mGeneratedFiles[path] else null
+        server.coroutineScope.launch {
+            writeGeneratedFile(generationId, path, data)
+        }
         return true
     }
 
+    private suspend fun writeGeneratedFile(generationId: JsonElement, path: String, data: ByteArray?) {
+        var errorMsg: String? = null
+        if (data == null) {
+            errorMsg = "no content for $path"
+        } else {
+            try {
+                var offset = 0
+                while (offset < data.size) {
+                    val length = min(GENERATED_FILE_CHUNK_SIZE, data.size - offset)
+                    val result = executeRequest(JsonObject().apply {
+                        addProperty("@type", "writeGeneratedFilePart")
+                        add("generation_id", generationId)
+                        addProperty("offset", offset)
+                        addProperty("data", Base64.encodeToString(data, offset, length, Base64.NO_WRAP))
+                    }.toString(), server.defaultTimeout) ?: throw IOException("Timeout executing writeGeneratedFilePart")
+                    BaseTlRpcJsonObject.throwRemoteApiExceptionIfError(result)
+                    offset += length
+                }
+            } catch (e: Exception) {
+                errorMsg = e.toString()
+            }
+        }
+        if (errorMsg != null) {
+            Log.e(TAG, "failed to generate $path: $errorMsg")
+        }
+        val result = executeRequest(JsonObject().apply {
+            addProperty("@type", "finishFileGeneration")
+            add("generation_id", generationId)
+            add("error", errorMsg?.let {
+                JsonObject().apply {
+                    addProperty("@type", "error")
+                    addProperty("code", 400)
+                    addProperty("message", it)
+                }
+            })
+        }.toString(), server.defaultTimeout)
+        if (result == null || BaseTlRpcJsonObject.getType(result) == "error") {
+            Log.e(TAG, "finishFileGeneration for $path failed: $result")
+        }
+    }
+
     private fun handleUpdateChatHasProtectedContent(event: JsonObject): Boolean {
         val obj = event
         BaseTlRpcJsonObject.checkTypeNonNull(obj, "updateChatHasProtectedContent")
@@ -537,7 +661,7 @@ class Bot internal constructor(
             return true
         } else {
             val userId = chatId
-            Log.i(TAG, obj.toString())
+            logI(TAG) { obj.toString() }
             return true
         }
     }
@@ -660,7 +784,7 @@ class Bot internal constructor(
     }
 
     private fun handleUpdateUserStatus(event: JsonObject): Boolean {
-        Log.i(TAG, "handleUpdateUserStatus: $event")
+        logI(TAG) { "handleUpdateUserStatus: $event" }
         return true
     }
 
@@ -687,13 +811,16 @@ class Bot internal constructor(
                         val request = JsonObject()
                         request.addProperty("@type", "checkAuthenticationBotToken")
                         request.addProperty("token", mAuthBotToken)
+                        mAuthBotToken = null
+                        // set before sending, the response may arrive on another thread at any time
+                        mAuthState = AuthState.WAIT_RESPONSE
                         executeRawRequestAsync(request.toString()) { result, _, type ->
                             if (type == "error") {
                                 Log.e(TAG, "checkAuthenticationBotToken: error: $result")
                                 mAuthState = AuthState.INVALID_CREDENTIALS;
                                 notifyAuthorizationResult(false, result["message"].asString)
                             } else if (type == "ok") {
-                                Log.d(TAG, "checkAuthenticationBotToken: ok: $result")
+                                logD(TAG) { "checkAuthenticationBotToken: ok: $result" }
                                 mAuthState = AuthState.AUTHORIZED
                                 notifyAuthorizationResult(true, null)
                             } else {
@@ -705,8 +832,6 @@ class Bot internal constructor(
                             }
                             return@executeRawRequestAsync true
                         }
-                        mAuthBotToken = null
-                        mAuthState = AuthState.WAIT_RESPONSE
                         return true
                     } else if (!mAuthUserPhone.isNullOrBlank()) {
                         // send phone number
@@ -723,13 +848,15 @@ class Bot internal constructor(
                             addProperty("phone_number", mAuthUserPhone)
                             add("settings", authSettings)
                         }
+                        mAuthBotToken = null
+                        mAuthState = AuthState.WAIT_RESPONSE
                         executeRawRequestAsync(request.toString()) { result, _, type ->
                             if (type == "error") {
                                 Log.e(TAG, "setAuthenticationPhoneNumber: error: $result")
                                 mAuthState = AuthState.INVALID_CREDENTIALS;
                                 notifyAuthorizationResult(false, result["message"].asString)
                             } else if (type == "ok") {
-                                Log.d(TAG, "setAuthenticationPhoneNumber: ok: $result")
+                                logD(TAG) { "setAuthenticationPhoneNumber: ok: $result" }
                                 mAuthState = AuthState.WAIT_CODE
                             } else {
                                 Log.e(TAG, "Unexpected result setting authentication phone number: $result")
@@ -740,8 +867,6 @@ class Bot internal constructor(
                             }
                             return@executeRawRequestAsync true
                         }
-                        mAuthBotToken = null
-                        mAuthState = AuthState.WAIT_RESPONSE
                     }
                     return true;
                 } else {
@@ -785,7 +910,7 @@ class Bot internal constructor(
     private fun notifyAuthorizationResult(isSuccess: Boolean, errorMsg: String?) {
         Log.d(TAG, "notifyAuthorizationResult: $isSuccess, $errorMsg")
         server.onBotAuthenticationStatusChanged(this)
-        mAuthStateCondition.signalAll()
+        mAuthResultCount.update { it + 1 }
     }
 
     private suspend fun sendTdLibParameters() {
@@ -800,6 +925,8 @@ class Bot internal constructor(
         require(token.isNotEmpty()) { "Token is empty" }
         check(mAuthState != AuthState.AUTHORIZED) { "Bot is already authorized, uid: $userId" }
         Log.d(TAG, "loginWithBotToken, mAuthState: $mAuthState, clientId: $clientIndex")
+        // taken before any request, a result notified from now on ends the wait below
+        val resultCount = mAuthResultCount.value
         mAuthBotToken = token;
         if (mAuthState == AuthState.WAIT_TOKEN || mAuthState == AuthState.INVALID_CREDENTIALS) {
             Log.d(TAG, "try auth with bot token")
@@ -807,11 +934,11 @@ class Bot internal constructor(
                 addProperty("@type", "checkAuthenticationBotToken")
                 addProperty("token", token)
             }
-            executeRawRequestAsyncExpectSuccess(request)
             mAuthState = AuthState.WAIT_RESPONSE
+            executeRawRequestAsyncExpectSuccess(request)
         } else {
-            if (clientIndex == 1 && mAuthState == AuthState.UNINITIALIZED) {
-                // send a request to start procedure
+            if (mAuthState == AuthState.UNINITIALIZED) {
+                // TDLib does not send updates to a new client until its first request, send one to start it
                 executeRawRequestAsync(JsonObject().apply {
                     addProperty("@type", "getOption")
                     addProperty("name", "my_id")
@@ -825,6 +952,8 @@ class Bot internal constructor(
                             }
                             true
                         }
+                        // not logged in yet
+                        "optionValueEmpty" -> true
                         else -> {
                             Log.e(TAG, "Unexpected result getting my_id: $result")
                             true
@@ -834,8 +963,20 @@ class Bot internal constructor(
             }
         }
         // wait for response
-        val ret = mAuthStateCondition.await(server.defaultTimeout.toLong().milliseconds)
+        val ret = withTimeoutOrNull(server.defaultTimeout.toLong()) {
+            mAuthResultCount.first { it != resultCount }
+        } != null
         Log.d(TAG, "await result: $ret")
+        if (mAuthState == AuthState.AUTHORIZED && userId == 0L) {
+            // updateOption my_id may be dispatched after the authorization result
+            val result = executeRequest(JsonObject().apply {
+                addProperty("@type", "getOption")
+                addProperty("name", "my_id")
+            }.toString(), server.defaultTimeout)
+            if (result != null && BaseTlRpcJsonObject.getType(result) == "optionValueInteger") {
+                userId = result.get("value").asLong
+            }
+        }
         return if (mAuthState == AuthState.AUTHORIZED) userId else 0L
     }
 
@@ -925,6 +1066,10 @@ class Bot internal constructor(
         return true
     }
 
+    /**
+     * Send a message and wait until it is sent. A local file already uploaded with the same content is sent by its
+     * remote file id, see [RobotServer.uploadCache].
+     */
     @Throws(RemoteApiException::class, IOException::class)
     suspend fun sendMessageRawEx(
         si: SessionInfo,
@@ -934,19 +1079,217 @@ class Bot internal constructor(
         replyMsgId: Long = 0,
         options: JsonObject? = null
     ): Message {
+        return sendAndWait(SendRequest(si, inputMessageContent, replyMarkup, msgThreadId, replyMsgId, options))
+    }
+
+    private suspend fun sendAndWait(request: SendRequest): Message {
+        val upload = server.uploadCache?.let { resolveCachedUpload(it, request.content) }
+        return completeSend(request, upload, submitSend(request, upload))
+    }
+
+    /**
+     * Send a message without waiting for it to be sent, so that many messages can be in flight at once.
+     *
+     * Returns once the request is passed to TDLib, messages sent one after another in a chat keep their order.
+     * A message resent after its cached remote file was rejected may come after later ones.
+     *
+     * @return the sent message, fails like [sendMessageRawEx]
+     */
+    @Throws(RemoteApiException::class, IOException::class)
+    suspend fun sendMessageRawDeferred(
+        si: SessionInfo,
+        inputMessageContent: JsonObject,
+        replyMarkup: ReplyMarkup? = null,
+        msgThreadId: Long = 0,
+        replyMsgId: Long = 0,
+        options: JsonObject? = null
+    ): Deferred<Message> {
+        return sendDeferred(SendRequest(si, inputMessageContent, replyMarkup, msgThreadId, replyMsgId, options))
+    }
+
+    private suspend fun sendDeferred(request: SendRequest): Deferred<Message> {
+        val upload = server.uploadCache?.let { resolveCachedUpload(it, request.content) }
+        val pending = submitSend(request, upload)
+        return server.coroutineScope.async { completeSend(request, upload, pending) }
+    }
+
+    /**
+     * Send a message and forget it, a failure is only logged. The order is kept like [sendMessageRawDeferred].
+     * A local file is recorded in [RobotServer.uploadCache] once the message is sent, but it is not sent again
+     * if its cached remote file was rejected.
+     */
+    @Throws(IOException::class)
+    suspend fun sendMessageRawNoWait(
+        si: SessionInfo,
+        inputMessageContent: JsonObject,
+        replyMarkup: ReplyMarkup? = null,
+        msgThreadId: Long = 0,
+        replyMsgId: Long = 0,
+        options: JsonObject? = null
+    ) {
+        sendNoWait(SendRequest(si, inputMessageContent, replyMarkup, msgThreadId, replyMsgId, options))
+    }
+
+    private suspend fun sendNoWait(request: SendRequest) {
+        val upload = server.uploadCache?.let { resolveCachedUpload(it, request.content) }
+        val pending = submitSend(request, upload)
+        val si = request.si
         val chatId = si.toTDLibChatId()
-        val request = JsonObject().apply {
-            addProperty("@type", "sendMessage")
-            addProperty("chat_id", chatId)
-            add("input_message_content", inputMessageContent)
-            add("reply_markup", replyMarkup?.toJsonObject())
-            addProperty("message_thread_id", msgThreadId)
-            addProperty("reply_to_message_id", replyMsgId)
-            add("options", options)
+        pending.onResponse(server.defaultTimeout) { obj ->
+            if (obj == null) {
+                CoreMetrics.MESSAGES_SENT.labels(designator, "timeout").inc()
+                Log.e(TAG, "sendMessage to $si timed out")
+            } else if (BaseTlRpcJsonObject.getType(obj) == "error") {
+                CoreMetrics.MESSAGES_SENT.labels(designator, "error").inc()
+                Log.e(TAG, "sendMessage to $si failed: $obj")
+            } else if (upload != null) {
+                // the remote file id is only known once the message is sent
+                server.coroutineScope.launch { updateUploadCache(request, upload, obj.get("id").asLong) }
+            } else {
+                CoreMetrics.MESSAGES_SENT.labels(designator, "untracked").inc()
+                // nobody waits for the result
+                mSendResults.discard(chatId, obj.get("id").asLong)
+            }
         }
+    }
+
+    // like completeSend for a message nobody waits for, without sending it again
+    private suspend fun updateUploadCache(request: SendRequest, upload: CachedUpload, msgId: Long) {
+        val cache = server.uploadCache ?: return
+        val result = mSendResults.await(request.si.toTDLibChatId(), msgId, server.defaultTimeout.toLong())
+        if (result == null) {
+            CoreMetrics.MESSAGES_SENT.labels(designator, "timeout").inc()
+            Log.e(TAG, "sendMessage to ${request.si} timed out waiting for updateMessageSendSucceeded")
+        } else if (result.errorMsg != null) {
+            CoreMetrics.MESSAGES_SENT.labels(designator, "failed").inc()
+            Log.e(TAG, "sendMessage to ${request.si} failed: ${result.errorCode} ${result.errorMsg}")
+            val error = RemoteApiException(result.errorCode, result.errorMsg)
+            if (upload.remoteContent != null && isRemoteFileRejected(error)) {
+                // the next send uploads it again
+                cache.removeRemoteFileId(userId, upload.contentHash)
+            }
+        } else {
+            CoreMetrics.MESSAGES_SENT.labels(designator, "success").inc()
+            CoreMetrics.SEND_MESSAGE_DURATION.labels(designator).recordSince(request.startTime)
+            if (upload.remoteContent == null) {
+                getUploadedRemoteFileId(result.message?.content)?.let {
+                    cache.putRemoteFileId(userId, upload.contentHash, it)
+                }
+            }
+        }
+    }
+
+    /**
+     * @param frozenText the text of an inputMessageText content without one, written by its bytes
+     */
+    private class SendRequest(
+        val si: SessionInfo,
+        val content: JsonObject,
+        val replyMarkup: ReplyMarkup?,
+        val msgThreadId: Long,
+        val replyMsgId: Long,
+        val options: JsonObject?,
+        val frozenText: FormattedText.Frozen? = null
+    ) {
+        val startTime = System.nanoTime()
+
+        // a reply markup which is not frozen is converted once, a request may be written again
+        private val mReplyMarkupJson = if (replyMarkup is ReplyMarkup.Frozen) null else replyMarkup?.toJsonObject()
+
+        fun writeTo(writer: TlRequestWriter, content: JsonObject) {
+            writer.property("chat_id", si.toTDLibChatId())
+            writer.inputMessageContent(content, frozenText)
+            writer.replyMarkup(replyMarkup, mReplyMarkupJson)
+            writer.property("message_thread_id", msgThreadId)
+                .property("reply_to_message_id", replyMsgId)
+                .property("options", options)
+        }
+    }
+
+    private fun submitSend(request: SendRequest, upload: CachedUpload?): RobotServer.PendingRequest {
+        val content = upload?.remoteContent ?: request.content
+        return server.sendRequest(this, "sendMessage") { request.writeTo(it, content) }
+    }
+
+    @Throws(RemoteApiException::class, IOException::class)
+    private suspend fun completeSend(
+        request: SendRequest,
+        upload: CachedUpload?,
+        pending: RobotServer.PendingRequest
+    ): Message {
+        val cache = server.uploadCache
+        if (cache == null || upload == null) {
+            return awaitSent(request, pending)
+        }
+        var current = pending
+        if (upload.remoteContent != null) {
+            try {
+                return awaitSent(request, current)
+            } catch (e: RemoteApiException) {
+                if (!isRemoteFileRejected(e)) {
+                    throw e
+                }
+                // the remote file was deleted or expired, upload it again
+                Log.w(TAG, "remote file of ${upload.contentHash} rejected: ${e.message}, uploading it again")
+                cache.removeRemoteFileId(userId, upload.contentHash)
+            }
+            current = server.sendRequest(this, "sendMessage") { request.writeTo(it, request.content) }
+        }
+        val msg = awaitSent(request, current)
+        getUploadedRemoteFileId(msg.content)?.let { cache.putRemoteFileId(userId, upload.contentHash, it) }
+        return msg
+    }
+
+    /**
+     * @return null if the content has no local file to upload
+     */
+    private suspend fun resolveCachedUpload(cache: UploadCache, content: JsonObject): CachedUpload? {
+        val field = UPLOAD_FILE_FIELDS[content.get("@type")?.asString] ?: return null
+        val inputFile = content.get(field) as? JsonObject ?: return null
+        if (inputFile.get("@type")?.asString != "inputFileLocal") {
+            return null
+        }
+        val file = File(inputFile.get("path").asString)
+        return withContext(Dispatchers.IO) {
+            val hash = try {
+                cache.getContentHash(file)
+            } catch (e: IOException) {
+                // let TDLib report the missing file
+                return@withContext null
+            }
+            val remoteContent = cache.getRemoteFileId(userId, hash)?.let { fileId ->
+                content.deepCopy().apply {
+                    add(field, JsonObject().apply {
+                        addProperty("@type", "inputFileRemote")
+                        addProperty("id", fileId)
+                    })
+                }
+            }
+            CachedUpload(hash, remoteContent)
+        }
+    }
+
+    private fun getUploadedRemoteFileId(content: JsonObject?): String? {
+        val type = content?.get("@type")?.asString ?: return null
+        val file = if (type == "messagePhoto") {
+            (content.get("photo") as? JsonObject)?.getAsJsonArray("sizes")?.lastOrNull()?.asJsonObject?.get("photo")
+        } else {
+            MESSAGE_FILE_FIELDS[type]?.let { (outer, inner) -> (content.get(outer) as? JsonObject)?.get(inner) }
+        } as? JsonObject ?: return null
+        return (file.get("remote") as? JsonObject)?.get("id")?.asString?.takeIf { it.isNotEmpty() }
+    }
+
+    @Throws(RemoteApiException::class, IOException::class)
+    private suspend fun awaitSent(request: SendRequest, pending: RobotServer.PendingRequest): Message {
         val until = System.currentTimeMillis() + server.defaultTimeout
-        val obj = executeRequest(request.toString(), server.defaultTimeout)
-            ?: throw IOException("Timeout executing sendMessage")
+        val obj = pending.await(server.defaultTimeout)
+        if (obj == null) {
+            CoreMetrics.MESSAGES_SENT.labels(designator, "timeout").inc()
+            throw IOException("Timeout executing sendMessage")
+        }
+        if (BaseTlRpcJsonObject.getType(obj) == "error") {
+            CoreMetrics.MESSAGES_SENT.labels(designator, "error").inc()
+        }
         BaseTlRpcJsonObject.throwRemoteApiExceptionIfError(obj)
         val oldMsg: Message
         try {
@@ -954,40 +1297,18 @@ class Bot internal constructor(
         } catch (e: ReflectiveOperationException) {
             throw IOException("failed to parse result: $obj", e)
         }
-        val oldMsgId = oldMsg.id
-        val key = "${chatId}_${oldMsgId}"
-        val owner = Mutex(true)
-        val holder = TransientMessageHolder(
-            chatId, oldMsgId, oldMsg, System.currentTimeMillis(), lock = owner
-        )
-        synchronized(mTransientMessageLock) {
-            mTransientMessages[key] = holder
-        }
-        while (holder.newMessage == null) {
-            val now = System.currentTimeMillis()
-            val remain = until - now
-            if (remain <= 0) {
-                break
-            } else {
-                try {
-                    withTimeout(remain) {
-                        owner.lock()
-                    }
-                } catch (e: TimeoutCancellationException) {
-                    break
-                }
-            }
-        }
-        synchronized(mTransientMessageLock) {
-            if (mTransientMessages.remove(key) != holder) {
-                throw AssertionError("mTransientMessages remove check failed")
-            }
+        val result = mSendResults.await(request.si.toTDLibChatId(), oldMsg.id, until - System.currentTimeMillis())
+        if (result == null) {
+            CoreMetrics.MESSAGES_SENT.labels(designator, "timeout").inc()
+            throw IOException("Timeout waiting for updateMessageSendSuccess")
         }
-        val newMessage = holder.newMessage ?: throw IOException("Timeout waiting for updateMessageSendSuccess")
-        if (holder.errorMsg != null) {
-            throw RemoteApiException(holder.errorCode, holder.errorMsg!!)
+        if (result.errorMsg != null) {
+            CoreMetrics.MESSAGES_SENT.labels(designator, "failed").inc()
+            throw RemoteApiException(result.errorCode, result.errorMsg)
         }
-        return newMessage
+        CoreMetrics.MESSAGES_SENT.labels(designator, "success").inc()
+        CoreMetrics.SEND_MESSAGE_DURATION.labels(designator).recordSince(request.startTime)
+        return result.message!!
     }
 
     @Throws(RemoteApiException::class, IOException::class)
@@ -1019,13 +1340,65 @@ class Bot internal constructor(
         replyMsgId: Long = 0,
         options: JsonObject? = null
     ): Message {
-        val msgObj = JsonObject().apply {
+        return sendAndWait(textRequest(si, textMsg, disableWebPreview, replyMarkup, msgThreadId, replyMsgId, options))
+    }
+
+    /**
+     * See [sendMessageRawDeferred].
+     */
+    @Throws(RemoteApiException::class, IOException::class)
+    suspend fun sendMessageForTextDeferred(
+        si: SessionInfo,
+        textMsg: FormattedText,
+        replyMarkup: ReplyMarkup? = null,
+        disableWebPreview: Boolean = true,
+        msgThreadId: Long = 0,
+        replyMsgId: Long = 0,
+        options: JsonObject? = null
+    ): Deferred<Message> {
+        return sendDeferred(textRequest(si, textMsg, disableWebPreview, replyMarkup, msgThreadId, replyMsgId, options))
+    }
+
+    /**
+     * See [sendMessageRawNoWait].
+     */
+    @Throws(IOException::class)
+    suspend fun sendMessageForTextNoWait(
+        si: SessionInfo,
+        textMsg: FormattedText,
+        replyMarkup: ReplyMarkup? = null,
+        disableWebPreview: Boolean = true,
+        msgThreadId: Long = 0,
+        replyMsgId: Long = 0,
+        options: JsonObject? = null
+    ) {
+        sendNoWait(textRequest(si, textMsg, disableWebPreview, replyMarkup, msgThreadId, replyMsgId, options))
+    }
+
+    private fun textRequest(
+        si: SessionInfo,
+        textMsg: FormattedText,
+        disableWebPreview: Boolean,
+        replyMarkup: ReplyMarkup?,
+        msgThreadId: Long,
+        replyMsgId: Long,
+        options: JsonObject?
+    ): SendRequest {
+        val frozenText = textMsg as? FormattedText.Frozen
+        val content = inputMessageText(if (frozenText == null) textMsg else null, disableWebPreview)
+        return SendRequest(si, content, replyMarkup, msgThreadId, replyMsgId, options, frozenText)
+    }
+
+    /**
+     * @param textMsg the text, or null to leave it to the writer of the request
+     */
+    private fun inputMessageText(textMsg: FormattedText?, disableWebPreview: Boolean): JsonObject {
+        return JsonObject().apply {
             addProperty("@type", "inputMessageText")
-            add("text", textMsg.toJsonObject())
+            textMsg?.let { add("text", it.toJsonObject()) }
             addProperty("disable_web_page_preview", disableWebPreview)
             addProperty("clear_draft", false)
         }
-        return sendMessageRawEx(si, msgObj, replyMarkup, msgThreadId, replyMsgId, options)
     }
 
     @Throws(RemoteApiException::class, IOException::class)
@@ -1058,12 +1431,19 @@ class Bot internal constructor(
         val inputFile = InputFile.fromLocalFileToJsonObject(file)
         val imgHeight: Int
         val imgWidth: Int
-        // get image size
+        // get image size, from the header if possible, decoding the whole image is slow for large photos
         withContext(Dispatchers.IO) {
-            val bytes = IoUtils.readFully(file.inputStream())
-            Image.makeFromEncoded(bytes).use { img ->
-                imgHeight = img.height
-                imgWidth = img.width
+            val info = ImageHeaderParser.probe(file)
+            if (info != null) {
+                imgHeight = info.height
+                imgWidth = info.width
+            } else {
+                NativeComponent.SKIJA.ensureLoaded()
+                val bytes = IoUtils.readFully(file.inputStream())
+                Image.makeFromEncoded(bytes).use { img ->
+                    imgHeight = img.height
+                    imgWidth = img.width
+                }
             }
         }
         val msgObj = JsonObject().apply {
@@ -1077,6 +1457,45 @@ class Bot internal constructor(
         return sendMessageRawEx(si, msgObj, replyMarkup, msgThreadId, replyMsgId, options)
     }
 
+    /**
+     * Send a photo from memory, e.g. the result of [cc.ioctl.telebot.image.ImagePipeline].
+     *
+     * TDLib generates the file from the bytes with writeGeneratedFilePart, no file is written by the bot.
+     */
+    @Throws(RemoteApiException::class, IOException::class)
+    suspend fun sendMessageForPhoto(
+        si: SessionInfo,
+        image: EncodedImage,
+        caption: FormattedText?,
+        replyMarkup: ReplyMarkup? = null,
+        ttl: Int = 0,
+        msgThreadId: Long = 0,
+        replyMsgId: Long = 0,
+        options: JsonObject? = null
+    ): Message {
+        // TDLib caches generated files by the original path, it must not be reused
+        val path = GENERATED_FILE_PREFIX + UUID.randomUUID()
+        val msgObj = JsonObject().apply {
+            addProperty("@type", "inputMessagePhoto")
+            add("photo", JsonObject().apply {
+                addProperty("@type", "inputFileGenerated")
+                addProperty("original_path", path)
+                addProperty("conversion", GENERATED_FILE_CONVERSION)
+                addProperty("expected_size", image.size)
+            })
+            addProperty("width", image.width)
+            addProperty("height", image.height)
+            add("caption", caption?.toJsonObject())
+            addProperty("ttl", ttl)
+        }
+        mGeneratedFiles[path] = image.bytes
+        try {
+            return sendMessageRawEx(si, msgObj, replyMarkup, msgThreadId, replyMsgId, options)
+        } finally {
+            mGeneratedFiles.remove(path)
+        }
+    }
+
     @Throws(RemoteApiException::class, IOException::class)
     suspend fun editMessageCaption(
         si: SessionInfo, msgId: Long, caption: FormattedText, replyMarkup: ReplyMarkup? = null
@@ -1140,21 +1559,25 @@ class Bot internal constructor(
         si: SessionInfo, msgId: Long, inputMessageContent: JsonObject, replyMarkup: ReplyMarkup? = null
     ): JsonObject {
         BaseTlRpcJsonObject.checkTypeNonNull(inputMessageContent, "inputMessageText")
-        JsonObject().apply {
-            addProperty("@type", "editMessageText")
-            addProperty("chat_id", si.toTDLibChatId())
-            addProperty("message_id", msgId)
-            add("input_message_content", inputMessageContent)
-            add("reply_markup", replyMarkup?.toJsonObject())
-        }.let {
-            val obj = executeRequest(it.toString(), server.defaultTimeout)
-            if (obj == null) {
-                throw IOException("Timeout")
-            } else {
-                BaseTlRpcJsonObject.throwRemoteApiExceptionIfError(obj)
-                return obj
-            }
+        return editMessageText(si, msgId, inputMessageContent, null, replyMarkup)
+    }
+
+    private suspend fun editMessageText(
+        si: SessionInfo,
+        msgId: Long,
+        inputMessageContent: JsonObject,
+        frozenText: FormattedText.Frozen?,
+        replyMarkup: ReplyMarkup?
+    ): JsonObject {
+        val markupJson = if (replyMarkup is ReplyMarkup.Frozen) null else replyMarkup?.toJsonObject()
+        val pending = server.sendRequest(this, "editMessageText") { writer ->
+            writer.property("chat_id", si.toTDLibChatId()).property("message_id", msgId)
+            writer.inputMessageContent(inputMessageContent, frozenText)
+            writer.replyMarkup(replyMarkup, markupJson)
         }
+        val obj = pending.await(server.defaultTimeout) ?: throw IOException("Timeout")
+        BaseTlRpcJsonObject.throwRemoteApiExceptionIfError(obj)
+        return obj
     }
 
     @Throws(RemoteApiException::class, IOException::class)
@@ -1165,14 +1588,9 @@ class Bot internal constructor(
         replyMarkup: ReplyMarkup? = null,
         disableWebPreview: Boolean = true
     ): JsonObject {
-        return editMessageTextEx(
-            si, msgId, JsonObject().apply {
-                addProperty("@type", "inputMessageText")
-                add("text", formattedText.toJsonObject())
-                addProperty("disable_web_page_preview", disableWebPreview)
-                addProperty("clear_draft", false)
-            }, replyMarkup
-        )
+        val frozenText = formattedText as? FormattedText.Frozen
+        val content = inputMessageText(if (frozenText == null) formattedText else null, disableWebPreview)
+        return editMessageText(si, msgId, content, frozenText, replyMarkup)
     }
 
     @Throws(RemoteApiException::class, IOException::class)
@@ -1363,10 +1781,23 @@ class Bot internal constructor(
         server.scheduleTaskDelayed(milliseconds, task)
     }
 
+    /**
+     * See [RobotServer.scheduleTaskDelayedWithContext], cancelled with the job of [context]. This returned Unit before.
+     */
     fun scheduleTaskDelayedWithContext(
         context: CoroutineContext,
         milliseconds: Long,
         task: suspend CoroutineScope.() -> Unit
+    ): Job {
+        return server.scheduleTaskDelayedWithContext(context, milliseconds, task)
+    }
+
+    @Deprecated("Returns the job of the task", level = DeprecationLevel.HIDDEN)
+    @JvmName("scheduleTaskDelayedWithContext")
+    fun scheduleTaskDelayedWithContextCompat(
+        context: CoroutineContext,
+        milliseconds: Long,
+        task: suspend CoroutineScope.() -> Unit
     ) {
         server.scheduleTaskDelayedWithContext(context, milliseconds, task)
     }
@@ -0,0 +1,36 @@
+package cc.ioctl.telebot.util
+
+/*
+ * Inline level-gated logging helpers, the message lambda is only evaluated
+ * if the level is loggable for the tag, and no lambda object is allocated.
+ */
+
+inline fun logV(tag: String, throwable: Throwable? = null, message: () -> String) {
+    if (Log.isLoggable(Log.VERBOSE, tag)) {
+        Log.v(tag, message(), throwable)
+    }
+}
+
+inline fun logD(tag: String, throwable: Throwable? = null, message: () -> String) {
+    if (Log.isLoggable(Log.DEBUG, tag)) {
+        Log.d(tag, message(), throwable)
+    }
+}
+
+inline fun logI(tag: String, throwable: Throwable? = null, message: () -> String) {
+    if (Log.isLoggable(Log.INFO, tag)) {
+        Log.i(tag, message(), throwable)
+    }
+}
+
+inline fun logW(tag: String, throwable: Throwable? = null, message: () -> String) {
+    if (Log.isLoggable(Log.WARN, tag)) {
+        Log.w(tag, message(), throwable)
+    }
+}
+
+inline fun logE(tag: String, throwable: Throwable? = null, message: () -> String) {
+    if (Log.isLoggable(Log.ERROR, tag)) {
+        Log.e(tag, message(), throwable)
+    }
+}
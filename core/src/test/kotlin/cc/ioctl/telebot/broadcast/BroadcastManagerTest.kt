@@ -0,0 +1,119 @@
+package cc.ioctl.telebot.broadcast
+
+import cc.ioctl.telebot.tdlib.RobotServer
+import cc.ioctl.telebot.tdlib.obj.Bot
+import cc.ioctl.telebot.tdlib.obj.SessionInfo
+import cc.ioctl.telebot.tdlib.transport.SimulatedTDLibTransport
+import com.google.gson.JsonObject
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class BroadcastManagerTest {
+
+    companion object {
+        // one server per JVM, each test logs in its own bot
+        private val transport = SimulatedTDLibTransport(2, 5, 2)
+        private val server: RobotServer by lazy {
+            val dir = Files.createTempDirectory("broadcast").toFile()
+            dir.deleteOnExit()
+            RobotServer.createInstance(dir.absoluteFile, transport).also {
+                it.start(1, "00000000000000000000000000000000", false)
+            }
+        }
+        private val nextBotId = AtomicInteger(1)
+    }
+
+    private val content = JsonObject().apply {
+        addProperty("@type", "inputMessageText")
+        add("text", JsonObject().apply {
+            addProperty("@type", "formattedText")
+            addProperty("text", "announcement")
+        })
+    }
+
+    @AfterTest
+    fun tearDown() {
+        transport.setSendRateLimit(0.0, 1)
+    }
+
+    private suspend fun newBot(): Bot {
+        val n = nextBotId.getAndIncrement()
+        val bot = server.createNewBot("broadcast_$n")
+        // a bot user id of its own, the stored broadcasts of the other tests are not resumed
+        check(bot.loginWithBotTokenSuspended("${100000 + n}:AAtoken") > 0)
+        return bot
+    }
+
+    private fun targets(count: Int) = (1..count).map { SessionInfo.forUser(1_000_000L + it) }
+
+    @Test
+    fun rateGrowsUpToTheMax() = runBlocking {
+        val manager = BroadcastManager(newBot(), server.broadcastStore, maxRate = 4.0)
+        val start = System.nanoTime()
+        val broadcast = manager.start("additive", targets(12), content)
+        // starts at half the max rate
+        assertEquals(2.0, broadcast.rate)
+        withTimeout(30_000) { broadcast.await() }
+        val elapsedMillis = (System.nanoTime() - start) / 1_000_000
+        val progress = broadcast.progress
+        assertEquals(12, progress.sent)
+        assertEquals(0, progress.failed)
+        // the rate grows by 1 / rate for each send, and stays at the max
+        assertEquals(4.0, broadcast.rate)
+        // 11 intervals, the first of 500 ms and none shorter than 250 ms
+        assertTrue(elapsedMillis >= 11 * 250, "elapsed $elapsedMillis ms")
+        assertEquals(0, server.broadcastStore.getPendingTargets("additive").size)
+    }
+
+    @Test
+    fun floodHalvesTheRateAndPauses() = runBlocking {
+        // Telegram allows 5 messages per second here, the broadcast starts at 10
+        transport.setSendRateLimit(5.0, 1)
+        val floodsBefore = transport.floodErrorCount
+        val manager = BroadcastManager(newBot(), server.broadcastStore, maxRate = 20.0)
+        val start = System.nanoTime()
+        val broadcast = manager.start("flood", targets(20), content)
+        withTimeout(60_000) { broadcast.await() }
+        val elapsedMillis = (System.nanoTime() - start) / 1_000_000
+        val floods = transport.floodErrorCount - floodsBefore
+        assertTrue(floods > 0, "no flood error")
+        // the targets failed with 429 are sent again, without using up their attempts
+        val progress = broadcast.progress
+        assertEquals(20, progress.sent)
+        assertEquals(0, progress.failed)
+        assertTrue(broadcast.rate < 10.0, "rate ${broadcast.rate}")
+        // every flood error is followed by the 1 s wait
+        assertTrue(elapsedMillis >= 1000, "elapsed $elapsedMillis ms")
+        // the sends in flight fail together, the pause stops the sends until the wait is over
+        assertTrue(floods < 20, "$floods flood errors")
+    }
+
+    @Test
+    fun stoppedBroadcastIsResumed() = runBlocking {
+        val bot = newBot()
+        val manager = BroadcastManager(bot, server.broadcastStore, maxRate = 8.0)
+        val broadcast = manager.start("resume", targets(16), content)
+        delay(500)
+        broadcast.stop()
+        withTimeout(30_000) { broadcast.await() }
+        val stopped = broadcast.progress
+        assertTrue(stopped.sent in 1 until 16, "sent ${stopped.sent}")
+        assertEquals(16 - stopped.sent, server.broadcastStore.getPendingTargets("resume").size)
+
+        // like a restart, a new manager continues where the broadcast stopped
+        val resumed = BroadcastManager(bot, server.broadcastStore, maxRate = 40.0).resumeAll()
+        assertEquals(listOf("resume"), resumed.map { it.id })
+        withTimeout(30_000) { resumed.single().await() }
+        val progress = resumed.single().progress
+        assertEquals(16, progress.sent)
+        assertEquals(0, progress.remaining)
+        assertTrue(BroadcastManager(bot, server.broadcastStore).resumeAll().isEmpty())
+    }
+}
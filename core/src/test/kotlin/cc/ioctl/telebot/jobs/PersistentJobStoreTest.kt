@@ -0,0 +1,157 @@
+package cc.ioctl.telebot.jobs
+
+import cc.ioctl.telebot.util.HashedWheelTimer
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class PersistentJobStoreTest {
+
+    private val dir: File = Files.createTempDirectory("jobs").toFile()
+    private val file = File(dir, "jobs.db")
+    private val timers = ArrayList<HashedWheelTimer>()
+
+    @AfterTest
+    fun tearDown() {
+        timers.forEach { it.stop() }
+        dir.deleteRecursively()
+    }
+
+    // each store gets its own timer, a handler blocking one store doesn't hold up the other
+    private fun openStore(): PersistentJobStore {
+        val timer = HashedWheelTimer("TestTimer", 5, 64) { Thread(it).start() }
+        timers.add(timer)
+        return PersistentJobStore(file, timer)
+    }
+
+    private fun PersistentJobStore.collectJobs(type: String): LinkedBlockingQueue<PersistentJobStore.Job> {
+        val jobs = LinkedBlockingQueue<PersistentJobStore.Job>()
+        registerHandler(type) { jobs.add(it) }
+        return jobs
+    }
+
+    @Test
+    fun firesJobWithPayload() {
+        val store = openStore()
+        val jobs = store.collectJobs("greet")
+        store.start()
+        val id = store.schedule("greet", "1:2", byteArrayOf(1, 2, 3), 20)
+        val job = assertNotNull(jobs.poll(5, TimeUnit.SECONDS))
+        assertEquals(id, job.id)
+        assertEquals("greet", job.type)
+        assertEquals("1:2", job.key)
+        assertContentEquals(byteArrayOf(1, 2, 3), job.payload)
+        waitUntil { store.pendingCount == 0L }
+    }
+
+    @Test
+    fun reloadsJobsAfterReopen() {
+        val first = openStore()
+        first.start()
+        first.schedule("greet", null, byteArrayOf(1), 0)
+        first.schedule("greet", null, byteArrayOf(2), 100)
+        // the first store has no handler for the type, the jobs stay in the file
+        assertEquals(2, first.pendingCount)
+
+        val second = openStore()
+        val jobs = second.collectJobs("greet")
+        second.start()
+        val payloads = listOf(jobs.poll(5, TimeUnit.SECONDS), jobs.poll(5, TimeUnit.SECONDS)).map {
+            assertNotNull(it).payload.single()
+        }
+        assertEquals(listOf<Byte>(1, 2), payloads)
+        waitUntil { second.pendingCount == 0L }
+    }
+
+    @Test
+    fun jobInterruptedInHandlerFiresAgain() {
+        val first = openStore()
+        val entered = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        first.registerHandler("greet") {
+            entered.countDown()
+            // the server stops while the handler is running
+            release.await()
+        }
+        first.start()
+        val id = first.schedule("greet", null, byteArrayOf(7), 0)
+        assertTrue(entered.await(5, TimeUnit.SECONDS))
+
+        val second = openStore()
+        val jobs = second.collectJobs("greet")
+        second.start()
+        assertEquals(id, assertNotNull(jobs.poll(5, TimeUnit.SECONDS)).id)
+        release.countDown()
+    }
+
+    @Test
+    fun failedJobIsDeleted() {
+        val store = openStore()
+        val runs = LinkedBlockingQueue<Long>()
+        store.registerHandler("greet") {
+            runs.add(it.id)
+            throw IllegalStateException("test")
+        }
+        store.start()
+        val id = store.schedule("greet", null, ByteArray(0), 0)
+        assertEquals(id, runs.poll(5, TimeUnit.SECONDS))
+        waitUntil { store.pendingCount == 0L }
+        assertNull(runs.poll(100, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun jobWaitsForItsHandler() {
+        val store = openStore()
+        store.start()
+        store.schedule("greet", null, byteArrayOf(1), 0)
+        Thread.sleep(50)
+        assertEquals(1, store.pendingCount)
+        val jobs = store.collectJobs("greet")
+        assertNotNull(jobs.poll(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun cancelledJobsDoNotFire() {
+        val store = openStore()
+        val jobs = store.collectJobs("greet")
+        store.start()
+        val id = store.schedule("greet", "a", byteArrayOf(1), 50)
+        store.schedule("greet", "b", byteArrayOf(2), 50)
+        store.schedule("greet", "b", byteArrayOf(3), 50)
+        store.schedule("greet", "c", byteArrayOf(4), 100)
+        assertTrue(store.cancel(id))
+        assertFalse(store.cancel(id))
+        assertEquals(2, store.cancelByKey("b"))
+        assertEquals(0, store.cancelByKey("b"))
+        assertEquals(4.toByte(), assertNotNull(jobs.poll(5, TimeUnit.SECONDS)).payload.single())
+        assertNull(jobs.poll(100, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun duplicateHandlerIsRejected() {
+        val store = openStore()
+        store.registerHandler("greet") {}
+        assertFailsWith<IllegalStateException> {
+            store.registerHandler("greet") {}
+        }
+    }
+
+    private fun waitUntil(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!condition()) {
+            check(System.currentTimeMillis() < deadline) { "timed out" }
+            Thread.sleep(1)
+        }
+    }
+}
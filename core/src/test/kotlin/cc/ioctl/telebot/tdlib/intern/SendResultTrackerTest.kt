@@ -0,0 +1,160 @@
+package cc.ioctl.telebot.tdlib.intern
+
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import java.util.concurrent.CyclicBarrier
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class SendResultTrackerTest {
+
+    private val sent = SendResultTracker.Result(null, 0, null)
+    private val deleted = SendResultTracker.Result(null, 500, "message has been deleted")
+
+    @Test
+    fun resultBeforeAwait() = runBlocking {
+        val tracker = SendResultTracker(60_000)
+        assertFalse(tracker.complete(1, 10, sent))
+        assertEquals(1, tracker.size)
+        assertSame(sent, tracker.await(1, 10, 1000))
+        assertEquals(0, tracker.size)
+    }
+
+    @Test
+    fun awaitBeforeResult() = runBlocking {
+        val tracker = SendResultTracker(60_000)
+        val result = async(start = CoroutineStart.UNDISPATCHED) { tracker.await(1, 10, 5000) }
+        assertTrue(tracker.complete(1, 10, sent))
+        assertSame(sent, result.await())
+        assertEquals(0, tracker.size)
+    }
+
+    @Test
+    fun deletionBeforeAwait() = runBlocking {
+        val tracker = SendResultTracker(60_000)
+        tracker.complete(1, 10, deleted)
+        // a later result of the same message is ignored
+        tracker.complete(1, 10, sent)
+        assertSame(deleted, tracker.await(1, 10, 1000))
+    }
+
+    @Test
+    fun keysAreChatAndMessage() = runBlocking {
+        val tracker = SendResultTracker(60_000)
+        tracker.complete(1, 10, sent)
+        tracker.complete(2, 10, deleted)
+        assertSame(deleted, tracker.await(2, 10, 1000))
+        assertNull(tracker.await(1, 11, 10))
+        assertSame(sent, tracker.await(1, 10, 1000))
+    }
+
+    @Test
+    fun timeoutReturnsNull() = runBlocking {
+        val tracker = SendResultTracker(60_000)
+        assertNull(tracker.await(1, 10, 20))
+        assertEquals(0, tracker.size)
+        // the late result is kept as unclaimed
+        assertFalse(tracker.complete(1, 10, sent))
+        assertEquals(1, tracker.size)
+    }
+
+    @Test
+    fun discardBeforeResult() {
+        val tracker = SendResultTracker(60_000)
+        tracker.discard(1, 10)
+        assertEquals(1, tracker.size)
+        assertFalse(tracker.complete(1, 10, sent))
+        assertEquals(0, tracker.size)
+    }
+
+    @Test
+    fun discardAfterResult() {
+        val tracker = SendResultTracker(60_000)
+        tracker.complete(1, 10, sent)
+        tracker.discard(1, 10)
+        assertEquals(0, tracker.size)
+    }
+
+    @Test
+    fun unclaimedResultsAreSwept() = runBlocking {
+        val tracker = SendResultTracker(50)
+        val waiting = async(start = CoroutineStart.UNDISPATCHED) { tracker.await(1, 1, 5000) }
+        tracker.discard(1, 2)
+        for (msgId in 10L..12L) {
+            tracker.complete(1, msgId, sent)
+        }
+        assertEquals(5, tracker.size)
+        Thread.sleep(60)
+        // any call sweeps after the TTL, the slot with a waiter stays
+        tracker.discard(1, 20)
+        assertEquals(2, tracker.size)
+        assertTrue(tracker.complete(1, 1, sent))
+        assertSame(sent, waiting.await())
+        Thread.sleep(60)
+        assertNull(tracker.await(1, 30, 1))
+        assertEquals(0, tracker.size)
+    }
+
+    @Test
+    fun concurrentOrderings() {
+        val tracker = SendResultTracker(60_000)
+        val count = 2000
+        // the result and the sender race for each message, from two threads started together
+        val barrier = CyclicBarrier(2)
+        val completer = Thread {
+            barrier.await()
+            for (msgId in 0L until count) {
+                if (msgId % 3 == 0L) {
+                    Thread.yield()
+                }
+                tracker.complete(1, msgId, if (msgId % 2 == 0L) sent else deleted)
+            }
+        }
+        completer.start()
+        val results = runBlocking(Dispatchers.Default) {
+            barrier.await()
+            (0L until count).map { msgId ->
+                async {
+                    if (msgId % 5 == 0L) {
+                        yield()
+                    }
+                    tracker.await(1, msgId, 10_000)
+                }
+            }.awaitAll()
+        }
+        completer.join()
+        results.forEachIndexed { msgId, result ->
+            assertSame(if (msgId % 2 == 0) sent else deleted, result, "result of $msgId")
+        }
+        assertEquals(0, tracker.size)
+    }
+
+    @Test
+    fun concurrentDiscards() {
+        val tracker = SendResultTracker(60_000)
+        val count = 2000
+        val barrier = CyclicBarrier(2)
+        val completer = Thread {
+            barrier.await()
+            for (msgId in 0L until count) {
+                tracker.complete(1, msgId, sent)
+            }
+        }
+        completer.start()
+        barrier.await()
+        for (msgId in 0L until count) {
+            tracker.discard(1, msgId)
+        }
+        completer.join()
+        // whichever came first, the slot is gone after both
+        assertEquals(0, tracker.size)
+    }
+}
@@ -0,0 +1,182 @@
+package cc.ioctl.telebot.tdlib.journal
+
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.util.zip.GZIPOutputStream
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class EventJournalTest {
+
+    private val dir: File = Files.createTempDirectory("journal").toFile()
+
+    @AfterTest
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private val events = (0 until 500).map { i ->
+        when (i % 3) {
+            0 -> """{"@type":"updateNewMessage","message":{"chat_id":$i,"content":"text 中文 😀 $i"},"@client_id":1}"""
+            1 -> """{"@type":"updateUser","user":{"id":$i,"first_name":"${"x".repeat(i)}"},"@client_id":1}"""
+            else -> """{"@type":"ok","@extra":"$i","@client_id":1}"""
+        }
+    }
+
+    private fun record(): File {
+        val writer = EventJournalWriter.createInDirectory(dir)
+        // after the start of the writer, earlier times are clamped to it
+        val start = System.nanoTime()
+        events.forEachIndexed { i, event -> writer.append(start + i * 1_000_000L, event) }
+        writer.close()
+        return writer.file
+    }
+
+    private fun readAll(file: File): List<Pair<Long, String>> {
+        val records = ArrayList<Pair<Long, String>>()
+        EventJournalReader(file).use { reader ->
+            while (true) {
+                val record = reader.next() ?: break
+                records.add(record.arrivalNanos to record.event)
+            }
+        }
+        return records
+    }
+
+    @Test
+    fun roundTrip() {
+        val before = System.currentTimeMillis()
+        val file = record()
+        assertTrue(file.name.startsWith("events-") && file.name.endsWith(EventJournalFormat.FILE_SUFFIX))
+        EventJournalReader(file).use { reader ->
+            assertTrue(reader.startTimeMillis in before..System.currentTimeMillis())
+        }
+        val records = readAll(file)
+        assertEquals(events, records.map { it.second })
+        // the arrival times are kept relative to each other
+        val first = records.first().first
+        records.forEachIndexed { i, (arrival, _) -> assertEquals(i * 1_000_000L, arrival - first) }
+    }
+
+    @Test
+    fun newFileForEachRecording() {
+        val first = EventJournalWriter.createInDirectory(dir)
+        val second = EventJournalWriter.createInDirectory(dir)
+        first.close()
+        second.close()
+        assertTrue(first.file != second.file)
+    }
+
+    @Test
+    fun truncatedJournalReadsAPrefix() {
+        val data = record().readBytes()
+        val truncated = File(dir, "truncated" + EventJournalFormat.FILE_SUFFIX)
+        // every cut after the journal header, the step keeps the test fast
+        for (length in 40 until data.size step 97) {
+            truncated.writeBytes(data.copyOf(length))
+            val read = try {
+                readAll(truncated).map { it.second }
+            } catch (e: EOFException) {
+                // the cut is inside the compressed journal header
+                continue
+            }
+            assertEquals(events.subList(0, read.size), read, "cut at $length")
+        }
+    }
+
+    @Test
+    fun openJournalIsReadable() {
+        // the writer flushes after each batch, a crash loses only the events after the flush
+        val start = System.nanoTime()
+        val writer = EventJournalWriter(File(dir, "open" + EventJournalFormat.FILE_SUFFIX))
+        try {
+            events.take(10).forEach { writer.append(start, it) }
+            val deadline = System.currentTimeMillis() + 5000
+            var read: List<String>
+            do {
+                Thread.sleep(10)
+                val copy = File(dir, "copy" + EventJournalFormat.FILE_SUFFIX)
+                writer.file.copyTo(copy, overwrite = true)
+                read = try {
+                    readAll(copy).map { it.second }
+                } catch (e: EOFException) {
+                    emptyList()
+                }
+            } while (read.size < 10 && System.currentTimeMillis() < deadline)
+            assertEquals(events.take(10), read)
+        } finally {
+            writer.close()
+        }
+    }
+
+    @Test
+    fun rejectsOtherFiles() {
+        val file = File(dir, "other" + EventJournalFormat.FILE_SUFFIX)
+        writeRaw(file, 0x1234L, EventJournalFormat.VERSION)
+        assertFailsWith<IOException> { EventJournalReader(file) }
+        writeRaw(file, EventJournalFormat.MAGIC, EventJournalFormat.VERSION + 1)
+        assertFailsWith<IOException> { EventJournalReader(file) }
+        writeRaw(file, EventJournalFormat.MAGIC, EventJournalFormat.VERSION) {
+            it.writeLong(0)
+            it.writeInt(-1)
+        }
+        EventJournalReader(file).use { reader ->
+            assertFailsWith<IOException> { reader.next() }
+        }
+    }
+
+    @Test
+    fun replaySkipsResponses() {
+        val file = record()
+        val replayed = ArrayList<String>()
+        val result = EventJournalReplayer(file, 0.0).replay { replayed.add(it) }
+        val updates = events.filter { !it.contains("@extra") }
+        assertEquals(updates, replayed)
+        assertEquals(updates.size.toLong(), result.events)
+        assertEquals((events.size - updates.size).toLong(), result.skippedResponses)
+        assertEquals((events.size - 1) * 1_000_000L, result.recordedDurationNanos)
+        assertEquals(0, result.maxLagNanos)
+    }
+
+    @Test
+    fun replayKeepsScaledTimes() {
+        val file = File(dir, "timed" + EventJournalFormat.FILE_SUFFIX)
+        val writer = EventJournalWriter(file)
+        val start = System.nanoTime()
+        writer.append(start, events[0])
+        writer.append(start + 200_000_000L, events[1])
+        writer.close()
+        // 200 ms recorded at 4x speed
+        val result = EventJournalReplayer(file, 4.0).replay {}
+        assertEquals(2, result.events)
+        assertTrue(result.durationNanos >= 50_000_000L, "duration ${result.durationNanos}")
+    }
+
+    @Test
+    fun isResponse() {
+        assertTrue(EventJournalReplayer.isResponse("""{"@type":"ok","@extra":"1"}"""))
+        assertTrue(EventJournalReplayer.isResponse("""{"@type":"error","code":400, "@extra" : 2}"""))
+        assertFalse(EventJournalReplayer.isResponse("""{"@type":"updateUser"}"""))
+        // the text of a message, not a field of the event
+        assertFalse(EventJournalReplayer.isResponse(
+            """{"@type":"updateNewMessage","message":{"content":{"text":"\"@extra\""}}}"""))
+        assertFalse(EventJournalReplayer.isResponse("""{"@extra": """))
+    }
+
+    private fun writeRaw(file: File, magic: Long, version: Int, body: (DataOutputStream) -> Unit = {}) {
+        DataOutputStream(GZIPOutputStream(FileOutputStream(file))).use {
+            it.writeLong(magic)
+            it.writeInt(version)
+            it.writeLong(System.currentTimeMillis())
+            body(it)
+        }
+    }
+}
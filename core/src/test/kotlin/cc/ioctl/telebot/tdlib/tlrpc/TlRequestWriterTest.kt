@@ -0,0 +1,213 @@
+package cc.ioctl.telebot.tdlib.tlrpc
+
+import com.google.gson.JsonArray
+import com.google.gson.JsonElement
+import com.google.gson.JsonNull
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import com.google.gson.JsonPrimitive
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CodingErrorAction
+import java.util.Random
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotSame
+import kotlin.test.assertTrue
+
+class TlRequestWriterTest {
+
+    @Test
+    fun escapesLikeGson() {
+        val ascii = String(CharArray(0x80) { it.toChar() })
+        assertSameAsGson(JsonPrimitive(ascii))
+        assertSameAsGson(JsonPrimitive("quote \" backslash \\ slash / tab \t line \n"))
+        assertSameAsGson(JsonPrimitive("\u0080\u00e9\u07ff\u0800\u4e2d\u2027\u2028\u2029\u202a\ufeff\uffff"))
+    }
+
+    @Test
+    fun surrogatePairs() {
+        assertSameAsGson(JsonPrimitive("emoji \ud83d\ude00 and \udbff\udfff at the end"))
+        assertEquals(4, utf8("😀").size)
+    }
+
+    @Test
+    fun loneSurrogatesAreReplaced() {
+        for (s in listOf("\ud83d", "\ude00", "a\ud83db", "\ude00\ud83d", "\ud83d\ud83d\ude00", "end \ud83d")) {
+            assertSameAsGson(JsonPrimitive(s))
+        }
+        assertContentEquals(byteArrayOf('"'.code.toByte(), 0xef.toByte(), 0xbf.toByte(), 0xbd.toByte(),
+            '"'.code.toByte()), write(JsonPrimitive("\ude00")))
+    }
+
+    @Test
+    fun randomStringsMatchGson() {
+        val random = Random(42)
+        repeat(2000) {
+            val chars = CharArray(random.nextInt(64)) {
+                when (random.nextInt(4)) {
+                    0 -> random.nextInt(0x80)
+                    1 -> 0xd800 + random.nextInt(0x800)
+                    else -> random.nextInt(0x10000)
+                }.toChar()
+            }
+            val obj = JsonObject()
+            obj.addProperty(String(chars.copyOf(chars.size / 2)), String(chars))
+            assertSameAsGson(obj)
+        }
+    }
+
+    @Test
+    fun treesMatchGson() {
+        val obj = JsonParser.parseString(
+            """{"@type":"sendMessage","chat_id":-1001234567890,"reply_to_message_id":0,"options":null,
+            |"input_message_content":{"@type":"inputMessageText","text":{"@type":"formattedText","text":"hi",
+            |"entities":[{"offset":0,"length":2,"type":{"@type":"textEntityTypeBold"}}]},"clear_draft":false},
+            |"ratio":0.5,"big":1e300,"list":[[],{},[1,-2,3]]}""".trimMargin()
+        ).asJsonObject
+        assertSameAsGson(obj)
+        val numbers = JsonObject()
+        numbers.addProperty("min", Long.MIN_VALUE)
+        numbers.addProperty("max", Long.MAX_VALUE)
+        numbers.addProperty("int", -7)
+        numbers.addProperty("short", 12.toShort())
+        numbers.addProperty("double", 1.25)
+        numbers.add("null", JsonNull.INSTANCE)
+        assertSameAsGson(numbers)
+    }
+
+    @Test
+    fun propertiesAndValues() {
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.beginObject()
+                .property("@type", "getChat")
+                .property("chat_id", -100L)
+                .property("skipped", null as String?)
+                .property("skipped", null as JsonElement?)
+                .property("flag", true)
+                .name("ids").beginArray().value(1).value(2).endArray()
+                .name("ratio").value(0.5)
+                .endObject()
+            assertEquals("""{"@type":"getChat","chat_id":-100,"flag":true,"ids":[1,2],"ratio":0.5}""",
+                writer.toString())
+            assertFailsWith<IllegalArgumentException> { writer.value(Double.NaN) }
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    @Test
+    fun bufferIsTerminated() {
+        // larger than the initial capacity, with escapes and multibyte chars at the end
+        val text = "x".repeat(5000) + "\"\u0001中😀"
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.value(JsonPrimitive(text))
+            val expected = utf8(JsonPrimitive(text).toString())
+            val buffer = writer.buffer()
+            assertTrue(buffer.isDirect)
+            assertEquals(expected.size, writer.length())
+            val bytes = ByteArray(writer.length() + 1)
+            buffer.get(0, bytes)
+            assertContentEquals(expected, bytes.copyOf(writer.length()))
+            assertEquals(0, bytes[writer.length()].toInt())
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    @Test
+    fun recycledWriterIsEmpty() {
+        val first = TlRequestWriter.obtain()
+        first.beginObject().property("a", 1L).endObject()
+        // nested requests get separate writers
+        val second = TlRequestWriter.obtain()
+        assertNotSame(first, second)
+        second.recycle()
+        first.recycle()
+        val writer = TlRequestWriter.obtain()
+        try {
+            assertEquals(0, writer.length())
+            writer.beginObject().property("b", 2L).endObject()
+            assertEquals("""{"b":2}""", writer.toString())
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    @Test
+    fun doubleRecycleFails() {
+        val writer = TlRequestWriter.obtain()
+        writer.recycle()
+        assertFailsWith<IllegalStateException> { writer.recycle() }
+    }
+
+    @Test
+    fun frozenJsonMatchesGson() {
+        val markup = JsonObject()
+        markup.addProperty("@type", "replyMarkupInlineKeyboard")
+        val rows = JsonArray()
+        val button = JsonObject()
+        button.addProperty("text", "✅ ok \"quoted\"\n😀")
+        rows.add(JsonArray().apply { add(button) })
+        markup.add("rows", rows)
+        val frozen = FrozenJson.of(markup)
+        assertContentEquals(utf8(markup.toString()), frozen.bytes())
+        assertEquals(frozen.bytes().size, frozen.size())
+        assertEquals(markup.toString(), frozen.toString())
+
+        // spliced into a request like the tree it was made of
+        val request = JsonObject()
+        request.addProperty("@type", "sendMessage")
+        request.add("reply_markup", markup)
+        request.addProperty("chat_id", 1L)
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.beginObject().property("@type", "sendMessage").property("reply_markup", frozen)
+                .property("chat_id", 1L).endObject()
+            assertContentEquals(utf8(request.toString()), writer.toByteArray())
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    @Test
+    fun frozenJsonIsACopy() {
+        val obj = JsonObject()
+        obj.addProperty("text", "a")
+        val frozen = FrozenJson.of(obj)
+        obj.addProperty("text", "b")
+        assertEquals("""{"text":"a"}""", frozen.toString())
+        val copy = frozen.toJsonObject()
+        copy.addProperty("text", "c")
+        assertEquals("a", frozen.toJsonObject().get("text").asString)
+    }
+
+    private fun write(value: JsonElement): ByteArray {
+        val writer = TlRequestWriter.obtain()
+        try {
+            writer.value(value)
+            return writer.toByteArray()
+        } finally {
+            writer.recycle()
+        }
+    }
+
+    private fun assertSameAsGson(value: JsonElement) {
+        val expected = value.toString()
+        assertContentEquals(utf8(expected), write(value), expected)
+    }
+
+    // what TDLib got when a Gson string was sent, an unpaired surrogate was converted to U+FFFD
+    private fun utf8(s: String): ByteArray {
+        val encoder = Charsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .replaceWith(byteArrayOf(0xef.toByte(), 0xbf.toByte(), 0xbd.toByte()))
+        val buffer: ByteBuffer = encoder.encode(CharBuffer.wrap(s))
+        return ByteArray(buffer.remaining()).also { buffer.get(it) }
+    }
+}
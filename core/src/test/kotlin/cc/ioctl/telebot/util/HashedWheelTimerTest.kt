@@ -0,0 +1,115 @@
+package cc.ioctl.telebot.util
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class HashedWheelTimerTest {
+
+    private val timer = HashedWheelTimer("TestTimer", 1, 64) { it.run() }
+
+    @AfterTest
+    fun tearDown() {
+        timer.stop()
+    }
+
+    @Test
+    fun expiresAfterDelay() {
+        val latch = CountDownLatch(1)
+        val start = System.nanoTime()
+        val timeout = timer.newTimeout({ latch.countDown() }, 20, TimeUnit.MILLISECONDS)
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20))
+        waitUntil { timeout.isExpired }
+        assertEquals(0, timer.pendingCount)
+    }
+
+    @Test
+    fun expiresAfterSeveralRounds() {
+        // 64 buckets of 1 ms, 150 ms is more than two rounds of the wheel
+        val latch = CountDownLatch(1)
+        val start = System.nanoTime()
+        timer.newTimeout({ latch.countDown() }, 150, TimeUnit.MILLISECONDS)
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150))
+    }
+
+    @Test
+    fun cancelledTimeoutDoesNotRun() {
+        val runs = AtomicInteger()
+        val timeout = timer.newTimeout({ runs.incrementAndGet() }, 30, TimeUnit.MILLISECONDS)
+        assertTrue(timeout.cancel())
+        assertTrue(timeout.isCancelled)
+        assertFalse(timeout.cancel())
+        assertEquals(0, timer.pendingCount)
+        // a later timeout expires, the cancelled one must be gone by then
+        val latch = CountDownLatch(1)
+        timer.newTimeout({ latch.countDown() }, 60, TimeUnit.MILLISECONDS)
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertEquals(0, runs.get())
+    }
+
+    @Test
+    fun cancelAfterExpiryFails() {
+        val latch = CountDownLatch(1)
+        val timeout = timer.newTimeout({ latch.countDown() }, 1, TimeUnit.MILLISECONDS)
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        waitUntil { timeout.isExpired }
+        assertFalse(timeout.cancel())
+    }
+
+    @Test
+    fun cancelByTag() {
+        val runs = AtomicInteger()
+        repeat(5) { timer.newTimeout({ runs.incrementAndGet() }, 30, TimeUnit.MILLISECONDS, "chat") }
+        val other = CountDownLatch(1)
+        timer.newTimeout({ other.countDown() }, 60, TimeUnit.MILLISECONDS, "other")
+        assertEquals(5, timer.cancelByTag("chat"))
+        assertEquals(0, timer.cancelByTag("chat"))
+        assertTrue(other.await(5, TimeUnit.SECONDS))
+        assertEquals(0, runs.get())
+    }
+
+    @Test
+    fun hugeDelaySaturates() {
+        val runs = AtomicInteger()
+        // now + delay overflows, the deadline must not end up in the past
+        val timeout = timer.newTimeout({ runs.incrementAndGet() }, Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        timer.newTimeout({ runs.incrementAndGet() }, Long.MAX_VALUE / 2, TimeUnit.NANOSECONDS)
+        val latch = CountDownLatch(1)
+        timer.newTimeout({ latch.countDown() }, 100, TimeUnit.MILLISECONDS)
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertEquals(0, runs.get())
+        assertEquals(2, timer.pendingCount)
+        assertTrue(timeout.cancel())
+    }
+
+    @Test
+    fun negativeDelayRunsAtNextTick() {
+        val latch = CountDownLatch(1)
+        timer.newTimeout({ latch.countDown() }, -10, TimeUnit.SECONDS)
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun stoppedTimerRejectsTimeouts() {
+        timer.stop()
+        assertFailsWith<IllegalStateException> {
+            timer.newTimeout({}, 1, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun waitUntil(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!condition()) {
+            check(System.currentTimeMillis() < deadline) { "timed out" }
+            Thread.sleep(1)
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package cc.ioctl.telebot.util
+
+import cc.ioctl.telebot.util.ImageHeaderParser.Format
+import java.awt.image.BufferedImage
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Files
+import javax.imageio.ImageIO
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class ImageHeaderParserTest {
+
+    private val dir: File = Files.createTempDirectory("images").toFile()
+
+    @AfterTest
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun png() {
+        assertInfo(Format.PNG, 37, 21, probe(encode("png", 37, 21)))
+    }
+
+    @Test
+    fun gif() {
+        assertInfo(Format.GIF, 300, 2, probe(encode("gif", 300, 2)))
+        // the logical screen size of a GIF87a header
+        val gif87 = "GIF87a".toByteArray() + le16(640) + le16(480) + ByteArray(4)
+        assertInfo(Format.GIF, 640, 480, probe(gif87))
+    }
+
+    @Test
+    fun jpeg() {
+        assertInfo(Format.JPEG, 123, 45, probe(encode("jpg", 123, 45)))
+    }
+
+    @Test
+    fun jpegWithExifOrientation() {
+        // 1-4 keep the dimensions, 5-8 rotate the image by 90 degrees
+        for (orientation in 1..8) {
+            val rotated = orientation >= 5
+            for (order in listOf(ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN)) {
+                val jpeg = jpeg(exif(orientation, order), sof(width = 640, height = 480))
+                val info = probe(jpeg)
+                assertInfo(Format.JPEG, if (rotated) 480 else 640, if (rotated) 640 else 480, info)
+            }
+        }
+    }
+
+    @Test
+    fun jpegFrameHeaderPastTheFirstBlock() {
+        // a large APP2 segment before EXIF and the frame header, both past the first 4 KB
+        val padding = segment(0xE2, ByteArray(10_000))
+        val jpeg = jpeg(padding, exif(6, ByteOrder.BIG_ENDIAN), sof(width = 1920, height = 1080))
+        assertInfo(Format.JPEG, 1080, 1920, probe(jpeg))
+    }
+
+    @Test
+    fun jpegWithoutFrameHeader() {
+        // the scan starts before a frame header
+        assertNull(probe(jpeg(segment(0xDA, ByteArray(4)))))
+        // truncated in the middle of the segments
+        assertNull(probe(jpeg(exif(1, ByteOrder.BIG_ENDIAN)).copyOf(20)))
+    }
+
+    @Test
+    fun webpLossy() {
+        val chunk = byteArrayOf(0, 0, 0, 0x9D.toByte(), 0x01, 0x2A) + le16(1000) + le16(0x4000 or 750)
+        // the top 2 bits are the scaling, not part of the size
+        assertInfo(Format.WEBP, 1000, 750, probe(webp("VP8 ", chunk)))
+    }
+
+    @Test
+    fun webpLossless() {
+        val bits = (800 - 1) or ((600 - 1) shl 14)
+        // the signature and the size, then the image stream
+        val chunk = byteArrayOf(0x2F) + le32(bits) + ByteArray(8)
+        assertInfo(Format.WEBP, 800, 600, probe(webp("VP8L", chunk)))
+    }
+
+    @Test
+    fun webpExtended() {
+        val chunk = ByteArray(4) + le24(70_000 - 1) + le24(3 - 1)
+        assertInfo(Format.WEBP, 70_000, 3, probe(webp("VP8X", chunk)))
+    }
+
+    @Test
+    fun probeHeaderReadsFromThePosition() {
+        val png = encode("png", 8, 9)
+        val buf = ByteBuffer.allocate(png.size + 3)
+        buf.put(byteArrayOf(1, 2, 3)).put(png).flip().position(3)
+        assertInfo(Format.PNG, 8, 9, ImageHeaderParser.probeHeader(buf))
+        assertEquals(3, buf.position())
+    }
+
+    @Test
+    fun unsupportedOrMalformed() {
+        assertNull(probe(encode("bmp", 10, 10)))
+        assertNull(probe(ByteArray(0)))
+        assertNull(probe(encode("png", 10, 10).copyOf(20)))
+        // zero size
+        assertNull(probe("GIF89a".toByteArray() + le16(0) + le16(10)))
+        // a lossy WebP without the key frame start code
+        assertNull(probe(webp("VP8 ", ByteArray(10))))
+    }
+
+    private fun probe(data: ByteArray): ImageHeaderParser.ImageInfo? {
+        val file = File.createTempFile("image", null, dir)
+        file.writeBytes(data)
+        return ImageHeaderParser.probe(file)
+    }
+
+    private fun assertInfo(format: Format, width: Int, height: Int, info: ImageHeaderParser.ImageInfo?) {
+        assertNotNull(info)
+        assertEquals(format, info.format)
+        assertEquals(width, info.width, "width of $info")
+        assertEquals(height, info.height, "height of $info")
+    }
+
+    private fun encode(format: String, width: Int, height: Int): ByteArray {
+        val out = ByteArrayOutputStream()
+        check(ImageIO.write(BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, out))
+        return out.toByteArray()
+    }
+
+    private fun webp(type: String, chunk: ByteArray): ByteArray {
+        val body = "WEBP".toByteArray() + type.toByteArray() + le32(chunk.size) + chunk
+        return "RIFF".toByteArray() + le32(body.size) + body
+    }
+
+    private fun jpeg(vararg segments: ByteArray): ByteArray {
+        var data = byteArrayOf(0xFF.toByte(), 0xD8.toByte())
+        segments.forEach { data += it }
+        return data + byteArrayOf(0xFF.toByte(), 0xD9.toByte())
+    }
+
+    private fun segment(type: Int, payload: ByteArray): ByteArray {
+        return byteArrayOf(0xFF.toByte(), type.toByte()) + be16(payload.size + 2) + payload
+    }
+
+    private fun sof(width: Int, height: Int): ByteArray {
+        // baseline, 8-bit precision, one component
+        return segment(0xC0, byteArrayOf(8) + be16(height) + be16(width) + byteArrayOf(1, 1, 0x11, 0))
+    }
+
+    private fun exif(orientation: Int, order: ByteOrder): ByteArray {
+        // the TIFF header and the first IFD with a single orientation entry
+        val tiff = ByteBuffer.allocate(26).order(order)
+        tiff.put(if (order == ByteOrder.LITTLE_ENDIAN) "II".toByteArray() else "MM".toByteArray())
+        tiff.putShort(42).putInt(8)
+        tiff.putShort(1)
+        tiff.putShort(0x0112).putShort(3).putInt(1).putShort(orientation.toShort()).putShort(0)
+        tiff.putInt(0)
+        return segment(0xE1, "Exif".toByteArray() + byteArrayOf(0, 0) + tiff.array())
+    }
+
+    private fun le16(value: Int) = byteArrayOf(value.toByte(), (value shr 8).toByte())
+
+    private fun le24(value: Int) = le16(value) + byteArrayOf((value shr 16).toByte())
+
+    private fun le32(value: Int) = le24(value) + byteArrayOf((value shr 24).toByte())
+
+    private fun be16(value: Int) = byteArrayOf((value shr 8).toByte(), value.toByte())
+}
@@ -8,7 +8,8 @@ include(
     ":core",
     ":common",
     ":libs:mmkv",
-    ":plugins"
+    ":plugins",
+    ":benchmarks"
 )
 
 buildCache { local { removeUnusedEntriesAfterDays = 3 } }